@@ -27,6 +27,7 @@ import org.exoplatform.commons.api.notification.model.MessageInfo;
 import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.NotificationInfo;
 import org.exoplatform.commons.api.notification.plugin.config.PluginConfig;
+import org.exoplatform.commons.api.notification.service.template.TemplateContext;
 import org.exoplatform.container.component.BaseComponentPlugin;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.services.organization.OrganizationService;
@@ -112,7 +113,14 @@ public abstract class AbstractNotificationPlugin extends BaseComponentPlugin {
    */
   public MessageInfo buildMessage(NotificationContext ctx) {
     NotificationInfo message = ctx.getNotificationInfo();
-    MessageInfo messageInfo = makeMessage(ctx);
+    // the templates are rendered once for all the recipients of the notification
+    String previous = TemplateContext.setCurrentFragment(message.getId());
+    MessageInfo messageInfo;
+    try {
+      messageInfo = makeMessage(ctx);
+    } finally {
+      TemplateContext.setCurrentFragment(previous);
+    }
     return messageInfo.pluginId(getId()).from(NotificationPluginUtils.getFrom(message.getFrom()))
                .to(NotificationPluginUtils.getTo(message.getTo())).end();
   }
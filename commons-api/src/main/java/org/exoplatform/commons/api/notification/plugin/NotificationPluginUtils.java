@@ -48,6 +48,10 @@ public class NotificationPluginUtils {
   }
 
   public static String getFirstName(String userName) {
+    RecipientProfiles profiles = RecipientProfiles.current();
+    if (profiles != null) {
+      return profiles.get(userName).getFirstName();
+    }
     User user = null;
     try {
       UserHandler userHandler = getOrganizationService().getUserHandler();
@@ -63,6 +67,10 @@ public class NotificationPluginUtils {
   }
 
   public static String getFullName(String userId) {
+    RecipientProfiles profiles = RecipientProfiles.current();
+    if (profiles != null) {
+      return profiles.get(userId).getFullName();
+    }
     try {
       User user = getOrganizationService().getUserHandler().findUserByName(userId);
       return getFullName(user);
@@ -71,7 +79,7 @@ public class NotificationPluginUtils {
     }
   }
 
-  private static String getFullName(User user) {
+  static String getFullName(User user) {
     StringBuilder userInfor = new StringBuilder();
     String displayName = user.getDisplayName();
     if (displayName == null || displayName.length() == 0) {
@@ -83,6 +91,10 @@ public class NotificationPluginUtils {
   }
 
   private static String getEmailFormat(String userId) {
+    RecipientProfiles profiles = RecipientProfiles.current();
+    if (profiles != null) {
+      return profiles.get(userId).getEmailFormat();
+    }
     try {
       User user = getOrganizationService().getUserHandler().findUserByName(userId);
       StringBuilder userInfor = new StringBuilder(getFullName(user));
@@ -132,6 +144,10 @@ public class NotificationPluginUtils {
    * @return
    */
   public static String getLanguage(String userId) {
+    RecipientProfiles profiles = RecipientProfiles.current();
+    if (profiles != null) {
+      return profiles.get(userId).getLanguage();
+    }
     try {
       UserProfile profile = getOrganizationService().getUserProfileHandler().findUserProfileByName(userId);
       String lang = profile.getAttribute(UserProfile.PERSONAL_INFO_KEYS[8]);
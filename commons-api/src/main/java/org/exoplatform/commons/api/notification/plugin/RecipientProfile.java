@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.notification.plugin;
+
+import java.util.TimeZone;
+
+/**
+ * The snapshot of the information of a recipient used to build its
+ * messages: its name, email, language and time zone.
+ */
+public class RecipientProfile {
+
+  private final String   userId;
+
+  private final boolean  exists;
+
+  private final String   firstName;
+
+  private final String   fullName;
+
+  private final String   email;
+
+  private final String   language;
+
+  private final TimeZone timeZone;
+
+  /**
+   * @param userId
+   * @param firstName
+   * @param fullName the display name, or the first and last names
+   * @param email
+   * @param language the language, the default language when empty
+   * @param timeZone the time zone, the default time zone when null
+   */
+  public RecipientProfile(String userId, String firstName, String fullName, String email, String language, TimeZone timeZone) {
+    this(userId, true, firstName, fullName, email, language, timeZone);
+  }
+
+  private RecipientProfile(String userId, boolean exists, String firstName, String fullName, String email, String language, TimeZone timeZone) {
+    this.userId = userId;
+    this.exists = exists;
+    this.firstName = firstName;
+    this.fullName = fullName;
+    this.email = email;
+    this.language = (language != null && language.trim().length() > 0) ? language : NotificationPluginUtils.DEFAULT_LANGUAGE;
+    this.timeZone = (timeZone != null) ? timeZone : TimeZone.getDefault();
+  }
+
+  /**
+   * @param userId
+   * @return the profile of a user who does not exist
+   */
+  public static RecipientProfile missing(String userId) {
+    return new RecipientProfile(userId, false, null, null, null, null, null);
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @return false if the user has been deleted
+   */
+  public boolean exists() {
+    return exists;
+  }
+
+  public String getFirstName() {
+    return firstName;
+  }
+
+  public String getFullName() {
+    return fullName;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  /**
+   * @return the address of the mails, like "John Smith&lt;john@acme.com&gt;",
+   *         null if the email is unknown
+   */
+  public String getEmailFormat() {
+    if (email == null) {
+      return null;
+    }
+    return new StringBuilder(fullName == null ? "" : fullName).append("<").append(email).append(">").toString();
+  }
+
+  public String getLanguage() {
+    return language;
+  }
+
+  public TimeZone getTimeZone() {
+    return timeZone;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.notification.plugin;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserProfile;
+
+/**
+ * The profiles of the recipients of the messages built by a thread, like
+ * the users of a digest partition. Each profile is read once from the
+ * {@link OrganizationService} while the scope is open, and the builders
+ * share its {@link RecipientProfile} snapshot.
+ *
+ * <pre>
+ * RecipientProfiles profiles = RecipientProfiles.open();
+ * try {
+ *   profiles.load(userIds);
+ *   ...
+ * } finally {
+ *   profiles.close();
+ * }
+ * </pre>
+ */
+public class RecipientProfiles {
+  private static final Log LOG = ExoLogger.getLogger(RecipientProfiles.class);
+
+  /** The attribute of the time zone in the user profile */
+  public static final String TIME_ZONE_KEY = "user.timezone";
+
+  private static final ThreadLocal<RecipientProfiles> CURRENT = new ThreadLocal<RecipientProfiles>();
+
+  private final Map<String, RecipientProfile> profiles = new HashMap<String, RecipientProfile>();
+
+  private RecipientProfiles previous;
+
+  private int loads;
+
+  /**
+   * Opens the scope of the current thread
+   *
+   * @return the scope, it must be closed
+   */
+  public static RecipientProfiles open() {
+    return open(new RecipientProfiles());
+  }
+
+  /**
+   * Opens a scope for the current thread
+   *
+   * @param profiles
+   * @return the scope, it must be closed
+   */
+  public static RecipientProfiles open(RecipientProfiles profiles) {
+    profiles.previous = CURRENT.get();
+    CURRENT.set(profiles);
+    return profiles;
+  }
+
+  /**
+   * Closes the scope, the scope opened before it becomes the current one
+   */
+  public void close() {
+    if (previous == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(previous);
+      previous = null;
+    }
+    profiles.clear();
+  }
+
+  /**
+   * @return the scope of the current thread, null if there is none
+   */
+  public static RecipientProfiles current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Gets the profile of a user, from the scope of the current thread if
+   * there is one
+   *
+   * @param userId
+   * @return the profile
+   */
+  public static RecipientProfile getProfile(String userId) {
+    RecipientProfiles current = CURRENT.get();
+    return (current != null) ? current.get(userId) : new RecipientProfiles().loadProfile(userId);
+  }
+
+  /**
+   * Gets a profile, it is read once
+   *
+   * @param userId
+   * @return the profile
+   */
+  public RecipientProfile get(String userId) {
+    RecipientProfile profile = profiles.get(userId);
+    if (profile == null) {
+      profile = loadProfile(userId);
+      ++loads;
+      profiles.put(userId, profile);
+    }
+    return profile;
+  }
+
+  /**
+   * Reads the profiles of a batch of users which have not been read
+   *
+   * @param userIds
+   */
+  public void load(Collection<String> userIds) {
+    for (String userId : userIds) {
+      get(userId);
+    }
+  }
+
+  /**
+   * @return the number of profiles read
+   */
+  public int getLoads() {
+    return loads;
+  }
+
+  /**
+   * @return the number of profiles kept by the scope
+   */
+  public int size() {
+    return profiles.size();
+  }
+
+  /**
+   * Reads the profile of a user
+   *
+   * @param userId
+   * @return the profile, never null
+   */
+  protected RecipientProfile loadProfile(String userId) {
+    OrganizationService organizationService = NotificationPluginUtils.getOrganizationService();
+    User user;
+    try {
+      user = organizationService.getUserHandler().findUserByName(userId);
+    } catch (Exception e) {
+      LOG.debug("Failed to read the user " + userId, e);
+      return new RecipientProfile(userId, null, null, null, null, null);
+    }
+    if (user == null) {
+      return RecipientProfile.missing(userId);
+    }
+    String language = null;
+    TimeZone timeZone = null;
+    try {
+      UserProfile profile = organizationService.getUserProfileHandler().findUserProfileByName(userId);
+      if (profile != null) {
+        language = profile.getAttribute(UserProfile.PERSONAL_INFO_KEYS[8]);
+        String timeZoneId = profile.getAttribute(TIME_ZONE_KEY);
+        if (timeZoneId != null && timeZoneId.length() > 0) {
+          timeZone = TimeZone.getTimeZone(timeZoneId);
+        }
+      }
+    } catch (Exception e) {
+      LOG.debug("Failed to read the profile of the user " + userId, e);
+    }
+    return new RecipientProfile(userId, user.getFirstName(), NotificationPluginUtils.getFullName(user), user.getEmail(), language, timeZone);
+  }
+}
@@ -16,7 +16,9 @@
  */
 package org.exoplatform.commons.api.notification.plugin.config;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class TemplateConfig {
@@ -44,6 +46,13 @@ public class TemplateConfig {
 
   private Map<String, String> keyMapping               = new HashMap<String, String>();
 
+  /**
+   * The keys of the template context whose values depend on the recipient,
+   * like "FIRSTNAME", the other parts of the message are rendered once for
+   * all the recipients of a notification
+   */
+  private List<String>        recipientKeys            = new ArrayList<String>();
+
   public TemplateConfig() {
     bundlePath = DEFAULT_SRC_RESOURCE_BUNDLE_KEY;
   }
@@ -119,6 +128,25 @@ public class TemplateConfig {
     return this;
   }
 
+  /**
+   * @return the recipientKeys
+   */
+  public List<String> getRecipientKeys() {
+    return recipientKeys;
+  }
+
+  /**
+   * @param recipientKeys the recipientKeys to set
+   */
+  public void setRecipientKeys(List<String> recipientKeys) {
+    this.recipientKeys = recipientKeys;
+  }
+
+  public TemplateConfig addRecipientKey(String key) {
+    this.recipientKeys.add(key);
+    return this;
+  }
+
   public String getKeyValue(String key, String defaultValue) {
     if (keyMapping.containsKey(key)) {
       return keyMapping.get(key);
@@ -17,50 +17,153 @@
 
 package org.exoplatform.commons.api.notification.service;
 
-import java.util.concurrent.BlockingQueue;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.management.annotations.Impact;
+import org.exoplatform.management.annotations.ImpactType;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
 
+/**
+ * Executes the tasks processing the notifications.
+ *
+ * The number of tasks waiting or running is bounded by the capacity of the
+ * queue and the number of threads. When it is full, the task is handled by
+ * the overflow policy: the caller waits for a free place (block), runs the
+ * task itself (caller-runs), or gives the notification of the task to the
+ * {@link SpillHandler} which keeps it out of the heap (spill). The tasks
+ * which can not be spilled wait for a free place.
+ */
+@Managed
+@ManagedDescription("Execution of the notification tasks")
+@NameTemplate({
+  @Property(key = "service", value = "notification"),
+  @Property(key = "view", value = "completion")
+})
 public class NotificationCompletionService {
+  private static final Log LOG = ExoLogger.getLogger(NotificationCompletionService.class);
 
   private final String THREAD_NUMBER_KEY = "thread-number";
 
   private final String ASYNC_EXECUTION_KEY = "async-execution";
-  
+
   private final String KEEP_ALIVE_TIME = "keepAliveTime";
 
-  private Executor executor;
+  private final String QUEUE_CAPACITY_KEY = "queue-capacity";
+
+  private final String OVERFLOW_POLICY_KEY = "overflow-policy";
+
+  private final String VIRTUAL_THREADS_KEY = "virtual-threads";
+
+  /**
+   * The handling of a task when the queue is full
+   */
+  public enum OverflowPolicy {
+    BLOCK, CALLER_RUNS, SPILL;
+
+    static OverflowPolicy from(String value) {
+      for (OverflowPolicy policy : values()) {
+        if (policy.name().replace('_', '-').equalsIgnoreCase(value)) {
+          return policy;
+        }
+      }
+      return BLOCK;
+    }
+  }
+
+  /**
+   * A task whose notifications can be kept out of the heap when the queue is full
+   */
+  public interface Spillable {
+    /**
+     * @return the notifications to process instead of running the task
+     */
+    List<NotificationInfo> getNotifications();
+  }
+
+  /**
+   * Keeps the notifications of the tasks spilled when the queue is full,
+   * they are processed later
+   */
+  public interface SpillHandler {
+    /**
+     * @param notifications
+     * @return false if the notifications have not been kept, some of them
+     *         can have been kept and are then processed twice
+     */
+    boolean spill(List<NotificationInfo> notifications);
+  }
 
-  private ExecutorCompletionService<?> ecs;
-  
-  //store runnable to process notification
-  private BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>();
+  private Executor executor;
 
   private final int DEFAULT_THREAD_NUMBER = 1;
 
   private final boolean DEFAULT_ASYNC_EXECUTION = true;
 
+  private final int DEFAULT_QUEUE_CAPACITY = 1000;
+
   private int configThreadNumber;
-  
+
   private int keepAliveTime;
 
   private boolean configAsyncExecution;
-  
+
+  private int threadNumber;
+
+  private int queueCapacity;
+
+  private OverflowPolicy overflowPolicy;
+
+  private boolean virtualThreads;
+
+  /** The places of the tasks waiting or running */
+  private Semaphore places;
+
+  private volatile SpillHandler spillHandler;
+
+  private final AtomicInteger pendingTasks = new AtomicInteger();
+
+  private final AtomicLong rejectedTasks = new AtomicLong();
+
+  private final AtomicLong spilledTasks = new AtomicLong();
+
+  private final AtomicLong completedTasks = new AtomicLong();
+
+  /** The time in milliseconds between the submission and the start of the tasks */
+  private final AtomicLong waitTime = new AtomicLong();
+
+  /** The time in milliseconds of the execution of the tasks */
+  private final AtomicLong executionTime = new AtomicLong();
+
   public NotificationCompletionService(InitParams params) {
 
     //
     ValueParam threadNumberValue = params.getValueParam(THREAD_NUMBER_KEY);
     ValueParam asyncExecution = params.getValueParam(ASYNC_EXECUTION_KEY);
     ValueParam aliveTime = params.getValueParam(KEEP_ALIVE_TIME);
+    ValueParam capacity = params.getValueParam(QUEUE_CAPACITY_KEY);
+    ValueParam policy = params.getValueParam(OVERFLOW_POLICY_KEY);
+    ValueParam virtual = params.getValueParam(VIRTUAL_THREADS_KEY);
 
     //
     try {
@@ -82,47 +185,256 @@ public class NotificationCompletionService {
     } catch (Exception e) {
       configAsyncExecution = DEFAULT_ASYNC_EXECUTION;
     }
-    
-    int threadNumber = configThreadNumber <= 0 ? configThreadNumber : Runtime.getRuntime().availableProcessors();
+
+    //
+    try {
+      queueCapacity = Math.max(1, Integer.valueOf(capacity.getValue()));
+    } catch (Exception e) {
+      queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    }
+    overflowPolicy = OverflowPolicy.from(policy != null ? policy.getValue() : null);
+    virtualThreads = virtual != null && Boolean.valueOf(virtual.getValue());
+
+    threadNumber = configThreadNumber > 0 ? configThreadNumber : Runtime.getRuntime().availableProcessors();
 
     ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
       public Thread newThread(Runnable runable) {
-        Thread t = new Thread(runable, "Notification-Thread");
+        Thread t = new Thread(runable, "Notification-Thread-" + count.incrementAndGet());
         t.setPriority(Thread.MIN_PRIORITY);
         return t;
       }
     };
     //
     if (configAsyncExecution) {
-      executor = new ThreadPoolExecutor(threadNumber, threadNumber, keepAliveTime, 
-                                              TimeUnit.SECONDS, workQueue, threadFactory);
-      ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+      places = new Semaphore(queueCapacity + threadNumber);
+      if (virtualThreads) {
+        executor = newVirtualThreadExecutor();
+        if (executor == null) {
+          LOG.warn("The virtual threads are not supported by the runtime, a pool of " + threadNumber + " threads is used.");
+          virtualThreads = false;
+        }
+      }
+      if (executor == null) {
+        executor = new ThreadPoolExecutor(threadNumber, threadNumber, keepAliveTime, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+      }
     } else {
       executor = new DirectExecutor();
     }
-    //
-    ecs = new ExecutorCompletionService(executor);
   }
 
-  public void addTask(Callable callable) {
-    ecs.submit(callable);
+  /**
+   * @return the executor starting a virtual thread per task, null if the
+   *         runtime does not support them
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
   }
 
-  public void waitCompletionFinished() {
+  public void addTask(Callable callable) {
+    Task task = new Task(callable);
+    if (places == null) {
+      executor.execute(task);
+      return;
+    }
+    if (places.tryAcquire() == false) {
+      rejectedTasks.incrementAndGet();
+      if (overflow(task)) {
+        return;
+      }
+      places.acquireUninterruptibly();
+    }
+    task.queued = true;
+    pendingTasks.incrementAndGet();
     try {
-      if (executor instanceof ExecutorService) {
-        ((ExecutorService) executor).awaitTermination(1, TimeUnit.SECONDS);
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // the pool is stopped or its threads are still busy
+      task.run();
+    }
+  }
+
+  /**
+   * Handles the task when the queue is full
+   *
+   * @return true if the task has been handled, false if it waits for a place
+   */
+  private boolean overflow(Task task) {
+    switch (overflowPolicy) {
+    case CALLER_RUNS:
+      task.run();
+      return true;
+    case SPILL:
+      SpillHandler handler = spillHandler;
+      if (handler != null && task.callable instanceof Spillable) {
+        List<NotificationInfo> notifications = ((Spillable) task.callable).getNotifications();
+        if (notifications.isEmpty() || handler.spill(notifications)) {
+          spilledTasks.incrementAndGet();
+          return true;
+        }
       }
+      return false;
+    default:
+      return false;
     }
-    catch (InterruptedException e) {
-      throw new RuntimeException(e);
+  }
+
+  /**
+   * Waits until the tasks already added are done
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if all the tasks are done
+   */
+  public boolean waitCompletionFinished(long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      while (pendingTasks.get() > 0) {
+        if (System.currentTimeMillis() >= deadline) {
+          return false;
+        }
+        Thread.sleep(10);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     }
   }
 
+  public void waitCompletionFinished() {
+    waitCompletionFinished(1000);
+  }
+
   public boolean isAsync() {
     return configAsyncExecution;
   }
 
+  public void setSpillHandler(SpillHandler spillHandler) {
+    this.spillHandler = spillHandler;
+  }
+
+  /**
+   * @return true if a task can be added without overflow
+   */
+  public boolean hasCapacity() {
+    return places == null || places.availablePermits() > 0;
+  }
+
+  @Managed
+  @ManagedDescription("Number of threads processing the tasks.")
+  @Impact(ImpactType.READ)
+  public int getThreadNumber() {
+    return threadNumber;
+  }
+
+  @Managed
+  @ManagedDescription("Whether a virtual thread is started per task.")
+  @Impact(ImpactType.READ)
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  @Managed
+  @ManagedDescription("Maximum number of tasks waiting for a thread.")
+  @Impact(ImpactType.READ)
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  @Managed
+  @ManagedDescription("Handling of the tasks when the queue is full: BLOCK, CALLER_RUNS or SPILL.")
+  @Impact(ImpactType.READ)
+  public String getOverflowPolicy() {
+    return overflowPolicy.name();
+  }
+
+  @Managed
+  @ManagedDescription("Number of tasks waiting or running.")
+  @Impact(ImpactType.READ)
+  public int getQueueDepth() {
+    return pendingTasks.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of tasks added while the queue was full.")
+  @Impact(ImpactType.READ)
+  public long getRejectedTasks() {
+    return rejectedTasks.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of tasks whose notification has been spilled.")
+  @Impact(ImpactType.READ)
+  public long getSpilledTasks() {
+    return spilledTasks.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of tasks done.")
+  @Impact(ImpactType.READ)
+  public long getCompletedTasks() {
+    return completedTasks.get();
+  }
+
+  @Managed
+  @ManagedDescription("Average time in milliseconds between the submission and the start of a task.")
+  @Impact(ImpactType.READ)
+  public long getAverageWaitTime() {
+    long count = completedTasks.get();
+    return count == 0 ? 0 : waitTime.get() / count;
+  }
+
+  @Managed
+  @ManagedDescription("Average time in milliseconds of the execution of a task.")
+  @Impact(ImpactType.READ)
+  public long getAverageExecutionTime() {
+    long count = completedTasks.get();
+    return count == 0 ? 0 : executionTime.get() / count;
+  }
+
+  /**
+   * Runs a task and records its times, the place of the task is released
+   * at its end
+   */
+  private class Task implements Runnable {
+    private final Callable<?> callable;
+
+    private final long        submitTime = System.currentTimeMillis();
+
+    private boolean           queued;
+
+    Task(Callable<?> callable) {
+      this.callable = callable;
+    }
+
+    public void run() {
+      long startTime = System.currentTimeMillis();
+      try {
+        callable.call();
+      } catch (Exception e) {
+        LOG.warn("Failed to process the notification task: " + e.getMessage());
+        LOG.debug(e.getMessage(), e);
+      } finally {
+        long endTime = System.currentTimeMillis();
+        waitTime.addAndGet(startTime - submitTime);
+        executionTime.addAndGet(endTime - startTime);
+        completedTasks.incrementAndGet();
+        if (queued) {
+          pendingTasks.decrementAndGet();
+          places.release();
+        }
+      }
+    }
+  }
+
   private class DirectExecutor implements Executor {
 
     public void execute(final Runnable runnable) {
@@ -16,7 +16,9 @@
  */
 package org.exoplatform.commons.api.notification.service.setting;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.services.organization.User;
@@ -38,6 +40,14 @@ public interface UserSettingService {
    */
   UserSetting get(String userId);
 
+  /**
+   * Gets the notification settings of several users in one read.
+   * 
+   * @param userIds The users' remote Ids.
+   * @return The notification settings by remote Id, in the order of the given Ids.
+   */
+  Map<String, UserSetting> getAll(Collection<String> userIds);
+
   /**
    * Gets a list of user settings which are registered for daily notifications.
    * 
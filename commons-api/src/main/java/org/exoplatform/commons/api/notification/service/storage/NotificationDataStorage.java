@@ -16,8 +16,10 @@
  */
 package org.exoplatform.commons.api.notification.service.storage;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.NotificationInfo;
@@ -33,6 +35,16 @@ public interface NotificationDataStorage {
    * @throws Exception
    */
   void save(NotificationInfo notification) throws Exception;
+
+  /**
+   * Saves information of a list of notifications, in as few writes as
+   * possible. Some of them can be saved while the others fail.
+   * 
+   * @param notifications The notifications to be saved.
+   * @return The notifications which have not been saved and can be saved again.
+   * @throws Exception
+   */
+  Collection<NotificationInfo> save(Collection<NotificationInfo> notifications) throws Exception;
   
   /**
    * Gets information of all notifications of a user.
@@ -48,5 +60,15 @@ public interface NotificationDataStorage {
    * @throws Exception
    */
   void removeMessageAfterSent() throws Exception;
+
+  /**
+   * Removes the messages after they have been sent, except the messages of
+   * the users whose digest has failed, which are read again by their next
+   * digest.
+   * 
+   * @param keptUsers The users whose digest has failed.
+   * @throws Exception
+   */
+  void removeMessageAfterSent(Set<String> keptUsers) throws Exception;
   
 }
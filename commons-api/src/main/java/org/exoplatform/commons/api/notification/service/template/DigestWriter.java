@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.notification.service.template;
+
+import groovy.lang.Writable;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The writer of the digest messages of the plugins, it keeps them in a
+ * character buffer which can be reused for the next digests.
+ *
+ * A plugin building its digest can report the number of items (the
+ * "&lt;li&gt;" elements) it writes with {@link #addItems(int)}, the items of
+ * the plugins which do not report them are counted by
+ * {@link #countItems(int)}. The buffer is given to the digest template as a
+ * {@link Writable}, so it is written without being copied in a String.
+ */
+public class DigestWriter extends Writer implements Writable {
+
+  private static final char[] LI = { '<', 'l', 'i' };
+
+  private char[]              buf;
+
+  private int                 count;
+
+  private int                 reportedItems;
+
+  /** The range of the attributes of the last item counted */
+  private int                 attributesStart = -1;
+
+  private int                 attributesEnd   = -1;
+
+  public DigestWriter() {
+    this(8192);
+  }
+
+  /**
+   * @param capacity the initial capacity of the buffer
+   */
+  public DigestWriter(int capacity) {
+    buf = new char[Math.max(16, capacity)];
+  }
+
+  /**
+   * Reports items written by a plugin
+   *
+   * @param items the number of items
+   */
+  public void addItems(int items) {
+    reportedItems += items;
+  }
+
+  /**
+   * @return the number of items reported by the plugins
+   */
+  public int getReportedItems() {
+    return reportedItems;
+  }
+
+  /**
+   * Counts the items written from a position, the "&lt;li&gt;" elements
+   * with attributes.
+   *
+   * @param from the position of the first character
+   * @return the number of items
+   */
+  public int countItems(int from) {
+    int items = 0;
+    int end = count - LI.length;
+    for (int i = Math.max(0, from); i < end; ++i) {
+      if (buf[i] == '<' && buf[i + 1] == 'l' && buf[i + 2] == 'i' && Character.isWhitespace(buf[i + 3])) {
+        int close = indexOf('>', i + 3);
+        if (close < 0) {
+          break;
+        }
+        ++items;
+        attributesStart = i + 3;
+        attributesEnd = close;
+        i = close;
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Replaces a declaration of the style of the last item counted, from its
+   * property up to the next ';', the characters are moved in the buffer.
+   *
+   * @param property the property, like "margin"
+   * @param declaration the new declaration
+   * @return false if the property has not been found
+   */
+  public boolean replaceItemStyle(String property, String declaration) {
+    if (attributesStart < 0) {
+      return false;
+    }
+    int begin = indexOf(property, attributesStart, attributesEnd);
+    if (begin < 0) {
+      return false;
+    }
+    int end = indexOf(';', begin);
+    if (end < 0 || end > attributesEnd) {
+      return false;
+    }
+    splice(begin, end + 1, declaration);
+    attributesEnd += declaration.length() - (end + 1 - begin);
+    return true;
+  }
+
+  /**
+   * Replaces the characters between two positions
+   *
+   * @param begin the position of the first character replaced
+   * @param end the position after the last character replaced
+   * @param str the replacement
+   */
+  public void splice(int begin, int end, String str) {
+    int delta = str.length() - (end - begin);
+    ensureCapacity(count + delta);
+    System.arraycopy(buf, end, buf, end + delta, count - end);
+    str.getChars(0, str.length(), buf, begin);
+    count += delta;
+  }
+
+  /**
+   * @return the number of characters written
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return the capacity of the buffer
+   */
+  public int capacity() {
+    return buf.length;
+  }
+
+  /**
+   * Clears the writer so that its buffer can be reused
+   */
+  public void reset() {
+    count = 0;
+    reportedItems = 0;
+    attributesStart = -1;
+    attributesEnd = -1;
+  }
+
+  @Override
+  public void write(int c) {
+    ensureCapacity(count + 1);
+    buf[count++] = (char) c;
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) {
+    ensureCapacity(count + len);
+    System.arraycopy(cbuf, off, buf, count, len);
+    count += len;
+  }
+
+  @Override
+  public void write(String str, int off, int len) {
+    ensureCapacity(count + len);
+    str.getChars(off, off + len, buf, count);
+    count += len;
+  }
+
+  @Override
+  public Writer writeTo(Writer out) throws IOException {
+    out.write(buf, 0, count);
+    return out;
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public String toString() {
+    return new String(buf, 0, count);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buf.length) {
+      char[] newBuf = new char[Math.max(buf.length << 1, capacity)];
+      System.arraycopy(buf, 0, newBuf, 0, count);
+      buf = newBuf;
+    }
+  }
+
+  private int indexOf(char c, int from) {
+    for (int i = from; i < count; ++i) {
+      if (buf[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int indexOf(String str, int from, int to) {
+    int last = Math.min(to, count) - str.length();
+    for (int i = from; i <= last; ++i) {
+      int j = 0;
+      while (j < str.length() && buf[i + j] == str.charAt(j)) {
+        ++j;
+      }
+      if (j == str.length()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
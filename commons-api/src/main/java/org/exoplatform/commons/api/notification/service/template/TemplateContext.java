@@ -23,6 +23,9 @@ public class TemplateContext extends HashMap<String, Object> {
   
   private static final long serialVersionUID = 1L;
 
+  /** The notification rendered by the thread */
+  private static final ThreadLocal<String> CURRENT_FRAGMENT = new ThreadLocal<String>();
+
   private String            pluginId;
 
   private String            language;
@@ -31,6 +34,8 @@ public class TemplateContext extends HashMap<String, Object> {
   
   private Throwable         error = null;
 
+  private String            fragmentId       = CURRENT_FRAGMENT.get();
+
   public TemplateContext() {
     
   }
@@ -67,6 +72,35 @@ public class TemplateContext extends HashMap<String, Object> {
     return this;
   }
 
+  /**
+   * Renders the context as a fragment shared by the recipients of a
+   * notification
+   * 
+   * @param fragmentId the id of the notification, null to not share it
+   * @return the TemplateContext
+   */
+  public TemplateContext fragment(String fragmentId) {
+    this.fragmentId = fragmentId;
+    return this;
+  }
+
+  /**
+   * Sets the notification rendered by the current thread, it is the
+   * fragment of the contexts created by the thread
+   * 
+   * @param fragmentId the id of the notification, null when it is rendered
+   * @return the previous notification rendered by the thread
+   */
+  public static String setCurrentFragment(String fragmentId) {
+    String previous = CURRENT_FRAGMENT.get();
+    if (fragmentId == null) {
+      CURRENT_FRAGMENT.remove();
+    } else {
+      CURRENT_FRAGMENT.set(fragmentId);
+    }
+    return previous;
+  }
+
   /**
    * @return the TemplateContext
    */
@@ -98,5 +132,13 @@ public class TemplateContext extends HashMap<String, Object> {
   public int getDigestSize() {
     return this.digestSize;
   }
+
+  /**
+   * @return the id of the notification whose fragment is rendered, null
+   *         if the context is not shared
+   */
+  public String getFragmentId() {
+    return fragmentId;
+  }
     
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.notification.stat;
+
+import java.io.Serializable;
+
+/**
+ * The executions of a phase of a notification job, like the digest.
+ */
+public interface PhaseStatistics extends Serializable {
+
+  long getExecutionCount();
+
+  long getExecutionAvgTime();
+
+  long getExecutionMaxTime();
+
+  long getLastExecutionTime();
+
+  /**
+   * @return the number of users processed by the last execution
+   */
+  long getLastUserCount();
+
+  /**
+   * @return the heap memory in bytes used at the end of the last execution
+   */
+  long getLastMemoryUsed();
+
+  long getMaxMemoryUsed();
+
+  void executed(long users, long time, long memory);
+}
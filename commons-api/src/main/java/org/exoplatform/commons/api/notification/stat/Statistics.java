@@ -54,6 +54,8 @@ public interface Statistics {
    */
   public QueryStatistics getQueryStatistics(String queryString);
   
+  public PhaseStatistics getPhaseStatistics(String phase);
+  
   /**
    * Get global number of entity deletes
    * @return
@@ -132,6 +134,10 @@ public interface Statistics {
    * Get the names of all entities
    */
   public String[] getPluginNames();
+  /**
+   * Get the names of all executed phases
+   */
+  public String[] getPhases();
   
   /**
    * Gets the start time of statistics process
@@ -85,4 +85,13 @@ public interface StatisticsCollector {
    * @param pluginId
    */
   public void putQueue(String pluginId);
+
+  /**
+   * Callback indicating execution of a phase of a job
+   * @param phase the name of the phase
+   * @param users Number of users processed
+   * @param time execution time
+   * @param memory heap memory used at the end of the phase
+   */
+  public void phaseExecuted(String phase, long users, long time, long memory);
 }
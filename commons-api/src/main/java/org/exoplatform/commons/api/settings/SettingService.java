@@ -16,6 +16,9 @@
  */
 package org.exoplatform.commons.api.settings;
 
+import java.util.Collection;
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.data.Context;
 import org.exoplatform.commons.api.settings.data.Scope;
 
@@ -80,4 +83,19 @@ public interface SettingService {
    */
   public SettingValue<?> get(Context context, Scope scope, String key);
 
+  /**
+   * Gets the values of several keys for several contexts of a same type in
+   * one read of the database.
+   * 
+   * @param context The type of the contexts, it must be USER.
+   * @param ids The Ids of the contexts.
+   * @param scope The scope with which the values are associated.
+   * @param keys The keys with which the values are associated.
+   * @return The values by key for each context Id, a context without the
+   *         scope is not in the result and a key without value is not in the
+   *         values of its context.
+   * @LevelAPI Experimental
+   */
+  public Map<String, Map<String, SettingValue<?>>> getAll(Context context, Collection<String> ids, Scope scope, Collection<String> keys);
+
 }
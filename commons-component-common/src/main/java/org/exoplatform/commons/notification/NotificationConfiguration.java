@@ -16,6 +16,7 @@
  */
 package org.exoplatform.commons.notification;
 
+import java.io.File;
 import java.io.Serializable;
 
 import org.exoplatform.commons.notification.impl.AbstractService;
@@ -24,12 +25,44 @@ import org.exoplatform.container.xml.InitParams;
 public class NotificationConfiguration implements Serializable {
   private static final long serialVersionUID = 1L;
 
+  private static final String DATA_DIRECTORY_SYS_KEY = "conf.notification.service.dataDirectory";
+
+  private static final String DATA_DIRECTORY_KEY     = "dataDirectory";
+
+  private static final String HOUR_PARTITION_SYS_KEY = "conf.notification.service.hourPartition";
+
+  private static final String HOUR_PARTITION_KEY     = "hourPartition";
+
+  private static final String RETENTION_DAYS_SYS_KEY = "conf.notification.service.retentionDays";
+
+  private static final String RETENTION_DAYS_KEY     = "retentionDays";
+
   private String            workspace        = AbstractService.DEFAULT_WORKSPACE_NAME;
 
   private boolean          isSendWeekly     = false;
 
+  /** The local directory where the notification keeps its file based data */
+  private String            dataDirectory;
+
+  /** Whether the messages of a day are partitioned by hour */
+  private boolean           hourPartition;
+
+  /** The number of days the partitions of the messages are kept */
+  private int               retentionDays;
+
   public NotificationConfiguration(InitParams params) {
     this.workspace = NotificationUtils.getValueParam(params, AbstractService.WORKSPACE_PARAM, AbstractService.DEFAULT_WORKSPACE_NAME);
+    this.dataDirectory = NotificationUtils.getSystemValue(params, DATA_DIRECTORY_SYS_KEY, DATA_DIRECTORY_KEY, getDefaultDataDirectory());
+    this.hourPartition = Boolean.valueOf(NotificationUtils.getSystemValue(params, HOUR_PARTITION_SYS_KEY, HOUR_PARTITION_KEY, "false"));
+    this.retentionDays = NotificationUtils.getSystemValue(params, RETENTION_DAYS_SYS_KEY, RETENTION_DAYS_KEY, 30);
+  }
+
+  private static String getDefaultDataDirectory() {
+    String parent = System.getProperty("gatein.data.dir");
+    if (parent == null || parent.length() == 0) {
+      parent = System.getProperty("exo.data.dir", System.getProperty("java.io.tmpdir"));
+    }
+    return new File(parent, "notification").getAbsolutePath();
   }
 
   public String getWorkspace() {
@@ -50,6 +83,54 @@ public class NotificationConfiguration implements Serializable {
     this.isSendWeekly = isSendWeekly;
   }
 
+  /**
+   * Gets the local directory used to store the file based data
+   * of the notification (queue log, journals, snapshots...)
+   * 
+   * @return the data directory
+   */
+  public String getDataDirectory() {
+    return dataDirectory;
+  }
+
+  /**
+   * @param dataDirectory the dataDirectory to set
+   */
+  public void setDataDirectory(String dataDirectory) {
+    this.dataDirectory = dataDirectory;
+  }
+
+  /**
+   * @return true if the messages of a day are partitioned by hour
+   */
+  public boolean isHourPartition() {
+    return hourPartition;
+  }
+
+  /**
+   * @param hourPartition the hourPartition to set
+   */
+  public void setHourPartition(boolean hourPartition) {
+    this.hourPartition = hourPartition;
+  }
+
+  /**
+   * Gets the number of days the messages are kept, the partitions of the
+   * older days are removed after the digest
+   * 
+   * @return the number of days, 0 to keep them
+   */
+  public int getRetentionDays() {
+    return retentionDays;
+  }
+
+  /**
+   * @param retentionDays the retentionDays to set
+   */
+  public void setRetentionDays(int retentionDays) {
+    this.retentionDays = retentionDays;
+  }
+
   /**
    * @param workspace the workspace to set
    */
@@ -28,6 +28,7 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
 import org.apache.commons.lang.StringUtils;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfiles;
 import org.exoplatform.commons.api.notification.plugin.config.TemplateConfig;
 import org.exoplatform.commons.api.notification.template.Element;
 import org.exoplatform.commons.notification.template.DigestTemplate;
@@ -76,7 +77,7 @@ public class NotificationUtils {
     String digestThreeKey = templateConfig.getKeyValue(TemplateConfig.DIGEST_THREE_KEY, getDefaultKey(DEFAULT_DIGEST_THREE_KEY, pluginId));
     String digestMoreKey = templateConfig.getKeyValue(TemplateConfig.DIGEST_MORE_KEY, getDefaultKey(DEFAULT_DIGEST_MORE_KEY, pluginId));
     
-    Locale locale = new Locale(language);
+    Locale locale = TemplateUtils.getLocale(language);
     
     return new DigestTemplate().digestOne(TemplateUtils.getResourceBundle(digestOneKey, locale, srcResource))
                                .digestThree(TemplateUtils.getResourceBundle(digestThreeKey, locale, srcResource))
@@ -97,7 +98,7 @@ public class NotificationUtils {
     String bundlePath = templateConfig.getBundlePath();
     String subjectKey = templateConfig.getKeyValue(TemplateConfig.SUBJECT_KEY, getDefaultKey(DEFAULT_SUBJECT_KEY, pluginId));
     
-    Locale locale = new Locale(language);
+    Locale locale = TemplateUtils.getLocale(language);
     
     return new SimpleElement().language(locale.getLanguage()).template(TemplateUtils.getResourceBundle(subjectKey, locale, bundlePath));
   }
@@ -187,6 +188,10 @@ public class NotificationUtils {
   }
   
   public static boolean isDeletedMember(String userName) {
+    RecipientProfiles profiles = RecipientProfiles.current();
+    if (profiles != null) {
+      return profiles.get(userName).exists() == false;
+    }
     try {
       return CommonsUtils.getService(OrganizationService.class).getUserHandler().findUserByName(userName) == null;
     } catch (Exception e) {
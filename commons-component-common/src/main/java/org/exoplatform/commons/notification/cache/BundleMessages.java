@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+/**
+ * The messages of a resource bundle in a locale, flattened with the
+ * messages of its parents in an immutable map.
+ *
+ * A lookup never throws a MissingResourceException: a missing key gives
+ * null, and a bundle which is not found is kept as {@link #MISSING} so that
+ * it is not asked again until the bundles are deployed.
+ */
+public class BundleMessages {
+
+  /** The marker of a bundle which is not found */
+  public static final BundleMessages MISSING = new BundleMessages(Collections.<String, String> emptyMap());
+
+  private final Map<String, String> messages;
+
+  private BundleMessages(Map<String, String> messages) {
+    this.messages = messages;
+  }
+
+  /**
+   * Flattens a resource bundle, the values which are not strings are
+   * ignored
+   *
+   * @param bundle the bundle, can be null
+   * @return the messages, {@link #MISSING} if the bundle is null
+   */
+  public static BundleMessages of(ResourceBundle bundle) {
+    if (bundle == null) {
+      return MISSING;
+    }
+    Map<String, String> messages = new HashMap<String, String>();
+    Enumeration<String> keys = bundle.getKeys();
+    while (keys.hasMoreElements()) {
+      String key = keys.nextElement();
+      Object value = bundle.getObject(key);
+      if (value instanceof String) {
+        messages.put(key, (String) value);
+      }
+    }
+    return new BundleMessages(Collections.unmodifiableMap(messages));
+  }
+
+  /**
+   * @param key
+   * @return the message, null if the key is missing
+   */
+  public String get(String key) {
+    return messages.get(key);
+  }
+
+  public boolean containsKey(String key) {
+    return messages.containsKey(key);
+  }
+
+  /**
+   * @return true if the bundle has not been found
+   */
+  public boolean isMissing() {
+    return this == MISSING;
+  }
+
+  public int size() {
+    return messages.size();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A tier of the {@link TemplateCaching}: a cache of at most "maxSize"
+ * values, the least recently used value is evicted when it is full.
+ *
+ * A missing value is loaded out of the lock, two concurrent loads of the
+ * same key are harmless. The null values are not kept.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class CacheTier<K, V> {
+
+  /**
+   * Loads a missing value
+   */
+  public interface Loader<K, V> {
+    V load(K key) throws Exception;
+  }
+
+  /**
+   * Selects the keys to remove
+   */
+  public interface Filter<K> {
+    boolean accept(K key);
+  }
+
+  private final String         name;
+
+  private final int            maxSize;
+
+  /** The values in the order of their last use */
+  private final Map<K, V>      values;
+
+  private final AtomicLong     hits      = new AtomicLong();
+
+  private final AtomicLong     misses    = new AtomicLong();
+
+  private final AtomicLong     evictions = new AtomicLong();
+
+  private final AtomicLong     loads     = new AtomicLong();
+
+  /** The time in milliseconds spent in the loads */
+  private final AtomicLong     loadTime  = new AtomicLong();
+
+  /**
+   * @param name
+   * @param maxSize the maximum number of values
+   */
+  public CacheTier(String name, int maxSize) {
+    this.name = name;
+    this.maxSize = Math.max(1, maxSize);
+    this.values = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        if (size() > CacheTier.this.maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Gets a value, it is loaded when it is missing
+   *
+   * @param key
+   * @param loader
+   * @return the value, null if the loader gives null
+   * @throws Exception the failure of the loader
+   */
+  public V get(K key, Loader<K, V> loader) throws Exception {
+    V value;
+    synchronized (values) {
+      value = values.get(key);
+    }
+    if (value != null) {
+      hits.incrementAndGet();
+      return value;
+    }
+    misses.incrementAndGet();
+    return load(key, loader);
+  }
+
+  /**
+   * Loads a value and keeps it, the previous value is replaced
+   *
+   * @param key
+   * @param loader
+   * @return the value, null if the loader gives null
+   * @throws Exception the failure of the loader
+   */
+  public V load(K key, Loader<K, V> loader) throws Exception {
+    long startTime = System.currentTimeMillis();
+    V value;
+    try {
+      value = loader.load(key);
+    } finally {
+      loads.incrementAndGet();
+      loadTime.addAndGet(System.currentTimeMillis() - startTime);
+    }
+    if (value != null) {
+      put(key, value);
+    }
+    return value;
+  }
+
+  public void put(K key, V value) {
+    synchronized (values) {
+      values.put(key, value);
+    }
+  }
+
+  /**
+   * @param key
+   * @return the value, null if it is not cached
+   */
+  public V peek(K key) {
+    synchronized (values) {
+      return values.get(key);
+    }
+  }
+
+  /**
+   * Removes the values whose key is accepted by the filter
+   *
+   * @param filter
+   * @return the number of values removed
+   */
+  public int remove(Filter<K> filter) {
+    int count = 0;
+    synchronized (values) {
+      Iterator<K> it = values.keySet().iterator();
+      while (it.hasNext()) {
+        if (filter.accept(it.next())) {
+          it.remove();
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  public void clear() {
+    synchronized (values) {
+      values.clear();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public int getSize() {
+    synchronized (values) {
+      return values.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * @return the ratio of the gets finding their value, between 0 and 1
+   */
+  public double getHitRatio() {
+    long count = hits.get() + misses.get();
+    return count == 0 ? 0 : (double) hits.get() / count;
+  }
+
+  /**
+   * @return the average time in milliseconds of a load
+   */
+  public long getAverageLoadTime() {
+    long count = loads.get();
+    return count == 0 ? 0 : loadTime.get() / count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[size=%s/%s, hits=%s, misses=%s, hitRatio=%.2f, loads=%s, evictions=%s, avgLoadTime=%sms]",
+                         name, getSize(), maxSize, getHits(), getMisses(), getHitRatio(), getLoads(), getEvictions(), getAverageLoadTime());
+  }
+}
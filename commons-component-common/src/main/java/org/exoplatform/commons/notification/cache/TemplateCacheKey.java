@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+/**
+ * The key of a value of the {@link TemplateCaching}: the plugin and the
+ * language it is used for, and its name, like a template path.
+ */
+public class TemplateCacheKey {
+
+  private final String pluginId;
+
+  private final String language;
+
+  private final String name;
+
+  public TemplateCacheKey(String pluginId, String language, String name) {
+    this.pluginId = pluginId == null ? "" : pluginId;
+    this.language = language == null ? "" : language;
+    this.name = name == null ? "" : name;
+  }
+
+  public String getPluginId() {
+    return pluginId;
+  }
+
+  public String getLanguage() {
+    return language;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param pluginId the plugin, null for all the plugins
+   * @param language the language, null for all the languages
+   * @return true if the key is of the plugin and of the language
+   */
+  public boolean matches(String pluginId, String language) {
+    return (pluginId == null || this.pluginId.equals(pluginId)) && (language == null || this.language.equals(language));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof TemplateCacheKey))
+      return false;
+
+    TemplateCacheKey that = (TemplateCacheKey) o;
+    return pluginId.equals(that.pluginId) && language.equals(that.language) && name.equals(that.name);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = pluginId.hashCode();
+    result = 31 * result + language.hashCode();
+    result = 31 * result + name.hashCode();
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return pluginId + "/" + language + "/" + name;
+  }
+}
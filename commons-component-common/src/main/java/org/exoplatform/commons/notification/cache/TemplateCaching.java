@@ -16,36 +16,136 @@
  */
 package org.exoplatform.commons.notification.cache;
 
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.commons.api.notification.plugin.config.PluginConfig;
+import org.exoplatform.commons.api.notification.plugin.config.TemplateConfig;
+import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
+import org.exoplatform.commons.api.notification.service.template.TemplateContext;
 import org.exoplatform.commons.api.notification.template.Element;
+import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.template.TemplateUtils;
-import org.exoplatform.services.cache.CacheService;
-import org.exoplatform.services.cache.ExoCache;
-import org.exoplatform.services.cache.future.FutureExoCache;
-import org.exoplatform.services.cache.future.Loader;
+import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.commons.utils.PropertyManager;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.groovyscript.GroovyTemplate;
+import org.exoplatform.management.annotations.Impact;
+import org.exoplatform.management.annotations.ImpactType;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.resources.ResourceBundleService;
 
 /**
  * Created by The eXo Platform SAS
  * Author : eXoPlatform
  *          thanhvc@exoplatform.com
  * Aug 18, 2013  
+ *
+ * The cache of the notification templates. It has a {@link CacheTier} per
+ * kind of value:
+ * - elements: the template elements of the plugins, like the subjects;
+ * - templates: the text of the template files;
+ * - compiled: the compiled Groovy templates;
+ * - bundles: the messages of the resource bundles of the templates, by
+ *   locale;
+ * - fragments: the templates rendered once for all the recipients of a
+ *   notification, see {@link TemplateFragment}.
+ *
+ * Each tier keeps a bounded number of values and evicts the least recently
+ * used one. In development mode, a compiled template is compiled again when
+ * its file has been modified, and the messages of the bundles are not kept.
+ * When "prewarm" is true, the templates of the active plugins are loaded in
+ * the languages of "prewarmLanguages" at the start of the plugins. The
+ * fragments live at most "fragmentTtl" seconds, the period of the daily
+ * digest by default, so that a notification is rendered once until it is
+ * sent in the digests.
  */
+@Managed
+@ManagedDescription("Cache of the notification templates")
+@NameTemplate({
+  @Property(key = "service", value = "notification"),
+  @Property(key = "view", value = "templates")
+})
 public class TemplateCaching {
+  private static final Log LOG = ExoLogger.getLogger(TemplateCaching.class);
 
-  private ExoCache<ElementCacheKey, Element> templateCache;
-  private FutureExoCache<ElementCacheKey, Element, Object> futureExoCache;
-  private final static String CACHING_NAME = "common.notification.caching";
-  
-  public TemplateCaching(CacheService cacheService) {
-    templateCache = cacheService.getCacheInstance(CACHING_NAME);
-    //
-    Loader<ElementCacheKey, Element, Object> loader = 
-          new Loader<ElementCacheKey, Element, Object>() {
-      @Override
-      public Element retrieve(Object service, ElementCacheKey key) throws Exception {
-        return TemplateUtils.loadGroovyElement(key.getPlugId(), key.getLanguage());
-      }
-    };
-    futureExoCache = new FutureExoCache<ElementCacheKey, Element, Object>(loader, templateCache);
+  private static final String ELEMENT_SIZE_KEY           = "conf.notification.service.template.elementSize";
+
+  private static final String TEMPLATE_SIZE_KEY          = "conf.notification.service.template.templateSize";
+
+  private static final String COMPILED_TEMPLATE_SIZE_KEY = "conf.notification.service.template.compiledTemplateSize";
+
+  private static final String BUNDLE_SIZE_KEY            = "conf.notification.service.template.bundleSize";
+
+  private static final String PREWARM_KEY                = "conf.notification.service.template.prewarm";
+
+  private static final String PREWARM_LANGUAGES_KEY      = "conf.notification.service.template.prewarmLanguages";
+
+  private static final String PREWARM_THREADS_KEY        = "conf.notification.service.template.prewarmThreads";
+
+  private static final String FRAGMENT_SIZE_KEY          = "conf.notification.service.template.fragmentSize";
+
+  private static final String FRAGMENT_TTL_KEY           = "conf.notification.service.template.fragmentTtl";
+
+  /** The names of the elements of a plugin */
+  private static final String GROOVY_ELEMENT  = "groovy";
+
+  private static final String SUBJECT_ELEMENT = "subject";
+
+  private static final String DIGEST_ELEMENT  = "digest";
+
+  private final CacheTier<TemplateCacheKey, Element> elements;
+
+  private final CacheTier<TemplateCacheKey, String> templates;
+
+  private final CacheTier<TemplateCacheKey, CompiledTemplate> compiledTemplates;
+
+  private final CacheTier<TemplateCacheKey, BundleMessages> bundles;
+
+  private final CacheTier<TemplateCacheKey, TemplateFragment> fragments;
+
+  /** The time to live in milliseconds of the fragments */
+  private final long fragmentTtl;
+
+  /** The recipient keys of the plugins, the plugins without them are not rendered by fragment */
+  private final Map<String, List<String>> recipientKeys = new ConcurrentHashMap<String, List<String>>();
+
+  private final boolean prewarm;
+
+  private final String[] prewarmLanguages;
+
+  private final int prewarmThreads;
+
+  private final AtomicLong reloads = new AtomicLong();
+
+  public TemplateCaching(InitParams params) {
+    elements = new CacheTier<TemplateCacheKey, Element>("elements", NotificationUtils.getSystemValue(params, ELEMENT_SIZE_KEY, "elementSize", 500));
+    templates = new CacheTier<TemplateCacheKey, String>("templates", NotificationUtils.getSystemValue(params, TEMPLATE_SIZE_KEY, "templateSize", 100));
+    compiledTemplates = new CacheTier<TemplateCacheKey, CompiledTemplate>("compiled", NotificationUtils.getSystemValue(params, COMPILED_TEMPLATE_SIZE_KEY, "compiledTemplateSize", 200));
+    bundles = new CacheTier<TemplateCacheKey, BundleMessages>("bundles", NotificationUtils.getSystemValue(params, BUNDLE_SIZE_KEY, "bundleSize", 200));
+    fragments = new CacheTier<TemplateCacheKey, TemplateFragment>("fragments", NotificationUtils.getSystemValue(params, FRAGMENT_SIZE_KEY, "fragmentSize", 2000));
+    fragmentTtl = Math.max(0, NotificationUtils.getSystemValue(params, FRAGMENT_TTL_KEY, "fragmentTtl", 86400)) * 1000L;
+    prewarm = Boolean.valueOf(NotificationUtils.getSystemValue(params, PREWARM_KEY, "prewarm", "false"));
+    prewarmLanguages = NotificationUtils.getSystemValue(params, PREWARM_LANGUAGES_KEY, "prewarmLanguages", "en").split("\\s*,\\s*");
+    prewarmThreads = Math.max(1, NotificationUtils.getSystemValue(params, PREWARM_THREADS_KEY, "prewarmThreads", 4));
   }
   
   /**
@@ -54,7 +154,27 @@ public class TemplateCaching {
    * @return
    */
   public Element getTemplateElement(ElementCacheKey cacheKey) {
-    return futureExoCache.get(null, cacheKey);
+    return getGroovyElement(cacheKey.getPlugId(), cacheKey.getLanguage());
+  }
+
+  /**
+   * Gets the Groovy element of a plugin
+   * 
+   * @param pluginId
+   * @param language
+   * @return
+   */
+  public Element getGroovyElement(String pluginId, String language) {
+    try {
+      return elements.get(new TemplateCacheKey(pluginId, language, GROOVY_ELEMENT), new CacheTier.Loader<TemplateCacheKey, Element>() {
+        @Override
+        public Element load(TemplateCacheKey key) throws Exception {
+          return TemplateUtils.loadGroovyElement(key.getPluginId(), key.getLanguage());
+        }
+      });
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to load the template element of " + pluginId, e);
+    }
   }
   
   /**
@@ -63,7 +183,7 @@ public class TemplateCaching {
    * @return
    */
   public boolean isCached(ElementCacheKey cacheKey) {
-    return templateCache.get(cacheKey) != null;
+    return elements.peek(new TemplateCacheKey(cacheKey.getPlugId(), cacheKey.getLanguage(), GROOVY_ELEMENT)) != null;
   }
 
   /**
@@ -72,8 +192,470 @@ public class TemplateCaching {
    * @param value
    */
   public void put(ElementCacheKey cacheKey, Element value) {
-    templateCache.put(cacheKey, value);
+    elements.put(new TemplateCacheKey(cacheKey.getPlugId(), cacheKey.getLanguage(), GROOVY_ELEMENT), value);
+  }
+
+  /**
+   * Gets the subject element of a plugin
+   * 
+   * @param pluginId
+   * @param language
+   * @return
+   */
+  public Element getSubject(String pluginId, String language) {
+    try {
+      return elements.get(new TemplateCacheKey(pluginId, language, SUBJECT_ELEMENT), new CacheTier.Loader<TemplateCacheKey, Element>() {
+        @Override
+        public Element load(TemplateCacheKey key) throws Exception {
+          TemplateConfig templateConfig = TemplateUtils.getTemplateConfig(key.getPluginId());
+          return NotificationUtils.getSubject(templateConfig, key.getPluginId(), key.getLanguage()).addNewLine(false);
+        }
+      });
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to load the subject of " + pluginId, e);
+    }
+  }
+
+  /**
+   * Gets the digest element of a plugin
+   * 
+   * @param pluginId
+   * @param language
+   * @return
+   */
+  public Element getDigest(String pluginId, String language) {
+    try {
+      return elements.get(new TemplateCacheKey(pluginId, language, DIGEST_ELEMENT), new CacheTier.Loader<TemplateCacheKey, Element>() {
+        @Override
+        public Element load(TemplateCacheKey key) throws Exception {
+          TemplateConfig templateConfig = TemplateUtils.getTemplateConfig(key.getPluginId());
+          return NotificationUtils.getDigest(templateConfig, key.getPluginId(), key.getLanguage());
+        }
+      });
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to load the digest of " + pluginId, e);
+    }
+  }
+
+  /**
+   * Gets the text of the template file of a plugin
+   * 
+   * @param pluginId
+   * @param templatePath the path of the template file
+   * @return
+   * @throws Exception
+   */
+  public String getTemplate(String pluginId, String templatePath) throws Exception {
+    return templates.get(new TemplateCacheKey(pluginId, null, templatePath), new TemplateLoader());
+  }
+
+  /**
+   * Gets the compiled Groovy template of a plugin, it is compiled on the
+   * first use. The template is shared by all the languages, the messages
+   * are given by the context of the rendering.
+   * 
+   * @param pluginId
+   * @param templatePath the path of the template file
+   * @return the compiled template
+   * @throws Exception if the template can not be compiled
+   */
+  public GroovyTemplate getGroovyTemplate(final String pluginId, final String templatePath) throws Exception {
+    TemplateCacheKey key = new TemplateCacheKey(pluginId, null, templatePath);
+    CompiledTemplate compiled = compiledTemplates.get(key, new CacheTier.Loader<TemplateCacheKey, CompiledTemplate>() {
+      @Override
+      public CompiledTemplate load(TemplateCacheKey key) throws Exception {
+        return compile(pluginId, templatePath, false);
+      }
+    });
+    if (PropertyManager.isDevelopping() && compiled.isModified()) {
+      reloads.incrementAndGet();
+      compiled = compile(pluginId, templatePath, true);
+      compiledTemplates.put(key, compiled);
+    }
+    return compiled.template;
   }
-  
-}
 
+  /**
+   * Compiles a template file
+   * 
+   * @param reload true to read the file again
+   */
+  private CompiledTemplate compile(String pluginId, String templatePath, boolean reload) throws Exception {
+    URL url = TemplateUtils.getTemplateURL(templatePath);
+    long lastModified = getLastModified(url);
+    String template;
+    if (reload) {
+      template = templates.load(new TemplateCacheKey(pluginId, null, templatePath), new TemplateLoader());
+    } else {
+      template = getTemplate(pluginId, templatePath);
+    }
+    return new CompiledTemplate(new GroovyTemplate(template), url, lastModified);
+  }
+
+  /**
+   * Gets the messages of a resource bundle, they are not kept in development
+   * mode so that their changes are seen
+   * 
+   * @param resourcePath
+   * @param locale
+   * @return the messages, {@link BundleMessages#MISSING} if the bundle is not
+   *         found
+   */
+  public BundleMessages getMessages(final String resourcePath, final Locale locale) {
+    if (PropertyManager.isDevelopping()) {
+      return loadMessages(resourcePath, locale);
+    }
+    try {
+      return bundles.get(new TemplateCacheKey(null, locale.toString(), resourcePath), new CacheTier.Loader<TemplateCacheKey, BundleMessages>() {
+        @Override
+        public BundleMessages load(TemplateCacheKey key) throws Exception {
+          return loadMessages(resourcePath, locale);
+        }
+      });
+    } catch (Exception e) {
+      LOG.warn("Failed to load the resource bundle " + resourcePath + ": " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      return BundleMessages.MISSING;
+    }
+  }
+
+  /**
+   * Removes the messages of resource bundles in all the languages, when
+   * they are deployed
+   * 
+   * @param resourcePaths the paths of the bundles
+   * @return the number of values removed
+   */
+  public int invalidateBundles(final Collection<String> resourcePaths) {
+    return bundles.remove(new CacheTier.Filter<TemplateCacheKey>() {
+      @Override
+      public boolean accept(TemplateCacheKey key) {
+        return resourcePaths.contains(key.getName());
+      }
+    });
+  }
+
+  /**
+   * Gets the fragment of a template rendered for all the recipients of a
+   * notification in a language. It is rendered again when it is older than
+   * "fragmentTtl", and it is not kept in development mode.
+   * 
+   * @param ctx the context of a recipient
+   * @param section the rendered section of the template, like "groovy"
+   * @param loader renders the fragment
+   * @return the fragment, null if the context is not rendered by fragment
+   */
+  public TemplateFragment getFragment(TemplateContext ctx, String section, CacheTier.Loader<TemplateCacheKey, TemplateFragment> loader) {
+    if (ctx.getFragmentId() == null || PropertyManager.isDevelopping() || getRecipientKeys(ctx.getPluginId()).isEmpty()) {
+      return null;
+    }
+    TemplateCacheKey key = new TemplateCacheKey(ctx.getPluginId(), ctx.getLanguage(), ctx.getFragmentId() + "/" + section);
+    try {
+      TemplateFragment fragment = fragments.get(key, loader);
+      if (fragment != null && fragment.isExpired(fragmentTtl)) {
+        fragment = fragments.load(key, loader);
+      }
+      return fragment;
+    } catch (Exception e) {
+      LOG.warn("Failed to render the fragment " + key + ": " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * @param pluginId
+   * @return the keys of the template context of the plugin whose values
+   *         depend on the recipient
+   */
+  public List<String> getRecipientKeys(String pluginId) {
+    List<String> keys = recipientKeys.get(pluginId);
+    if (keys == null) {
+      PluginConfig pluginConfig = CommonsUtils.getService(PluginSettingService.class).getPluginConfig(pluginId);
+      keys = new ArrayList<String>();
+      if (pluginConfig != null && pluginConfig.getTemplateConfig() != null && pluginConfig.getTemplateConfig().getRecipientKeys() != null) {
+        keys.addAll(pluginConfig.getTemplateConfig().getRecipientKeys());
+      }
+      recipientKeys.put(pluginId, keys);
+    }
+    return keys;
+  }
+
+  /**
+   * Removes the values of a plugin in a language
+   * 
+   * @param pluginId the plugin, null for all the plugins
+   * @param language the language, null for all the languages
+   * @return the number of values removed
+   */
+  @Managed
+  @ManagedDescription("Removes the templates of a plugin in a language, all the plugins or languages when empty.")
+  public int clear(@ManagedName("pluginId") String pluginId, @ManagedName("language") String language) {
+    final String plugin = emptyToNull(pluginId);
+    final String lang = emptyToNull(language);
+    CacheTier.Filter<TemplateCacheKey> filter = new CacheTier.Filter<TemplateCacheKey>() {
+      @Override
+      public boolean accept(TemplateCacheKey key) {
+        return key.matches(plugin, lang);
+      }
+    };
+    int count = elements.remove(filter) + compiledTemplates.remove(filter) + fragments.remove(filter);
+    if (plugin == null) {
+      recipientKeys.clear();
+    } else {
+      recipientKeys.remove(plugin);
+    }
+    if (lang == null) {
+      count += templates.remove(filter);
+    }
+    // the bundles are shared by the plugins, they are kept by path
+    final String bundlePath = (plugin == null) ? null : getBundlePath(plugin);
+    if (plugin == null || bundlePath != null) {
+      count += bundles.remove(new CacheTier.Filter<TemplateCacheKey>() {
+        @Override
+        public boolean accept(TemplateCacheKey key) {
+          return (bundlePath == null || key.getName().equals(bundlePath))
+              && (lang == null || key.getLanguage().equals(lang) || key.getLanguage().startsWith(lang + "_"));
+        }
+      });
+    }
+    return count;
+  }
+
+  /**
+   * Loads the templates of a plugin in a language
+   * 
+   * @param pluginId the plugin, null for all the active plugins
+   * @param language the language
+   * @return the number of plugins loaded
+   */
+  @Managed
+  @ManagedDescription("Loads the templates of a plugin in a language, all the active plugins when empty.")
+  public int warm(@ManagedName("pluginId") String pluginId, @ManagedName("language") String language) {
+    String lang = emptyToNull(language) == null ? Locale.ENGLISH.getLanguage() : language;
+    List<String> pluginIds = getPluginIds(pluginId);
+    int count = 0;
+    for (String id : pluginIds) {
+      if (warmPlugin(id, lang)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Removes the values of a plugin
+   * 
+   * @param pluginId
+   */
+  public void invalidate(String pluginId) {
+    clear(pluginId, null);
+  }
+
+  /**
+   * Removes all the values
+   */
+  @Managed
+  @ManagedDescription("Removes all the templates.")
+  public void invalidateAll() {
+    elements.clear();
+    templates.clear();
+    compiledTemplates.clear();
+    fragments.clear();
+    recipientKeys.clear();
+    bundles.clear();
+  }
+
+  /**
+   * Loads the templates of the active plugins in the background, when the
+   * prewarm is enabled
+   */
+  public void prewarm() {
+    if (prewarm == false) {
+      return;
+    }
+    final List<String> pluginIds = getPluginIds(null);
+    final ExoContainer container = ExoContainerContext.getCurrentContainer();
+    ExecutorService executor = Executors.newFixedThreadPool(prewarmThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread t = new Thread(runnable, "NotificationTemplatePrewarm-" + count.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+    for (final String pluginId : pluginIds) {
+      for (final String language : prewarmLanguages) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            ExoContainerContext.setCurrentContainer(container);
+            warmPlugin(pluginId, language);
+          }
+        });
+      }
+    }
+    executor.shutdown();
+    LOG.info("Prewarming the templates of " + pluginIds.size() + " notification plugins.");
+  }
+
+  private boolean warmPlugin(String pluginId, String language) {
+    try {
+      TemplateConfig templateConfig = TemplateUtils.getTemplateConfig(pluginId);
+      if (templateConfig == null) {
+        return false;
+      }
+      getGroovyElement(pluginId, language);
+      getSubject(pluginId, language);
+      getDigest(pluginId, language);
+      String templatePath = templateConfig.getTemplatePath();
+      if (templatePath != null && templatePath.length() > 0) {
+        getGroovyTemplate(pluginId, templatePath);
+      }
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Failed to warm the templates of the plugin " + pluginId + ": " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      return false;
+    }
+  }
+
+  private static List<String> getPluginIds(String pluginId) {
+    List<String> pluginIds = new ArrayList<String>();
+    if (emptyToNull(pluginId) != null) {
+      pluginIds.add(pluginId);
+    } else {
+      PluginSettingService settingService = CommonsUtils.getService(PluginSettingService.class);
+      if (settingService != null) {
+        pluginIds.addAll(settingService.getActivePluginIds());
+      }
+    }
+    return pluginIds;
+  }
+
+  private static String getBundlePath(String pluginId) {
+    PluginConfig pluginConfig = CommonsUtils.getService(PluginSettingService.class).getPluginConfig(pluginId);
+    if (pluginConfig == null || pluginConfig.getTemplateConfig() == null) {
+      return null;
+    }
+    return pluginConfig.getTemplateConfig().getBundlePath();
+  }
+
+  private static String emptyToNull(String value) {
+    return (value == null || value.trim().length() == 0) ? null : value.trim();
+  }
+
+  @Managed
+  @ManagedDescription("Statistics of the tiers of the cache.")
+  @Impact(ImpactType.READ)
+  public String[] getStatistics() {
+    return new String[] { elements.toString(), templates.toString(), compiledTemplates.toString(), bundles.toString(), fragments.toString() };
+  }
+
+  @Managed
+  @ManagedDescription("Number of compiled templates in the cache.")
+  @Impact(ImpactType.READ)
+  public int getCompiledTemplateCount() {
+    return compiledTemplates.getSize();
+  }
+
+  @Managed
+  @ManagedDescription("Maximum number of compiled templates in the cache.")
+  @Impact(ImpactType.READ)
+  public int getMaxCompiledTemplates() {
+    return compiledTemplates.getMaxSize();
+  }
+
+  @Managed
+  @ManagedDescription("Number of compiled templates found in the cache.")
+  @Impact(ImpactType.READ)
+  public long getCompiledTemplateHits() {
+    return compiledTemplates.getHits();
+  }
+
+  @Managed
+  @ManagedDescription("Number of templates compiled because they were not in the cache.")
+  @Impact(ImpactType.READ)
+  public long getCompiledTemplateMisses() {
+    return compiledTemplates.getMisses();
+  }
+
+  @Managed
+  @ManagedDescription("Number of templates compiled again because their file has been modified.")
+  @Impact(ImpactType.READ)
+  public long getCompiledTemplateReloads() {
+    return reloads.get();
+  }
+
+  @Managed
+  @ManagedDescription("Ratio of the template elements found in the cache.")
+  @Impact(ImpactType.READ)
+  public double getElementHitRatio() {
+    return elements.getHitRatio();
+  }
+
+  @Managed
+  @ManagedDescription("Ratio of the resource bundles found in the cache.")
+  @Impact(ImpactType.READ)
+  public double getBundleHitRatio() {
+    return bundles.getHitRatio();
+  }
+
+  @Managed
+  @ManagedDescription("Ratio of the templates rendered for a recipient from the fragment of their notification.")
+  @Impact(ImpactType.READ)
+  public double getFragmentHitRatio() {
+    return fragments.getHitRatio();
+  }
+
+  private static BundleMessages loadMessages(String resourcePath, Locale locale) {
+    ResourceBundleService bundleService = CommonsUtils.getService(ResourceBundleService.class);
+    return BundleMessages.of(bundleService == null ? null : bundleService.getResourceBundle(resourcePath, locale));
+  }
+
+  private static long getLastModified(URL url) {
+    if (url == null) {
+      return 0;
+    }
+    try {
+      return url.openConnection().getLastModified();
+    } catch (Exception e) {
+      LOG.debug("Failed to get the modification time of " + url, e);
+      return 0;
+    }
+  }
+
+  /**
+   * Reads a template file
+   */
+  private static class TemplateLoader implements CacheTier.Loader<TemplateCacheKey, String> {
+    @Override
+    public String load(TemplateCacheKey key) throws Exception {
+      return TemplateUtils.loadGroovyTemplate(key.getName());
+    }
+  }
+
+  /**
+   * A compiled template with the modification time of its file
+   */
+  private static class CompiledTemplate {
+    private final GroovyTemplate template;
+
+    private final URL            url;
+
+    private final long           lastModified;
+
+    CompiledTemplate(GroovyTemplate template, URL url, long lastModified) {
+      this.template = template;
+      this.url = url;
+      this.lastModified = lastModified;
+    }
+
+    boolean isModified() {
+      return url != null && getLastModified(url) != lastModified;
+    }
+  }
+}
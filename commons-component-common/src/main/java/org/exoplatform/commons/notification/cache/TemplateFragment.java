@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A template rendered once for all the recipients of a notification: the
+ * values of the recipient keys, like "FIRSTNAME", are rendered as markers
+ * which are replaced by the values of each recipient.
+ *
+ * The values of the recipient keys must be strings written as they are by
+ * the template, a value which is transformed or tested by the template can
+ * not be replaced.
+ */
+public class TemplateFragment {
+
+  private static final char MARK = '\u0001';
+
+  /** The texts at the even indexes, the recipient keys at the odd ones */
+  private final String[]    parts;
+
+  private final long        createdTime = System.currentTimeMillis();
+
+  private TemplateFragment(String[] parts) {
+    this.parts = parts;
+  }
+
+  /**
+   * @param key a recipient key
+   * @return the marker rendered instead of the value of the key
+   */
+  public static String marker(String key) {
+    return MARK + key + MARK;
+  }
+
+  /**
+   * Splits a rendered template on the markers of the recipient keys
+   *
+   * @param text the rendered template
+   * @param keys the recipient keys
+   * @return the fragment
+   */
+  public static TemplateFragment parse(String text, Collection<String> keys) {
+    List<String> parts = new ArrayList<String>();
+    StringBuilder part = new StringBuilder();
+    int from = 0;
+    int begin;
+    while ((begin = text.indexOf(MARK, from)) >= 0) {
+      int end = text.indexOf(MARK, begin + 1);
+      if (end < 0) {
+        break;
+      }
+      String key = text.substring(begin + 1, end);
+      if (keys.contains(key)) {
+        part.append(text, from, begin);
+        parts.add(part.toString());
+        parts.add(key);
+        part.setLength(0);
+        from = end + 1;
+      } else {
+        part.append(text, from, end);
+        from = end;
+      }
+    }
+    part.append(text, from, text.length());
+    parts.add(part.toString());
+    return new TemplateFragment(parts.toArray(new String[parts.size()]));
+  }
+
+  /**
+   * Renders the fragment for a recipient
+   *
+   * @param values the values of the recipient keys
+   * @return the text
+   */
+  public String render(Map<String, ?> values) {
+    int length = 0;
+    for (int i = 0; i < parts.length; i += 2) {
+      length += parts[i].length();
+    }
+    StringBuilder out = new StringBuilder(length + 64 * (parts.length / 2));
+    for (int i = 0; i < parts.length; ++i) {
+      if ((i & 1) == 0) {
+        out.append(parts[i]);
+      } else {
+        Object value = values.get(parts[i]);
+        if (value != null) {
+          out.append(value);
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * @return the number of the recipient keys in the fragment
+   */
+  public int getMarkerCount() {
+    return parts.length / 2;
+  }
+
+  /**
+   * @param ttl the time to live in milliseconds
+   * @return true if the fragment is older than the time to live
+   */
+  public boolean isExpired(long ttl) {
+    return System.currentTimeMillis() - createdTime > ttl;
+  }
+}
@@ -52,6 +52,10 @@ public abstract class AbstractService {
 
   public static final String NTF_ORDER                = "ntf:order";
 
+  public static final String NTF_CREATED_TIME         = "ntf:createdTime";
+
+  public static final String NTF_LANE                 = "ntf:lane";
+
   public static final String NTF_MESSAGE              = "ntf:message";
 
   public static final String NTF_MESSAGE_INFO         = "ntf:messageInfo";
@@ -136,7 +140,7 @@ public abstract class AbstractService {
 
   /**
    * Makes the node path for MessageHome node
-   * "/eXoNotification/messageHome/<pluginId>/<DAY_OF_MONTH>/<HOUR_OF_DAY>/"
+   * "/eXoNotification/messageHome/<pluginId>/d<yyyyMMdd>/"
    * 
    * @param sProvider
    * @param pluginId
@@ -144,15 +148,61 @@ public abstract class AbstractService {
    * @throws Exception
    */
   protected Node getOrCreateMessageParent(SessionProvider sProvider, String workspace, String pluginId) throws Exception {
+    return getOrCreateMessageParent(sProvider, workspace, pluginId, false);
+  }
+
+  /**
+   * Makes the node path for MessageHome node, partitioned by date and optionally by hour
+   * "/eXoNotification/messageHome/<pluginId>/d<yyyyMMdd>/h<HOUR_OF_DAY>/"
+   * 
+   * @param sProvider
+   * @param pluginId
+   * @param hourly whether the messages of a day are partitioned by hour
+   * @return
+   * @throws Exception
+   */
+  protected Node getOrCreateMessageParent(SessionProvider sProvider, String workspace, String pluginId, boolean hourly) throws Exception {
     Node providerNode = getMessageNodeByPluginId(sProvider, workspace, pluginId);
-    String dayName = String.valueOf(Calendar.getInstance().get(Calendar.DAY_OF_MONTH));
-    Node dayNode = getOrCreateMessageNode(providerNode, DAY + dayName);
-//    String hourName = String.valueOf(Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
-//    Node messageParentNode = getOrCreateMessageNode(dayNode, HOUR + hourName);
-//    return messageParentNode;
+    Calendar now = Calendar.getInstance();
+    Node dayNode = getOrCreateMessageNode(providerNode, getDayPartition(now));
+    if (hourly) {
+      return getOrCreateMessageNode(dayNode, HOUR + now.get(Calendar.HOUR_OF_DAY));
+    }
     return dayNode;
   }
 
+  /**
+   * Gets the name of the partition of the messages of a day
+   * 
+   * @param calendar
+   * @return the name as d<yyyyMMdd>
+   */
+  public static String getDayPartition(Calendar calendar) {
+    return String.format("%s%04d%02d%02d", DAY, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+  }
+
+  /**
+   * Gets the day of a partition
+   * 
+   * @param name the name of the partition
+   * @return the first millisecond of the day, null if the name is not a
+   *         partition by date as the d<DAY_OF_MONTH> of the previous versions
+   */
+  public static Calendar getPartitionDay(String name) {
+    if (name.length() != DAY.length() + 8 || name.startsWith(DAY) == false) {
+      return null;
+    }
+    try {
+      int date = Integer.parseInt(name.substring(DAY.length()));
+      Calendar calendar = Calendar.getInstance();
+      calendar.clear();
+      calendar.set(date / 10000, (date / 100) % 100 - 1, date % 100);
+      return calendar;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
   /**
    * Makes the node path for MessageHome node
    * 
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.exoplatform.commons.notification.NotificationContextFactory;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+
+/**
+ * A SQL query of the notification built once with named parameters.
+ *
+ * The statement is given with parameters as <code>{name}</code>, it is
+ * split once into its fragments and the values are bound in the order of
+ * the parameters, a parameter used several times is bound once. The JCR
+ * queries have no bind variables, so the string values are escaped and
+ * inlined, and a {@link Query} is created for each execution. The
+ * statistics record the executions by the name of the query instead of each
+ * statement.
+ */
+public class NotificationQuery {
+
+  private final String   name;
+
+  private final String[] fragments;
+
+  /** The names of the parameters in the order of their first occurrence */
+  private final String[] parameters;
+
+  /** The index of the parameter following each fragment */
+  private final int[]    indexes;
+
+  /**
+   * @param name the name of the query in the statistics
+   * @param statement the SQL statement with the parameters as {name}
+   */
+  public NotificationQuery(String name, String statement) {
+    this.name = name;
+    List<String> fragments = new ArrayList<String>();
+    List<String> parameters = new ArrayList<String>();
+    List<Integer> indexes = new ArrayList<Integer>();
+    int start = 0, open;
+    while ((open = statement.indexOf('{', start)) >= 0) {
+      int close = statement.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("Unclosed parameter in " + statement);
+      }
+      fragments.add(statement.substring(start, open));
+      String parameter = statement.substring(open + 1, close);
+      if (parameters.contains(parameter) == false) {
+        parameters.add(parameter);
+      }
+      indexes.add(parameters.indexOf(parameter));
+      start = close + 1;
+    }
+    fragments.add(statement.substring(start));
+    this.fragments = fragments.toArray(new String[fragments.size()]);
+    this.parameters = parameters.toArray(new String[parameters.size()]);
+    this.indexes = new int[indexes.size()];
+    for (int i = 0; i < this.indexes.length; ++i) {
+      this.indexes[i] = indexes.get(i);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Makes the statement with the values of the parameters, the quotes of
+   * the string values are escaped
+   *
+   * @param values the values in the order of the first occurrence of the parameters
+   * @return the statement
+   */
+  public String bind(Object... values) {
+    if (values.length != parameters.length) {
+      throw new IllegalArgumentException(String.format("The query %s has %s parameters, %s given", name, parameters.length, values.length));
+    }
+    StringBuilder statement = new StringBuilder(fragments[0]);
+    for (int i = 0; i < indexes.length; ++i) {
+      Object value = values[indexes[i]];
+      if (value instanceof String) {
+        statement.append(escape((String) value));
+      } else {
+        statement.append(value);
+      }
+      statement.append(fragments[i + 1]);
+    }
+    return statement.toString();
+  }
+
+  /**
+   * Escapes the quotes of a string value, for the values written in the
+   * statement of the query like the paths
+   *
+   * @param value
+   * @return the escaped value
+   */
+  public static String escape(String value) {
+    return value.replace("'", "''");
+  }
+
+  /**
+   * Executes the query with the values of the parameters
+   *
+   * @param session
+   * @param offset
+   * @param limit the maximum number of nodes, 0 for no limit
+   * @param values the values in the order of the first occurrence of the parameters
+   * @return the nodes
+   * @throws Exception
+   */
+  public NodeIterator execute(Session session, long offset, long limit, Object... values) throws Exception {
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    long startTime = System.currentTimeMillis();
+    Query query = session.getWorkspace().getQueryManager().createQuery(bind(values), Query.SQL);
+    if (limit > 0) {
+      ((QueryImpl) query).setOffset(offset);
+      ((QueryImpl) query).setLimit(limit);
+    }
+    NodeIterator it = query.execute().getNodes();
+    if (stats) {
+      NotificationContextFactory.getInstance().getStatisticsCollector().queryExecuted(name, it.getSize(), System.currentTimeMillis() - startTime);
+    }
+    return it;
+  }
+}
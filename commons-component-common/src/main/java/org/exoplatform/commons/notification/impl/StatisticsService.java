@@ -17,6 +17,7 @@
 package org.exoplatform.commons.notification.impl;
 
 import org.exoplatform.commons.api.notification.stat.EntityStatistics;
+import org.exoplatform.commons.api.notification.stat.PhaseStatistics;
 import org.exoplatform.commons.api.notification.stat.PluginStatistics;
 import org.exoplatform.commons.api.notification.stat.QueryStatistics;
 import org.exoplatform.commons.api.notification.stat.QueueStatistics;
@@ -108,6 +109,11 @@ public class StatisticsService implements Startable {
   public QueryStatistics getQueryStatistics(String queryString) {
     return stats.getQueryStatistics(queryString);
   }
+  @Managed
+  @ManagedDescription("Gets phase statistics by phase name")
+  public PhaseStatistics getPhaseStatistics(String phase) {
+    return stats.getPhaseStatistics(phase);
+  }
   
   /**
    * Get global number of message created
@@ -235,6 +241,15 @@ public class StatisticsService implements Startable {
     return stats.getPluginNames();
   }
   
+  /**
+   * Get the names of all executed phases
+   */
+  @Managed
+  @ManagedDescription("Gets all phases have been executed")
+  public String[] getPhases() {
+    return stats.getPhases();
+  }
+  
   @Managed
   @ManagedDescription("Gets start time of statistics.")
   public long getStartTime() {
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.json.JSONObject;
+
+/**
+ * Serializes the {@link MessageInfo} and the {@link NotificationInfo} in a
+ * compact binary format:
+ * <pre>
+ * [magic][version][type][flags][raw length if deflated][fields]
+ * </pre>
+ * The strings are written as UTF-8 bytes prefixed by their length, the
+ * numbers as variable length integers. The fields are deflated when they
+ * are larger than the threshold, with the preset dictionary if one is given,
+ * so the parts repeated in all the messages (subjects, footers...) cost
+ * almost nothing.
+ *
+ * The Deflater and the Inflater are pooled with their buffers. The reader
+ * also accepts the gzip JSON and the plain JSON of the messages written by
+ * the previous versions.
+ */
+public class NotificationCodec {
+  private static final byte                MAGIC             = (byte) 0xE7;
+
+  private static final byte                VERSION           = 1;
+
+  private static final byte                TYPE_MESSAGE      = 1;
+
+  private static final byte                TYPE_NOTIFICATION = 2;
+
+  private static final int                 FLAG_DEFLATED     = 1;
+
+  private static final int                 FLAG_DICTIONARY   = 2;
+
+  private static final int                 HEADER_SIZE       = 4;
+
+  private static final String              CHARSET           = "UTF-8";
+
+  private static final int                 CHUNK_SIZE        = 8192;
+
+  private final byte[]                     dictionary;
+
+  private final long                       dictionaryId;
+
+  private final int                        threshold;
+
+  private final BlockingQueue<Context>     pool;
+
+  public NotificationCodec() {
+    this(null, 256, Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+   * @param dictionary the preset dictionary of the compression, null for none
+   * @param threshold the minimum size of the fields to deflate them
+   * @param poolSize the maximum number of Deflater and Inflater kept
+   */
+  public NotificationCodec(byte[] dictionary, int threshold, int poolSize) {
+    this.dictionary = (dictionary != null && dictionary.length > 0) ? dictionary : null;
+    this.threshold = threshold;
+    this.pool = new ArrayBlockingQueue<Context>(Math.max(1, poolSize));
+    if (this.dictionary != null) {
+      Adler32 adler = new Adler32();
+      adler.update(this.dictionary, 0, this.dictionary.length);
+      this.dictionaryId = adler.getValue();
+    } else {
+      this.dictionaryId = -1;
+    }
+  }
+
+  public byte[] encode(MessageInfo message) throws IOException {
+    Context context = acquire();
+    try {
+      Output out = context.fields;
+      out.reset();
+      out.writeString(message.getPluginId());
+      out.writeString(message.getFrom());
+      out.writeString(message.getTo());
+      out.writeString(message.getSubject());
+      out.writeString(message.getBody());
+      out.writeString(message.getFooter());
+      out.writeVarLong(message.getCreatedTime());
+      return seal(context, TYPE_MESSAGE);
+    } finally {
+      release(context);
+    }
+  }
+
+  public byte[] encode(NotificationInfo notification) throws IOException {
+    Context context = acquire();
+    try {
+      Output out = context.fields;
+      out.reset();
+      out.writeString(notification.getId());
+      out.writeString(notification.getKey() != null ? notification.getKey().getId() : null);
+      out.writeString(notification.getFrom());
+      out.writeString(notification.getTo());
+      out.writeVarLong(notification.getOrder());
+      Map<String, String> parameters = notification.getOwnerParameter();
+      out.writeVarLong(parameters != null ? parameters.size() : 0);
+      if (parameters != null) {
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+          out.writeString(entry.getKey());
+          out.writeString(entry.getValue());
+        }
+      }
+      List<String> userIds = notification.getSendToUserIds();
+      out.writeStrings(userIds != null ? userIds.toArray(new String[userIds.size()]) : null);
+      out.writeStrings(notification.getSendToDaily());
+      out.writeStrings(notification.getSendToWeekly());
+      return seal(context, TYPE_NOTIFICATION);
+    } finally {
+      release(context);
+    }
+  }
+
+  /**
+   * Reads a message written by {@link #encode(MessageInfo)}, or by the
+   * previous versions as gzip JSON or JSON
+   *
+   * @param data
+   * @return
+   * @throws IOException
+   */
+  public MessageInfo decodeMessageInfo(byte[] data) throws IOException {
+    if (isGzip(data)) {
+      return fromJSON(gunzip(data));
+    }
+    if (data.length > 0 && data[0] == '{') {
+      return fromJSON(new String(data, CHARSET));
+    }
+    Context context = acquire();
+    try {
+      Input in = open(context, data, TYPE_MESSAGE);
+      MessageInfo message = new MessageInfo();
+      message.pluginId(in.readString())
+             .from(in.readString())
+             .to(in.readString())
+             .subject(in.readString())
+             .body(in.readString())
+             .footer(in.readString())
+             .setCreatedTime(in.readVarLong());
+      return message;
+    } finally {
+      release(context);
+    }
+  }
+
+  public NotificationInfo decodeNotificationInfo(byte[] data) throws IOException {
+    Context context = acquire();
+    try {
+      Input in = open(context, data, TYPE_NOTIFICATION);
+      NotificationInfo notification = NotificationInfo.instance();
+      notification.setId(in.readString());
+      String key = in.readString();
+      if (key != null) {
+        notification.key(key);
+      }
+      notification.setFrom(in.readString());
+      notification.setTo(in.readString());
+      notification.setOrder((int) in.readVarLong());
+      int size = (int) in.readVarLong();
+      Map<String, String> parameters = new HashMap<String, String>();
+      for (int i = 0; i < size; ++i) {
+        parameters.put(in.readString(), in.readString());
+      }
+      notification.setOwnerParameter(parameters);
+      String[] userIds = in.readStrings();
+      List<String> sendToUserIds = new ArrayList<String>();
+      if (userIds != null) {
+        for (String userId : userIds) {
+          sendToUserIds.add(userId);
+        }
+      }
+      notification.to(sendToUserIds);
+      notification.setSendToDaily(in.readStrings());
+      notification.setSendToWeekly(in.readStrings());
+      return notification;
+    } finally {
+      release(context);
+    }
+  }
+
+  /**
+   * Builds the MessageInfo from its JSON form produced by {@link MessageInfo#toJSON()}
+   *
+   * @param messageJson
+   * @return
+   * @throws IOException
+   */
+  public static MessageInfo fromJSON(String messageJson) throws IOException {
+    try {
+      JSONObject object = new JSONObject(messageJson);
+      MessageInfo info = new MessageInfo();
+      info.pluginId(object.optString("pluginId"))
+          .from(object.getString("from"))
+          .to(object.getString("to"))
+          .subject(object.getString("subject"))
+          .body(object.getString("body"))
+          .footer(object.optString("footer"))
+          .setCreatedTime(object.getLong("createdTime"));
+      return info;
+    } catch (Exception e) {
+      throw new IOException("Invalid message: " + e.getMessage());
+    }
+  }
+
+  private static boolean isGzip(byte[] data) {
+    return data.length > 1 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b;
+  }
+
+  /**
+   * Decompresses the whole content before decoding it, so the multi-bytes
+   * characters are not split.
+   */
+  private static String gunzip(byte[] data) throws IOException {
+    GZIPInputStream is = new GZIPInputStream(new ByteArrayInputStream(data), CHUNK_SIZE);
+    ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 4);
+    try {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int bytesRead;
+      while ((bytesRead = is.read(buffer)) != -1) {
+        os.write(buffer, 0, bytesRead);
+      }
+    } finally {
+      is.close();
+    }
+    return new String(os.toByteArray(), CHARSET);
+  }
+
+  private byte[] seal(Context context, byte type) {
+    Output fields = context.fields;
+    Output out = context.output;
+    out.reset();
+    boolean deflated = fields.size() >= threshold;
+    out.write(MAGIC);
+    out.write(VERSION);
+    out.write(type);
+    out.write((deflated ? FLAG_DEFLATED : 0) | (deflated && dictionary != null ? FLAG_DICTIONARY : 0));
+    if (deflated == false) {
+      out.write(fields.array(), 0, fields.size());
+      return out.toByteArray();
+    }
+    out.writeVarLong(fields.size());
+    Deflater deflater = context.deflater;
+    deflater.reset();
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary);
+    }
+    deflater.setInput(fields.array(), 0, fields.size());
+    deflater.finish();
+    byte[] chunk = context.chunk;
+    while (deflater.finished() == false) {
+      int length = deflater.deflate(chunk);
+      out.write(chunk, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  private Input open(Context context, byte[] data, byte type) throws IOException {
+    if (data.length < HEADER_SIZE || data[0] != MAGIC) {
+      throw new IOException("Unknown format of notification data");
+    }
+    if (data[1] > VERSION) {
+      throw new IOException("Unsupported version " + data[1] + " of notification data");
+    }
+    if (data[2] != type) {
+      throw new IOException("Unexpected type " + data[2] + " of notification data");
+    }
+    int flags = data[3];
+    Input header = new Input(data, HEADER_SIZE, data.length);
+    if ((flags & FLAG_DEFLATED) == 0) {
+      return header;
+    }
+    int rawLength = (int) header.readVarLong();
+    Output out = context.fields;
+    out.reset();
+    out.ensureCapacity(rawLength);
+    Inflater inflater = context.inflater;
+    inflater.reset();
+    inflater.setInput(data, header.position(), data.length - header.position());
+    byte[] chunk = context.chunk;
+    try {
+      while (inflater.finished() == false) {
+        int length = inflater.inflate(chunk);
+        if (length == 0) {
+          if (inflater.needsDictionary()) {
+            if (dictionary == null || inflater.getAdler() != dictionaryId) {
+              throw new IOException("The dictionary used to write the notification data is not available");
+            }
+            inflater.setDictionary(dictionary);
+          } else if (inflater.needsInput()) {
+            throw new IOException("Truncated notification data");
+          }
+        }
+        out.write(chunk, 0, length);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted notification data: " + e.getMessage());
+    }
+    return new Input(out.array(), 0, out.size());
+  }
+
+  private Context acquire() {
+    Context context = pool.poll();
+    return (context != null) ? context : new Context();
+  }
+
+  private void release(Context context) {
+    if (pool.offer(context) == false) {
+      context.end();
+    }
+  }
+
+  /**
+   * The pooled objects used by one encoding or decoding
+   */
+  private static class Context {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    final Inflater inflater = new Inflater();
+
+    final Output   fields   = new Output();
+
+    final Output   output   = new Output();
+
+    final byte[]   chunk    = new byte[CHUNK_SIZE];
+
+    void end() {
+      deflater.end();
+      inflater.end();
+    }
+  }
+
+  /**
+   * A growable buffer giving access to its array
+   */
+  private static class Output extends ByteArrayOutputStream {
+    Output() {
+      super(1024);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+
+    void ensureCapacity(int capacity) {
+      if (buf.length < capacity) {
+        byte[] newBuf = new byte[capacity];
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        buf = newBuf;
+      }
+    }
+
+    void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    /**
+     * Writes the length + 1 then the UTF-8 bytes, 0 for null
+     */
+    void writeString(String value) {
+      if (value == null) {
+        writeVarLong(0);
+        return;
+      }
+      byte[] bytes;
+      try {
+        bytes = value.getBytes(CHARSET);
+      } catch (java.io.UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+      writeVarLong(bytes.length + 1);
+      write(bytes, 0, bytes.length);
+    }
+
+    void writeStrings(String[] values) {
+      if (values == null) {
+        writeVarLong(0);
+        return;
+      }
+      writeVarLong(values.length + 1);
+      for (String value : values) {
+        writeString(value);
+      }
+    }
+  }
+
+  private static class Input {
+    private final byte[] data;
+
+    private final int    limit;
+
+    private int          position;
+
+    Input(byte[] data, int offset, int limit) {
+      this.data = data;
+      this.position = offset;
+      this.limit = limit;
+    }
+
+    int position() {
+      return position;
+    }
+
+    long readVarLong() throws IOException {
+      long value = 0;
+      int shift = 0;
+      while (true) {
+        if (position >= limit || shift > 63) {
+          throw new IOException("Truncated notification data");
+        }
+        byte b = data[position++];
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+        shift += 7;
+      }
+    }
+
+    String readString() throws IOException {
+      int length = (int) readVarLong() - 1;
+      if (length < 0) {
+        return null;
+      }
+      if (position + length > limit) {
+        throw new IOException("Truncated notification data");
+      }
+      String value = new String(data, position, length, CHARSET);
+      position += length;
+      return value;
+    }
+
+    String[] readStrings() throws IOException {
+      int size = (int) readVarLong() - 1;
+      if (size < 0) {
+        return null;
+      }
+      String[] values = new String[size];
+      for (int i = 0; i < size; ++i) {
+        values[i] = readString();
+      }
+      return values;
+    }
+  }
+}
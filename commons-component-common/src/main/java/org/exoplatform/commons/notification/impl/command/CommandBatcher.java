@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.commons.api.notification.NotificationContext;
+import org.exoplatform.commons.api.notification.command.NotificationCommand;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Groups the commands to execute in batches.
+ *
+ * Without window, the commands of an execution are split in batches of at
+ * most "batchSize" commands. With a window, the commands of the executions
+ * made during the window are grouped: the batch is given to the
+ * {@link Sink} when it is full or at the end of the window started by its
+ * first command.
+ */
+public class CommandBatcher {
+  private static final Log LOG = ExoLogger.getLogger(CommandBatcher.class);
+
+  /**
+   * Receives the batches of commands
+   */
+  public interface Sink {
+    void submit(List<Entry> batch);
+  }
+
+  /**
+   * A command with the context of its execution
+   */
+  public static class Entry {
+    private final NotificationContext ctx;
+
+    private final NotificationCommand command;
+
+    private final long                addTime = System.currentTimeMillis();
+
+    public Entry(NotificationContext ctx, NotificationCommand command) {
+      this.ctx = ctx;
+      this.command = command;
+    }
+
+    public NotificationContext getContext() {
+      return ctx;
+    }
+
+    public NotificationCommand getCommand() {
+      return command;
+    }
+
+    /**
+     * @return the time when the command has been added
+     */
+    public long getAddTime() {
+      return addTime;
+    }
+  }
+
+  private final int                batchSize;
+
+  private final long               window;
+
+  private final Sink               sink;
+
+  /** The lock protecting the pending commands */
+  private final ReentrantLock      lock    = new ReentrantLock();
+
+  private List<Entry>              pending = new ArrayList<Entry>();
+
+  private ScheduledExecutorService timer;
+
+  /**
+   * @param batchSize the maximum number of commands of a batch
+   * @param window the time in milliseconds to wait for the commands of the
+   *          other executions, 0 to not wait
+   * @param sink
+   */
+  public CommandBatcher(int batchSize, long window, Sink sink) {
+    this.batchSize = Math.max(1, batchSize);
+    this.window = Math.max(0, window);
+    this.sink = sink;
+  }
+
+  /**
+   * Adds the commands of an execution
+   *
+   * @param entries
+   */
+  public void add(List<Entry> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    if (window == 0) {
+      for (int i = 0; i < entries.size(); i += batchSize) {
+        sink.submit(new ArrayList<Entry>(entries.subList(i, Math.min(entries.size(), i + batchSize))));
+      }
+      return;
+    }
+    List<List<Entry>> batches = new ArrayList<List<Entry>>();
+    boolean schedule = false;
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      for (Entry entry : entries) {
+        if (pending.isEmpty()) {
+          schedule = true;
+        }
+        pending.add(entry);
+        if (pending.size() >= batchSize) {
+          batches.add(pending);
+          pending = new ArrayList<Entry>();
+          schedule = false;
+        }
+      }
+      if (schedule) {
+        getTimer().schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, window, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (List<Entry> batch : batches) {
+      sink.submit(batch);
+    }
+  }
+
+  /**
+   * Submits the pending commands
+   */
+  public void flush() {
+    List<Entry> batch;
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new ArrayList<Entry>();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      sink.submit(batch);
+    } catch (Exception e) {
+      LOG.warn("Failed to submit a batch of " + batch.size() + " notification commands: " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public long getWindow() {
+    return window;
+  }
+
+  private ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread t = new Thread(runnable, "NotificationCommandBatcher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return timer;
+  }
+}
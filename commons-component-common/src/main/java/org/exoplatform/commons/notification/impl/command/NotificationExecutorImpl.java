@@ -16,6 +16,7 @@
  */
 package org.exoplatform.commons.notification.impl.command;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -26,29 +27,47 @@ import org.exoplatform.commons.api.notification.command.NotificationExecutor;
 import org.exoplatform.commons.api.notification.model.NotificationInfo;
 import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
 import org.exoplatform.commons.api.notification.service.storage.NotificationService;
+import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
+/**
+ * Executes the notification commands.
+ *
+ * The valid commands are processed in batches by the
+ * {@link NotificationCompletionService}: the notifications of a batch are
+ * created and processed together, with one session and one read of the
+ * settings of their recipients. The commands of an execution are grouped by
+ * batches of "conf.notification.service.executor.batchSize" commands, and
+ * with the commands of the other executions made during
+ * "conf.notification.service.executor.batchWindow" milliseconds when this
+ * system property is set.
+ */
 public class NotificationExecutorImpl implements NotificationExecutor {
   
   private static final Log LOG = ExoLogger.getLogger(NotificationExecutorImpl.class);
 
+  /** The phase recording the size and the latency of the batches */
+  public static final String PHASE_BATCH = "executor.batch";
+
+  private static final String BATCH_SIZE_KEY = "conf.notification.service.executor.batchSize";
+
+  private static final String BATCH_WINDOW_KEY = "conf.notification.service.executor.batchWindow";
+
   private static NotificationExecutor executor;
 
+  /** The batcher shared by the executors of all the contexts */
+  private static final CommandBatcher batcher = new CommandBatcher(NotificationUtils.getSystemValue(null, BATCH_SIZE_KEY, "batchSize", 50),
+                                                                   NotificationUtils.getSystemValue(null, BATCH_WINDOW_KEY, "batchWindow", 0),
+                                                                   new CompletionSink());
+
   private final List<NotificationCommand>  commands;
   
-  //The executor to execute multiple threads
-  private NotificationCompletionService completionService; 
-  
-  private NotificationService notificationService;
-  
   public NotificationExecutorImpl() {
     commands = new CopyOnWriteArrayList<NotificationCommand>();
-    notificationService = CommonsUtils.getService(NotificationService.class);
-    completionService = CommonsUtils.getService(NotificationCompletionService.class);
   }
   
   public static NotificationExecutor getInstance() {
@@ -58,28 +77,12 @@ public class NotificationExecutorImpl implements NotificationExecutor {
     return executor;
   }
   
-  private boolean process(final NotificationContext ctx, final NotificationCommand command) {
+  private boolean process(final NotificationContext ctx, final NotificationCommand command, List<CommandBatcher.Entry> entries) {
     try {
       if (command.getPlugin().isValid(ctx) == false) {
         return false;
       }
-      Callable<Boolean> task = new Callable<Boolean>() {
-        @Override
-        public Boolean call() throws Exception {
-          try {
-            notificationService.process(create(ctx, command));
-          } catch (Exception e) {
-            LOG.warn("Process NotificationInfo is failed: " + e.getMessage());
-            LOG.debug(e.getMessage(), e);
-            return false;
-          } finally {
-            NotificationSessionManager.closeSessionProvider();
-          }
-          //
-          return true;
-        }
-      };
-      completionService.addTask(task);
+      entries.add(new CommandBatcher.Entry(ctx, command));
 
       return true;
     } catch (Exception e) {
@@ -88,10 +91,80 @@ public class NotificationExecutorImpl implements NotificationExecutor {
     }
   }
 
-  private NotificationInfo create(NotificationContext ctx, NotificationCommand command) {
+  private static NotificationInfo create(NotificationContext ctx, NotificationCommand command) {
     return command.processNotification(ctx);
   }
 
+  /**
+   * Adds the processing of the batches to the completion service
+   */
+  private static class CompletionSink implements CommandBatcher.Sink {
+    @Override
+    public void submit(List<CommandBatcher.Entry> batch) {
+      CommonsUtils.getService(NotificationCompletionService.class).addTask(new BatchTask(batch));
+    }
+  }
+
+  /**
+   * Processes the notifications of a batch of commands, the notifications
+   * can be spilled by the completion service when its queue is full. The
+   * failure of a command does not stop the others.
+   */
+  static class BatchTask implements Callable<Boolean>, NotificationCompletionService.Spillable {
+    private final List<CommandBatcher.Entry> batch;
+
+    BatchTask(List<CommandBatcher.Entry> batch) {
+      this.batch = batch;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+      try {
+        CommonsUtils.getService(NotificationService.class).process(getNotifications());
+      } catch (Exception e) {
+        LOG.warn("Process NotificationInfo is failed: " + e.getMessage());
+        LOG.debug(e.getMessage(), e);
+        return false;
+      } finally {
+        NotificationSessionManager.closeSessionProvider();
+        batchExecuted();
+      }
+      //
+      return true;
+    }
+
+    @Override
+    public List<NotificationInfo> getNotifications() {
+      List<NotificationInfo> notifications = new ArrayList<NotificationInfo>(batch.size());
+      for (CommandBatcher.Entry entry : batch) {
+        try {
+          NotificationInfo notification = create(entry.getContext(), entry.getCommand());
+          if (notification != null) {
+            notifications.add(notification);
+          }
+        } catch (Exception e) {
+          LOG.warn("Create NotificationInfo is failed: " + e.getMessage());
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+      return notifications;
+    }
+
+    /**
+     * Records the size of the batch and the time from the add of its first
+     * command to the end of its processing
+     */
+    private void batchExecuted() {
+      long time = System.currentTimeMillis() - batch.get(0).getAddTime();
+      LOG.debug(String.format("Batch of %s notification commands processed in %sms", batch.size(), time));
+      if (NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled()) {
+        Runtime runtime = Runtime.getRuntime();
+        long memory = runtime.totalMemory() - runtime.freeMemory();
+        NotificationContextFactory.getInstance().getStatisticsCollector().phaseExecuted(PHASE_BATCH, batch.size(), time, memory);
+      }
+    }
+  }
+
   @Override
   public boolean execute(NotificationContext ctx) {
     boolean result = true;
@@ -103,10 +176,12 @@ public class NotificationExecutorImpl implements NotificationExecutor {
     }
 
     //
+    List<CommandBatcher.Entry> entries = new ArrayList<CommandBatcher.Entry>();
     for(NotificationCommand command : commands) {
-      result &= process(ctx, command);
+      result &= process(ctx, command, entries);
       printLog(ctx);
     }
+    batcher.add(entries);
     
     commands.clear();
 
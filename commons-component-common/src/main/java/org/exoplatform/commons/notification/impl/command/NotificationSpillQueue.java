@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.command;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
+import org.exoplatform.commons.api.notification.service.storage.NotificationService;
+import org.exoplatform.commons.notification.NotificationConfiguration;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.notification.impl.codec.NotificationCodec;
+import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Keeps on disk the notifications spilled by the
+ * {@link NotificationCompletionService} when its queue is full, and gives
+ * them back to it when it has room again.
+ *
+ * The notifications are appended to a spill file. The replay thread moves
+ * the spill file aside and adds the processing of its notifications to the
+ * completion service, waiting for free places. The offset of the next
+ * record to replay is kept in a file, so a replay file left by a stop or a
+ * failure goes on from its last record on the next pass: a notification can
+ * be processed twice but is not lost. A record which can not be read is
+ * moved to a quarantine file instead of stopping the replay. The files are
+ * kept under the "dataDirectory" of the NotificationConfiguration.
+ */
+public class NotificationSpillQueue implements NotificationCompletionService.SpillHandler, Startable {
+  private static final Log                    LOG             = ExoLogger.getLogger(NotificationSpillQueue.class);
+
+  private static final String                 SPILL_DIRECTORY = "spill";
+
+  private static final String                 SPILL_FILE      = "notifications.spill";
+
+  private static final String                 REPLAY_FILE     = "notifications.replay";
+
+  private static final String                 OFFSET_FILE     = "notifications.offset";
+
+  private static final String                 QUARANTINE_FILE = "notifications.quarantine";
+
+  /** The maximum size of a record, a greater length is a corrupted one */
+  static final int                            MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+  /** The time in milliseconds between two checks of the spill file */
+  private static final long                   REPLAY_PERIOD   = 1000;
+
+  private final NotificationCompletionService completionService;
+
+  private final NotificationCodec             codec           = new NotificationCodec();
+
+  private final File                          directory;
+
+  /** The lock protecting the spill file */
+  private final ReentrantLock                 lock            = new ReentrantLock();
+
+  private DataOutputStream                    out;
+
+  private int                                 spilled;
+
+  private Thread                              replayer;
+
+  private volatile boolean                    running;
+
+  public NotificationSpillQueue(NotificationConfiguration configuration, NotificationCompletionService completionService) {
+    this.completionService = completionService;
+    this.directory = new File(configuration.getDataDirectory(), SPILL_DIRECTORY);
+  }
+
+  @Override
+  public void start() {
+    directory.mkdirs();
+    running = true;
+    replayer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            replay();
+            Thread.sleep(REPLAY_PERIOD);
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            LOG.warn("Failed to replay the spilled notifications.");
+            LOG.debug(e.getMessage(), e);
+          }
+        }
+      }
+    }, "NotificationSpillReplay");
+    replayer.setDaemon(true);
+    replayer.start();
+    completionService.setSpillHandler(this);
+  }
+
+  @Override
+  public void stop() {
+    completionService.setSpillHandler(null);
+    running = false;
+    if (replayer != null) {
+      replayer.interrupt();
+    }
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean spill(List<NotificationInfo> notifications) {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      if (out == null) {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, SPILL_FILE), true)));
+      }
+      for (NotificationInfo notification : notifications) {
+        byte[] data = codec.encode(notification);
+        out.writeInt(data.length);
+        out.write(data);
+      }
+      out.flush();
+      spilled += notifications.size();
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Failed to spill " + notifications.size() + " notifications: " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replays the spilled notifications, the completion service is waited for
+   * when it is full
+   *
+   * @return the number of notifications replayed
+   * @throws Exception
+   */
+  int replay() throws Exception {
+    File replayFile = new File(directory, REPLAY_FILE);
+    if (replayFile.exists() == false) {
+      final ReentrantLock lock = this.lock;
+      lock.lock();
+      try {
+        File spillFile = new File(directory, SPILL_FILE);
+        if (spillFile.exists() == false) {
+          return 0;
+        }
+        close();
+        if (spillFile.renameTo(replayFile) == false) {
+          throw new IOException("Failed to move the spill file " + spillFile);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    File offsetFile = new File(directory, OFFSET_FILE);
+    long offset = readOffset(offsetFile);
+    int count = 0;
+    FileInputStream file = new FileInputStream(replayFile);
+    RandomAccessFile position = new RandomAccessFile(offsetFile, "rw");
+    try {
+      file.getChannel().position(offset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+      while (true) {
+        byte[] data;
+        try {
+          int size = in.readInt();
+          if (size < 0 || size > MAX_RECORD_SIZE) {
+            // the next records can not be delimited
+            LOG.warn("Corrupted spilled notification at " + offset + " in " + replayFile + ", the rest of the file is quarantined.");
+            quarantine(size, null, in);
+            break;
+          }
+          data = new byte[size];
+          in.readFully(data);
+        } catch (EOFException e) {
+          // the end of the file, or a record partially written
+          break;
+        }
+        NotificationInfo notification = null;
+        try {
+          notification = codec.decodeNotificationInfo(data);
+        } catch (Exception e) {
+          LOG.warn("Failed to decode the spilled notification at " + offset + " in " + replayFile + ", it is quarantined.");
+          LOG.debug(e.getMessage(), e);
+          quarantine(data.length, data, null);
+        }
+        if (notification != null) {
+          completionService.addTask(new ReplayTask(notification));
+          ++count;
+        }
+        offset += 4 + data.length;
+        position.seek(0);
+        position.writeLong(offset);
+      }
+    } finally {
+      file.close();
+      position.close();
+    }
+    replayFile.delete();
+    offsetFile.delete();
+    if (count > 0) {
+      LOG.info("Replayed " + count + " spilled notifications.");
+    }
+    return count;
+  }
+
+  private static long readOffset(File offsetFile) throws IOException {
+    if (offsetFile.length() < 8) {
+      return 0;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(offsetFile));
+    try {
+      return in.readLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Appends a record, or the rest of the replay file, to the quarantine file
+   *
+   * @param size the length read
+   * @param data the record, null if not read
+   * @param in the rest of the replay file, null to write the record only
+   */
+  private void quarantine(int size, byte[] data, InputStream in) throws IOException {
+    DataOutputStream quarantine = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, QUARANTINE_FILE), true)));
+    try {
+      quarantine.writeInt(size);
+      if (data != null) {
+        quarantine.write(data);
+      }
+      if (in != null) {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          quarantine.write(buffer, 0, read);
+        }
+      }
+    } finally {
+      quarantine.close();
+    }
+  }
+
+  /**
+   * @return the number of notifications in the spill file
+   */
+  public int getSpilled() {
+    return spilled;
+  }
+
+  private void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+      out = null;
+    }
+    spilled = 0;
+  }
+
+  /**
+   * Processes a spilled notification, it is not spilled again
+   */
+  private static class ReplayTask implements Callable<Boolean> {
+    private final NotificationInfo notification;
+
+    ReplayTask(NotificationInfo notification) {
+      this.notification = notification;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+      try {
+        CommonsUtils.getService(NotificationService.class).process(notification);
+      } catch (Exception e) {
+        LOG.warn("Process spilled NotificationInfo is failed: " + e.getMessage());
+        LOG.debug(e.getMessage(), e);
+        return false;
+      } finally {
+        NotificationSessionManager.closeSessionProvider();
+      }
+      return true;
+    }
+  }
+}
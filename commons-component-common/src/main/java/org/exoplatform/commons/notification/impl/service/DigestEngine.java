@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Impact;
+import org.exoplatform.management.annotations.ImpactType;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Runs the phases of the daily and weekly digest on several threads.
+ *
+ * The users of a phase are loaded page by page by the calling thread, each
+ * page is a partition processed by one of the workers. The number of
+ * partitions processed at the same time is bounded by the number of workers,
+ * the loading waits for a free worker. Each worker uses its own JCR session
+ * which is closed at the end of the partition.
+ */
+@Managed
+@ManagedDescription("Parallel processing of the digest notifications")
+@NameTemplate({
+  @Property(key = "service", value = "notification"),
+  @Property(key = "view", value = "digest")
+})
+public class DigestEngine implements Startable {
+  private static final Log       LOG                    = ExoLogger.getLogger(DigestEngine.class);
+
+  private static final String    WORKERS_SYS_KEY        = "conf.notification.service.DigestEngine.workers";
+  private static final String    WORKERS_KEY            = "workers";
+  private static final String    PARTITION_SIZE_SYS_KEY = "conf.notification.service.DigestEngine.partitionSize";
+  private static final String    PARTITION_SIZE_KEY     = "partitionSize";
+
+  /**
+   * Loads the users of a phase
+   */
+  public interface Source {
+    /**
+     * @param offset
+     * @param limit
+     * @return the users of the page, null when there is no more user
+     * @throws Exception
+     */
+    List<UserSetting> load(int offset, int limit) throws Exception;
+  }
+
+  /**
+   * Processes the users of a partition
+   */
+  public interface Task {
+    void process(List<UserSetting> users) throws Exception;
+  }
+
+  public enum State {
+    WAITING, RUNNING, DONE, FAILED
+  }
+
+  /**
+   * The progress of a page of users
+   */
+  public static class Partition {
+    private final String   phase;
+
+    private final int      index;
+
+    private final int      offset;
+
+    private final int      size;
+
+    private volatile State state = State.WAITING;
+
+    private volatile long  startTime;
+
+    private volatile long  endTime;
+
+    Partition(String phase, int index, int offset, int size) {
+      this.phase = phase;
+      this.index = index;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    public String getPhase() {
+      return phase;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public int getOffset() {
+      return offset;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /**
+     * @return the time in milliseconds spent on the partition, 0 if it is not started
+     */
+    public long getElapsedTime() {
+      if (startTime == 0) {
+        return 0;
+      }
+      return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s#%s [%s, %s] %s %sms", phase, index, offset, size, state, getElapsedTime());
+    }
+  }
+
+  private final int                   workers;
+
+  private final int                   partitionSize;
+
+  private final Semaphore             permits;
+
+  /** Only one digest is run at a time */
+  private final ReentrantLock         lock           = new ReentrantLock();
+
+  /** The partitions of the current or last digest */
+  private final List<Partition>       partitions     = new CopyOnWriteArrayList<Partition>();
+
+  private final AtomicLong            processedUsers = new AtomicLong();
+
+  private final AtomicInteger         failedPartitions = new AtomicInteger();
+
+  /** The users of the failed partitions, their messages are kept for the next digest */
+  private final Set<String>           failedUsers      = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private ExecutorService             executor;
+
+  private volatile long               startTime;
+
+  private volatile long               endTime;
+
+  public DigestEngine(InitParams params) {
+    this.workers = Math.max(1, NotificationUtils.getSystemValue(params, WORKERS_SYS_KEY, WORKERS_KEY, 4));
+    this.partitionSize = Math.max(1, NotificationUtils.getSystemValue(params, PARTITION_SIZE_SYS_KEY, PARTITION_SIZE_KEY, 100));
+    this.permits = new Semaphore(workers);
+  }
+
+  @Override
+  public void start() {
+    final AtomicInteger count = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "NotificationDigest-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Starts a digest, the partitions of the previous one are cleared
+   */
+  public void begin() {
+    lock.lock();
+    partitions.clear();
+    processedUsers.set(0);
+    failedPartitions.set(0);
+    failedUsers.clear();
+    startTime = System.currentTimeMillis();
+    endTime = 0;
+  }
+
+  /**
+   * Ends the digest started by {@link #begin()}
+   */
+  public void end() {
+    endTime = System.currentTimeMillis();
+    LOG.debug(String.format("Digest done: %s users in %s partitions, %sms", processedUsers.get(), partitions.size(), getElapsedTime()));
+    lock.unlock();
+  }
+
+  /**
+   * Processes the users of a phase on the workers and waits until all the
+   * partitions are done.
+   *
+   * @param phase the name of the phase
+   * @param source loads the users of the phase
+   * @param task processes the users of a partition
+   * @return the number of users processed
+   * @throws Exception if the users can not be loaded
+   */
+  public int run(String phase, Source source, final Task task) throws Exception {
+    final ExoContainer container = ExoContainerContext.getCurrentContainer();
+    final AtomicInteger users = new AtomicInteger();
+    int offset = 0;
+    int index = 0;
+    try {
+      while (true) {
+        final List<UserSetting> page = source.load(offset, partitionSize);
+        if (page == null) {
+          break;
+        }
+        if (page.size() > 0) {
+          final Partition partition = new Partition(phase, index++, offset, page.size());
+          partitions.add(partition);
+          permits.acquire();
+          try {
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                ExoContainerContext.setCurrentContainer(container);
+                partition.startTime = System.currentTimeMillis();
+                partition.state = State.RUNNING;
+                try {
+                  task.process(page);
+                  users.addAndGet(page.size());
+                  processedUsers.addAndGet(page.size());
+                  partition.state = State.DONE;
+                } catch (Exception e) {
+                  partition.state = State.FAILED;
+                  failedPartitions.incrementAndGet();
+                  for (UserSetting user : page) {
+                    failedUsers.add(user.getUserId());
+                  }
+                  LOG.warn("Failed to process the digest partition " + partition);
+                  LOG.debug(e.getMessage(), e);
+                } finally {
+                  partition.endTime = System.currentTimeMillis();
+                  NotificationSessionManager.closeSessionProvider();
+                  permits.release();
+                }
+              }
+            });
+          } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+          }
+        }
+        offset += partitionSize;
+      }
+    } finally {
+      // waits for the partitions still running
+      permits.acquireUninterruptibly(workers);
+      permits.release(workers);
+    }
+    return users.get();
+  }
+
+  @Managed
+  @ManagedDescription("Maximum number of partitions processed at the same time.")
+  @Impact(ImpactType.READ)
+  public int getWorkers() {
+    return workers;
+  }
+
+  @Managed
+  @ManagedDescription("Number of users of a partition.")
+  @Impact(ImpactType.READ)
+  public int getPartitionSize() {
+    return partitionSize;
+  }
+
+  @Managed
+  @ManagedDescription("Whether a digest is running.")
+  @Impact(ImpactType.READ)
+  public boolean isRunning() {
+    return startTime > 0 && endTime == 0;
+  }
+
+  @Managed
+  @ManagedDescription("Time in milliseconds of the current or last digest.")
+  @Impact(ImpactType.READ)
+  public long getElapsedTime() {
+    if (startTime == 0) {
+      return 0;
+    }
+    return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+  }
+
+  @Managed
+  @ManagedDescription("Number of users processed by the current or last digest.")
+  @Impact(ImpactType.READ)
+  public long getProcessedUsers() {
+    return processedUsers.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of partitions failed in the current or last digest.")
+  @Impact(ImpactType.READ)
+  public int getFailedPartitions() {
+    return failedPartitions.get();
+  }
+
+  /**
+   * @return the users of the partitions failed in the current or last digest
+   */
+  public Set<String> getFailedUsers() {
+    return Collections.unmodifiableSet(failedUsers);
+  }
+
+  @Managed
+  @ManagedDescription("Progress of the partitions of the current or last digest.")
+  @Impact(ImpactType.READ)
+  public List<String> getPartitions() {
+    List<String> values = new ArrayList<String>();
+    for (Partition partition : partitions) {
+      values.add(partition.toString());
+    }
+    return values;
+  }
+}
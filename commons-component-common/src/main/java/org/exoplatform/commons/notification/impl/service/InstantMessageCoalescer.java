@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.commons.api.notification.NotificationContext;
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
+import org.exoplatform.commons.api.notification.plugin.NotificationPluginUtils;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfile;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfiles;
+import org.exoplatform.commons.api.notification.service.template.DigestWriter;
+import org.exoplatform.commons.api.notification.service.template.TemplateContext;
+import org.exoplatform.commons.notification.NotificationContextFactory;
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.impl.InstantGroupPlugin;
+import org.exoplatform.commons.notification.impl.NotificationContextImpl;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.notification.impl.service.queue.CoalescingBuffer;
+import org.exoplatform.commons.notification.template.TemplateUtils;
+import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Impact;
+import org.exoplatform.management.annotations.ImpactType;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Merges the instant notifications of a plugin sent to the same user within
+ * a window into one email.
+ *
+ * The notifications of the plugins with a window are kept in memory until
+ * the window of their recipient is elapsed, a single notification is sent as
+ * before, several ones are rendered as the items of the digest of the plugin
+ * in the email of the {@link InstantGroupPlugin}. They are not counted as
+ * digests. The number of notifications kept is bounded, the oldest ones are
+ * sent before their window when it is exceeded.
+ */
+@Managed
+@ManagedDescription("Coalescing of the instant notification emails")
+@NameTemplate({
+  @Property(key = "service", value = "notification"),
+  @Property(key = "view", value = "coalescer")
+})
+public class InstantMessageCoalescer implements Startable {
+  private static final Log                              LOG              = ExoLogger.getLogger(InstantMessageCoalescer.class);
+
+  private static final String                           WINDOWS_SYS_KEY  = "conf.notification.service.InstantMessageCoalescer.windows";
+  private static final String                           WINDOWS_KEY      = "windows";
+  private static final String                           CAPACITY_SYS_KEY = "conf.notification.service.InstantMessageCoalescer.capacity";
+  private static final String                           CAPACITY_KEY     = "capacity";
+
+  /** The period in milliseconds of the checks of the windows */
+  private static final long                             TICK             = 1000;
+
+  /** The window in milliseconds of each plugin */
+  private final Map<String, Long>                       windows          = new HashMap<String, Long>();
+
+  private final CoalescingBuffer<NotificationInfo>      buffer;
+
+  private final ReentrantLock                           lock             = new ReentrantLock();
+
+  private final Condition                               stopped          = lock.newCondition();
+
+  private final AtomicLong                              coalescedCount   = new AtomicLong();
+
+  private final AtomicLong                              sentCount        = new AtomicLong();
+
+  private ExoContainer                                  container;
+
+  private Thread                                        thread;
+
+  private volatile boolean                              running;
+
+  public InstantMessageCoalescer(InitParams params) {
+    String values = NotificationUtils.getSystemValue(params, WINDOWS_SYS_KEY, WINDOWS_KEY, "");
+    for (String value : values.split(",")) {
+      int index = value.lastIndexOf(':');
+      if (index > 0) {
+        try {
+          windows.put(value.substring(0, index).trim(), Long.parseLong(value.substring(index + 1).trim()) * 1000);
+        } catch (NumberFormatException e) {
+          LOG.warn("Invalid coalescing window: " + value);
+        }
+      }
+    }
+    this.buffer = new CoalescingBuffer<NotificationInfo>(NotificationUtils.getSystemValue(params, CAPACITY_SYS_KEY, CAPACITY_KEY, 10000));
+  }
+
+  @Override
+  public void start() {
+    if (windows.isEmpty()) {
+      return;
+    }
+    container = ExoContainerContext.getCurrentContainer();
+    running = true;
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ExoContainerContext.setCurrentContainer(container);
+        while (running) {
+          await();
+          try {
+            flush(buffer.pollExpired(System.currentTimeMillis()));
+          } finally {
+            NotificationSessionManager.closeSessionProvider();
+          }
+        }
+      }
+    }, "NotificationCoalescer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      stopped.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (thread != null) {
+      try {
+        thread.join(TICK * 5);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      flush(buffer.pollAll());
+    } finally {
+      NotificationSessionManager.closeSessionProvider();
+    }
+  }
+
+  /**
+   * Keeps the notification until the window of its recipient is elapsed
+   *
+   * @param notification the notification of one recipient
+   * @return false if the plugin has no window, the notification must be sent directly
+   */
+  public boolean add(NotificationInfo notification) {
+    String pluginId = notification.getKey().getId();
+    Long window = windows.get(pluginId);
+    if (running == false || window == null || window <= 0) {
+      return false;
+    }
+    String key = notification.getTo() + "/" + pluginId;
+    flush(buffer.add(key, notification, window, System.currentTimeMillis()));
+    return true;
+  }
+
+  @Managed
+  @ManagedDescription("Number of emails not sent because their notifications have been merged.")
+  @Impact(ImpactType.READ)
+  public long getSavedEmails() {
+    return coalescedCount.get() - sentCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of notifications which have been coalesced.")
+  @Impact(ImpactType.READ)
+  public long getCoalescedNotifications() {
+    return coalescedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of emails sent for the coalesced notifications.")
+  @Impact(ImpactType.READ)
+  public long getSentEmails() {
+    return sentCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of notifications waiting for the end of their window.")
+  @Impact(ImpactType.READ)
+  public int getPendingNotifications() {
+    return buffer.size();
+  }
+
+  @Managed
+  @ManagedDescription("Number of emails sent before the end of their window because the buffer was full.")
+  @Impact(ImpactType.READ)
+  public long getOverflowFlushes() {
+    return buffer.getOverflowCount();
+  }
+
+  private void await() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      stopped.await(TICK, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sends the groups, the profiles of the recipients are read once
+   */
+  private void flush(List<CoalescingBuffer.Group<NotificationInfo>> groups) {
+    if (groups.isEmpty()) {
+      return;
+    }
+    RecipientProfiles profiles = RecipientProfiles.open();
+    try {
+      for (CoalescingBuffer.Group<NotificationInfo> group : groups) {
+        try {
+          send(group.getItems());
+        } catch (Exception e) {
+          LOG.warn("Failed to send the coalesced notifications " + group.getKey());
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+    } finally {
+      profiles.close();
+    }
+  }
+
+  /**
+   * Sends one email for the notifications of a recipient and a plugin
+   *
+   * @param notifications
+   */
+  private void send(List<NotificationInfo> notifications) throws Exception {
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    NotificationInfo first = notifications.get(0);
+    NotificationContext nCtx = NotificationContextImpl.cloneInstance();
+    AbstractNotificationPlugin plugin = nCtx.getPluginContainer().getPlugin(first.getKey());
+    if (plugin == null) {
+      return;
+    }
+    MessageInfo info;
+    if (notifications.size() == 1) {
+      nCtx.setNotificationInfo(first);
+      info = plugin.buildMessage(nCtx);
+    } else {
+      info = buildGroupMessage(plugin, nCtx, notifications);
+    }
+    if (info == null) {
+      return;
+    }
+    coalescedCount.addAndGet(notifications.size());
+    sentCount.incrementAndGet();
+    if (NotificationUtils.isValidEmailAddresses(info.getTo()) == true) {
+      CommonsUtils.getService(QueueMessageImpl.class).sendMessage(info.makeEmailNotification());
+    } else {
+      LOG.warn(String.format("The email %s is not valid for sending notification", info.getTo()));
+    }
+    if (stats) {
+      NotificationContextFactory.getInstance().getStatisticsCollector().createMessageInfoCount(info.getPluginId());
+    }
+  }
+
+  /**
+   * Renders the notifications as the items of the digest of their plugin,
+   * in the email of the {@link InstantGroupPlugin}
+   *
+   * @return the message, null if the plugin renders no item
+   */
+  private MessageInfo buildGroupMessage(AbstractNotificationPlugin plugin, NotificationContext nCtx, List<NotificationInfo> notifications) throws Exception {
+    DigestWriter writer = new DigestWriter();
+    nCtx.setNotificationInfos(notifications);
+    plugin.buildDigest(nCtx, writer);
+    if (writer.size() == 0) {
+      return null;
+    }
+    String userId = notifications.get(0).getTo();
+    RecipientProfile profile = RecipientProfiles.getProfile(userId);
+    String portalName = NotificationPluginUtils.getBrandingPortalName();
+    TemplateContext ctx = new TemplateContext(InstantGroupPlugin.ID, TemplateUtils.getLocale(profile.getLanguage()).getLanguage());
+    ctx.put("FIRSTNAME", profile.getFirstName());
+    ctx.put("PORTAL_NAME", portalName);
+    ctx.put("PORTAL_HOME", NotificationUtils.getPortalHome(portalName));
+    ctx.put("COUNT", String.valueOf(notifications.size()));
+    String subject = TemplateUtils.processSubject(ctx);
+
+    ctx.put("FOOTER_LINK", NotificationUtils.getProfileUrl(userId));
+    ctx.put("MESSAGES_LIST", writer);
+    String body = TemplateUtils.processGroovy(ctx);
+
+    return new MessageInfo().from(NotificationPluginUtils.getFrom(null)).subject(subject).body(body)
+                            .to(profile.getEmailFormat()).pluginId(plugin.getId());
+  }
+}
@@ -54,8 +54,7 @@ public class NotificationController {
   
   public void process(NotificationInfo notification) throws Exception {
     List<String> userIds = notification.getSendToUserIds();
-    for (String userId : userIds) {
-      UserSetting setting = notificationService.get(userId);
+    for (UserSetting setting : notificationService.getAll(userIds).values()) {
       this.instantly.process(setting, notification);
     }
     
@@ -19,8 +19,14 @@ package org.exoplatform.commons.notification.impl.service;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.exoplatform.commons.api.notification.NotificationContext;
 import org.exoplatform.commons.api.notification.model.MessageInfo;
@@ -29,16 +35,19 @@ import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
 import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfiles;
 import org.exoplatform.commons.api.notification.service.QueueMessage;
 import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
 import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
 import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
 import org.exoplatform.commons.api.notification.service.storage.NotificationService;
 import org.exoplatform.commons.api.notification.service.template.DigestorService;
+import org.exoplatform.commons.notification.NotificationConfiguration;
 import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
 import org.exoplatform.commons.notification.impl.NotificationContextImpl;
+import org.exoplatform.commons.notification.impl.service.shard.DigestShards;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.commons.utils.ListAccess;
 import org.exoplatform.services.log.ExoLogger;
@@ -46,9 +55,23 @@ import org.exoplatform.services.log.Log;
 import org.exoplatform.services.mail.MailService;
 import org.exoplatform.services.organization.OrganizationService;
 import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.impl.UserImpl;
 
 public class NotificationServiceImpl extends AbstractService implements NotificationService {
   private static final Log         LOG              = ExoLogger.getLogger(NotificationServiceImpl.class);
+
+  /** The phases of the digest */
+  public static final String       PHASE_SETTINGS         = "digest.settings";
+
+  public static final String       PHASE_DEFAULT_SETTINGS = "digest.defaultSettings";
+
+  public static final String       PHASE_NEW_USERS        = "digest.newUsers";
+
+  public static final String       PHASE_CLEANUP          = "digest.cleanup";
+
+  /** The number of users loaded at a time when there is no digest engine */
+  private static final int         USERS_PAGE             = 100;
+
   private final NotificationDataStorage storage;
 
   public NotificationServiceImpl(NotificationDataStorage storage) {
@@ -57,7 +80,30 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
   
   @Override
   public void process(NotificationInfo notification) throws Exception {
+    List<String> userIds = getUserIds(notification);
+    if (userIds == null) {
+      return;
+    }
+    //
+    Map<String, UserSetting> userSettings = CommonsUtils.getService(UserSettingService.class).getAll(userIds);
+    // the profile of a recipient is read once for its instantly mails
+    RecipientProfiles profiles = RecipientProfiles.open();
+    try {
+      if (resolve(notification, userIds, userSettings)) {
+        storage.save(notification);
+      }
+    } finally {
+      profiles.close();
+    }
+  }
 
+  /**
+   * Counts the notification and gets its recipients
+   * 
+   * @param notification
+   * @return the recipients, null if the plugin of the notification is not active
+   */
+  private List<String> getUserIds(NotificationInfo notification) {
     String pluginId = notification.getKey().getId();
     
     //create notification here
@@ -66,21 +112,32 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
     }
     // if the provider is not active, do nothing
     if (CommonsUtils.getService(PluginSettingService.class).isActive(pluginId) == false) {
-      return;
+      return null;
     }
     //
-    UserSettingService notificationService = CommonsUtils.getService(UserSettingService.class);
-    List<String> userIds = notification.getSendToUserIds();
-    //
     if (notification.isSendAll()) {
-      userIds = notificationService.getUserSettingByPlugin(pluginId);
+      return CommonsUtils.getService(UserSettingService.class).getUserSettingByPlugin(pluginId);
     }
+    return notification.getSendToUserIds();
+  }
 
+  /**
+   * Sends the instantly mails of the notification and sets its digest
+   * recipients
+   * 
+   * @param notification
+   * @param userIds the recipients of the notification
+   * @param userSettings the settings of the recipients
+   * @return true if the notification has to be saved for the digest
+   */
+  private boolean resolve(NotificationInfo notification, List<String> userIds, Map<String, UserSetting> userSettings) {
+    String pluginId = notification.getKey().getId();
     List<String> userIdPendings = new ArrayList<String>();
+    Set<String> done = new HashSet<String>();
     for (String userId : userIds) {
-      UserSetting userSetting = notificationService.get(userId);
+      UserSetting userSetting = userSettings.get(userId);
       //
-      if (userSetting.isActive() == false) {
+      if (userSetting == null || done.add(userId) == false || userSetting.isActive() == false) {
         continue;
       }
       // send instantly mail
@@ -96,16 +153,23 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
 
     if (userIdPendings.size() > 0 || notification.isSendAll()) {
       notification.to(userIdPendings);
-      storage.save(notification);
+      return true;
     }
+    return false;
   }
+
   
   /**
-   * Process to send instantly mail
+   * Process to send instantly mail, the notification is kept by the
+   * coalescer if its plugin has a coalescing window.
    * 
    * @param notification
    */
   private void sendInstantly(NotificationInfo notification) {
+    InstantMessageCoalescer coalescer = CommonsUtils.getService(InstantMessageCoalescer.class);
+    if (coalescer != null && coalescer.add(notification)) {
+      return;
+    }
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
     
     NotificationContext nCtx = NotificationContextImpl.cloneInstance();
@@ -129,10 +193,69 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
 
   @Override
   public void process(Collection<NotificationInfo> messages) throws Exception {
+    // the settings of all the recipients are read at once
+    List<NotificationInfo> actives = new ArrayList<NotificationInfo>();
+    List<List<String>> recipients = new ArrayList<List<String>>();
+    Set<String> allUserIds = new LinkedHashSet<String>();
     for (NotificationInfo message : messages) {
-      process(message);
+      try {
+        List<String> userIds = getUserIds(message);
+        if (userIds != null) {
+          actives.add(message);
+          recipients.add(userIds);
+          allUserIds.addAll(userIds);
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to get the recipients of the notification " + message.getKey() + ": " + e.getMessage());
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+    if (actives.isEmpty()) {
+      return;
+    }
+    Map<String, UserSetting> userSettings = CommonsUtils.getService(UserSettingService.class).getAll(allUserIds);
+    //
+    List<NotificationInfo> pendings = new ArrayList<NotificationInfo>();
+    // the profile of a recipient is read once for all the messages
+    RecipientProfiles profiles = RecipientProfiles.open();
+    try {
+      for (int i = 0; i < actives.size(); ++i) {
+        NotificationInfo message = actives.get(i);
+        try {
+          if (resolve(message, recipients.get(i), userSettings)) {
+            pendings.add(message);
+          }
+        } catch (Exception e) {
+          LOG.warn("Failed to process the notification " + message.getKey() + ": " + e.getMessage());
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+    } finally {
+      profiles.close();
+    }
+    if (pendings.isEmpty()) {
+      return;
+    }
+    Collection<NotificationInfo> failed;
+    try {
+      failed = storage.save(pendings);
+    } catch (Exception e) {
+      // the messages already saved are unknown, they are not saved again
+      LOG.warn("Failed to save " + pendings.size() + " notifications: " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      return;
+    }
+    // saves the failed ones one by one, so a failing message does not lose the others
+    for (NotificationInfo message : failed) {
+      try {
+        storage.save(message);
+      } catch (Exception ex) {
+        LOG.warn("Failed to save the notification " + message.getKey() + ": " + ex.getMessage());
+        LOG.debug(ex.getMessage(), ex);
+      }
     }
   }
+
   
   private void setValueSendbyFrequency(NotificationInfo message, UserSetting userNotificationSetting, String userId) {
     if (message.isSendAll()) {
@@ -155,12 +278,12 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
      * 1. just implements for daily
      * 2. apply Strategy pattern and Factory Pattern
      */
-    UserSettingService userService = CommonsUtils.getService(UserSettingService.class);
-    DigestorService digest = CommonsUtils.getService(DigestorService.class);
-    MailService mailService = CommonsUtils.getService(MailService.class);
+    final UserSettingService userService = CommonsUtils.getService(UserSettingService.class);
+    final DigestorService digest = CommonsUtils.getService(DigestorService.class);
+    final MailService mailService = CommonsUtils.getService(MailService.class);
     
     PluginSettingService settingService = CommonsUtils.getService(PluginSettingService.class);
-    UserSetting defaultSetting = getDefaultUserSetting(settingService.getActivePluginIds());
+    final UserSetting defaultSetting = getDefaultUserSetting(settingService.getActivePluginIds());
     //process for users used setting
     /**
      * Tested with 5000 users:
@@ -169,89 +292,268 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
      * + limit = 50 time lost: 44873ms user settings 70630ms default user settings.
      * + limit = 100 time lost: 26997ms user settings 60051ms default user settings.
     */
-    List<UserSetting> doneUsers = new ArrayList<UserSetting>();
-    
-    long startTime = System.currentTimeMillis();
-    int limit = 100;
-    int offset = 0;
-    while (true) {
-      List<UserSetting> userSettings = userService.getDaily(offset, limit);
-      if(userSettings.size() == 0) {
-        break;
+    final Set<String> doneUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final AtomicInteger newUsers = new AtomicInteger();
+    final DigestEngine engine = CommonsUtils.getService(DigestEngine.class);
+    DigestShards shards = CommonsUtils.getService(DigestShards.class);
+    if (engine != null) {
+      engine.begin();
+    }
+    try {
+      boolean complete = true;
+      final DigestEngine.Source settingUsers = new DigestEngine.Source() {
+        @Override
+        public List<UserSetting> load(int offset, int limit) {
+          List<UserSetting> userSettings = userService.getDaily(offset, limit);
+          return userSettings.size() == 0 ? null : userSettings;
+        }
+      };
+      final DigestEngine.Source defaultUsers = new DigestEngine.Source() {
+        @Override
+        public List<UserSetting> load(int offset, int limit) {
+          List<UserSetting> usersDefaultSettings = userService.getDefaultDaily(offset, limit);
+          return usersDefaultSettings.size() == 0 ? null : usersDefaultSettings;
+        }
+      };
+      if (shards == null) {
+        newUsers.addAndGet(digestUsers(engine, userService, digest, mailService, defaultSetting, doneUsers,
+                                       settingUsers, defaultUsers, null));
+      } else {
+        // the nodes of the cluster share the users of the digest, each claim
+        // pages through the users and only keeps the ones of its shards
+        boolean weekly = CommonsUtils.getService(NotificationConfiguration.class).isSendWeekly();
+        complete = shards.execute(DigestShards.getRun(weekly, Calendar.getInstance()), new DigestShards.Work() {
+          @Override
+          public void process(DigestShards.Filter filter) throws Exception {
+            newUsers.addAndGet(digestUsers(engine, userService, digest, mailService, defaultSetting, doneUsers,
+                                           settingUsers, defaultUsers, filter));
+          }
+        });
+      }
+      if (complete) {
+        // the messages read for the users of the failed partitions are kept for the next digest
+        Set<String> failedUsers = (engine != null) ? engine.getFailedUsers() : Collections.<String> emptySet();
+        if (failedUsers.isEmpty() == false) {
+          LOG.warn(String.format("%s partitions of the digest failed, the messages of %s users are kept.",
+                                 engine.getFailedPartitions(), failedUsers.size()));
+        }
+        //Clear all stored message
+        long startTime = System.currentTimeMillis();
+        storage.removeMessageAfterSent(failedUsers);
+        phaseExecuted(PHASE_CLEANUP, doneUsers.size() + newUsers.get(), startTime);
+      } else {
+        LOG.warn("The digest is not done on all the nodes, the messages are kept.");
+      }
+    } finally {
+      if (engine != null) {
+        engine.end();
       }
-      send(digest, mailService, userSettings, null);
-      offset += limit;
-      doneUsers.addAll(userSettings);
     }
-    LOG.debug("Time to run process users have settings: " + (System.currentTimeMillis() - startTime) + "ms.");
-    long startTimeDefault = System.currentTimeMillis();
+  }
+
+  /**
+   * Sends the digest of the users with settings, with the default settings
+   * and of the new users
+   * 
+   * @param filter selects the users of the node, null for all the users
+   * @return the number of new users
+   */
+  private int digestUsers(DigestEngine engine, final UserSettingService userService, final DigestorService digest,
+                          final MailService mailService, final UserSetting defaultSetting, final Set<String> doneUsers,
+                          DigestEngine.Source settingUsers, DigestEngine.Source defaultUsers,
+                          final DigestShards.Filter filter) throws Exception {
+    long startTime = System.currentTimeMillis();
+    int users = runPhase(engine, PHASE_SETTINGS, settingUsers, new DigestEngine.Task() {
+      @Override
+      public void process(List<UserSetting> userSettings) {
+        // done before sending, so the users of a failed partition are not
+        // sent the default digest by the new users phase
+        userSettings = filter(userSettings, filter, doneUsers);
+        send(digest, mailService, userSettings, null);
+      }
+    });
+    phaseExecuted(PHASE_SETTINGS, users, startTime);
     //process for users used default setting
-    offset = 0;
+    startTime = System.currentTimeMillis();
+    users = runPhase(engine, PHASE_DEFAULT_SETTINGS, defaultUsers, new DigestEngine.Task() {
+      @Override
+      public void process(List<UserSetting> usersDefaultSettings) {
+        usersDefaultSettings = filter(usersDefaultSettings, filter, doneUsers);
+        send(digest, mailService, usersDefaultSettings, defaultSetting);
+      }
+    });
+    phaseExecuted(PHASE_DEFAULT_SETTINGS, users, startTime);
+    //
+    startTime = System.currentTimeMillis();
+    int newUsers = 0;
+    DigestEngine.Source newUserSource = getNewUsers(doneUsers);
+    if (newUserSource != null) {
+      newUsers = processDedaultUserSetting(engine, mailService, userService, digest, defaultSetting, newUserSource, filter);
+    }
+    phaseExecuted(PHASE_NEW_USERS, newUsers, startTime);
+    return newUsers;
+  }
+
+  /**
+   * Selects the users of the node who are not done yet, the pages read by
+   * offset repeat users when the other nodes add the default settings mixin
+   * to their new users meanwhile. The selected users are marked as done.
+   * 
+   * @return the users accepted by the filter
+   */
+  private static List<UserSetting> filter(List<UserSetting> users, DigestShards.Filter filter, Set<String> doneUsers) {
+    List<UserSetting> accepted = new ArrayList<UserSetting>();
+    for (UserSetting user : filter(users, filter)) {
+      if (doneUsers.add(user.getUserId())) {
+        accepted.add(user);
+      }
+    }
+    return accepted;
+  }
+
+  /**
+   * @return the users accepted by the filter
+   */
+  private static List<UserSetting> filter(List<UserSetting> users, DigestShards.Filter filter) {
+    if (filter == null) {
+      return users;
+    }
+    List<UserSetting> accepted = new ArrayList<UserSetting>();
+    for (UserSetting user : users) {
+      if (filter.accept(user.getUserId())) {
+        accepted.add(user);
+      }
+    }
+    return accepted;
+  }
+
+  private int runPhase(DigestEngine engine, String phase, DigestEngine.Source source, DigestEngine.Task task) throws Exception {
+    if (engine != null) {
+      return engine.run(phase, source, task);
+    }
+    int limit = USERS_PAGE;
+    int offset = 0;
+    int count = 0;
     while (true) {
-      List<UserSetting> usersDefaultSettings = userService.getDefaultDaily(offset, limit);
-      if (usersDefaultSettings.size() == 0) {
+      List<UserSetting> users = source.load(offset, limit);
+      if (users == null) {
         break;
       }
-      send(digest, mailService, usersDefaultSettings, defaultSetting);
+      task.process(users);
       offset += limit;
-      doneUsers.addAll(usersDefaultSettings);
+      count += users.size();
     }
-    //
-    processDedaultUserSetting(mailService, userService, digest, defaultSetting, doneUsers);
-    
-    //Clear all stored message
-    storage.removeMessageAfterSent();
-    LOG.debug("Time to run process users used default settings: " + (System.currentTimeMillis() - startTimeDefault) + "ms.");
+    return count;
   }
 
-  private void processDedaultUserSetting(MailService mailService, UserSettingService userService, DigestorService digest,
-                                         UserSetting defaultSetting, List<UserSetting> doneUsers) throws Exception {
-    OrganizationService organizationService = CommonsUtils.getService(OrganizationService.class);
-    ListAccess<User> allUsers = organizationService.getUserHandler().findAllUsers();
-    int size = allUsers.getSize(), limit = 200;
-    int index = 0, length = Math.min(limit, size);
-    if (size > doneUsers.size()) {
-      List<User> addMixinUsers = new ArrayList<User>();
-      List<UserSetting> usersDefaultSettings = new ArrayList<UserSetting>();
+  private static UserSetting toUserSetting(User user) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTime(user.getCreatedDate());
+    return UserSetting.getInstance().setUserId(user.getUserName()).setLastUpdateTime(cal);
+  }
 
-      while (index < size && length > 0) {
-        usersDefaultSettings = new ArrayList<UserSetting>();
-        //
-        LOG.debug(String.format("Load from %s to %s, length %s", index, (index + length), length));
-        User[] users = allUsers.load(index, length);
+  /**
+   * Loads the users who have neither settings nor the default settings
+   * mixin page by page.
+   * 
+   * @param doneUsers the users with settings or the default settings
+   * @return the source of the users, null if there is none
+   */
+  private DigestEngine.Source getNewUsers(final Set<String> doneUsers) throws Exception {
+    OrganizationService organizationService = CommonsUtils.getService(OrganizationService.class);
+    final ListAccess<User> allUsers = organizationService.getUserHandler().findAllUsers();
+    final int size = allUsers.getSize();
+    if (size <= doneUsers.size()) {
+      return null;
+    }
+    return new DigestEngine.Source() {
+      @Override
+      public List<UserSetting> load(int offset, int limit) throws Exception {
+        int length = Math.min(limit, size - offset);
+        if (length <= 0) {
+          return null;
+        }
+        LOG.debug(String.format("Load from %s to %s, length %s", offset, (offset + length), length));
+        User[] users = allUsers.load(offset, length);
         if (users.length == 0) {
-          break;
+          return null;
         }
-        UserSetting userSetting;
-        Calendar cal = Calendar.getInstance();
+        List<UserSetting> usersDefaultSettings = new ArrayList<UserSetting>();
         for (int i = 0; i < users.length; i++) {
-          userSetting = UserSetting.getInstance().setUserId(users[i].getUserName());
-          if (!doneUsers.contains(userSetting)) {
-            //
-            cal.setTime(users[i].getCreatedDate());
-            usersDefaultSettings.add(userSetting.setLastUpdateTime(cal));
-            //
-            addMixinUsers.add(users[i]);
+          if (users[i] != null && !doneUsers.contains(users[i].getUserName())) {
+            usersDefaultSettings.add(toUserSetting(users[i]));
           }
         }
-        //
-        send(digest, mailService, usersDefaultSettings, defaultSetting);
+        return usersDefaultSettings;
+      }
+    };
+  }
 
-        index += length;
-        length = Math.min(limit, size - index);
+  /**
+   * Sends the digest of the users who have neither settings nor the default
+   * settings mixin, and adds them the mixin. The users are loaded and written
+   * page by page.
+   * 
+   * @return the number of users processed
+   */
+  private int processDedaultUserSetting(DigestEngine engine, final MailService mailService, final UserSettingService userService,
+                                        final DigestorService digest, final UserSetting defaultSetting,
+                                        DigestEngine.Source source, final DigestShards.Filter filter) throws Exception {
+    int count = runPhase(engine, PHASE_NEW_USERS, source, new DigestEngine.Task() {
+      @Override
+      public void process(List<UserSetting> usersDefaultSettings) {
+        usersDefaultSettings = filter(usersDefaultSettings, filter);
+        send(digest, mailService, usersDefaultSettings, defaultSetting);
+        User[] addMixinUsers = new User[usersDefaultSettings.size()];
+        for (int i = 0; i < addMixinUsers.length; i++) {
+          addMixinUsers[i] = new UserImpl(usersDefaultSettings.get(i).getUserId());
+        }
+        if (addMixinUsers.length > 0) {
+          userService.addMixin(addMixinUsers);
+        }
       }
+    });
+    LOG.debug("Done sent notification and addMixin for " + count + " users.");
+    return count;
+  }
 
-      LOG.debug("Done sent notification for " + addMixinUsers.size() + " users must addMixin.");
-      //
-      long startTime = System.currentTimeMillis();
-      userService.addMixin(addMixinUsers.toArray(new User[addMixinUsers.size()]));
-      LOG.debug("Done addMixin for " + addMixinUsers.size() + " users, time: " + (System.currentTimeMillis() - startTime) + "ms.");
+  /**
+   * Logs the time and the memory of a phase of the digest, they are also
+   * given to the statistics when they are enabled
+   * 
+   * @param phase
+   * @param users the number of users processed by the phase
+   * @param startTime
+   */
+  private void phaseExecuted(String phase, long users, long startTime) {
+    long time = System.currentTimeMillis() - startTime;
+    Runtime runtime = Runtime.getRuntime();
+    long memory = runtime.totalMemory() - runtime.freeMemory();
+    LOG.debug(String.format("Digest phase %s: %s users in %sms, %s bytes of memory used", phase, users, time, memory));
+    if (NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled()) {
+      NotificationContextFactory.getInstance().getStatisticsCollector().phaseExecuted(phase, users, time, memory);
     }
   }
   
   private void send(DigestorService digest, MailService mail, List<UserSetting> userSettings, UserSetting defaultSetting) {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    
+    // the profiles of the users of the partition are read at once and
+    // shared by the builders of their digest
+    List<String> userIds = new ArrayList<String>(userSettings.size());
+    for (UserSetting userSetting : userSettings) {
+      userIds.add(userSetting.getUserId());
+    }
+    RecipientProfiles profiles = RecipientProfiles.open();
+    try {
+      profiles.load(userIds);
+      send(digest, userSettings, defaultSetting, stats);
+      LOG.debug(String.format("Digest of %s users built with %s profiles read", userSettings.size(), profiles.getLoads()));
+    } finally {
+      profiles.close();
+    }
+  }
+
+  private void send(DigestorService digest, List<UserSetting> userSettings, UserSetting defaultSetting, boolean stats) {
     for (UserSetting userSetting : userSettings) {
       if (NotificationUtils.isDeletedMember(userSetting.getUserId())) {
         continue;
@@ -18,39 +18,47 @@ package org.exoplatform.commons.notification.impl.service;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 
 import org.exoplatform.commons.api.notification.model.MessageInfo;
 import org.exoplatform.commons.api.notification.service.QueueMessage;
+import org.exoplatform.commons.api.settings.SettingService;
+import org.exoplatform.commons.api.settings.SettingValue;
+import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.Scope;
 import org.exoplatform.commons.notification.NotificationConfiguration;
 import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
+import org.exoplatform.commons.notification.impl.NotificationQuery;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.notification.impl.codec.NotificationCodec;
+import org.exoplatform.commons.notification.impl.service.queue.MailSender;
+import org.exoplatform.commons.notification.impl.service.queue.MessageLanes;
+import org.exoplatform.commons.notification.impl.service.queue.QueueCursor;
+import org.exoplatform.commons.notification.impl.service.queue.RemovalJournal;
 import org.exoplatform.commons.notification.job.SendEmailNotificationJob;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.management.annotations.ManagedBy;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
-import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.mail.MailService;
@@ -58,7 +66,6 @@ import org.exoplatform.services.mail.Message;
 import org.exoplatform.services.scheduler.JobInfo;
 import org.exoplatform.services.scheduler.JobSchedulerService;
 import org.exoplatform.services.scheduler.PeriodInfo;
-import org.json.JSONObject;
 import org.picocontainer.Startable;
 import org.quartz.JobDataMap;
 
@@ -70,10 +77,33 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
   private static final String            MAX_TO_SEND_KEY       = "numberOfMailPerBatch";
   private static final String            DELAY_TIME_SYS_KEY    = "conf.notification.service.QueueMessage.period";
   private static final String            DELAY_TIME_KEY        = "period";
+  private static final String            WORKERS_SYS_KEY       = "conf.notification.service.QueueMessage.numberOfWorkers";
+  private static final String            WORKERS_KEY           = "numberOfWorkers";
+  private static final String            BATCH_SIZE_SYS_KEY    = "conf.notification.service.QueueMessage.numberOfMailPerConnection";
+  private static final String            BATCH_SIZE_KEY        = "numberOfMailPerConnection";
+  private static final String            CONSUMER_SYS_KEY      = "conf.notification.service.QueueMessage.consumerId";
+  private static final String            CONSUMER_KEY          = "consumerId";
+  private static final String            CURSOR_KEY            = "exo:notificationQueueCursor.";
+  private static final String            REMOVAL_BATCH_SYS_KEY = "conf.notification.service.QueueMessage.removalBatchSize";
+  private static final String            REMOVAL_BATCH_KEY     = "removalBatchSize";
+  private static final String            REMOVAL_DELAY_SYS_KEY = "conf.notification.service.QueueMessage.removalDelay";
+  private static final String            REMOVAL_DELAY_KEY     = "removalDelay";
+  private static final String            DICTIONARY_SYS_KEY    = "conf.notification.service.QueueMessage.codecDictionary";
+  private static final String            DICTIONARY_KEY        = "codecDictionary";
+  private static final String            LANES_SYS_KEY         = "conf.notification.service.QueueMessage.lanes";
+  private static final String            LANES_KEY             = "lanes";
+  private static final String            LANE_PLUGINS_SYS_KEY  = "conf.notification.service.QueueMessage.lanePlugins";
+  private static final String            LANE_PLUGINS_KEY      = "lanePlugins";
+  private static final String            DOMAIN_RATE_SYS_KEY   = "conf.notification.service.QueueMessage.domainRate";
+  private static final String            DOMAIN_RATE_KEY       = "domainRate";
+  private static final String            DOMAIN_RATES_SYS_KEY  = "conf.notification.service.QueueMessage.domainRates";
+  private static final String            DOMAIN_RATES_KEY      = "domainRates";
+  private static final String            DOMAIN_BURST_SYS_KEY  = "conf.notification.service.QueueMessage.domainBurst";
+  private static final String            DOMAIN_BURST_KEY      = "domainBurst";
+  private static final String            QUEUE_DIRECTORY       = "queue";
   private static final String            CACHE_REPO_NAME       = "repositoryName";
-  private static final int               BUFFER_SIZE           = 32;
-  private static int                     LIMIT                 = 20;
-  private static long                    sinceTime             = 0;
+  private static final int               BUFFER_SIZE           = 8192;
+  private int                            LIMIT                 = 20;
 
   private int                            MAX_TO_SEND;
   private long                           DELAY_TIME;
@@ -82,13 +112,33 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
   /** .. */
   private MailService                    mailService;
   /** .. */
+  private MailSender                     mailSender;
+  /** .. */
+  private NotificationCodec              codec;
+  /** .. */
   private NotificationConfiguration      configuration;
   /** The lock protecting all mutators */
   transient final ReentrantLock lock = new ReentrantLock();
-  /** .. */
-  private static List<MessageInfo> messages = new CopyOnWriteArrayList<MessageInfo>();
-  /** .. */
-  private static ThreadLocal<Set<String>> idsRemovingLocal = new ThreadLocal<Set<String>>();
+  /** The id of the consumer owning the cursor */
+  private final String                   consumerId;
+  /** The priority lanes and the rate limiting per domain */
+  private final MessageLanes             lanes;
+  /** The position of the consumer in each lane */
+  private final Map<String, QueueCursor> cursors               = new HashMap<String, QueueCursor>();
+  /** The last persisted position of the cursor of each lane */
+  private final Map<String, String>      savedPositions        = new HashMap<String, String>();
+  /** The last created time given to a message, to keep them ordered */
+  private long                           lastCreatedTime;
+  /** The properties defined by the node type of the messages */
+  private final Map<String, Boolean>     indexedProperties     = new HashMap<String, Boolean>();
+  /** The queries of the messages by shape, only the lane and the time are bound */
+  private final Map<String, NotificationQuery> messageQueries  = new ConcurrentHashMap<String, NotificationQuery>();
+  /** The journal of the sent messages to remove */
+  private RemovalJournal                 removalJournal;
+  /** The number of sent messages removed per save */
+  private final int                      removalBatchSize;
+  /** The time in milliseconds to wait for grouping the sent messages to remove */
+  private final long                     removalDelay;
   
   public QueueMessageImpl(InitParams params) {
     this.configuration = CommonsUtils.getService(NotificationConfiguration.class);
@@ -96,12 +146,57 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
 
     MAX_TO_SEND = NotificationUtils.getSystemValue(params, MAX_TO_SEND_SYS_KEY, MAX_TO_SEND_KEY, 20);
     DELAY_TIME = NotificationUtils.getSystemValue(params, DELAY_TIME_SYS_KEY, DELAY_TIME_KEY, 120) * 1000;
+    int workers = NotificationUtils.getSystemValue(params, WORKERS_SYS_KEY, WORKERS_KEY, 4);
+    int batchSize = NotificationUtils.getSystemValue(params, BATCH_SIZE_SYS_KEY, BATCH_SIZE_KEY, 20);
+    this.mailSender = new MailSender(mailService, workers, batchSize);
+    this.consumerId = NotificationUtils.getSystemValue(params, CONSUMER_SYS_KEY, CONSUMER_KEY, "mail");
+    this.removalBatchSize = NotificationUtils.getSystemValue(params, REMOVAL_BATCH_SYS_KEY, REMOVAL_BATCH_KEY, 200);
+    this.removalDelay = NotificationUtils.getSystemValue(params, REMOVAL_DELAY_SYS_KEY, REMOVAL_DELAY_KEY, 1000);
+    this.lanes = new MessageLanes(NotificationUtils.getSystemValue(params, LANES_SYS_KEY, LANES_KEY, "instant:6,digest:3,bulk:1"),
+                                  NotificationUtils.getSystemValue(params, LANE_PLUGINS_SYS_KEY, LANE_PLUGINS_KEY, "digest:digest"),
+                                  NotificationUtils.getSystemValue(params, DOMAIN_RATES_SYS_KEY, DOMAIN_RATES_KEY, ""),
+                                  NotificationUtils.getSystemValue(params, DOMAIN_RATE_SYS_KEY, DOMAIN_RATE_KEY, 0),
+                                  NotificationUtils.getSystemValue(params, DOMAIN_BURST_SYS_KEY, DOMAIN_BURST_KEY, 10));
+    for (String lane : lanes.getLaneNames()) {
+      cursors.put(lane, new QueueCursor(0, null));
+    }
+    String dictionary = NotificationUtils.getSystemValue(params, DICTIONARY_SYS_KEY, DICTIONARY_KEY, "");
+    try {
+      this.codec = new NotificationCodec(dictionary.getBytes("UTF-8"), 256, workers * 2);
+    } catch (Exception e) {
+      LOG.warn("Failed to use the codec dictionary, messages are written without it.");
+      LOG.debug(e.getMessage(), e);
+      this.codec = new NotificationCodec();
+    }
   }
   
   public void setManagementView(SendEmailService managementView) {
     this.sendEmailService = managementView;
   }
 
+  protected SendEmailService getSendEmailService() {
+    return sendEmailService;
+  }
+
+  protected NotificationConfiguration getConfiguration() {
+    return configuration;
+  }
+
+  protected NotificationCodec getCodec() {
+    return codec;
+  }
+
+  protected MessageLanes getLanes() {
+    return lanes;
+  }
+
+  /**
+   * @return the maximum number of messages to send per execution
+   */
+  protected int getLimit() {
+    return LIMIT;
+  }
+
   public void makeJob(int limit, long interval) {
     if (interval > 0) {
       LIMIT = limit;
@@ -134,7 +229,10 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
 
   @Override
   public void start() {
-    
+    //
+    startRemovalJournal();
+    loadCursor();
+    upgradeMessageInfoNodes();
     //
     resetDefaultConfigJob();
     //
@@ -143,6 +241,10 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
 
   @Override
   public void stop() {
+    mailSender.shutdown();
+    if (removalJournal != null) {
+      removalJournal.stop();
+    }
   }
 
   @Override
@@ -157,7 +259,7 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
       return false;
     }
     //
-    saveMessageInfo(message);
+    store(message);
     //
     sendEmailService.addCurrentCapacity();
     return true;
@@ -167,64 +269,144 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
   public void send() {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
     SessionProvider sProvider = SessionProvider.createSystemProvider();
+    List<MessageInfo> messages = new ArrayList<MessageInfo>();
+    Map<String, Long> tickets = new HashMap<String, Long>();
     try {
       //
-      load(sProvider);
-      if (idsRemovingLocal.get() == null) {
-        idsRemovingLocal.set(new HashSet<String>());
-      }
+      load(sProvider, messages, tickets);
       //
       if (messages.size() > 0) {
         LOG.info(messages.size() + " message(s) will be sent.");
       }
-      
+
+      List<Message> emails = new ArrayList<Message>();
       for (MessageInfo messageInfo : messages) {
-        if (messageInfo != null && !idsRemovingLocal.get().contains(messageInfo.getId())
-            && sendMessage(messageInfo.makeEmailNotification())) {
-          
+        emails.add(messageInfo.makeEmailNotification());
+      }
+      //
+      List<MessageInfo> sentMessages = new ArrayList<MessageInfo>();
+      List<String> failedIds = new ArrayList<String>();
+      boolean[] sent = sendMessages(emails);
+      for (int i = 0; i < sent.length; ++i) {
+        MessageInfo messageInfo = messages.get(i);
+        if (sent[i]) {
           LOG.debug("Message sent to user: " + messageInfo.getTo());
           //
-          idsRemovingLocal.get().add(messageInfo.getId());
+          sentMessages.add(messageInfo);
+          lanes.sent(lanes.getLaneOf(messageInfo), messageInfo.getCreatedTime());
           if (stats) {
             NotificationContextFactory.getInstance().getStatisticsCollector().pollQueue(messageInfo.getPluginId());
           }
+        } else {
+          failedIds.add(messageInfo.getId());
         }
       }
+      //
+      removeMessageInfo(sProvider, sentMessages);
+      requeueMessageInfo(sProvider, failedIds);
     } catch (Exception e) {
       LOG.warn("Failed to send message.");
       LOG.debug(e.getMessage(), e);
     } finally {
+      for (Map.Entry<String, Long> ticket : tickets.entrySet()) {
+        saveCursor(ticket.getKey(), cursors.get(ticket.getKey()).release(ticket.getValue()));
+      }
       sProvider.close();
-      removeMessageInfo();
     }
   }
 
   /**
-   * Loading the messageInfo as buffer with Limit
-   * and sinceTime
+   * Loads the next page of messages of each lane after its cursor, takes
+   * the messages to send by weighted fair dequeue and moves the cursors to
+   * the last taken ones, the pages are not loaded again by the other
+   * threads. The messages deferred by the rate of their domain are moved at
+   * the end of their lane.
+   *
    * @param sProvider
+   * @param messages the list to fill
+   * @param tickets the map to fill with the tickets to release the pages, by lane
    */
-  private void load(SessionProvider sProvider) {
+  private void load(SessionProvider sProvider, List<MessageInfo> messages, Map<String, Long> tickets) {
+    final ReentrantLock lock = this.lock;
     try {
-      NodeIterator iterator = getMessageInfoNodes(sProvider);
-      while (iterator.hasNext()) {
-        Node node = iterator.nextNode();
-        long createdTime = Long.parseLong(node.getName());
-        if ((sinceTime == 0 || sinceTime < createdTime)) {
+      lock.lock();
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      Map<String, List<MessageInfo>> candidates = new HashMap<String, List<MessageInfo>>();
+      boolean hasBroken = false;
+      for (String lane : lanes.getLaneNames()) {
+        QueueCursor cursor = cursors.get(lane);
+        List<MessageInfo> laneMessages = new ArrayList<MessageInfo>();
+        // the messages with the same created time than the cursor and already loaded are filtered here
+        NodeIterator iterator = getMessageInfoNodes(messageInfoHome, lane, cursor.getCreatedTime(), LIMIT * 2);
+        while (iterator != null && iterator.hasNext() && laneMessages.size() < LIMIT) {
+          Node node = iterator.nextNode();
+          long createdTime = Long.parseLong(node.getName());
+          String id = node.getUUID();
+          if (cursor.isAfter(createdTime, id) == false || isRemoving(node.getPath())) {
+            continue;
+          }
           MessageInfo messageInfo = getMessageInfo(node);
-          messageInfo.setId(node.getUUID());
-          messages.add(messageInfo);
-
-          sinceTime = createdTime;
-        } else {
-          sinceTime = 0;
-          messages.clear();
-          break;
+          if (messageInfo != null) {
+            // the node name gives the position of the message, changed when it is requeued
+            messageInfo.setId(id).setCreatedTime(createdTime);
+            laneMessages.add(messageInfo);
+          } else {
+            node.remove();
+            hasBroken = true;
+          }
+        }
+        candidates.put(lane, laneMessages);
+      }
+      if (hasBroken) {
+        messageInfoHome.getSession().save();
+      }
+      //
+      MessageLanes.Selection selection = lanes.select(candidates, LIMIT);
+      for (String lane : lanes.getLaneNames()) {
+        int consumed = selection.getConsumed(lane);
+        if (consumed > 0) {
+          MessageInfo last = candidates.get(lane).get(consumed - 1);
+          tickets.put(lane, cursors.get(lane).claim(last.getCreatedTime(), last.getId()));
         }
       }
+      messages.addAll(selection.getSelected());
+      //
+      List<String> deferredIds = new ArrayList<String>();
+      for (MessageInfo messageInfo : selection.getDeferred()) {
+        deferredIds.add(messageInfo.getId());
+      }
+      requeueMessageInfo(sProvider, deferredIds);
     } catch (Exception e) {
       LOG.warn("Failed to load message.");
       LOG.debug(e.getMessage(), e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores the message to be sent by the next execution of {@link #send()}
+   *
+   * @param message
+   */
+  protected void store(MessageInfo message) {
+    saveMessageInfo(message);
+  }
+
+  /**
+   * Gives the created time of a new message, greater than the one of all
+   * the messages already queued.
+   *
+   * @return
+   */
+  protected long nextCreatedTime() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      lastCreatedTime = Math.max(System.currentTimeMillis(), lastCreatedTime + 1);
+      return lastCreatedTime;
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -233,15 +415,21 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
     SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
     try {
       lock.lock();
-      message.setCreatedTime(System.currentTimeMillis());
+      message.setCreatedTime(nextCreatedTime());
       Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
       Node messageInfoNode = messageInfoHome.addNode(String.valueOf(message.getCreatedTime()), NTF_MESSAGE_INFO);
       if (messageInfoNode.canAddMixin("mix:referenceable")) {
         messageInfoNode.addMixin("mix:referenceable");
       }
+      if (isIndexed(messageInfoHome.getSession(), NTF_CREATED_TIME)) {
+        messageInfoNode.setProperty(NTF_CREATED_TIME, message.getCreatedTime());
+      }
+      if (isIndexed(messageInfoHome.getSession(), NTF_LANE)) {
+        messageInfoNode.setProperty(NTF_LANE, lanes.getLaneOf(message));
+      }
 
       //
-      saveData(messageInfoNode, compress(message.toJSON()));
+      saveData(messageInfoNode, new ByteArrayInputStream(codec.encode(message)));
       sessionSave(messageInfoHome);
 
     } catch (Exception e) {
@@ -252,45 +440,358 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
     }
   }
 
-  private void removeMessageInfo() {
+  /**
+   * Removes the sent messages, they are marked in the removal journal and
+   * removed later by its thread, without holding the lock of the queue.
+   *
+   * @param sProvider
+   * @param sentMessages
+   */
+  private void removeMessageInfo(SessionProvider sProvider, List<MessageInfo> sentMessages) {
+    if (sentMessages.isEmpty()) {
+      return;
+    }
+    try {
+      String homePath = getMessageInfoHomeNode(sProvider, configuration.getWorkspace()).getPath();
+      List<String> paths = new ArrayList<String>();
+      for (MessageInfo messageInfo : sentMessages) {
+        paths.add(homePath + "/" + messageInfo.getCreatedTime());
+      }
+      if (removalJournal != null) {
+        removalJournal.mark(paths);
+      } else {
+        removeMessageInfoNodes(paths);
+      }
+      for (MessageInfo messageInfo : sentMessages) {
+        sendEmailService.removeCurrentCapacity();
+        LOG.debug("Removing messageId: " + messageInfo.getId());
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to remove message.");
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Removes the nodes of the messages with one save
+   *
+   * @param paths
+   * @throws Exception
+   */
+  private void removeMessageInfoNodes(List<String> paths) throws Exception {
     SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = getSession(sProvider, configuration.getWorkspace());
+      for (String path : paths) {
+        if (session.itemExists(path)) {
+          session.getItem(path).remove();
+        }
+      }
+      session.save();
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  /**
+   * @param path the path of a message node
+   * @return true if the message is sent and its node is not removed yet
+   */
+  protected boolean isRemoving(String path) {
+    return removalJournal != null && removalJournal.isPending(path);
+  }
+
+  /**
+   * Waits until the sent messages of the removal journal are removed
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if they are all removed
+   */
+  protected boolean awaitRemoved(long timeout) {
+    if (removalJournal == null) {
+      return true;
+    }
+    try {
+      return removalJournal.awaitRemoved(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void startRemovalJournal() {
+    File file = new File(new File(configuration.getDataDirectory(), QUEUE_DIRECTORY), "removal-" + consumerId + ".journal");
+    RemovalJournal journal = new RemovalJournal(file, removalBatchSize, removalDelay, new RemovalJournal.Remover() {
+      @Override
+      public void remove(List<String> paths) throws Exception {
+        removeMessageInfoNodes(paths);
+      }
+    });
+    try {
+      journal.start();
+      removalJournal = journal;
+    } catch (Exception e) {
+      LOG.warn("Failed to open the removal journal, the sent messages will be removed directly.");
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Moves the messages at the end of the queue, after the cursor, to be sent
+   * again by a next execution.
+   *
+   * @param sProvider
+   * @param ids
+   */
+  private void requeueMessageInfo(SessionProvider sProvider, List<String> ids) {
+    if (ids.isEmpty()) {
+      return;
+    }
     final ReentrantLock lock = this.lock;
-    List<String> ids = new ArrayList<String>(idsRemovingLocal.get()) ;
     try {
       lock.lock();
-      Session session = getSession(sProvider, configuration.getWorkspace());
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      Session session = messageInfoHome.getSession();
+      boolean indexed = isIndexed(session, NTF_CREATED_TIME);
       for (String messageId : ids) {
-        session.getNodeByUUID(messageId).remove();
-        //
-        sendEmailService.removeCurrentCapacity();
-        LOG.debug("Removing messageId: " + messageId);
+        Node node = session.getNodeByUUID(messageId);
+        long createdTime = nextCreatedTime();
+        session.move(node.getPath(), messageInfoHome.getPath() + "/" + createdTime);
+        if (indexed) {
+          session.getNodeByUUID(messageId).setProperty(NTF_CREATED_TIME, createdTime);
+        }
+        LOG.debug("Requeue messageId: " + messageId);
       }
       session.save();
     } catch (Exception e) {
-      LOG.warn("Failed to remove message.");
+      LOG.warn("Failed to requeue message.");
       LOG.debug(e.getMessage(), e);
     } finally {
-      messages.clear();
-      idsRemovingLocal.get().removeAll(ids);
       lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the persisted position of the consumer in each lane, the messages
+   * left before it by a previous execution are moved after it.
+   */
+  private void loadCursor() {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      SettingService settingService = CommonsUtils.getService(SettingService.class);
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      for (String lane : lanes.getLaneNames()) {
+        SettingValue<?> value = settingService.get(Context.GLOBAL, Scope.GLOBAL, getCursorKey(lane));
+        String position = (value != null && value.getValue() != null) ? value.getValue().toString() : null;
+        QueueCursor cursor = QueueCursor.valueOf(position);
+        savedPositions.put(lane, position);
+        cursors.put(lane, cursor);
+        lastCreatedTime = Math.max(lastCreatedTime, cursor.getCreatedTime());
+        //
+        if (cursor.getCreatedTime() > 0) {
+          List<String> staleIds = new ArrayList<String>();
+          NodeIterator iterator = getMessageInfoNodes(messageInfoHome, lane, 0, -1);
+          while (iterator != null && iterator.hasNext()) {
+            Node node = iterator.nextNode();
+            if (cursor.isAfter(Long.parseLong(node.getName()), node.getUUID())) {
+              break;
+            }
+            if (isRemoving(node.getPath()) == false) {
+              staleIds.add(node.getUUID());
+            }
+          }
+          requeueMessageInfo(sProvider, staleIds);
+        }
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to load the cursor of the queue.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
       sProvider.close();
     }
   }
 
-  private NodeIterator getMessageInfoNodes(SessionProvider sProvider) {
+  private void saveCursor(String lane, String position) {
+    if (position.equals(savedPositions.get(lane))) {
+      return;
+    }
+    try {
+      CommonsUtils.getService(SettingService.class).set(Context.GLOBAL, Scope.GLOBAL, getCursorKey(lane), SettingValue.create(position));
+      savedPositions.put(lane, position);
+    } catch (Exception e) {
+      LOG.warn("Failed to save the cursor of the queue.");
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The cursor of the default lane keeps the key used before the lanes
+   */
+  private String getCursorKey(String lane) {
+    if (lane.equals(lanes.getDefaultLane())) {
+      return CURSOR_KEY + consumerId;
+    }
+    return CURSOR_KEY + consumerId + "." + lane;
+  }
+
+  /**
+   * Sets the created time property on the messages stored before it was
+   * added to the node type.
+   */
+  private void upgradeMessageInfoNodes() {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
     try {
       Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      if (isIndexed(messageInfoHome.getSession(), NTF_CREATED_TIME) == false) {
+        LOG.warn("The node type " + NTF_MESSAGE_INFO + " has no property " + NTF_CREATED_TIME
+            + ", the messages will be loaded without index.");
+        return;
+      }
       QueryManager qm = messageInfoHome.getSession().getWorkspace().getQueryManager();
       StringBuilder sqlQuery = new StringBuilder();
       sqlQuery.append("SELECT * FROM ").append(NTF_MESSAGE_INFO)
-              .append(" WHERE jcr:path LIKE '").append(messageInfoHome.getPath()).append("/%' AND NOT jcr:path LIKE '")
-              .append(messageInfoHome.getPath()).append("/%/%'")
-              .append(" ORDER BY exo:name");
-      QueryImpl query = (QueryImpl) qm.createQuery(sqlQuery.toString(), Query.SQL);
-      query.setOffset(0);
-      query.setLimit(LIMIT);
-      QueryResult result = query.execute();
-      return result.getNodes();
+              .append(" WHERE jcr:path LIKE '").append(NotificationQuery.escape(messageInfoHome.getPath())).append("/%' AND NOT jcr:path LIKE '")
+              .append(NotificationQuery.escape(messageInfoHome.getPath())).append("/%/%'")
+              .append(" AND ").append(NTF_CREATED_TIME).append(" IS NULL");
+      NodeIterator iterator = qm.createQuery(sqlQuery.toString(), Query.SQL).execute().getNodes();
+      int count = 0;
+      while (iterator.hasNext()) {
+        Node node = iterator.nextNode();
+        node.setProperty(NTF_CREATED_TIME, Long.parseLong(node.getName()));
+        if (++count % 200 == 0) {
+          sessionSave(messageInfoHome);
+        }
+      }
+      sessionSave(messageInfoHome);
+      if (count > 0) {
+        LOG.info("Set the created time on " + count + " message(s).");
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to set the created time on the messages.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  /**
+   * Checks if the property is defined by the node type of the messages, so
+   * it can be stored and queried.
+   */
+  private boolean isIndexed(Session session, String property) throws Exception {
+    Boolean indexed = indexedProperties.get(property);
+    if (indexed == null) {
+      indexed = false;
+      NodeType nodeType = session.getWorkspace().getNodeTypeManager().getNodeType(NTF_MESSAGE_INFO);
+      for (PropertyDefinition definition : nodeType.getPropertyDefinitions()) {
+        if (property.equals(definition.getName())) {
+          indexed = true;
+          break;
+        }
+      }
+      indexedProperties.put(property, indexed);
+    }
+    return indexed;
+  }
+
+  /**
+   * Gets the time in milliseconds since the oldest message after the cursor
+   * of a lane has been queued, the greatest one of all lanes is returned.
+   *
+   * @return
+   */
+  public long getCursorLag() {
+    long lag = 0;
+    for (String lane : lanes.getLaneNames()) {
+      lag = Math.max(lag, getLaneLag(lane));
+    }
+    return lag;
+  }
+
+  /**
+   * Gets the time in milliseconds since the oldest message after the cursor
+   * of the lane has been queued, 0 when all its messages are consumed.
+   *
+   * @param lane
+   * @return
+   */
+  protected long getLaneLag(String lane) {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      QueueCursor cursor = cursors.get(lane);
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      NodeIterator iterator = getMessageInfoNodes(messageInfoHome, lane, cursor.getCreatedTime(), LIMIT * 2);
+      while (iterator != null && iterator.hasNext()) {
+        Node node = iterator.nextNode();
+        long createdTime = Long.parseLong(node.getName());
+        if (cursor.isAfter(createdTime, node.getUUID())) {
+          return Math.max(0, System.currentTimeMillis() - createdTime);
+        }
+      }
+    } catch (Exception e) {
+      LOG.debug("Failed to get the lag of the queue: " + e.getMessage(), e);
+    } finally {
+      sProvider.close();
+    }
+    return 0;
+  }
+
+  /**
+   * Gets the number of messages of the lane, sent ones not removed yet included
+   *
+   * @param lane
+   * @return
+   */
+  protected long getLaneDepth(String lane) {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      NodeIterator iterator = getMessageInfoNodes(messageInfoHome, lane, 0, -1);
+      return (iterator != null) ? iterator.getSize() : 0;
+    } catch (Exception e) {
+      LOG.debug("Failed to get the depth of the lane " + lane + ": " + e.getMessage(), e);
+    } finally {
+      sProvider.close();
+    }
+    return 0;
+  }
+
+  /**
+   * Gives the depth and the wait times of each lane
+   *
+   * @return
+   */
+  public String getLaneStatistics() {
+    StringBuilder statistics = new StringBuilder();
+    for (String name : lanes.getLaneNames()) {
+      MessageLanes.Lane lane = lanes.getLane(name);
+      if (statistics.length() > 0) {
+        statistics.append("; ");
+      }
+      statistics.append(name).append(": weight=").append(lane.getWeight())
+                .append(", depth=").append(getLaneDepth(name))
+                .append(", lag=").append(getLaneLag(name)).append("ms")
+                .append(", averageWait=").append(lane.getAverageWait()).append("ms")
+                .append(", maxWait=").append(lane.getMaxWait()).append("ms")
+                .append(", sent=").append(lane.getSentCount())
+                .append(", deferred=").append(lane.getDeferredCount());
+    }
+    return statistics.toString();
+  }
+
+  /**
+   * Gives the state of the token buckets of the recipient domains
+   *
+   * @return
+   */
+  public String getDomainBuckets() {
+    return lanes.getBucketStates();
+  }
+
+  protected NodeIterator getMessageInfoNodes(SessionProvider sProvider) {
+    try {
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      return getMessageInfoNodes(messageInfoHome, null, 0, LIMIT);
     } catch (Exception e) {
       LOG.warn("Failed to get message from node.");
       LOG.debug(e.getMessage(), e);
@@ -298,20 +799,66 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
     return null;
   }
 
-  private MessageInfo getMessageInfo(Node messageInfoNode) {
+  /**
+   * Gets the messages of a lane ordered by created time, from the given time
+   *
+   * @param messageInfoHome
+   * @param lane the lane of the messages, null for all lanes
+   * @param fromTime the minimum created time, 0 to get all
+   * @param limit the maximum number of messages, -1 for no limit
+   * @return
+   */
+  private NodeIterator getMessageInfoNodes(Node messageInfoHome, String lane, long fromTime, int limit) {
     try {
-      String messageJson = getDataJson(messageInfoNode);
-      JSONObject object = new JSONObject(messageJson);
-      MessageInfo info = new MessageInfo();
-      info.pluginId(object.optString("pluginId"))
-          .from(object.getString("from"))
-          .to(object.getString("to"))
-          .subject(object.getString("subject"))
-          .body(object.getString("body"))
-          .footer(object.optString("footer"))
-          .setCreatedTime(object.getLong("createdTime"));
-      //
-      return info;
+      Session session = messageInfoHome.getSession();
+      boolean laneIndexed = lane != null && isIndexed(session, NTF_LANE);
+      boolean defaultLane = lane != null && lane.equals(lanes.getDefaultLane());
+      if (lane != null && laneIndexed == false && defaultLane == false) {
+        return null;
+      }
+      boolean timed = fromTime > 0 && isIndexed(session, NTF_CREATED_TIME);
+      String shape = messageInfoHome.getPath() + "#" + laneIndexed + "#" + defaultLane + "#" + timed;
+      NotificationQuery query = messageQueries.get(shape);
+      if (query == null) {
+        StringBuilder sqlQuery = new StringBuilder();
+        sqlQuery.append("SELECT * FROM ").append(NTF_MESSAGE_INFO)
+                .append(" WHERE jcr:path LIKE '").append(NotificationQuery.escape(messageInfoHome.getPath())).append("/%' AND NOT jcr:path LIKE '")
+                .append(NotificationQuery.escape(messageInfoHome.getPath())).append("/%/%'");
+        if (laneIndexed) {
+          // the messages stored before the lanes are in the default one
+          sqlQuery.append(" AND (").append(NTF_LANE).append(" = '{lane}'");
+          if (defaultLane) {
+            sqlQuery.append(" OR ").append(NTF_LANE).append(" IS NULL");
+          }
+          sqlQuery.append(")");
+        }
+        if (timed) {
+          sqlQuery.append(" AND ").append(NTF_CREATED_TIME).append(" >= {fromTime}")
+                  .append(" ORDER BY ").append(NTF_CREATED_TIME).append(ASCENDING);
+        } else {
+          sqlQuery.append(" ORDER BY exo:name");
+        }
+        query = new NotificationQuery("queueMessages", sqlQuery.toString());
+        messageQueries.put(shape, query);
+      }
+      List<Object> values = new ArrayList<Object>();
+      if (laneIndexed) {
+        values.add(lane);
+      }
+      if (timed) {
+        values.add(fromTime);
+      }
+      return query.execute(session, 0, Math.max(0, limit), values.toArray());
+    } catch (Exception e) {
+      LOG.warn("Failed to get message from node.");
+      LOG.debug(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  protected MessageInfo getMessageInfo(Node messageInfoNode) {
+    try {
+      return codec.decodeMessageInfo(getData(messageInfoNode));
     } catch (Exception e) {
       LOG.warn("Failed to map message between node and model.");
       LOG.debug(e.getMessage(), e);
@@ -340,43 +887,66 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
     return true;
   }
 
+  /**
+   * Sends the messages by the workers of the {@link MailSender}
+   * 
+   * @param messages
+   * @return the result of each message, only the messages sent successfully
+   *         must be removed from the queue
+   */
+  protected boolean[] sendMessages(List<Message> messages) {
+    boolean[] results = new boolean[messages.size()];
+    if (sendEmailService.isOn()) {
+      for (int i = 0; i < results.length; ++i) {
+        sendEmailService.counter();
+        results[i] = true;
+      }
+      return results;
+    }
+    //ensure the messages are valid
+    List<Message> valids = new ArrayList<Message>();
+    List<Integer> indexes = new ArrayList<Integer>();
+    for (int i = 0; i < results.length; ++i) {
+      if (messages.get(i).getFrom() != null) {
+        valids.add(messages.get(i));
+        indexes.add(i);
+      }
+    }
+    boolean[] sent = mailSender.send(valids);
+    for (int i = 0; i < sent.length; ++i) {
+      results[indexes.get(i)] = sent[i];
+    }
+    return results;
+  }
+
   private void saveData(Node node, InputStream is) throws Exception {
     Node fileNode = node.addNode("datajson", "nt:file");
     Node nodeContent = fileNode.addNode("jcr:content", "nt:resource");
     //
-    nodeContent.setProperty("jcr:mimeType", "application/x-gzip");
+    nodeContent.setProperty("jcr:mimeType", "application/octet-stream");
     nodeContent.setProperty("jcr:data", is);
     nodeContent.setProperty("jcr:lastModified", Calendar.getInstance().getTimeInMillis());
   }
 
-  private String getDataJson(Node node) throws Exception {
+  /**
+   * Reads the content of the message, written by the codec or as gzip JSON
+   * by the previous versions.
+   */
+  private byte[] getData(Node node) throws Exception {
     Node fileNode = node.getNode("datajson");
     Node nodeContent = fileNode.getNode("jcr:content");
     InputStream stream = nodeContent.getProperty("jcr:data").getStream();
-    return decompress(stream);
-  }
-
-  private static InputStream compress(String string) throws IOException {
-    ByteArrayOutputStream os = new ByteArrayOutputStream(string.length());
-    GZIPOutputStream gos = new GZIPOutputStream(os);
-    gos.write(string.getBytes());
-    gos.close();
-    byte[] compressed = os.toByteArray();
-    os.close();
-    return new ByteArrayInputStream(compressed);
-  }
-
-  private static String decompress(InputStream is) throws IOException {
-    GZIPInputStream gis = new GZIPInputStream(is, BUFFER_SIZE);
-    StringBuilder string = new StringBuilder();
-    byte[] data = new byte[BUFFER_SIZE];
-    int bytesRead;
-    while ((bytesRead = gis.read(data)) != -1) {
-      string.append(new String(data, 0, bytesRead));
-    }
-    gis.close();
-    is.close();
-    return string.toString();
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream(BUFFER_SIZE);
+      byte[] data = new byte[BUFFER_SIZE];
+      int bytesRead;
+      while ((bytesRead = stream.read(data)) != -1) {
+        os.write(data, 0, bytesRead);
+      }
+      return os.toByteArray();
+    } finally {
+      stream.close();
+    }
   }
 
   public String removeAll() {
@@ -83,6 +83,27 @@ public class SendEmailService implements ManagementAware {
     return currentCapacity;
   }
 
+  @Managed
+  @ManagedDescription("Time in milliseconds since the oldest message not yet sent has been queued.")
+  @Impact(ImpactType.READ)
+  public long getQueueLag() {
+    return queueMessage.getCursorLag();
+  }
+
+  @Managed
+  @ManagedDescription("Depth and wait times of the messages in each priority lane.")
+  @Impact(ImpactType.READ)
+  public String getLaneStatistics() {
+    return queueMessage.getLaneStatistics();
+  }
+
+  @Managed
+  @ManagedDescription("Available tokens of the recipient domains limited by a rate.")
+  @Impact(ImpactType.READ)
+  public String getDomainBuckets() {
+    return queueMessage.getDomainBuckets();
+  }
+
   @Managed
   @ManagedDescription("Turn on the mail service.")
   @Impact(ImpactType.READ)
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Groups the items with the same key arriving within a window.
+ *
+ * A group is created by its first item and is ready when its window is
+ * elapsed. The number of items kept is bounded by the capacity, the oldest
+ * groups are given back to be flushed when it is exceeded.
+ *
+ * @param <T> the type of the items
+ */
+public class CoalescingBuffer<T> {
+
+  /**
+   * The items of a key arrived within the window
+   */
+  public static class Group<T> {
+    private final String  key;
+
+    private final long    deadline;
+
+    private final List<T> items = new ArrayList<T>();
+
+    Group(String key, long deadline) {
+      this.key = key;
+      this.deadline = deadline;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
+    public List<T> getItems() {
+      return items;
+    }
+  }
+
+  private final int                             capacity;
+
+  /** The lock protecting the groups and the counters */
+  private final ReentrantLock                   lock   = new ReentrantLock();
+
+  /** The groups by key, in the order of their first item */
+  private final LinkedHashMap<String, Group<T>> groups = new LinkedHashMap<String, Group<T>>();
+
+  private int                                   size;
+
+  private long                                  overflowCount;
+
+  public CoalescingBuffer(int capacity) {
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Adds an item to the group of its key, the group is created with the
+   * window if it does not exist.
+   *
+   * @param key
+   * @param item
+   * @param window the time in milliseconds to wait for the other items of the key
+   * @param now the current time in milliseconds
+   * @return the groups to flush because the capacity is exceeded, empty if none
+   */
+  public List<Group<T>> add(String key, T item, long window, long now) {
+    List<Group<T>> overflow = new ArrayList<Group<T>>();
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      Group<T> group = groups.get(key);
+      if (group == null) {
+        group = new Group<T>(key, now + window);
+        groups.put(key, group);
+      }
+      group.items.add(item);
+      ++size;
+      Iterator<Group<T>> it = groups.values().iterator();
+      while (size > capacity && it.hasNext()) {
+        Group<T> eldest = it.next();
+        it.remove();
+        size -= eldest.items.size();
+        overflow.add(eldest);
+        ++overflowCount;
+      }
+    } finally {
+      lock.unlock();
+    }
+    return overflow;
+  }
+
+  /**
+   * Removes the groups whose window is elapsed
+   *
+   * @param now the current time in milliseconds
+   * @return
+   */
+  public List<Group<T>> pollExpired(long now) {
+    List<Group<T>> expired = new ArrayList<Group<T>>();
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      Iterator<Group<T>> it = groups.values().iterator();
+      while (it.hasNext()) {
+        Group<T> group = it.next();
+        if (group.deadline <= now) {
+          it.remove();
+          size -= group.items.size();
+          expired.add(group);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return expired;
+  }
+
+  public List<Group<T>> pollAll() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      List<Group<T>> all = new ArrayList<Group<T>>(groups.values());
+      groups.clear();
+      size = 0;
+      return all;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of items waiting in the buffer
+   */
+  public int size() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of groups flushed before their window because of the capacity
+   */
+  public long getOverflowCount() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      return overflowCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.notification.NotificationContextFactory;
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.impl.service.QueueMessageImpl;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.mail.Message;
+
+/**
+ * The queue of email messages stored in a local {@link MessageLog} instead
+ * of the JCR. Putting a message is a single append on the log, sending
+ * reads the log from the consumer offset, so there is no query and no node
+ * to remove anymore.
+ *
+ * Each priority lane has its own log, the default lane keeps the directory
+ * of the queue and the other ones use a sub-directory named by the lane.
+ *
+ * The messages still stored in the JCR by {@link QueueMessageImpl} are
+ * moved into the log on start, after the replay of the removal journal.
+ */
+public class LogQueueMessageImpl extends QueueMessageImpl {
+  private static final Log    LOG                  = ExoLogger.getExoLogger(LogQueueMessageImpl.class);
+
+  private static final String SEGMENT_SIZE_SYS_KEY = "conf.notification.service.QueueMessage.segmentSize";
+  private static final String SEGMENT_SIZE_KEY     = "segmentSize";
+  private static final String SYNC_SYS_KEY         = "conf.notification.service.QueueMessage.syncOnAppend";
+  private static final String SYNC_KEY             = "syncOnAppend";
+  private static final String QUEUE_DIRECTORY      = "queue";
+  private static final String MIGRATION_FILE       = "migrated.paths";
+  /** The time to wait for the removal of the sent messages before the migration */
+  private static final long   MIGRATION_TIMEOUT    = 30000;
+
+  private final int           segmentSize;
+
+  private final boolean       syncOnAppend;
+  /** The log of each lane */
+  private Map<String, MessageLog> messageLogs;
+  /** Only one execution of send at a time */
+  private final ReentrantLock sendLock             = new ReentrantLock();
+
+  public LogQueueMessageImpl(InitParams params) {
+    super(params);
+    this.segmentSize = NotificationUtils.getSystemValue(params, SEGMENT_SIZE_SYS_KEY, SEGMENT_SIZE_KEY, 16 * 1024 * 1024);
+    this.syncOnAppend = Boolean.valueOf(NotificationUtils.getSystemValue(params, SYNC_SYS_KEY, SYNC_KEY, "false"));
+  }
+
+  @Override
+  public void start() {
+    try {
+      File directory = new File(getConfiguration().getDataDirectory(), QUEUE_DIRECTORY);
+      Map<String, MessageLog> logs = new LinkedHashMap<String, MessageLog>();
+      for (String lane : getLanes().getLaneNames()) {
+        File laneDirectory = lane.equals(getLanes().getDefaultLane()) ? directory : new File(directory, lane);
+        MessageLog messageLog = new MessageLog(laneDirectory, segmentSize, syncOnAppend);
+        logs.put(lane, messageLog);
+        for (int i = messageLog.countPending(); i > 0; --i) {
+          getSendEmailService().addCurrentCapacity();
+        }
+      }
+      messageLogs = logs;
+    } catch (Exception e) {
+      LOG.error("Failed to open the message log, the messages will be stored in the JCR.", e);
+      messageLogs = null;
+    }
+    // the removal journal is replayed before the migration so that the
+    // messages already sent are not moved into the log
+    super.start();
+    if (messageLogs != null) {
+      migrate();
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (messageLogs != null) {
+      for (MessageLog messageLog : messageLogs.values()) {
+        messageLog.close();
+      }
+    }
+    super.stop();
+  }
+
+  @Override
+  protected void store(MessageInfo message) {
+    if (messageLogs == null) {
+      super.store(message);
+      return;
+    }
+    try {
+      message.setCreatedTime(nextCreatedTime());
+      messageLogs.get(getLanes().getLaneOf(message)).append(getCodec().encode(message));
+    } catch (Exception e) {
+      LOG.warn("Failed to save message.");
+      LOG.debug(e.getMessage() + message.toJSON(), e);
+    }
+  }
+
+  @Override
+  public void send() {
+    if (messageLogs == null) {
+      super.send();
+      return;
+    }
+    if (sendLock.tryLock() == false) {
+      LOG.debug("The messages are being sent by another execution.");
+      return;
+    }
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    try {
+      MessageLanes lanes = getLanes();
+      Map<String, List<MessageLog.Entry>> pages = new HashMap<String, List<MessageLog.Entry>>();
+      Map<String, List<MessageInfo>> candidates = new HashMap<String, List<MessageInfo>>();
+      Map<MessageInfo, MessageLog.Entry> entries = new IdentityHashMap<MessageInfo, MessageLog.Entry>();
+      Map<MessageInfo, String> logLanes = new IdentityHashMap<MessageInfo, String>();
+      for (Map.Entry<String, MessageLog> log : messageLogs.entrySet()) {
+        MessageLog messageLog = log.getValue();
+        List<MessageLog.Entry> page = messageLog.read(messageLog.getConsumerOffset(), getLimit());
+        List<MessageInfo> laneMessages = new ArrayList<MessageInfo>();
+        for (MessageLog.Entry entry : page) {
+          try {
+            MessageInfo messageInfo = getCodec().decodeMessageInfo(entry.getData());
+            laneMessages.add(messageInfo);
+            entries.put(messageInfo, entry);
+            logLanes.put(messageInfo, log.getKey());
+          } catch (Exception e) {
+            LOG.warn("Failed to map message from the log " + log.getKey() + " at offset " + entry.getOffset());
+            LOG.debug(e.getMessage(), e);
+          }
+        }
+        pages.put(log.getKey(), page);
+        candidates.put(log.getKey(), laneMessages);
+      }
+      //
+      MessageLanes.Selection selection = lanes.select(candidates, getLimit());
+      List<MessageInfo> messageInfos = selection.getSelected();
+      if (messageInfos.size() > 0) {
+        LOG.info(messageInfos.size() + " message(s) will be sent.");
+      }
+      List<Message> emails = new ArrayList<Message>();
+      for (MessageInfo messageInfo : messageInfos) {
+        emails.add(messageInfo.makeEmailNotification());
+      }
+      //
+      List<MessageInfo> retried = new ArrayList<MessageInfo>(selection.getDeferred());
+      boolean[] sent = sendMessages(emails);
+      for (int i = 0; i < sent.length; ++i) {
+        MessageInfo messageInfo = messageInfos.get(i);
+        if (sent[i]) {
+          LOG.debug("Message sent to user: " + messageInfo.getTo());
+          getSendEmailService().removeCurrentCapacity();
+          lanes.sent(lanes.getLaneOf(messageInfo), messageInfo.getCreatedTime());
+          if (stats) {
+            NotificationContextFactory.getInstance().getStatisticsCollector().pollQueue(messageInfo.getPluginId());
+          }
+        } else {
+          retried.add(messageInfo);
+        }
+      }
+      // the failed and the deferred messages are appended again to be retried on the next execution
+      for (MessageInfo messageInfo : retried) {
+        messageLogs.get(logLanes.get(messageInfo)).append(entries.get(messageInfo).getData());
+      }
+      for (Map.Entry<String, MessageLog> log : messageLogs.entrySet()) {
+        commit(log.getValue(), pages.get(log.getKey()), candidates.get(log.getKey()), selection.getConsumed(log.getKey()), entries);
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to send message.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  @Override
+  protected long getLaneLag(String lane) {
+    if (messageLogs == null) {
+      return super.getLaneLag(lane);
+    }
+    MessageLog messageLog = messageLogs.get(lane);
+    List<MessageLog.Entry> entries = messageLog.read(messageLog.getConsumerOffset(), 1);
+    if (entries.size() == 0) {
+      return 0;
+    }
+    try {
+      MessageInfo messageInfo = getCodec().decodeMessageInfo(entries.get(0).getData());
+      return Math.max(0, System.currentTimeMillis() - messageInfo.getCreatedTime());
+    } catch (Exception e) {
+      LOG.debug("Failed to get the lag of the queue: " + e.getMessage(), e);
+    }
+    return 0;
+  }
+
+  @Override
+  protected long getLaneDepth(String lane) {
+    if (messageLogs == null) {
+      return super.getLaneDepth(lane);
+    }
+    return messageLogs.get(lane).countPending();
+  }
+
+  @Override
+  public String removeAll() {
+    if (messageLogs != null) {
+      for (MessageLog messageLog : messageLogs.values()) {
+        try {
+          messageLog.clear();
+        } catch (Exception e) {
+          LOG.warn("Failed to clear the message log.");
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+    }
+    return super.removeAll();
+  }
+
+  /**
+   * Moves the consumer offset of the log after the consumed messages, the
+   * broken entries before them are skipped.
+   */
+  private void commit(MessageLog messageLog, List<MessageLog.Entry> page, List<MessageInfo> candidates, int consumed,
+                      Map<MessageInfo, MessageLog.Entry> entries) throws Exception {
+    if (page.isEmpty()) {
+      return;
+    }
+    long offset;
+    if (consumed == candidates.size()) {
+      offset = page.get(page.size() - 1).getNextOffset();
+    } else if (consumed > 0) {
+      offset = entries.get(candidates.get(consumed - 1)).getNextOffset();
+    } else {
+      offset = entries.get(candidates.get(0)).getOffset();
+    }
+    // the broken entries skipped are the committed ones which are not candidates
+    int skipped = 0;
+    for (MessageLog.Entry entry : page) {
+      if (entry.getOffset() < offset) {
+        ++skipped;
+      }
+    }
+    for (MessageInfo candidate : candidates) {
+      if (entries.get(candidate).getOffset() < offset) {
+        --skipped;
+      }
+    }
+    for (int i = 0; i < skipped; ++i) {
+      getSendEmailService().removeCurrentCapacity();
+    }
+    if (offset > messageLog.getConsumerOffset()) {
+      messageLog.commit(offset);
+      messageLog.compact();
+    }
+  }
+
+  /**
+   * Moves the messages stored in the JCR into the log.
+   *
+   * The sent messages waiting in the removal journal are not moved. The
+   * paths of the moved messages are written in a migration file before the
+   * nodes are removed, so a message whose node removal has failed is not
+   * appended again by the next migration.
+   */
+  private void migrate() {
+    if (awaitRemoved(MIGRATION_TIMEOUT) == false) {
+      LOG.info("The sent messages are still being removed, they are not moved into the message log.");
+    }
+    File file = new File(new File(getConfiguration().getDataDirectory(), QUEUE_DIRECTORY), MIGRATION_FILE);
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    int count = 0;
+    boolean done = false;
+    FileOutputStream output = null;
+    try {
+      Set<String> migrated = readMigrated(file);
+      output = new FileOutputStream(file, true);
+      Set<String> skipped = new HashSet<String>();
+      while (true) {
+        NodeIterator iterator = getMessageInfoNodes(sProvider);
+        if (iterator == null || iterator.hasNext() == false) {
+          break;
+        }
+        Session session = null;
+        StringBuilder paths = new StringBuilder();
+        int removed = 0;
+        while (iterator.hasNext()) {
+          Node node = iterator.nextNode();
+          session = node.getSession();
+          String path = node.getPath();
+          if (isRemoving(path)) {
+            // already sent, the node is removed by the journal
+            skipped.add(path);
+            continue;
+          }
+          if (migrated.contains(path) == false) {
+            MessageInfo messageInfo = getMessageInfo(node);
+            if (messageInfo != null) {
+              messageLogs.get(getLanes().getLaneOf(messageInfo)).append(getCodec().encode(messageInfo));
+              getSendEmailService().addCurrentCapacity();
+              ++count;
+            }
+            paths.append(path).append('\n');
+          }
+          node.remove();
+          ++removed;
+        }
+        if (removed == 0) {
+          break;
+        }
+        output.write(paths.toString().getBytes("UTF-8"));
+        output.getFD().sync();
+        session.save();
+      }
+      done = true;
+      if (skipped.size() > 0) {
+        LOG.info(skipped.size() + " sent message(s) left to the removal journal.");
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to move the messages from the JCR to the message log.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      sProvider.close();
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+    }
+    // the removal of all the moved nodes is saved, their paths are not needed anymore
+    if (done && file.delete() == false && file.exists()) {
+      LOG.debug("Failed to delete the migration file " + file.getAbsolutePath());
+    }
+    if (count > 0) {
+      LOG.info(count + " message(s) moved from the JCR to the message log.");
+    }
+  }
+
+  /**
+   * Reads the paths of the messages already moved into the log, a last
+   * record without end of line is ignored.
+   */
+  private static Set<String> readMigrated(File file) throws IOException {
+    Set<String> paths = new HashSet<String>();
+    if (file.exists() == false) {
+      return paths;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      StringBuilder content = new StringBuilder();
+      char[] buffer = new char[8192];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        content.append(buffer, 0, read);
+      }
+      int from = 0;
+      int end;
+      while ((end = content.indexOf("\n", from)) >= 0) {
+        if (end > from) {
+          paths.add(content.substring(from, end));
+        }
+        from = end + 1;
+      }
+    } finally {
+      reader.close();
+    }
+    return paths;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.mail.MailService;
+import org.exoplatform.services.mail.Message;
+
+/**
+ * Sends the email messages with a fixed number of worker threads.
+ *
+ * The messages are split in batches, each batch is sent by one worker on
+ * the SMTP connection it keeps opened between the batches, so the cost of
+ * the connection and of the authentication is paid once per worker and not
+ * once per message.
+ *
+ * When the {@link MailService} does not provide a mail session, the
+ * messages are sent one by one by the {@link MailService}.
+ */
+public class MailSender {
+  private static final Log          LOG             = ExoLogger.getExoLogger(MailSender.class);
+
+  private static final String       CHARSET         = "UTF-8";
+
+  private final MailService         mailService;
+
+  private final int                 batchSize;
+
+  private final ExecutorService     executor;
+
+  /** The connection of each worker */
+  private final ThreadLocal<Transport> transportLocal = new ThreadLocal<Transport>();
+
+  /** All the opened connections, to close them on shutdown */
+  private final Set<Transport>      transports      = Collections.newSetFromMap(new ConcurrentHashMap<Transport, Boolean>());
+
+  private final AtomicInteger       connectionCount = new AtomicInteger();
+
+  public MailSender(MailService mailService, int workers, int batchSize) {
+    this.mailService = mailService;
+    this.batchSize = Math.max(1, batchSize);
+    this.executor = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+      private final AtomicInteger index = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "NotificationMailSender-" + index.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Sends the messages and waits until all of them are processed
+   *
+   * @param messages the messages to send
+   * @return the result of each message, in the same order as the messages
+   */
+  public boolean[] send(final List<Message> messages) {
+    final boolean[] results = new boolean[messages.size()];
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int from = 0; from < messages.size(); from += batchSize) {
+      final int start = from;
+      final int end = Math.min(messages.size(), from + batchSize);
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          sendBatch(messages, start, end, results);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (Exception e) {
+        LOG.warn("Failed to send a batch of messages.");
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+    return results;
+  }
+
+  private void sendBatch(List<Message> messages, int start, int end, boolean[] results) {
+    Session session = mailService.getMailSession();
+    for (int i = start; i < end; ++i) {
+      Message message = messages.get(i);
+      try {
+        if (session == null || hasAttachment(message)) {
+          mailService.sendMessage(message);
+        } else {
+          MimeMessage mimeMessage = createMimeMessage(session, message);
+          getTransport(session).sendMessage(mimeMessage, mimeMessage.getAllRecipients());
+        }
+        results[i] = true;
+      } catch (Exception e) {
+        LOG.warn("Failed to send message to " + message.getTo());
+        LOG.debug(e.getMessage(), e);
+        results[i] = false;
+      }
+    }
+  }
+
+  /**
+   * Gets the connection of the current worker, it is opened again when
+   * it has been closed by the server.
+   */
+  private Transport getTransport(Session session) throws Exception {
+    Transport transport = transportLocal.get();
+    if (transport != null) {
+      if (transport.isConnected()) {
+        return transport;
+      }
+      close(transport);
+    }
+    String protocol = session.getProperty("mail.transport.protocol");
+    transport = session.getTransport(protocol != null ? protocol : "smtp");
+    transport.connect();
+    transportLocal.set(transport);
+    transports.add(transport);
+    connectionCount.incrementAndGet();
+    return transport;
+  }
+
+  private void close(Transport transport) {
+    transports.remove(transport);
+    try {
+      transport.close();
+    } catch (Exception e) {
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  private static boolean hasAttachment(Message message) {
+    return message.getAttachment() != null && message.getAttachment().size() > 0;
+  }
+
+  private static MimeMessage createMimeMessage(Session session, Message message) throws Exception {
+    MimeMessage mimeMessage = new MimeMessage(session);
+    mimeMessage.setFrom(new InternetAddress(message.getFrom()));
+    mimeMessage.setRecipients(javax.mail.Message.RecipientType.TO, InternetAddress.parse(message.getTo()));
+    if (message.getCC() != null && message.getCC().length() > 0) {
+      mimeMessage.setRecipients(javax.mail.Message.RecipientType.CC, InternetAddress.parse(message.getCC()));
+    }
+    if (message.getBCC() != null && message.getBCC().length() > 0) {
+      mimeMessage.setRecipients(javax.mail.Message.RecipientType.BCC, InternetAddress.parse(message.getBCC()));
+    }
+    mimeMessage.setSubject(message.getSubject(), CHARSET);
+    String mimeType = (message.getMimeType() != null) ? message.getMimeType() : "text/plain";
+    mimeMessage.setContent(message.getBody(), mimeType + "; charset=" + CHARSET);
+    mimeMessage.setSentDate(new Date());
+    mimeMessage.saveChanges();
+    return mimeMessage;
+  }
+
+  /**
+   * @return the number of SMTP connections opened since the creation
+   */
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  /**
+   * Stops the workers and closes their connections
+   */
+  public void shutdown() {
+    executor.shutdown();
+    for (Transport transport : new ArrayList<Transport>(transports)) {
+      close(transport);
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+
+/**
+ * The priority lanes of the mail queue and the rate limiting per recipient
+ * domain.
+ *
+ * The messages are put in a lane given by their plugin, for example the
+ * instant notifications, the digests and the bulk mails. Each execution
+ * takes the messages from the lanes by weighted fair dequeue (deficit round
+ * robin), so a storm of digests does not delay the instant notifications.
+ * A message whose recipient domain has exceeded its rate is deferred to a
+ * next execution.
+ */
+public class MessageLanes {
+  private static final String          LIST_SEPARATOR = ",";
+
+  private static final String          VALUE_SEPARATOR = ":";
+
+  /** Above this number of domains, the full buckets are dropped */
+  private static final int             MAX_BUCKETS    = 10000;
+
+  /**
+   * A priority lane with its weight and its statistics
+   */
+  public static class Lane {
+    private final String name;
+
+    private final int    weight;
+
+    /** The number of messages the lane can still give in the current round */
+    private int          deficit;
+
+    private long         sentCount;
+
+    private long         deferredCount;
+
+    private long         totalWait;
+
+    private long         maxWait;
+
+    Lane(String name, int weight) {
+      this.name = name;
+      this.weight = Math.max(1, weight);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
+    public long getSentCount() {
+      return sentCount;
+    }
+
+    public long getDeferredCount() {
+      return deferredCount;
+    }
+
+    /**
+     * @return the average time in milliseconds the sent messages have waited in the queue
+     */
+    public long getAverageWait() {
+      return (sentCount > 0) ? totalWait / sentCount : 0;
+    }
+
+    public long getMaxWait() {
+      return maxWait;
+    }
+  }
+
+  /**
+   * The result of a dequeue
+   */
+  public static class Selection {
+    private final List<MessageInfo>    selected = new ArrayList<MessageInfo>();
+
+    private final List<MessageInfo>    deferred = new ArrayList<MessageInfo>();
+
+    private final Map<String, Integer> consumed = new HashMap<String, Integer>();
+
+    /**
+     * @return the messages to send, in the order of the dequeue
+     */
+    public List<MessageInfo> getSelected() {
+      return selected;
+    }
+
+    /**
+     * @return the messages to put back in the queue because of the rate of their domain
+     */
+    public List<MessageInfo> getDeferred() {
+      return deferred;
+    }
+
+    /**
+     * @param lane
+     * @return the number of candidates of the lane which are selected or deferred,
+     *         they are always the first ones
+     */
+    public int getConsumed(String lane) {
+      Integer count = consumed.get(lane);
+      return (count != null) ? count : 0;
+    }
+  }
+
+  private final Map<String, Lane>        lanes         = new LinkedHashMap<String, Lane>();
+
+  private final Map<String, String>      pluginLanes   = new HashMap<String, String>();
+
+  private final Map<String, Integer>     domainRates   = new HashMap<String, Integer>();
+
+  private final Map<String, TokenBucket> buckets       = new HashMap<String, TokenBucket>();
+
+  private final String                   defaultLane;
+
+  private final int                      defaultDomainRate;
+
+  private final int                      domainBurst;
+
+  /**
+   * @param lanes the lanes with their weight, as "instant:6,digest:3,bulk:1",
+   *          the first one is the default lane
+   * @param pluginLanes the lane of the plugins, as "digest:digest,MyPlugin:bulk"
+   * @param domainRates the rates in messages per minute of the domains, as "gmail.com:600"
+   * @param defaultDomainRate the rate in messages per minute of the other domains, 0 for no limit
+   * @param domainBurst the number of messages which can be sent at once to a domain
+   */
+  public MessageLanes(String lanes, String pluginLanes, String domainRates, int defaultDomainRate, int domainBurst) {
+    for (Map.Entry<String, String> entry : parse(lanes).entrySet()) {
+      this.lanes.put(entry.getKey(), new Lane(entry.getKey(), parseInt(entry.getValue(), 1)));
+    }
+    if (this.lanes.isEmpty()) {
+      this.lanes.put("instant", new Lane("instant", 1));
+    }
+    this.defaultLane = this.lanes.keySet().iterator().next();
+    for (Map.Entry<String, String> entry : parse(pluginLanes).entrySet()) {
+      if (this.lanes.containsKey(entry.getValue())) {
+        this.pluginLanes.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, String> entry : parse(domainRates).entrySet()) {
+      this.domainRates.put(entry.getKey().toLowerCase(), parseInt(entry.getValue(), 0));
+    }
+    this.defaultDomainRate = defaultDomainRate;
+    this.domainBurst = domainBurst;
+  }
+
+  public String getDefaultLane() {
+    return defaultLane;
+  }
+
+  public List<String> getLaneNames() {
+    return new ArrayList<String>(lanes.keySet());
+  }
+
+  public Lane getLane(String name) {
+    return lanes.get(name);
+  }
+
+  /**
+   * Gets the lane of a message from its plugin
+   *
+   * @param message
+   * @return
+   */
+  public String getLaneOf(MessageInfo message) {
+    String lane = pluginLanes.get(message.getPluginId());
+    return (lane != null) ? lane : defaultLane;
+  }
+
+  public synchronized Selection select(Map<String, List<MessageInfo>> candidates, int limit) {
+    return select(candidates, limit, System.currentTimeMillis());
+  }
+
+  /**
+   * Takes at most limit messages from the candidates of each lane by deficit
+   * round robin. The candidates of a lane are taken in order, the ones
+   * exceeding the rate of their domain are deferred, at most limit of them.
+   *
+   * @param candidates the next messages of each lane, in order
+   * @param limit the maximum number of messages to select
+   * @param now the current time in milliseconds
+   * @return
+   */
+  synchronized Selection select(Map<String, List<MessageInfo>> candidates, int limit, long now) {
+    Selection selection = new Selection();
+    Map<String, Integer> consumed = selection.consumed;
+    boolean progress = true;
+    while (progress && selection.selected.size() < limit) {
+      progress = false;
+      for (Lane lane : lanes.values()) {
+        List<MessageInfo> messages = candidates.get(lane.name);
+        int index = selection.getConsumed(lane.name);
+        if (messages == null || index >= messages.size()) {
+          // an empty lane does not keep its credit
+          lane.deficit = 0;
+          continue;
+        }
+        lane.deficit += lane.weight;
+        while (lane.deficit > 0 && index < messages.size() && selection.selected.size() < limit
+            && selection.deferred.size() < limit) {
+          MessageInfo message = messages.get(index++);
+          if (tryAcquire(getDomain(message.getTo()), now)) {
+            selection.selected.add(message);
+            --lane.deficit;
+          } else {
+            selection.deferred.add(message);
+            ++lane.deferredCount;
+          }
+          progress = true;
+        }
+        consumed.put(lane.name, index);
+        if (selection.selected.size() >= limit || selection.deferred.size() >= limit) {
+          return selection;
+        }
+      }
+    }
+    return selection;
+  }
+
+  /**
+   * Records the wait time of a sent message
+   *
+   * @param lane
+   * @param createdTime the time the message has been queued
+   */
+  public synchronized void sent(String lane, long createdTime) {
+    Lane value = lanes.get(lane);
+    if (value == null) {
+      return;
+    }
+    long wait = Math.max(0, System.currentTimeMillis() - createdTime);
+    value.sentCount++;
+    value.totalWait += wait;
+    value.maxWait = Math.max(value.maxWait, wait);
+  }
+
+  /**
+   * Gives the state of the buckets of the limited domains, as
+   * "domain: tokens/capacity"
+   *
+   * @return
+   */
+  public synchronized String getBucketStates() {
+    long now = System.currentTimeMillis();
+    StringBuilder states = new StringBuilder();
+    for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+      TokenBucket bucket = entry.getValue();
+      if (states.length() > 0) {
+        states.append(", ");
+      }
+      states.append(entry.getKey()).append(": ").append((int) bucket.getTokens(now))
+            .append('/').append((int) bucket.getCapacity());
+    }
+    return states.toString();
+  }
+
+  /**
+   * Gets the domain of the first recipient
+   *
+   * @param to the recipients
+   * @return
+   */
+  static String getDomain(String to) {
+    if (to == null) {
+      return "";
+    }
+    int end = to.indexOf(LIST_SEPARATOR);
+    String address = (end > 0) ? to.substring(0, end) : to;
+    int start = address.lastIndexOf('@');
+    if (start < 0) {
+      return "";
+    }
+    String domain = address.substring(start + 1).trim();
+    if (domain.endsWith(">")) {
+      domain = domain.substring(0, domain.length() - 1);
+    }
+    return domain.toLowerCase();
+  }
+
+  private boolean tryAcquire(String domain, long now) {
+    TokenBucket bucket = buckets.get(domain);
+    if (bucket == null) {
+      Integer rate = domainRates.get(domain);
+      int value = (rate != null) ? rate : defaultDomainRate;
+      if (value <= 0) {
+        return true;
+      }
+      if (buckets.size() >= MAX_BUCKETS) {
+        dropFullBuckets(now);
+      }
+      bucket = new TokenBucket(value, domainBurst, now);
+      buckets.put(domain, bucket);
+    }
+    return bucket.tryAcquire(now);
+  }
+
+  private void dropFullBuckets(long now) {
+    Iterator<TokenBucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().isFull(now)) {
+        it.remove();
+      }
+    }
+  }
+
+  private static Map<String, String> parse(String values) {
+    Map<String, String> map = new LinkedHashMap<String, String>();
+    if (values == null) {
+      return map;
+    }
+    for (String value : values.split(LIST_SEPARATOR)) {
+      int index = value.lastIndexOf(VALUE_SEPARATOR);
+      if (index > 0) {
+        map.put(value.substring(0, index).trim(), value.substring(index + 1).trim());
+      } else if (value.trim().length() > 0) {
+        map.put(value.trim(), "");
+      }
+    }
+    return map;
+  }
+
+  private static int parseInt(String value, int defaultValue) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
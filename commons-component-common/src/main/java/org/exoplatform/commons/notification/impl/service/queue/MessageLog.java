@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * A durable, append-only log split in memory-mapped segment files.
+ *
+ * Each record is stored as <code>[length][crc32][payload]</code> and is
+ * addressed by its logical offset: the base offset of its segment (used as
+ * file name) plus its position in the segment. A single consumer offset is
+ * persisted next to the segments, the segments which are fully consumed
+ * are dropped by {@link #compact()}.
+ *
+ * On opening, the segments are scanned to find the last valid record, so a
+ * record partially written before a crash is ignored and overwritten.
+ *
+ * The number of records not consumed is counted once on opening from the
+ * record headers, then kept up to date by the appends and the commits.
+ */
+public class MessageLog {
+  private static final Log    LOG            = ExoLogger.getLogger(MessageLog.class);
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private static final String OFFSET_FILE    = "consumer.offset";
+
+  /** The record header: length + crc32 */
+  private static final int    HEADER_SIZE    = 8;
+
+  private final File          directory;
+
+  private final int           segmentSize;
+
+  private final boolean       syncOnAppend;
+
+  /** The lock protecting all mutators */
+  private final ReentrantLock lock           = new ReentrantLock();
+
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+  private Segment             active;
+
+  private volatile long       consumerOffset;
+
+  /** The number of records after the consumer offset */
+  private volatile int        pending;
+
+  public MessageLog(File directory, int segmentSize, boolean syncOnAppend) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.syncOnAppend = syncOnAppend;
+    open();
+  }
+
+  private void open() throws IOException {
+    if (directory.exists() == false && directory.mkdirs() == false) {
+      throw new IOException("Can not create the directory " + directory.getAbsolutePath());
+    }
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    for (File file : files) {
+      String name = file.getName();
+      long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+      Segment segment = new Segment(file, baseOffset, (int) file.length());
+      segment.recover();
+      segments.put(baseOffset, segment);
+    }
+    consumerOffset = readConsumerOffset();
+    if (segments.isEmpty()) {
+      active = newSegment(consumerOffset, segmentSize);
+    } else {
+      active = segments.lastEntry().getValue();
+    }
+    pending = countRecords(consumerOffset, getEndOffset());
+    LOG.info(String.format("Opened message log %s: %s segment(s), consumer offset %s, end offset %s",
+                           directory.getAbsolutePath(), segments.size(), consumerOffset, getEndOffset()));
+  }
+
+  /**
+   * Appends the data at the end of the log
+   *
+   * @param data the payload
+   * @return the offset of the new record
+   * @throws IOException
+   */
+  public long append(byte[] data) throws IOException {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      int recordSize = HEADER_SIZE + data.length;
+      if (active.remaining() < recordSize) {
+        active.force();
+        active = newSegment(active.getEndOffset(), Math.max(segmentSize, recordSize + HEADER_SIZE));
+      }
+      long offset = active.write(data);
+      if (syncOnAppend) {
+        active.force();
+      }
+      ++pending;
+      return offset;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads at most <code>max</code> records from the given offset
+   *
+   * @param fromOffset the offset of the first record to read
+   * @param max the maximum number of records
+   * @return the records
+   */
+  public List<Entry> read(long fromOffset, int max) {
+    List<Entry> entries = new ArrayList<Entry>();
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      long offset = fromOffset;
+      Map.Entry<Long, Segment> floor = segments.floorEntry(offset);
+      Segment segment = (floor != null) ? floor.getValue() : (segments.isEmpty() ? null : segments.firstEntry().getValue());
+      while (segment != null && entries.size() < max) {
+        if (offset < segment.getBaseOffset()) {
+          offset = segment.getBaseOffset();
+        }
+        Entry entry = segment.read(offset);
+        if (entry == null) {
+          Map.Entry<Long, Segment> next = segments.higherEntry(segment.getBaseOffset());
+          segment = (next != null) ? next.getValue() : null;
+          continue;
+        }
+        entries.add(entry);
+        offset = entry.getNextOffset();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return entries;
+  }
+
+  /**
+   * Moves the consumer offset forward and persists it.
+   *
+   * @param offset the offset of the next record to consume
+   * @throws IOException
+   */
+  public void commit(long offset) throws IOException {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      if (offset <= consumerOffset) {
+        return;
+      }
+      active.force();
+      writeConsumerOffset(offset);
+      pending -= countRecords(consumerOffset, offset);
+      consumerOffset = offset;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops the segments which have been fully consumed.
+   *
+   * @return the number of dropped segments
+   */
+  public int compact() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      int count = 0;
+      Iterator<Segment> it = segments.values().iterator();
+      while (it.hasNext()) {
+        Segment segment = it.next();
+        if (segment == active || segment.getEndOffset() > consumerOffset) {
+          break;
+        }
+        it.remove();
+        segment.delete();
+        ++count;
+      }
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Counts the records which are not consumed yet
+   *
+   * @return the number of records
+   */
+  public int countPending() {
+    return pending;
+  }
+
+  /**
+   * Removes all the records and resets the consumer offset.
+   *
+   * @throws IOException
+   */
+  public void clear() throws IOException {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.delete();
+      }
+      segments.clear();
+      writeConsumerOffset(0);
+      consumerOffset = 0;
+      pending = 0;
+      active = newSegment(0, segmentSize);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void close() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getConsumerOffset() {
+    return consumerOffset;
+  }
+
+  public long getEndOffset() {
+    return active.getEndOffset();
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Counts the records between two offsets by reading their headers only
+   */
+  private int countRecords(long fromOffset, long toOffset) {
+    int count = 0;
+    Map.Entry<Long, Segment> floor = segments.floorEntry(fromOffset);
+    Segment segment = (floor != null) ? floor.getValue() : (segments.isEmpty() ? null : segments.firstEntry().getValue());
+    while (segment != null && segment.getBaseOffset() < toOffset) {
+      count += segment.count(Math.max(fromOffset, segment.getBaseOffset()), toOffset);
+      Map.Entry<Long, Segment> next = segments.higherEntry(segment.getBaseOffset());
+      segment = (next != null) ? next.getValue() : null;
+    }
+    return count;
+  }
+
+  private Segment newSegment(long baseOffset, int size) throws IOException {
+    File file = new File(directory, String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    Segment segment = new Segment(file, baseOffset, size);
+    segments.put(baseOffset, segment);
+    return segment;
+  }
+
+  private long readConsumerOffset() throws IOException {
+    File file = new File(directory, OFFSET_FILE);
+    if (file.exists() == false) {
+      return segments.isEmpty() ? 0 : segments.firstKey();
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.readLong();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes the offset into a temporary file which replaces the current
+   * one, so a crash during the write keeps the previous offset.
+   */
+  private void writeConsumerOffset(long offset) throws IOException {
+    File tmp = new File(directory, OFFSET_FILE + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      raf.setLength(0);
+      raf.writeLong(offset);
+      raf.getFD().sync();
+    } finally {
+      raf.close();
+    }
+    File file = new File(directory, OFFSET_FILE);
+    if (tmp.renameTo(file) == false) {
+      file.delete();
+      if (tmp.renameTo(file) == false) {
+        throw new IOException("Can not write the consumer offset into " + file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * A record of the log
+   */
+  public static class Entry {
+    private final long   offset;
+
+    private final long   nextOffset;
+
+    private final byte[] data;
+
+    public Entry(long offset, long nextOffset, byte[] data) {
+      this.offset = offset;
+      this.nextOffset = nextOffset;
+      this.data = data;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getNextOffset() {
+      return nextOffset;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+
+  private static class Segment {
+    private final File             file;
+
+    private final long             baseOffset;
+
+    private final RandomAccessFile raf;
+
+    private final MappedByteBuffer buffer;
+
+    private int                    position;
+
+    Segment(File file, long baseOffset, int size) throws IOException {
+      this.file = file;
+      this.baseOffset = baseOffset;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    long getBaseOffset() {
+      return baseOffset;
+    }
+
+    long getEndOffset() {
+      return baseOffset + position;
+    }
+
+    int remaining() {
+      return buffer.capacity() - position;
+    }
+
+    /**
+     * Finds the end of the valid records
+     */
+    void recover() {
+      int pos = 0;
+      while (readAt(pos) != null) {
+        pos += HEADER_SIZE + buffer.getInt(pos);
+      }
+      position = pos;
+    }
+
+    /**
+     * Writes the payload and the checksum before the length, the length is
+     * what makes the record visible. The next header is zeroed to mark the
+     * end of the segment.
+     */
+    long write(byte[] data) {
+      int pos = position;
+      buffer.putInt(pos + 4, checksum(data));
+      for (int i = 0; i < data.length; ++i) {
+        buffer.put(pos + HEADER_SIZE + i, data[i]);
+      }
+      buffer.putInt(pos, data.length);
+      position = pos + HEADER_SIZE + data.length;
+      if (remaining() >= 4) {
+        buffer.putInt(position, 0);
+      }
+      return baseOffset + pos;
+    }
+
+    /**
+     * Counts the records starting between the two offsets
+     */
+    int count(long fromOffset, long toOffset) {
+      int count = 0;
+      long pos = fromOffset - baseOffset;
+      long end = Math.min(toOffset - baseOffset, position);
+      while (pos < end) {
+        pos += HEADER_SIZE + buffer.getInt((int) pos);
+        ++count;
+      }
+      return count;
+    }
+
+    Entry read(long offset) {
+      long pos = offset - baseOffset;
+      if (pos < 0 || pos >= position) {
+        return null;
+      }
+      byte[] data = readAt((int) pos);
+      if (data == null) {
+        return null;
+      }
+      return new Entry(offset, offset + HEADER_SIZE + data.length, data);
+    }
+
+    private byte[] readAt(int pos) {
+      if (pos + HEADER_SIZE > buffer.capacity()) {
+        return null;
+      }
+      int length = buffer.getInt(pos);
+      if (length <= 0 || pos + HEADER_SIZE + length > buffer.capacity()) {
+        return null;
+      }
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; ++i) {
+        data[i] = buffer.get(pos + HEADER_SIZE + i);
+      }
+      if (buffer.getInt(pos + 4) != checksum(data)) {
+        return null;
+      }
+      return data;
+    }
+
+    void force() {
+      buffer.force();
+    }
+
+    void close() {
+      force();
+      try {
+        raf.close();
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+
+    void delete() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+      if (file.delete() == false) {
+        LOG.warn("Failed to delete the segment " + file.getAbsolutePath());
+      }
+    }
+
+    private static int checksum(byte[] data) {
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      return (int) crc.getValue();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.TreeMap;
+
+/**
+ * The position of a consumer in the queue, given by the created time and
+ * the id of the last message it has claimed.
+ *
+ * The position only moves forward. A page of messages is claimed before
+ * being sent and released once it is processed, the position to persist
+ * is the start of the oldest page not released yet, so a page which is
+ * still being sent is loaded again after a restart.
+ */
+public class QueueCursor {
+  private static final String           SEPARATOR = ":";
+
+  private long                          createdTime;
+
+  private String                        id;
+
+  private long                          nextTicket;
+
+  /** The position before each claimed page, by ticket */
+  private final TreeMap<Long, String>   claims    = new TreeMap<Long, String>();
+
+  public QueueCursor(long createdTime, String id) {
+    this.createdTime = createdTime;
+    this.id = id;
+  }
+
+  /**
+   * Creates the cursor from a position given by {@link #toString()}
+   *
+   * @param position
+   * @return
+   */
+  public static QueueCursor valueOf(String position) {
+    if (position == null || position.length() == 0) {
+      return new QueueCursor(0, null);
+    }
+    int index = position.indexOf(SEPARATOR);
+    if (index < 0) {
+      return new QueueCursor(Long.parseLong(position), null);
+    }
+    String id = position.substring(index + 1);
+    return new QueueCursor(Long.parseLong(position.substring(0, index)), (id.length() > 0) ? id : null);
+  }
+
+  public synchronized long getCreatedTime() {
+    return createdTime;
+  }
+
+  /**
+   * Checks if the message is after the current position
+   *
+   * @param createdTime the created time of the message
+   * @param id the id of the message
+   * @return
+   */
+  public synchronized boolean isAfter(long createdTime, String id) {
+    if (createdTime != this.createdTime) {
+      return createdTime > this.createdTime;
+    }
+    return this.id == null || (id != null && id.compareTo(this.id) > 0);
+  }
+
+  /**
+   * Moves the cursor to the last message of a loaded page
+   *
+   * @param createdTime the created time of the last message
+   * @param id the id of the last message
+   * @return the ticket to release the page
+   */
+  public synchronized long claim(long createdTime, String id) {
+    long ticket = nextTicket++;
+    claims.put(ticket, toString());
+    if (isAfter(createdTime, id)) {
+      this.createdTime = createdTime;
+      this.id = id;
+    }
+    return ticket;
+  }
+
+  /**
+   * Releases a page which has been processed
+   *
+   * @param ticket the ticket given by {@link #claim(long, String)}
+   * @return the position to persist
+   */
+  public synchronized String release(long ticket) {
+    claims.remove(ticket);
+    return claims.isEmpty() ? toString() : claims.firstEntry().getValue();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return createdTime + SEPARATOR + ((id != null) ? id : "");
+  }
+}
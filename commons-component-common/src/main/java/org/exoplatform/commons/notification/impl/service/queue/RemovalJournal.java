@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Removes the sent messages asynchronously.
+ *
+ * The paths of the sent messages are first written in a journal file
+ * (the tombstones), then a background thread removes them by batches, with
+ * one save per batch. The journal is truncated when all the tombstones are
+ * removed, and rewritten with the pending ones only when it holds too many
+ * removed ones. It is replayed on start, so a message sent but not removed
+ * before a crash is not sent again.
+ *
+ * The journal file has its own lock, so the checks of the pending
+ * tombstones do not wait for the writes and the syncs of the file.
+ */
+public class RemovalJournal implements Runnable {
+  private static final Log     LOG               = ExoLogger.getLogger(RemovalJournal.class);
+
+  private static final String  CHARSET           = "UTF-8";
+
+  /** The number of removed tombstones kept in the journal before it is rewritten */
+  static final int             COMPACT_THRESHOLD = 1000;
+
+  /**
+   * Removes a batch of paths
+   */
+  public interface Remover {
+    void remove(List<String> paths) throws Exception;
+  }
+
+  private final File           file;
+
+  private final int            batchSize;
+
+  private final long           delay;
+
+  private final Remover        remover;
+
+  /** The lock protecting the pending tombstones and the queue */
+  private final ReentrantLock  lock     = new ReentrantLock();
+
+  /** The lock protecting the journal file, taken before the other lock */
+  private final ReentrantLock  fileLock = new ReentrantLock();
+
+  private final Condition      changed  = lock.newCondition();
+
+  /** The tombstones not removed yet */
+  private final Set<String>    pending = new HashSet<String>();
+
+  /** The tombstones waiting to be removed by the background thread */
+  private final LinkedList<String> queue = new LinkedList<String>();
+
+  private FileOutputStream     output;
+
+  /** The number of tombstones written in the journal */
+  private int                  written;
+
+  private Thread               thread;
+
+  private volatile boolean     running;
+
+  public RemovalJournal(File file, int batchSize, long delay, Remover remover) {
+    this.file = file;
+    this.batchSize = Math.max(1, batchSize);
+    this.delay = delay;
+    this.remover = remover;
+  }
+
+  /**
+   * Replays the journal and starts the background thread
+   *
+   * @throws IOException
+   */
+  public void start() throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && parent.exists() == false && parent.mkdirs() == false) {
+      throw new IOException("Can not create the directory " + parent.getAbsolutePath());
+    }
+    List<String> paths = replay();
+    if (paths.size() > 0) {
+      LOG.info(paths.size() + " sent message(s) to remove found in the journal " + file.getAbsolutePath());
+    }
+    pending.addAll(paths);
+    queue.addAll(pending);
+    rewrite(pending);
+    written = pending.size();
+    output = new FileOutputStream(file, true);
+    //
+    running = true;
+    thread = new Thread(this, "NotificationRemovalJournal");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    running = false;
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (thread != null) {
+      try {
+        thread.join(delay + 1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      if (output != null) {
+        output.close();
+      }
+    } catch (IOException e) {
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Marks the messages as sent, they are removed later by the background
+   * thread.
+   *
+   * @param paths the paths of the messages
+   * @throws IOException if the tombstones can not be written
+   */
+  public void mark(Collection<String> paths) throws IOException {
+    if (paths.isEmpty()) {
+      return;
+    }
+    StringBuilder records = new StringBuilder();
+    for (String path : paths) {
+      records.append(path).append('\n');
+    }
+    final ReentrantLock fileLock = this.fileLock;
+    fileLock.lock();
+    try {
+      output.write(records.toString().getBytes(CHARSET));
+      output.getFD().sync();
+      written += paths.size();
+      // added while the file is locked, so a compaction keeps them
+      final ReentrantLock lock = this.lock;
+      lock.lock();
+      try {
+        for (String path : paths) {
+          if (pending.add(path)) {
+            queue.add(path);
+          }
+        }
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  /**
+   * Checks if the message is sent but not removed yet
+   *
+   * @param path the path of the message
+   * @return
+   */
+  public boolean isPending(String path) {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      return pending.contains(path);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getPendingCount() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      return pending.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until all the tombstones are removed
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if all the tombstones are removed
+   * @throws InterruptedException
+   */
+  public boolean awaitRemoved(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      while (pending.isEmpty() == false) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        changed.await(remaining, TimeUnit.MILLISECONDS);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      List<String> batch = nextBatch();
+      if (batch.isEmpty()) {
+        continue;
+      }
+      try {
+        remover.remove(batch);
+        removed(batch);
+      } catch (Exception e) {
+        LOG.warn("Failed to remove " + batch.size() + " sent message(s), they will be removed later.");
+        LOG.debug(e.getMessage(), e);
+        retry(batch);
+      }
+    }
+  }
+
+  /**
+   * Waits for the tombstones and gives at most batchSize of them, the
+   * thread waits for the delay to group the small batches.
+   */
+  private List<String> nextBatch() {
+    List<String> batch = new ArrayList<String>();
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      if (queue.isEmpty()) {
+        changed.await();
+      }
+      if (running && queue.size() > 0 && queue.size() < batchSize) {
+        changed.await(delay, TimeUnit.MILLISECONDS);
+      }
+      while (running && queue.size() > 0 && batch.size() < batchSize) {
+        batch.add(queue.poll());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    } finally {
+      lock.unlock();
+    }
+    return batch;
+  }
+
+  private void removed(List<String> batch) {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      pending.removeAll(batch);
+    } finally {
+      lock.unlock();
+    }
+    compact();
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Truncates the journal when all the tombstones are removed, or rewrites
+   * it with the pending ones when it holds too many removed ones.
+   */
+  private void compact() {
+    final ReentrantLock fileLock = this.fileLock;
+    fileLock.lock();
+    try {
+      List<String> paths = null;
+      final ReentrantLock lock = this.lock;
+      lock.lock();
+      try {
+        int removed = written - pending.size();
+        if ((pending.isEmpty() && written > 0) || removed > Math.max(COMPACT_THRESHOLD, pending.size())) {
+          paths = new ArrayList<String>(pending);
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (paths == null) {
+        return;
+      }
+      if (paths.isEmpty()) {
+        output.getChannel().truncate(0);
+      } else {
+        output.close();
+        try {
+          rewrite(paths);
+        } finally {
+          output = new FileOutputStream(file, true);
+        }
+      }
+      written = paths.size();
+    } catch (IOException e) {
+      LOG.warn("Failed to compact the journal " + file.getAbsolutePath());
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  private void retry(List<String> batch) {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      queue.addAll(0, batch);
+      changed.await(delay, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the pending tombstones in a new journal, without the duplicated
+   * and the partially written records.
+   */
+  private void rewrite(Collection<String> paths) throws IOException {
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+    FileOutputStream os = new FileOutputStream(tmp);
+    try {
+      for (String path : paths) {
+        os.write((path + '\n').getBytes(CHARSET));
+      }
+      os.getFD().sync();
+    } finally {
+      os.close();
+    }
+    if (tmp.renameTo(file) == false) {
+      file.delete();
+      if (tmp.renameTo(file) == false) {
+        throw new IOException("Can not write the journal " + file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Reads the tombstones of the journal, a last record without end of line
+   * has been partially written and is ignored.
+   */
+  private List<String> replay() throws IOException {
+    List<String> paths = new ArrayList<String>();
+    if (file.exists() == false) {
+      return paths;
+    }
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int bytesRead;
+      while ((bytesRead = is.read(buffer)) != -1) {
+        for (int i = 0; i < bytesRead; ++i) {
+          if (buffer[i] == '\n') {
+            if (record.size() > 0) {
+              paths.add(new String(record.toByteArray(), CHARSET));
+            }
+            record.reset();
+          } else {
+            record.write(buffer[i]);
+          }
+        }
+      }
+    } finally {
+      is.close();
+    }
+    return paths;
+  }
+}
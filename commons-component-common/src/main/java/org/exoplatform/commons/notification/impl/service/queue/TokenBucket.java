@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+/**
+ * Limits the rate of the messages sent to a recipient domain. The bucket is
+ * refilled continuously with the rate, up to its capacity which gives the
+ * maximum burst.
+ */
+public class TokenBucket {
+  private final double capacity;
+
+  /** The tokens added per millisecond */
+  private final double rate;
+
+  private double       tokens;
+
+  private long         lastRefill;
+
+  /**
+   * @param ratePerMinute the number of messages allowed per minute
+   * @param capacity the maximum number of messages sent at once
+   * @param now the current time in milliseconds
+   */
+  public TokenBucket(int ratePerMinute, int capacity, long now) {
+    this.rate = ratePerMinute / 60000d;
+    this.capacity = Math.max(1, capacity);
+    this.tokens = this.capacity;
+    this.lastRefill = now;
+  }
+
+  /**
+   * Takes a token if one is available
+   *
+   * @param now the current time in milliseconds
+   * @return false if the message must wait
+   */
+  public synchronized boolean tryAcquire(long now) {
+    refill(now);
+    if (tokens >= 1) {
+      tokens -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized double getTokens(long now) {
+    refill(now);
+    return tokens;
+  }
+
+  /**
+   * Checks if the bucket is full, so it can be dropped without changing the rate
+   *
+   * @param now the current time in milliseconds
+   * @return
+   */
+  public synchronized boolean isFull(long now) {
+    refill(now);
+    return tokens >= capacity;
+  }
+
+  public double getCapacity() {
+    return capacity;
+  }
+
+  private void refill(long now) {
+    if (now > lastRefill) {
+      tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+      lastRefill = now;
+    }
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.shard;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Impact;
+import org.exoplatform.management.annotations.ImpactType;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Splits the digest of a run between the nodes of the cluster.
+ *
+ * The users are spread over a fixed number of shards by the hash of their
+ * id. A node claims a few shards at a time through their leases in the
+ * {@link LeaseStore}, processes the users of its shards only and marks the
+ * shards done. The leases are renewed by a heartbeat while the shards are
+ * processed, the lease of a node which stopped expires and its shard is
+ * taken over by another node. A done shard is never processed again in the
+ * run. The users of a shard whose lease is lost are skipped, so a user can
+ * only receive the digest twice if its node stops during the sending.
+ */
+@Managed
+@ManagedDescription("Sharding of the digest between the nodes of the cluster")
+@NameTemplate({
+  @Property(key = "service", value = "notification"),
+  @Property(key = "view", value = "shards")
+})
+public class DigestShards implements Startable {
+  private static final Log    LOG                    = ExoLogger.getLogger(DigestShards.class);
+
+  private static final String NODE_ID_SYS_KEY        = "conf.notification.service.DigestShards.nodeId";
+  private static final String NODE_ID_KEY            = "nodeId";
+  private static final String SHARD_COUNT_SYS_KEY    = "conf.notification.service.DigestShards.shardCount";
+  private static final String SHARD_COUNT_KEY        = "shardCount";
+  private static final String CLAIM_SIZE_SYS_KEY     = "conf.notification.service.DigestShards.claimSize";
+  private static final String CLAIM_SIZE_KEY         = "claimSize";
+  private static final String LEASE_DURATION_SYS_KEY = "conf.notification.service.DigestShards.leaseDuration";
+  private static final String LEASE_DURATION_KEY     = "leaseDuration";
+  private static final String WAIT_TIME_SYS_KEY      = "conf.notification.service.DigestShards.waitTime";
+  private static final String WAIT_TIME_KEY          = "waitTime";
+
+  /**
+   * Selects the users of the shards held by the node
+   */
+  public interface Filter {
+    boolean accept(String userId);
+  }
+
+  /**
+   * Processes the users of the claimed shards
+   */
+  public interface Work {
+    void process(Filter filter) throws Exception;
+  }
+
+  private final LeaseStore            store;
+
+  private final String                nodeId;
+
+  private final int                   shardCount;
+
+  private final int                   claimSize;
+
+  private final long                  leaseDuration;
+
+  private final long                  waitTime;
+
+  /** The shards whose lease is held by the node */
+  private final Set<Integer>          held            = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  private final AtomicInteger         completedShards = new AtomicInteger();
+
+  private final AtomicInteger         lostShards      = new AtomicInteger();
+
+  private volatile String             run;
+
+  private ScheduledExecutorService    heartbeat;
+
+  public DigestShards(InitParams params, LeaseStore store) {
+    this.store = store;
+    this.nodeId = NotificationUtils.getSystemValue(params, NODE_ID_SYS_KEY, NODE_ID_KEY, ManagementFactory.getRuntimeMXBean().getName());
+    this.shardCount = Math.max(1, NotificationUtils.getSystemValue(params, SHARD_COUNT_SYS_KEY, SHARD_COUNT_KEY, 16));
+    this.claimSize = Math.max(1, NotificationUtils.getSystemValue(params, CLAIM_SIZE_SYS_KEY, CLAIM_SIZE_KEY, 2));
+    this.leaseDuration = Math.max(100, NotificationUtils.getSystemValue(params, LEASE_DURATION_SYS_KEY, LEASE_DURATION_KEY, 60000));
+    this.waitTime = Math.max(0, NotificationUtils.getSystemValue(params, WAIT_TIME_SYS_KEY, WAIT_TIME_KEY, 7200000));
+  }
+
+  @Override
+  public void start() {
+    heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "NotificationDigestLease");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = leaseDuration / 3;
+    heartbeat.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renew();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (heartbeat != null) {
+      heartbeat.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the shard of the user
+   */
+  public static int getShard(String userId, int shardCount) {
+    return (userId.hashCode() & Integer.MAX_VALUE) % shardCount;
+  }
+
+  /**
+   * @return the name of the run of the digest of the day, the same on all the nodes
+   */
+  public static String getRun(boolean weekly, Calendar calendar) {
+    return String.format("%s%04d%02d%02d", weekly ? "weekly" : "daily", calendar.get(Calendar.YEAR),
+                         calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+  }
+
+  /**
+   * Processes the shards of the run claimed by the node until all the
+   * shards of the run are done. The shards held by the other nodes are
+   * waited for, and taken over when their lease expires.
+   *
+   * @param run the name of the run
+   * @param work processes the users of the claimed shards
+   * @return true if all the shards are done, false if the wait time is over
+   * @throws Exception the failure of the work, the claimed shards are left to the other nodes
+   */
+  public boolean execute(String run, Work work) throws Exception {
+    this.run = run;
+    try {
+      store.removeOtherRuns(run);
+    } catch (Exception e) {
+      LOG.warn("Failed to remove the leases of the previous digest runs.");
+      LOG.debug(e.getMessage(), e);
+    }
+    long deadline = System.currentTimeMillis() + waitTime;
+    while (true) {
+      List<Integer> claimed = claim(run);
+      if (claimed.size() > 0) {
+        final Set<Integer> shards = new HashSet<Integer>(claimed);
+        try {
+          work.process(new Filter() {
+            @Override
+            public boolean accept(String userId) {
+              int shard = getShard(userId, shardCount);
+              return shards.contains(shard) && held.contains(shard);
+            }
+          });
+          complete(run, claimed);
+        } finally {
+          held.removeAll(claimed);
+        }
+        deadline = System.currentTimeMillis() + waitTime;
+        continue;
+      }
+      if (isDone(run)) {
+        return true;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        LOG.warn(String.format("The shards of the digest %s are not done after %sms.", run, waitTime));
+        return false;
+      }
+      // the other shards are held by the other nodes
+      Thread.sleep(leaseDuration / 3);
+    }
+  }
+
+  /**
+   * Acquires the leases of at most claimSize shards not done, starting from
+   * a shard depending on the node so the nodes do not compete for the same
+   * shards.
+   */
+  private List<Integer> claim(String run) {
+    List<Integer> claimed = new ArrayList<Integer>();
+    int start = getShard(nodeId, shardCount);
+    for (int i = 0; i < shardCount && claimed.size() < claimSize; ++i) {
+      int shard = (start + i) % shardCount;
+      long now = System.currentTimeMillis();
+      try {
+        if (store.acquire(run, shard, nodeId, now, now + leaseDuration)) {
+          held.add(shard);
+          claimed.add(shard);
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to acquire the lease of the shard " + shard + " of the digest " + run);
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+    if (claimed.size() > 0) {
+      LOG.debug(String.format("Node %s claimed the shards %s of the digest %s", nodeId, claimed, run));
+    }
+    return claimed;
+  }
+
+  private void complete(String run, List<Integer> shards) {
+    for (Integer shard : shards) {
+      try {
+        if (held.contains(shard) && store.complete(run, shard, nodeId)) {
+          completedShards.incrementAndGet();
+        } else {
+          LOG.warn(String.format("The lease of the shard %s of the digest %s has been lost before its end.", shard, run));
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to complete the shard " + shard + " of the digest " + run);
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * @return true if all the shards of the run are done
+   */
+  public boolean isDone(String run) throws Exception {
+    for (int shard = 0; shard < shardCount; ++shard) {
+      LeaseStore.Lease lease = store.get(run, shard);
+      if (lease == null || lease.isDone() == false) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Renews the leases of the shards held by the node, the shards whose
+   * lease can not be renewed are released
+   */
+  void renew() {
+    String run = this.run;
+    for (Integer shard : held) {
+      try {
+        if (store.renew(run, shard, nodeId, System.currentTimeMillis() + leaseDuration) == false) {
+          held.remove(shard);
+          lostShards.incrementAndGet();
+          LOG.warn(String.format("The lease of the shard %s of the digest %s has been taken by another node.", shard, run));
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to renew the lease of the shard " + shard + " of the digest " + run);
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Id of the node in the leases.")
+  @Impact(ImpactType.READ)
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  @Managed
+  @ManagedDescription("Number of shards of a digest.")
+  @Impact(ImpactType.READ)
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  @Managed
+  @ManagedDescription("Maximum number of shards claimed at a time.")
+  @Impact(ImpactType.READ)
+  public int getClaimSize() {
+    return claimSize;
+  }
+
+  @Managed
+  @ManagedDescription("Duration in milliseconds of a lease.")
+  @Impact(ImpactType.READ)
+  public long getLeaseDuration() {
+    return leaseDuration;
+  }
+
+  @Managed
+  @ManagedDescription("Current or last digest run.")
+  @Impact(ImpactType.READ)
+  public String getRun() {
+    return run;
+  }
+
+  @Managed
+  @ManagedDescription("Shards held by the node.")
+  @Impact(ImpactType.READ)
+  public List<Integer> getHeldShards() {
+    return new ArrayList<Integer>(held);
+  }
+
+  @Managed
+  @ManagedDescription("Number of shards completed by the node.")
+  @Impact(ImpactType.READ)
+  public int getCompletedShards() {
+    return completedShards.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of shards whose lease has been lost by the node.")
+  @Impact(ImpactType.READ)
+  public int getLostShards() {
+    return lostShards.get();
+  }
+}
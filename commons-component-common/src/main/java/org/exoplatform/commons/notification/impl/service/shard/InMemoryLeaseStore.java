@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.shard;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the leases in memory, for a single node or for several simulated
+ * nodes sharing the same instance.
+ */
+public class InMemoryLeaseStore implements LeaseStore {
+
+  /** The leases by run and shard */
+  private final Map<String, Lease> leases = new HashMap<String, Lease>();
+
+  @Override
+  public synchronized boolean acquire(String run, int shard, String owner, long now, long expireTime) {
+    Lease lease = leases.get(getKey(run, shard));
+    if (lease != null && lease.isDone()) {
+      return false;
+    }
+    if (lease == null || lease.isExpired(now) || owner.equals(lease.getOwner())) {
+      leases.put(getKey(run, shard), new Lease(shard, owner, expireTime, false));
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized boolean renew(String run, int shard, String owner, long expireTime) {
+    Lease lease = leases.get(getKey(run, shard));
+    if (lease == null || lease.isDone() || owner.equals(lease.getOwner()) == false) {
+      return false;
+    }
+    leases.put(getKey(run, shard), new Lease(shard, owner, expireTime, false));
+    return true;
+  }
+
+  @Override
+  public synchronized boolean complete(String run, int shard, String owner) {
+    Lease lease = leases.get(getKey(run, shard));
+    if (lease == null || lease.isDone() || owner.equals(lease.getOwner()) == false) {
+      return false;
+    }
+    leases.put(getKey(run, shard), new Lease(shard, owner, lease.getExpireTime(), true));
+    return true;
+  }
+
+  @Override
+  public synchronized Lease get(String run, int shard) {
+    return leases.get(getKey(run, shard));
+  }
+
+  @Override
+  public synchronized void removeOtherRuns(String run) {
+    Iterator<String> it = leases.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(run + "/") == false) {
+        it.remove();
+      }
+    }
+  }
+
+  private static String getKey(String run, int shard) {
+    return run + "/" + shard;
+  }
+}
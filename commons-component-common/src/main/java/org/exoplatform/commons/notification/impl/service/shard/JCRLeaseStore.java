@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.shard;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.lock.LockException;
+
+import org.exoplatform.commons.notification.NotificationConfiguration;
+import org.exoplatform.commons.notification.impl.AbstractService;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Stores the leases in the JCR, shared by the nodes of the cluster.
+ *
+ * The lease of a shard is the node "/eXoNotificationLeases/<run>/shard<n>",
+ * it is locked during its update so only one node of the cluster changes it
+ * at a time. A node failing to get the lock, or losing the race of the
+ * creation of the node, does not get the lease.
+ */
+public class JCRLeaseStore extends AbstractService implements LeaseStore {
+  private static final Log    LOG             = ExoLogger.getLogger(JCRLeaseStore.class);
+
+  public static final String  LEASE_HOME_NODE = "eXoNotificationLeases";
+
+  private static final String NT_UNSTRUCTURED = "nt:unstructured";
+
+  private static final String MIX_LOCKABLE    = "mix:lockable";
+
+  private static final String SHARD           = "shard";
+
+  private static final String NTF_OWNER       = "ntf:owner";
+
+  private static final String NTF_EXPIRE_TIME = "ntf:expireTime";
+
+  private static final String NTF_DONE        = "ntf:done";
+
+  /**
+   * Checks the current lease before its update
+   */
+  private interface Condition {
+    boolean accept(Lease lease);
+  }
+
+  private final String workspace;
+
+  public JCRLeaseStore(NotificationConfiguration configuration) {
+    this.workspace = configuration.getWorkspace();
+  }
+
+  @Override
+  public boolean acquire(String run, int shard, final String owner, final long now, long expireTime) throws Exception {
+    return update(run, shard, true, new Condition() {
+      @Override
+      public boolean accept(Lease lease) {
+        return lease == null || lease.isExpired(now) || (lease.isDone() == false && owner.equals(lease.getOwner()));
+      }
+    }, new Lease(shard, owner, expireTime, false));
+  }
+
+  @Override
+  public boolean renew(String run, int shard, String owner, long expireTime) throws Exception {
+    return update(run, shard, false, new HeldBy(owner), new Lease(shard, owner, expireTime, false));
+  }
+
+  @Override
+  public boolean complete(String run, int shard, String owner) throws Exception {
+    return update(run, shard, false, new HeldBy(owner), new Lease(shard, owner, System.currentTimeMillis(), true));
+  }
+
+  @Override
+  public Lease get(String run, int shard) throws Exception {
+    SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
+    try {
+      Node node = getShardNode(getSession(sProvider, workspace), run, shard, false);
+      return (node == null) ? null : toLease(shard, node);
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  @Override
+  public void removeOtherRuns(String run) throws Exception {
+    SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
+    try {
+      Session session = getSession(sProvider, workspace);
+      if (session.getRootNode().hasNode(LEASE_HOME_NODE) == false) {
+        return;
+      }
+      NodeIterator it = session.getRootNode().getNode(LEASE_HOME_NODE).getNodes();
+      boolean removed = false;
+      while (it.hasNext()) {
+        Node node = it.nextNode();
+        if (node.getName().equals(run) == false) {
+          node.remove();
+          removed = true;
+        }
+      }
+      if (removed) {
+        session.save();
+      }
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  /**
+   * Replaces the lease of the shard if the condition accepts the current
+   * one, under the lock of its node
+   */
+  private boolean update(String run, int shard, boolean create, Condition condition, Lease lease) throws Exception {
+    SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
+    try {
+      Session session = getSession(sProvider, workspace);
+      Node node = getShardNode(session, run, shard, create);
+      if (node == null) {
+        return false;
+      }
+      try {
+        node.lock(false, true);
+      } catch (LockException e) {
+        // updated by another node
+        return false;
+      }
+      try {
+        if (condition.accept(toLease(shard, node)) == false) {
+          return false;
+        }
+        node.setProperty(NTF_OWNER, lease.getOwner());
+        node.setProperty(NTF_EXPIRE_TIME, lease.getExpireTime());
+        node.setProperty(NTF_DONE, lease.isDone());
+        session.save();
+        return true;
+      } finally {
+        node.unlock();
+      }
+    } catch (ItemExistsException e) {
+      LOG.debug("The lease of the shard " + shard + " has been created by another node", e);
+      return false;
+    } catch (InvalidItemStateException e) {
+      LOG.debug("The lease of the shard " + shard + " has been changed by another node", e);
+      return false;
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  private Node getShardNode(Session session, String run, int shard, boolean create) throws Exception {
+    Node home = getChild(session.getRootNode(), LEASE_HOME_NODE, create, false);
+    Node runNode = (home == null) ? null : getChild(home, run, create, false);
+    return (runNode == null) ? null : getChild(runNode, SHARD + shard, create, true);
+  }
+
+  private Node getChild(Node parent, String name, boolean create, boolean lockable) throws Exception {
+    if (parent.hasNode(name)) {
+      return parent.getNode(name);
+    }
+    if (create == false) {
+      return null;
+    }
+    Node node = parent.addNode(name, NT_UNSTRUCTURED);
+    if (lockable) {
+      node.addMixin(MIX_LOCKABLE);
+    }
+    parent.getSession().save();
+    return node;
+  }
+
+  private static Lease toLease(int shard, Node node) throws Exception {
+    if (node.hasProperty(NTF_OWNER) == false) {
+      return null;
+    }
+    return new Lease(shard, node.getProperty(NTF_OWNER).getString(),
+                     node.getProperty(NTF_EXPIRE_TIME).getLong(),
+                     node.getProperty(NTF_DONE).getBoolean());
+  }
+
+  private static class HeldBy implements Condition {
+    private final String owner;
+
+    HeldBy(String owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    public boolean accept(Lease lease) {
+      return lease != null && lease.isDone() == false && owner.equals(lease.getOwner());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.shard;
+
+/**
+ * Stores the leases of the shards of a digest run, shared by the nodes of
+ * the cluster. Each method is atomic for a shard.
+ */
+public interface LeaseStore {
+
+  /**
+   * The lease of a shard
+   */
+  public static class Lease {
+    private final int     shard;
+
+    private final String  owner;
+
+    private final long    expireTime;
+
+    private final boolean done;
+
+    public Lease(int shard, String owner, long expireTime, boolean done) {
+      this.shard = shard;
+      this.owner = owner;
+      this.expireTime = expireTime;
+      this.done = done;
+    }
+
+    public int getShard() {
+      return shard;
+    }
+
+    public String getOwner() {
+      return owner;
+    }
+
+    public long getExpireTime() {
+      return expireTime;
+    }
+
+    public boolean isDone() {
+      return done;
+    }
+
+    public boolean isExpired(long now) {
+      return done == false && expireTime <= now;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("shard%s %s %s", shard, owner, done ? "done" : "until " + expireTime);
+    }
+  }
+
+  /**
+   * Acquires the lease of a shard if it is free, expired or already held by
+   * the owner, and not done
+   *
+   * @param run the digest run
+   * @param shard
+   * @param owner the node acquiring the lease
+   * @param now the current time
+   * @param expireTime the end of the lease
+   * @return true if the owner holds the lease
+   * @throws Exception
+   */
+  boolean acquire(String run, int shard, String owner, long now, long expireTime) throws Exception;
+
+  /**
+   * Extends the lease held by the owner
+   *
+   * @return false if the lease is not held by the owner anymore
+   * @throws Exception
+   */
+  boolean renew(String run, int shard, String owner, long expireTime) throws Exception;
+
+  /**
+   * Marks the shard done, it is not acquired anymore in the run
+   *
+   * @return false if the lease is not held by the owner anymore
+   * @throws Exception
+   */
+  boolean complete(String run, int shard, String owner) throws Exception;
+
+  /**
+   * @return the lease of the shard, null if it has never been acquired
+   * @throws Exception
+   */
+  Lease get(String run, int shard) throws Exception;
+
+  /**
+   * Removes the leases of the runs other than the given one
+   *
+   * @param run the current run
+   * @throws Exception
+   */
+  void removeOtherRuns(String run) throws Exception;
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * The digest inboxes of the users, stored in local files.
+ *
+ * The messages are bucketed by frequency and period, each bucket is a
+ * directory holding the messages appended once in a data file, and one
+ * inbox file per recipient with the offsets of its messages. The messages
+ * sent to all the users are referenced by the broadcast file of the bucket.
+ *
+ * Reading the inbox of a user is a sequential read of its files, the
+ * messages consumed by the reader are kept so
+ * {@link #truncate(String, String, long, Set)} removes them after the
+ * digest without losing the other ones nor the messages appended in the
+ * meantime. The broadcast messages are the same for all the users, the
+ * length of the broadcast file read is kept instead.
+ *
+ * The files are on the local disk of the node, the inboxes can not be
+ * shared by the nodes of a cluster.
+ */
+public class DigestInbox {
+  private static final Log       LOG            = ExoLogger.getLogger(DigestInbox.class);
+
+  private static final String    MESSAGES_FILE  = "messages.dat";
+
+  private static final String    INBOX_SUFFIX   = ".inbox";
+
+  private static final String    BROADCAST_FILE = "all.broadcast";
+
+  /** The size of a reference to a message */
+  private static final int       REF_SIZE       = 8;
+
+  /** The size of the length written before a message */
+  private static final int       LENGTH_SIZE    = 4;
+
+  private final File             directory;
+
+  /** The lock protecting all mutators */
+  private final ReentrantLock    lock           = new ReentrantLock();
+
+  /** The length read of each broadcast file since the last truncate */
+  private final ConcurrentMap<File, Long> marks = new ConcurrentHashMap<File, Long>();
+
+  /** The references consumed from each inbox file since the last truncate */
+  private final ConcurrentMap<File, Set<Long>> consumed = new ConcurrentHashMap<File, Set<Long>>();
+
+  /**
+   * Reads the messages of an inbox
+   */
+  public interface Reader {
+    /**
+     * @param message the payload of the message
+     * @return true if the message is consumed, it is removed by the next
+     *         truncate
+     * @throws IOException
+     */
+    boolean read(byte[] message) throws IOException;
+  }
+
+  /**
+   * A message to append with its recipients
+   */
+  public static class Message {
+    private final byte[]             data;
+
+    private final Collection<String> users;
+
+    private final boolean            broadcast;
+
+    /**
+     * @param data the payload of the message
+     * @param users the recipients
+     * @param broadcast whether the message is sent to all the users
+     */
+    public Message(byte[] data, Collection<String> users, boolean broadcast) {
+      this.data = data;
+      this.users = users;
+      this.broadcast = broadcast;
+    }
+  }
+
+  public DigestInbox(File directory) throws IOException {
+    if (directory.exists() == false && directory.mkdirs() == false) {
+      throw new IOException("Can not create the directory " + directory.getAbsolutePath());
+    }
+    this.directory = directory;
+  }
+
+  /**
+   * Appends a message to the inboxes of its recipients
+   *
+   * @param frequency
+   * @param period the period of the bucket
+   * @param message the payload of the message
+   * @param users the recipients
+   * @param broadcast whether the message is sent to all the users
+   * @throws IOException
+   */
+  public void append(String frequency, String period, byte[] message, Collection<String> users, boolean broadcast) throws IOException {
+    append(frequency, period, Collections.singletonList(new Message(message, users, broadcast)));
+  }
+
+  /**
+   * Appends the messages to the inboxes of their recipients, each file of
+   * the bucket is opened once for all the messages
+   *
+   * @param frequency
+   * @param period the period of the bucket
+   * @param messages
+   * @throws IOException
+   */
+  public void append(String frequency, String period, List<Message> messages) throws IOException {
+    if (messages.isEmpty()) {
+      return;
+    }
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      File bucket = new File(new File(directory, frequency), period);
+      if (bucket.exists() == false && bucket.mkdirs() == false) {
+        throw new IOException("Can not create the directory " + bucket.getAbsolutePath());
+      }
+      File file = new File(bucket, MESSAGES_FILE);
+      long offset = file.length();
+      Map<File, List<Long>> refs = new LinkedHashMap<File, List<Long>>();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+      try {
+        for (Message message : messages) {
+          out.writeInt(message.data.length);
+          out.write(message.data);
+          if (message.broadcast) {
+            addRef(refs, new File(bucket, BROADCAST_FILE), offset);
+          }
+          for (String userId : message.users) {
+            addRef(refs, getInboxFile(bucket, userId), offset);
+          }
+          offset += LENGTH_SIZE + message.data.length;
+        }
+      } finally {
+        out.close();
+      }
+      for (Map.Entry<File, List<Long>> entry : refs.entrySet()) {
+        appendRefs(entry.getKey(), entry.getValue());
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the messages of a user and the broadcast ones, in the order of
+   * their append. All the messages are consumed.
+   *
+   * @param frequency
+   * @param userId
+   * @return the payloads of the messages
+   * @throws IOException
+   */
+  public List<byte[]> read(String frequency, String userId) throws IOException {
+    final List<byte[]> messages = new ArrayList<byte[]>();
+    read(frequency, userId, new Reader() {
+      @Override
+      public boolean read(byte[] message) {
+        messages.add(message);
+        return true;
+      }
+    });
+    return messages;
+  }
+
+  /**
+   * Reads the messages of a user and the broadcast ones, in the order of
+   * their append.
+   *
+   * @param frequency
+   * @param userId
+   * @param reader reads the messages and tells the consumed ones
+   * @throws IOException
+   */
+  public void read(String frequency, String userId, Reader reader) throws IOException {
+    for (File bucket : getBuckets(frequency)) {
+      File inboxFile = getInboxFile(bucket, userId);
+      long[] refs = readRefs(inboxFile);
+      // the broadcast messages kept for a user are appended to its inbox
+      Arrays.sort(refs);
+      File broadcastFile = new File(bucket, BROADCAST_FILE);
+      long[] broadcastRefs = readRefs(broadcastFile);
+      if (refs.length == 0 && broadcastRefs.length == 0) {
+        continue;
+      }
+      RandomAccessFile raf = new RandomAccessFile(new File(bucket, MESSAGES_FILE), "r");
+      try {
+        // both lists are sorted by offset
+        int i = 0, j = 0;
+        while (i < refs.length || j < broadcastRefs.length) {
+          long offset;
+          boolean own = (j == broadcastRefs.length || (i < refs.length && refs[i] < broadcastRefs[j]));
+          if (own) {
+            offset = refs[i++];
+          } else {
+            offset = broadcastRefs[j++];
+          }
+          raf.seek(offset);
+          byte[] data = new byte[raf.readInt()];
+          raf.readFully(data);
+          if (reader.read(data) && own) {
+            getConsumed(inboxFile).add(offset);
+          }
+        }
+      } finally {
+        raf.close();
+      }
+      if (broadcastRefs.length > 0) {
+        mark(broadcastFile, (long) broadcastRefs.length * REF_SIZE);
+      }
+    }
+  }
+
+  /**
+   * Removes the messages read from the inboxes of a frequency, and the
+   * buckets of the previous periods which have been read. A bucket with
+   * unread inboxes is kept until its last append is older than the expiry
+   * time. The inboxes of the kept users are not changed, and the broadcast
+   * messages read are moved to them.
+   *
+   * @param frequency
+   * @param currentPeriod the period of the bucket still receiving messages
+   * @param expiryTime the buckets written before this time are removed even
+   *          if they are not read, 0 to keep them
+   * @param keptUsers the users whose digest has failed
+   */
+  public void truncate(String frequency, String currentPeriod, long expiryTime, Set<String> keptUsers) {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      File parent = new File(directory, frequency);
+      Iterator<Map.Entry<File, Long>> it = marks.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<File, Long> mark = it.next();
+        File file = mark.getKey();
+        if (parent.equals(file.getParentFile().getParentFile()) == false) {
+          continue;
+        }
+        it.remove();
+        try {
+          for (String userId : keptUsers) {
+            copyRefs(file, mark.getValue(), getInboxFile(file.getParentFile(), userId));
+          }
+          truncate(file, mark.getValue());
+        } catch (IOException e) {
+          LOG.warn("Failed to truncate the inbox " + file.getAbsolutePath());
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+      Iterator<Map.Entry<File, Set<Long>>> refs = consumed.entrySet().iterator();
+      while (refs.hasNext()) {
+        Map.Entry<File, Set<Long>> entry = refs.next();
+        File file = entry.getKey();
+        if (parent.equals(file.getParentFile().getParentFile()) == false) {
+          continue;
+        }
+        refs.remove();
+        if (isInboxOf(file, keptUsers)) {
+          continue;
+        }
+        try {
+          remove(file, entry.getValue());
+        } catch (IOException e) {
+          LOG.warn("Failed to truncate the inbox " + file.getAbsolutePath());
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+      for (File bucket : getBuckets(frequency)) {
+        if (bucket.getName().equals(currentPeriod)) {
+          continue;
+        }
+        if (isRead(bucket) || new File(bucket, MESSAGES_FILE).lastModified() < expiryTime) {
+          delete(bucket);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param frequency
+   * @return the number of buckets of the frequency
+   */
+  public int getBucketCount(String frequency) {
+    return getBuckets(frequency).size();
+  }
+
+  private List<File> getBuckets(String frequency) {
+    File[] buckets = new File(directory, frequency).listFiles();
+    if (buckets == null) {
+      return new ArrayList<File>();
+    }
+    Arrays.sort(buckets);
+    return Arrays.asList(buckets);
+  }
+
+  private File getInboxFile(File bucket, String userId) {
+    try {
+      return new File(bucket, URLEncoder.encode(userId, "UTF-8") + INBOX_SUFFIX);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void addRef(Map<File, List<Long>> refs, File file, long offset) {
+    List<Long> offsets = refs.get(file);
+    if (offsets == null) {
+      offsets = new ArrayList<Long>();
+      refs.put(file, offsets);
+    }
+    offsets.add(offset);
+  }
+
+  private void appendRefs(File file, List<Long> offsets) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    try {
+      for (Long offset : offsets) {
+        out.writeLong(offset);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private boolean isInboxOf(File file, Set<String> userIds) {
+    for (String userId : userIds) {
+      if (file.getName().equals(getInboxFile(file.getParentFile(), userId).getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Appends the given length of the references of a file to another one
+   */
+  private void copyRefs(File file, long length, File target) throws IOException {
+    byte[] refs = new byte[(int) length];
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      raf.readFully(refs);
+    } finally {
+      raf.close();
+    }
+    FileOutputStream out = new FileOutputStream(target, true);
+    try {
+      out.write(refs);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the references of an inbox
+   */
+  private long[] readRefs(File file) throws IOException {
+    if (file.exists() == false) {
+      return new long[0];
+    }
+    // a reference being appended is not read
+    int count = (int) (file.length() / REF_SIZE);
+    long[] refs = new long[count];
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      for (int i = 0; i < count; ++i) {
+        refs[i] = in.readLong();
+      }
+    } catch (EOFException e) {
+      return new long[0];
+    } finally {
+      in.close();
+    }
+    return refs;
+  }
+
+  private Set<Long> getConsumed(File file) {
+    Set<Long> refs = consumed.get(file);
+    if (refs == null) {
+      Set<Long> newRefs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+      refs = consumed.putIfAbsent(file, newRefs);
+      if (refs == null) {
+        refs = newRefs;
+      }
+    }
+    return refs;
+  }
+
+  /**
+   * Keeps the greatest length read of the file, the broadcast file is read
+   * by all the users.
+   */
+  private void mark(File file, long length) {
+    Long previous = marks.putIfAbsent(file, length);
+    while (previous != null && previous < length && marks.replace(file, previous, length) == false) {
+      previous = marks.putIfAbsent(file, length);
+    }
+  }
+
+  /**
+   * Removes the given length from the head of the file, the file is
+   * deleted when nothing has been appended after it.
+   */
+  private void truncate(File file, long length) throws IOException {
+    if (file.exists() == false) {
+      return;
+    }
+    if (file.length() <= length) {
+      if (file.delete() == false) {
+        throw new IOException("Can not delete the inbox " + file.getAbsolutePath());
+      }
+      return;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      byte[] tail = new byte[(int) (raf.length() - length)];
+      raf.seek(length);
+      raf.readFully(tail);
+      raf.seek(0);
+      raf.write(tail);
+      raf.setLength(tail.length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Removes the given references from the file, the file is deleted when
+   * no reference remains.
+   */
+  private void remove(File file, Set<Long> refs) throws IOException {
+    if (file.exists() == false) {
+      return;
+    }
+    List<Long> offsets = new ArrayList<Long>();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      for (long i = file.length() / REF_SIZE; i > 0; --i) {
+        long offset = in.readLong();
+        if (refs.contains(offset) == false) {
+          offsets.add(offset);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (offsets.isEmpty()) {
+      if (file.delete() == false) {
+        throw new IOException("Can not delete the inbox " + file.getAbsolutePath());
+      }
+      return;
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      for (Long offset : offsets) {
+        out.writeLong(offset);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return true if all the inboxes of the bucket have been read and removed
+   */
+  private boolean isRead(File bucket) {
+    File[] files = bucket.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(INBOX_SUFFIX) || file.getName().equals(BROADCAST_FILE)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private void delete(File bucket) {
+    File[] files = bucket.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    if (bucket.delete() == false) {
+      LOG.warn("Failed to delete the digest bucket " + bucket.getAbsolutePath());
+    }
+  }
+}
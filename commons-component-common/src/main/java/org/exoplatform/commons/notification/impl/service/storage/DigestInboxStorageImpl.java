@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.model.NotificationKey;
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
+import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
+import org.exoplatform.commons.notification.NotificationConfiguration;
+import org.exoplatform.commons.notification.NotificationContextFactory;
+import org.exoplatform.commons.notification.impl.AbstractService;
+import org.exoplatform.commons.notification.impl.codec.NotificationCodec;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Stores the digest notifications in the inboxes of their recipients.
+ *
+ * The message is appended once by {@link #save(NotificationInfo)} and
+ * referenced from the daily and weekly inboxes of its recipients, so the
+ * digest of a user is read without any query and the messages read are
+ * removed after the digest. The messages are written by the
+ * {@link NotificationCodec}, without their recipients. The inboxes are kept
+ * under the "dataDirectory" of the NotificationConfiguration.
+ */
+public class DigestInboxStorageImpl implements NotificationDataStorage {
+  private static final Log                LOG             = ExoLogger.getLogger(DigestInboxStorageImpl.class);
+
+  private static final String             INBOX_DIRECTORY = "inbox";
+
+  /** Sorts the messages as the query of the JCR storage */
+  private static final Comparator<NotificationInfo> ORDER_COMPARATOR = new Comparator<NotificationInfo>() {
+    @Override
+    public int compare(NotificationInfo o1, NotificationInfo o2) {
+      return o1.getOrder() < o2.getOrder() ? -1 : (o1.getOrder() == o2.getOrder() ? 0 : 1);
+    }
+  };
+
+  private final NotificationConfiguration configuration;
+
+  private final DigestInbox               inbox;
+
+  private final NotificationCodec         codec           = new NotificationCodec();
+
+  public DigestInboxStorageImpl(NotificationConfiguration configuration) throws IOException {
+    this.configuration = configuration;
+    this.inbox = new DigestInbox(new File(configuration.getDataDirectory(), INBOX_DIRECTORY));
+  }
+
+  @Override
+  public void save(NotificationInfo message) throws Exception {
+    save(Collections.singletonList(message));
+  }
+
+  @Override
+  public Collection<NotificationInfo> save(Collection<NotificationInfo> messages) throws Exception {
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    List<DigestInbox.Message> daily = new ArrayList<DigestInbox.Message>();
+    List<DigestInbox.Message> weekly = new ArrayList<DigestInbox.Message>();
+    for (NotificationInfo message : messages) {
+      try {
+        byte[] data = codec.encode(toRecord(message));
+        addMessage(daily, message.getSendToDaily(), data);
+        addMessage(weekly, message.getSendToWeekly(), data);
+      } catch (Exception e) {
+        LOG.error("Failed to save the NotificationMessage", e);
+      }
+    }
+    // the inbox appends the messages of a frequency at once, the messages
+    // which fail can be partly appended so they are not given back to be
+    // saved again
+    Calendar now = Calendar.getInstance();
+    try {
+      inbox.append(getName(FREQUENCY.DAILY), getPeriod(FREQUENCY.DAILY, now), daily);
+      inbox.append(getName(FREQUENCY.WEEKLY), getPeriod(FREQUENCY.WEEKLY, now), weekly);
+      //record statistics insert entity
+      if (stats) {
+        for (int i = 0; i < messages.size(); ++i) {
+          NotificationContextFactory.getInstance().getStatisticsCollector().insertEntity(AbstractService.NTF_MESSAGE);
+        }
+      }
+    } catch (Exception e) {
+      LOG.error("Failed to save " + messages.size() + " NotificationMessages", e);
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return the message without its recipients, they are kept by the inboxes
+   */
+  private static NotificationInfo toRecord(NotificationInfo message) {
+    return NotificationInfo.instance()
+                           .setId(message.getId())
+                           .key(message.getKey())
+                           .setFrom(message.getFrom())
+                           .setOrder(message.getOrder())
+                           .setOwnerParameter(message.getOwnerParameter());
+  }
+
+  private static void addMessage(List<DigestInbox.Message> messages, String[] userIds, byte[] data) {
+    List<String> users = new ArrayList<String>();
+    boolean broadcast = false;
+    for (String userId : userIds) {
+      if (NotificationInfo.FOR_ALL_USER.equals(userId)) {
+        broadcast = true;
+      } else if (userId != null && userId.length() > 0) {
+        users.add(userId);
+      }
+    }
+    if (broadcast || users.size() > 0) {
+      messages.add(new DigestInbox.Message(data, users, broadcast));
+    }
+  }
+
+  @Override
+  public Map<NotificationKey, List<NotificationInfo>> getByUser(UserSetting setting) {
+    Map<NotificationKey, List<NotificationInfo>> notificationData = new LinkedHashMap<NotificationKey, List<NotificationInfo>>();
+    final String userId = setting.getUserId();
+    try {
+      FREQUENCY frequency = configuration.isSendWeekly() ? FREQUENCY.WEEKLY : FREQUENCY.DAILY;
+      final List<String> pluginIds = (frequency == FREQUENCY.WEEKLY) ? setting.getWeeklyProviders() : setting.getDailyProviders();
+      final List<NotificationInfo> messages = new ArrayList<NotificationInfo>();
+      // only the messages of the plugins of the user are consumed
+      inbox.read(getName(frequency), userId, new DigestInbox.Reader() {
+        @Override
+        public boolean read(byte[] data) {
+          NotificationInfo message;
+          try {
+            message = codec.decodeNotificationInfo(data);
+          } catch (IOException e) {
+            LOG.warn("Failed to read a NotificationMessage of the user " + userId + ", it is removed.");
+            LOG.debug(e.getMessage(), e);
+            return true;
+          }
+          if (message.getKey() == null || pluginIds.contains(message.getKey().getId()) == false) {
+            return false;
+          }
+          if (userId.equals(message.getFrom()) == false) {
+            messages.add(message.setTo(userId));
+          }
+          return true;
+        }
+      });
+      // the newest first for the same order
+      Collections.reverse(messages);
+      Collections.sort(messages, ORDER_COMPARATOR);
+      for (String pluginId : pluginIds) {
+        List<NotificationInfo> values = new ArrayList<NotificationInfo>();
+        for (NotificationInfo message : messages) {
+          if (pluginId.equals(message.getKey().getId()) && values.contains(message) == false) {
+            values.add(message);
+          }
+        }
+        if (values.size() > 0) {
+          notificationData.put(NotificationKey.key(pluginId), values);
+        }
+      }
+    } catch (Exception e) {
+      LOG.error("Failed to get the NotificationMessage by user: " + userId, e);
+    }
+    return notificationData;
+  }
+
+  @Override
+  public void removeMessageAfterSent() throws Exception {
+    removeMessageAfterSent(Collections.<String> emptySet());
+  }
+
+  @Override
+  public void removeMessageAfterSent(Set<String> keptUsers) throws Exception {
+    FREQUENCY frequency = configuration.isSendWeekly() ? FREQUENCY.WEEKLY : FREQUENCY.DAILY;
+    long expiryTime = 0;
+    if (configuration.getRetentionDays() > 0) {
+      Calendar limit = Calendar.getInstance();
+      limit.add(Calendar.DAY_OF_MONTH, -configuration.getRetentionDays());
+      expiryTime = limit.getTimeInMillis();
+    }
+    inbox.truncate(getName(frequency), getPeriod(frequency, Calendar.getInstance()), expiryTime, keptUsers);
+  }
+
+  private static String getName(FREQUENCY frequency) {
+    return frequency.name().toLowerCase();
+  }
+
+  /**
+   * @return the day for the daily messages, the week for the weekly ones
+   */
+  static String getPeriod(FREQUENCY frequency, Calendar calendar) {
+    if (frequency == FREQUENCY.WEEKLY) {
+      int week = calendar.get(Calendar.WEEK_OF_YEAR);
+      // the last days of December can be in the first week of the next year,
+      // and the first days of January in the last week of the previous one
+      int year = calendar.get(Calendar.YEAR);
+      if (week == 1 && calendar.get(Calendar.MONTH) == Calendar.DECEMBER) {
+        ++year;
+      } else if (week > 50 && calendar.get(Calendar.MONTH) == Calendar.JANUARY) {
+        --year;
+      }
+      return String.format("%04dw%02d", year, week);
+    }
+    return String.format("%04d%02d%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the items given by concurrent callers in batches.
+ *
+ * The first caller becomes the leader: it waits during the window for the
+ * items of the other callers, or until the batch is full, then writes the
+ * whole batch at once. The window is skipped when the last batch had a
+ * single item, so a lone caller is not delayed. The other callers wait for the end of the write of
+ * their batch and get its outcome, one of them becomes the next leader if
+ * items are still pending. Only one batch is written at a time.
+ *
+ * @param <T> the type of the items
+ */
+public class GroupCommit<T> {
+
+  /**
+   * Writes a batch, the batch is durable when it returns
+   */
+  public interface Writer<T> {
+    void write(List<T> items) throws Exception;
+  }
+
+  private static class Request<T> {
+    private final T   item;
+
+    private boolean   done;
+
+    private Exception failure;
+
+    Request(T item) {
+      this.item = item;
+    }
+  }
+
+  private final Writer<T>              writer;
+
+  private final long                   window;
+
+  private final int                    batchSize;
+
+  /** The lock protecting the pending requests and the leadership */
+  private final ReentrantLock          lock     = new ReentrantLock();
+
+  /** Signaled when the batch is full */
+  private final Condition              full     = lock.newCondition();
+
+  /** Signaled when a batch has been written */
+  private final Condition              written  = lock.newCondition();
+
+  private final LinkedList<Request<T>> pending  = new LinkedList<Request<T>>();
+
+  private boolean                      leading;
+
+  /** The size of the last batch, the window is skipped while there is no concurrent caller */
+  private int                          lastBatchSize;
+
+  private final AtomicLong             batchCount = new AtomicLong();
+
+  private final AtomicLong             itemCount  = new AtomicLong();
+
+  /**
+   * @param writer
+   * @param window the time in milliseconds to wait for the other items of a batch
+   * @param batchSize the maximum number of items of a batch
+   */
+  public GroupCommit(Writer<T> writer, long window, int batchSize) {
+    this.writer = writer;
+    this.window = Math.max(0, window);
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Writes the item with the items of the other callers and waits for the
+   * end of the write.
+   *
+   * @param item
+   * @throws Exception the failure of the write of the batch
+   */
+  public void commit(T item) throws Exception {
+    Request<T> request = submit(Collections.singletonList(item)).get(0);
+    if (request.failure != null) {
+      throw request.failure;
+    }
+  }
+
+  /**
+   * Writes the items with the items of the other callers and waits for the
+   * end of their writes. The items can be written in several batches, so
+   * some of them can be written while the batch of the others failed.
+   *
+   * @param items
+   * @return the items whose batch failed, empty if all of them are written
+   */
+  public List<T> commit(Collection<T> items) {
+    List<T> failed = new ArrayList<T>();
+    for (Request<T> request : submit(items)) {
+      if (request.failure != null) {
+        failed.add(request.item);
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Adds the requests of the items to the pending ones and waits until they
+   * are written
+   *
+   * @return the requests of the items, with the failure of their batch
+   */
+  private List<Request<T>> submit(Collection<T> items) {
+    List<Request<T>> requests = new ArrayList<Request<T>>(items.size());
+    for (T item : items) {
+      requests.add(new Request<T>(item));
+    }
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      pending.addAll(requests);
+      if (pending.size() >= batchSize) {
+        full.signal();
+      }
+      while (true) {
+        while (isDone(requests) == false && leading) {
+          written.awaitUninterruptibly();
+        }
+        if (isDone(requests)) {
+          break;
+        }
+        leading = true;
+        // a single caller does not wait for the others
+        long nanos = (lastBatchSize > 1) ? TimeUnit.MILLISECONDS.toNanos(window) : 0;
+        try {
+          while (pending.size() < batchSize && nanos > 0) {
+            nanos = full.awaitNanos(nanos);
+          }
+        } catch (InterruptedException e) {
+          // writes the pending items without waiting
+          Thread.currentThread().interrupt();
+        }
+        List<Request<T>> batch = new ArrayList<Request<T>>();
+        while (batch.size() < batchSize && pending.isEmpty() == false) {
+          batch.add(pending.removeFirst());
+        }
+        lastBatchSize = batch.size();
+        Exception failure = null;
+        lock.unlock();
+        try {
+          write(batch);
+        } catch (Exception e) {
+          failure = e;
+        } catch (Error e) {
+          failure = new Exception(e);
+        } finally {
+          lock.lock();
+        }
+        for (Request<T> done : batch) {
+          done.done = true;
+          done.failure = failure;
+        }
+        leading = false;
+        written.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return requests;
+  }
+
+  private static <T> boolean isDone(List<Request<T>> requests) {
+    for (Request<T> request : requests) {
+      if (request.done == false) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void write(List<Request<T>> batch) throws Exception {
+    List<T> items = new ArrayList<T>(batch.size());
+    for (Request<T> request : batch) {
+      items.add(request.item);
+    }
+    writer.write(items);
+    batchCount.incrementAndGet();
+    itemCount.addAndGet(items.size());
+  }
+
+  /**
+   * @return the number of batches written
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * @return the number of items written
+   */
+  public long getItemCount() {
+    return itemCount.get();
+  }
+}
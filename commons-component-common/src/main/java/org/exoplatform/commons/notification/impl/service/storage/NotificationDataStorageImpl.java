@@ -18,29 +18,36 @@ package org.exoplatform.commons.notification.impl.service.storage;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Session;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
 
 import org.exoplatform.commons.api.notification.model.NotificationInfo;
 import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
+import org.exoplatform.commons.api.settings.SettingService;
+import org.exoplatform.commons.api.settings.SettingValue;
+import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.Scope;
 import org.exoplatform.commons.notification.NotificationConfiguration;
 import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
+import org.exoplatform.commons.notification.impl.NotificationQuery;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
@@ -50,44 +57,187 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
 
   public static final String       REMOVE_ALL       = "removeAll";
 
+  /** The number of parent nodes of the messages written at the same time */
+  private static final int         COMMIT_STRIPES   = 16;
+
+  /** The time in milliseconds to wait for the other messages of a session save */
+  private static final long        COMMIT_WINDOW    = 5;
+
+  /** The maximum number of messages of a session save */
+  private static final int         COMMIT_BATCH     = 50;
+
+  /** The number of messages removed or rewritten by session save after the digest */
+  private static final int         REMOVE_BATCH     = 200;
+
+  /** The setting of the first partition to read by the next digest of a frequency */
+  private static final String      WATERMARK_KEY    = "exo:notificationDigestWatermark.";
+
   private String                    workspace;
 
   private NotificationConfiguration configuration    = null;
   
-  private final ReentrantLock lock = new ReentrantLock();
+  /**
+   * The group commits of the messages, striped by the plugin and day of
+   * their parent node
+   */
+  private final GroupCommit<NotificationInfo>[] commits;
+
+  /** The lock protecting the creation of the parent nodes */
+  private final ReentrantLock parentLock = new ReentrantLock();
+
+  /** The plugin and day of the parent nodes already created */
+  private final Set<String> parents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /** Marks the plugins without partition to read in the queries of the digest */
+  private static final NotificationQuery NO_PARTITION = new NotificationQuery("none", "");
 
-  private Map<String, Set<String>>  removeByCallBack = new ConcurrentHashMap<String, Set<String>>();
+  /** The queries of the digest by plugin, frequency and day */
+  private final ConcurrentMap<String, NotificationQuery> digestQueries = new ConcurrentHashMap<String, NotificationQuery>();
+
+  /** The paths to remove, filled by the digest workers */
+  private ConcurrentMap<String, Set<String>> removeByCallBack = new ConcurrentHashMap<String, Set<String>>();
+
+  /**
+   * The journal of the users to remove from the daily property, by node
+   * path, applied once per node after the digest
+   */
+  private ConcurrentMap<String, Set<String>> removeDailyUsers = new ConcurrentHashMap<String, Set<String>>();
 
   public NotificationDataStorageImpl(NotificationConfiguration configuration) {
     this.workspace = configuration.getWorkspace();
     this.configuration = configuration;
+    GroupCommit.Writer<NotificationInfo> writer = new GroupCommit.Writer<NotificationInfo>() {
+      @Override
+      public void write(List<NotificationInfo> messages) throws Exception {
+        NotificationDataStorageImpl.this.write(messages);
+      }
+    };
+    this.commits = newCommits(writer);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static GroupCommit<NotificationInfo>[] newCommits(GroupCommit.Writer<NotificationInfo> writer) {
+    GroupCommit<NotificationInfo>[] commits = new GroupCommit[COMMIT_STRIPES];
+    for (int i = 0; i < commits.length; ++i) {
+      commits[i] = new GroupCommit<NotificationInfo>(writer, COMMIT_WINDOW, COMMIT_BATCH);
+    }
+    return commits;
   }
 
   @Override
   public void save(NotificationInfo message) throws Exception {
-    SessionProvider sProvider = NotificationSessionManager.getOrCreateSessionProvider();
-    final ReentrantLock localLock = lock;
     try {
-      localLock.lock();
-      Node messageHomeNode = getOrCreateMessageParent(sProvider, workspace, message.getKey().getId());
-      Node messageNode = messageHomeNode.addNode(message.getId(), NTF_MESSAGE);
-      messageNode.setProperty(NTF_FROM, message.getFrom());
-      messageNode.setProperty(NTF_ORDER, message.getOrder());
-      messageNode.setProperty(NTF_PROVIDER_TYPE, message.getKey().getId());
-      messageNode.setProperty(NTF_OWNER_PARAMETER, message.getArrayOwnerParameter());
-      messageNode.setProperty(NTF_SEND_TO_DAILY, message.getSendToDaily());
-      messageNode.setProperty(NTF_SEND_TO_WEEKLY, message.getSendToWeekly());
-      messageHomeNode.getSession().save();
-      
-      //record statistics insert entity
-      if (NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled()) {
-        NotificationContextFactory.getInstance().getStatisticsCollector().insertEntity(NTF_MESSAGE);
-      }
-      
+      commits[getStripe(message)].commit(message);
     } catch (Exception e) {
       LOG.error("Failed to save the NotificationMessage", e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Collection<NotificationInfo> save(Collection<NotificationInfo> messages) throws Exception {
+    // one commit per stripe, the messages of a stripe are written together
+    Map<Integer, List<NotificationInfo>> stripes = new LinkedHashMap<Integer, List<NotificationInfo>>();
+    for (NotificationInfo message : messages) {
+      Integer stripe = getStripe(message);
+      List<NotificationInfo> stripeMessages = stripes.get(stripe);
+      if (stripeMessages == null) {
+        stripeMessages = new ArrayList<NotificationInfo>();
+        stripes.put(stripe, stripeMessages);
+      }
+      stripeMessages.add(message);
+    }
+    // a stripe can be written in several batches, only the messages of
+    // the failed batches are given back
+    List<NotificationInfo> failed = new ArrayList<NotificationInfo>();
+    for (Map.Entry<Integer, List<NotificationInfo>> entry : stripes.entrySet()) {
+      failed.addAll(commits[entry.getKey()].commit(entry.getValue()));
+    }
+    if (failed.size() > 0) {
+      LOG.warn("Failed to save " + failed.size() + " of " + messages.size() + " NotificationMessages");
+    }
+    return failed;
+  }
+
+  /**
+   * @return the index of the commit of the parent node of the message
+   */
+  private int getStripe(NotificationInfo message) {
+    String parent = getParentName(message.getKey().getId());
+    return (parent.hashCode() & Integer.MAX_VALUE) % commits.length;
+  }
+
+  private String getParentName(String pluginId) {
+    Calendar now = Calendar.getInstance();
+    String parent = pluginId + "/" + getDayPartition(now);
+    if (configuration.isHourPartition()) {
+      parent += "/" + HOUR + now.get(Calendar.HOUR_OF_DAY);
+    }
+    return parent;
+  }
+
+  /**
+   * Gets the parent node of the messages of the plugin for the current day,
+   * the creation of the parent nodes is done by one stripe at a time
+   */
+  private Node getMessageParent(SessionProvider sProvider, String pluginId) throws Exception {
+    String parent = getParentName(pluginId);
+    if (parents.contains(parent)) {
+      return getOrCreateMessageParent(sProvider, workspace, pluginId, configuration.isHourPartition());
+    }
+    final ReentrantLock lock = this.parentLock;
+    lock.lock();
+    try {
+      Node node = getOrCreateMessageParent(sProvider, workspace, pluginId, configuration.isHourPartition());
+      if (parents.add(parent)) {
+        // the partitions of the digest queries may have changed
+        digestQueries.clear();
+      }
+      return node;
     } finally {
-      localLock.unlock();
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds the nodes of the messages and saves them with a single session save.
+   * The parent nodes are created and saved before any message is added, so
+   * the messages are saved by the last session save only.
+   * 
+   * @param messages
+   * @throws Exception
+   */
+  private void write(List<NotificationInfo> messages) throws Exception {
+    SessionProvider sProvider = NotificationSessionManager.getOrCreateSessionProvider();
+    Session session = getSession(sProvider, workspace);
+    try {
+      Map<String, Node> parentNodes = new HashMap<String, Node>();
+      for (NotificationInfo message : messages) {
+        String pluginId = message.getKey().getId();
+        if (parentNodes.containsKey(pluginId) == false) {
+          parentNodes.put(pluginId, getMessageParent(sProvider, pluginId));
+        }
+      }
+      for (NotificationInfo message : messages) {
+        Node messageHomeNode = parentNodes.get(message.getKey().getId());
+        Node messageNode = messageHomeNode.addNode(message.getId(), NTF_MESSAGE);
+        messageNode.setProperty(NTF_FROM, message.getFrom());
+        messageNode.setProperty(NTF_ORDER, message.getOrder());
+        messageNode.setProperty(NTF_PROVIDER_TYPE, message.getKey().getId());
+        messageNode.setProperty(NTF_OWNER_PARAMETER, message.getArrayOwnerParameter());
+        messageNode.setProperty(NTF_SEND_TO_DAILY, message.getSendToDaily());
+        messageNode.setProperty(NTF_SEND_TO_WEEKLY, message.getSendToWeekly());
+      }
+      session.save();
+    } catch (Exception e) {
+      session.refresh(false);
+      throw e;
+    }
+    //record statistics insert entity
+    if (NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled()) {
+      for (int i = 0; i < messages.size(); ++i) {
+        NotificationContextFactory.getInstance().getStatisticsCollector().insertEntity(NTF_MESSAGE);
+      }
     }
   }
   
@@ -138,14 +288,17 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
                                                               String pluginId,
                                                               String userId) throws Exception {
     List<NotificationInfo> messages = new ArrayList<NotificationInfo>();
-    Node messageHomeNode = getOrCreateMessageParent(sProvider, workspace, pluginId).getParent();
-    NodeIterator iter = getDailyNodes(messageHomeNode, userId);
-    Session session = messageHomeNode.getSession();
+    Node messageHomeNode = getMessageNodeByPluginId(sProvider, workspace, pluginId);
+    NotificationQuery query = getDigestQuery(messageHomeNode, false);
+    if (query == null) {
+      return messages;
+    }
+    NodeIterator iter = query.execute(messageHomeNode.getSession(), 0, 0, userId);
     while (iter.hasNext()) {
       Node node = iter.nextNode();
       NotificationInfo model = fillModel(node);
       messages.add(model.setTo(userId));
-      removeDaily(session, model, node.getPath());
+      removeDaily(model, node.getPath());
     }
     return messages;
   }
@@ -155,7 +308,11 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
                                                                String userId) throws Exception {
     List<NotificationInfo> messages = new ArrayList<NotificationInfo>();
     Node messageHomeNode = getMessageNodeByPluginId(sProvider, workspace, pluginId);
-    NodeIterator iter = getWeeklyNodes(messageHomeNode, userId);
+    NotificationQuery query = getDigestQuery(messageHomeNode, true);
+    if (query == null) {
+      return messages;
+    }
+    NodeIterator iter = query.execute(messageHomeNode.getSession(), 0, 0, userId);
     while (iter.hasNext()) {
       Node node = iter.nextNode();
       NotificationInfo model = fillModel(node);
@@ -165,55 +322,105 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
     return messages;
   }
 
-  private NodeIterator getWeeklyNodes(Node messageHomeNode, String userId) throws Exception {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    long startTime = 0;
-    if ( stats ) startTime = System.currentTimeMillis();
-    //
-    userId = userId.replace("'", "''");
-    StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(NTF_MESSAGE).append(" WHERE ");
-    strQuery.append(" jcr:path LIKE '").append(messageHomeNode.getPath()).append("/%'");
-    strQuery.append(" AND (").append(NTF_SEND_TO_WEEKLY).append("='").append(userId).append("'");
-    
-    strQuery.append(" OR ").append(NTF_SEND_TO_WEEKLY).append("='").append(NotificationInfo.FOR_ALL_USER)
-            .append("') AND ").append(NTF_FROM).append("<>'").append(userId).append("'");
-    strQuery.append(" order by ").append(NTF_ORDER).append(ASCENDING).append(", exo:dateCreated").append(DESCENDING);
-
-    QueryManager qm = messageHomeNode.getSession().getWorkspace().getQueryManager();
-    Query query = qm.createQuery(strQuery.toString(), Query.SQL);
-    NodeIterator it = query.execute().getNodes();
-    
-    //record statistics insert entity
-    if (stats) {
-      NotificationContextFactory.getInstance().getStatisticsCollector().queryExecuted(strQuery.toString(), it.getSize(), System.currentTimeMillis() - startTime);
+  /**
+   * Makes the path condition on the partitions written since the last
+   * successful digest of the frequency, so the messages of a digest which
+   * has been missed or has failed are read by the next one. All the
+   * partitions are read when no digest has succeeded yet. The partitions by
+   * day of month of the previous versions are still read.
+   * 
+   * @param messageHomeNode the node of the plugin
+   * @param weekly
+   * @return the condition, null if there is no partition to read
+   * @throws Exception
+   */
+  private String getPartitionCondition(Node messageHomeNode, boolean weekly) throws Exception {
+    String legacyName = DAY + Calendar.getInstance().get(Calendar.DAY_OF_MONTH);
+    Calendar since = getWatermark(weekly);
+    StringBuilder condition = new StringBuilder();
+    NodeIterator it = messageHomeNode.getNodes();
+    while (it.hasNext()) {
+      String name = it.nextNode().getName();
+      Calendar day = getPartitionDay(name);
+      boolean read = (day == null) ? (weekly || name.equals(legacyName)) : (since == null || day.before(since) == false);
+      if (read) {
+        condition.append(condition.length() == 0 ? "(" : " OR ");
+        condition.append("jcr:path LIKE '").append(NotificationQuery.escape(messageHomeNode.getPath() + "/" + name)).append("/%'");
+      }
     }
-    return it;
+    return (condition.length() == 0) ? null : condition.append(")").toString();
   }
-  
-  private NodeIterator getDailyNodes(Node messageHomeNode, String userId) throws Exception {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    long startTime = 0;
-    if ( stats ) startTime = System.currentTimeMillis();
-    //
-    userId = userId.replace("'", "''");
-    
-    StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(NTF_MESSAGE).append(" WHERE ");
-    String dayName = String.valueOf(Calendar.getInstance().get(Calendar.DAY_OF_MONTH));
-    strQuery.append(" (jcr:path LIKE '").append(messageHomeNode.getPath()).append("/").append(DAY).append(dayName).append("/%'")
-              .append(" AND NOT jcr:path LIKE '").append(messageHomeNode.getPath()).append("/").append(DAY).append(dayName).append("/%/%')");
-    strQuery.append(" AND (").append(NTF_SEND_TO_DAILY).append("='").append(userId).append("'");
-    strQuery.append(" OR ").append(NTF_SEND_TO_DAILY).append("='").append(NotificationInfo.FOR_ALL_USER)
-              .append("') AND ").append(NTF_FROM).append("<>'").append(userId).append("'");
-    strQuery.append(" order by ").append(NTF_ORDER).append(ASCENDING).append(", exo:dateCreated").append(DESCENDING);
-
-    QueryManager qm = messageHomeNode.getSession().getWorkspace().getQueryManager();
-    Query query = qm.createQuery(strQuery.toString(), Query.SQL);
-    NodeIterator it = query.execute().getNodes();
-    
-    if (stats) {
-      NotificationContextFactory.getInstance().getStatisticsCollector().queryExecuted(strQuery.toString(), it.getSize(), System.currentTimeMillis() - startTime);
-    }
-    return it;
+
+  /**
+   * @param weekly
+   * @return the day of the first partition to read by the digest, null if
+   *         no digest has succeeded
+   */
+  private Calendar getWatermark(boolean weekly) {
+    SettingService settingService = CommonsUtils.getService(SettingService.class);
+    if (settingService == null) {
+      return null;
+    }
+    try {
+      SettingValue<?> value = settingService.get(Context.GLOBAL, Scope.GLOBAL, WATERMARK_KEY + (weekly ? "weekly" : "daily"));
+      return (value != null && value.getValue() != null) ? getPartitionDay(value.getValue().toString()) : null;
+    } catch (Exception e) {
+      LOG.warn("Failed to read the partitions of the last digest.");
+      LOG.debug(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Saves the first partition to read by the next digest, the day before
+   * the current one as the digest can have started on it
+   * 
+   * @param weekly
+   */
+  private void saveWatermark(boolean weekly) {
+    SettingService settingService = CommonsUtils.getService(SettingService.class);
+    if (settingService == null) {
+      return;
+    }
+    Calendar day = Calendar.getInstance();
+    day.add(Calendar.DAY_OF_MONTH, -1);
+    try {
+      settingService.set(Context.GLOBAL, Scope.GLOBAL, WATERMARK_KEY + (weekly ? "weekly" : "daily"), SettingValue.create(getDayPartition(day)));
+    } catch (Exception e) {
+      LOG.warn("Failed to save the partitions of the last digest.");
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Gets the query of the digest of the plugin for the current period, the
+   * partitions are listed once and only the user is bound for each digest
+   * 
+   * @param messageHomeNode the node of the plugin
+   * @param weekly
+   * @return the query, null if there is no partition to read
+   * @throws Exception
+   */
+  private NotificationQuery getDigestQuery(Node messageHomeNode, boolean weekly) throws Exception {
+    String key = messageHomeNode.getPath() + (weekly ? "#weekly#" : "#daily#") + getDayPartition(Calendar.getInstance());
+    NotificationQuery query = digestQueries.get(key);
+    if (query == null) {
+      String partitions = getPartitionCondition(messageHomeNode, weekly);
+      if (partitions == null) {
+        query = NO_PARTITION;
+      } else {
+        String property = weekly ? NTF_SEND_TO_WEEKLY : NTF_SEND_TO_DAILY;
+        StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(NTF_MESSAGE).append(" WHERE ");
+        strQuery.append(partitions);
+        strQuery.append(" AND (").append(property).append("='{userId}'");
+        strQuery.append(" OR ").append(property).append("='").append(NotificationInfo.FOR_ALL_USER)
+                .append("') AND ").append(NTF_FROM).append("<>'{userId}'");
+        strQuery.append(" order by ").append(NTF_ORDER).append(ASCENDING).append(", exo:dateCreated").append(DESCENDING);
+        query = new NotificationQuery(weekly ? "weeklyMessages" : "dailyMessages", strQuery.toString());
+      }
+      digestQueries.put(key, query);
+    }
+    return (query == NO_PARTITION) ? null : query;
   }
 
   private NotificationInfo fillModel(Node node) throws Exception {
@@ -230,50 +437,65 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
     return message;
   }
 
-  private void putRemoveMap(String key, String value) {
-    Set<String> set = removeByCallBack.get(key);
+  private static void putRemoveMap(ConcurrentMap<String, Set<String>> map, String key, String value) {
+    Set<String> set = map.get(key);
     if (set == null) {
-      set = new HashSet<String>();
-      removeByCallBack.put(key, set);
+      set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      Set<String> previous = map.putIfAbsent(key, set);
+      if (previous != null) {
+        set = previous;
+      }
     }
     set.add(value);
   }
 
   /**
    * In the case if the notification plug-in allows to impact all of user.
-   * In the case Daily, the notifiation_send_to_daily will be remove the sendAll value and still keep it for weekly
+   * In the case Daily, the notifiation_send_to_daily will be remove the sendAll value and still keep it for weekly.
+   * The users are removed from the property after the digest, the digest of the users can be built in parallel.
    * 
-   * @param session
    * @param message
    * @param path
    * @throws Exception
    */
-  private void removeDaily(Session session, NotificationInfo message, String path) throws Exception {
+  private void removeDaily(NotificationInfo message, String path) throws Exception {
     if (message.getSendToDaily().length == 1 && message.getSendToWeekly().length == 0) {
-      putRemoveMap(REMOVE_ALL, path);
+      putRemoveMap(removeByCallBack, REMOVE_ALL, path);
     } else {
-      removeProperty(session, path, NTF_SEND_TO_DAILY, message.getTo());
+      putRemoveMap(removeDailyUsers, path, message.getTo());
     }
   }
 
   private void removeWeekly(NotificationInfo message, String path) throws Exception {
     if (message.isSendAll() || message.getSendToWeekly().length == 1) {
-      putRemoveMap(REMOVE_ALL, path);
+      putRemoveMap(removeByCallBack, REMOVE_ALL, path);
     }
   }
 
-  private void removeProperty(Session session, String path, String property, String value) {
+  /**
+   * Removes the users from the daily property of a message, the message is
+   * removed when no user remains for the daily and weekly
+   * 
+   * @return true if the node has been removed
+   */
+  private boolean removeDailyUsers(Session session, String path, Set<String> users) {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
     try {
       Node node = (Node) session.getItem(path);
-      List<String> values = NotificationUtils.valuesToList(node.getProperty(property).getValues());
-      if (values.contains(value)) {
-        values.remove(value);
+      List<String> values = NotificationUtils.valuesToList(node.getProperty(NTF_SEND_TO_DAILY).getValues());
+      if (values.removeAll(users)) {
+        values.remove("");
+        if (values.isEmpty() && isEmpty(NotificationUtils.valuesToList(node.getProperty(NTF_SEND_TO_WEEKLY).getValues()))) {
+          node.remove();
+          if (stats) {
+            NotificationContextFactory.getInstance().getStatisticsCollector().deleteEntity(NTF_MESSAGE);
+          }
+          return true;
+        }
         if (values.isEmpty()) {
           values.add("");
         }
-        node.setProperty(property, values.toArray(new String[values.size()]));
-        node.save();
+        node.setProperty(NTF_SEND_TO_DAILY, values.toArray(new String[values.size()]));
         
         //record entity update here
         if (stats) {
@@ -281,39 +503,185 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
         }
       }
     } catch (Exception e) {
-      LOG.warn(String.format("Failed to remove property %s of value %s on node ", property, value));
+      LOG.warn(String.format("Failed to remove the users %s from the property %s on node %s", users, NTF_SEND_TO_DAILY, path));
     }
+    return false;
+  }
+
+  /**
+   * Keeps a message read by the digest for the given users only, its other
+   * recipients have received it
+   * 
+   * @return true if one of the users is a recipient of the message
+   */
+  private boolean keepUsers(Node node, Set<String> keptUsers) throws Exception {
+    boolean weekly = configuration.isSendWeekly();
+    String property = weekly ? NTF_SEND_TO_WEEKLY : NTF_SEND_TO_DAILY;
+    List<String> values = NotificationUtils.valuesToList(node.getProperty(property).getValues());
+    if (values.contains(NotificationInfo.FOR_ALL_USER)) {
+      values = new ArrayList<String>(keptUsers);
+    } else {
+      values.retainAll(keptUsers);
+    }
+    if (values.isEmpty()) {
+      return false;
+    }
+    node.setProperty(property, values.toArray(new String[values.size()]));
+    node.setProperty(weekly ? NTF_SEND_TO_DAILY : NTF_SEND_TO_WEEKLY, new String[] { "" });
+    if (NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled()) {
+      NotificationContextFactory.getInstance().getStatisticsCollector().updateEntity(NTF_MESSAGE);
+    }
+    return true;
+  }
+
+  private static boolean isEmpty(List<String> values) {
+    for (String value : values) {
+      if (value != null && value.length() > 0) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public void removeMessageAfterSent() throws Exception {
+    removeMessageAfterSent(Collections.<String> emptySet());
+  }
+
+  @Override
+  public void removeMessageAfterSent(Set<String> keptUsers) throws Exception {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
     SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
     try {
       Node notificationHome = getNotificationHomeNode(sProvider, workspace);
       Session session = notificationHome.getSession();
       // remove all
-      Set<String> listPaths = removeByCallBack.get(REMOVE_ALL);
-      removeByCallBack.remove(REMOVE_ALL);
+      Set<String> listPaths = removeByCallBack.remove(REMOVE_ALL);
+      // the users read by the digest, each node is rewritten once
+      boolean saved = true;
+      int count = 0;
+      for (String nodePath : new ArrayList<String>(removeDailyUsers.keySet())) {
+        Set<String> users = removeDailyUsers.remove(nodePath);
+        if (listPaths != null && listPaths.contains(nodePath)) {
+          continue;
+        }
+        users.removeAll(keptUsers);
+        if (users.isEmpty()) {
+          continue;
+        }
+        if (removeDailyUsers(session, nodePath, users)) {
+          LOG.debug("Remove NotificationMessage " + nodePath);
+        }
+        if (++count % REMOVE_BATCH == 0) {
+          saved &= saveBatch(session);
+        }
+      }
+      saved &= saveBatch(session);
       if (listPaths != null && listPaths.size() > 0) {
+        count = 0;
         for (String nodePath : listPaths) {
           try {
-            session.getItem(nodePath).remove();
-            //record entity delete here
-            if (stats) {
-              NotificationContextFactory.getInstance().getStatisticsCollector().deleteEntity(NTF_MESSAGE);
+            Node node = (Node) session.getItem(nodePath);
+            if (keptUsers.isEmpty() == false && keepUsers(node, keptUsers)) {
+              LOG.debug("Keep NotificationMessage " + nodePath + " for the users " + keptUsers);
+            } else {
+              node.remove();
+              //record entity delete here
+              if (stats) {
+                NotificationContextFactory.getInstance().getStatisticsCollector().deleteEntity(NTF_MESSAGE);
+              }
+              
+              LOG.debug("Remove NotificationMessage " + nodePath);
             }
-            
-            LOG.debug("Remove NotificationMessage " + nodePath);
           } catch (Exception e) {
             LOG.warn("Failed to remove node of NotificationMessage " + nodePath + "\n" + e.getMessage());
           }
+          if (++count % REMOVE_BATCH == 0) {
+            saved &= saveBatch(session);
+          }
         }
-        session.save();
+        saved &= saveBatch(session);
+      }
+      if (saved && keptUsers.isEmpty()) {
+        // the next digest reads the partitions from this one
+        saveWatermark(configuration.isSendWeekly());
+      } else if (saved == false) {
+        LOG.warn("The sent NotificationMessages are not all removed, the next digest reads the same partitions.");
       }
+      removeExpiredPartitions(notificationHome);
+      digestQueries.clear();
     } catch (Exception e) {
       LOG.warn("Failed to remove message after sent email notification", e);
     }
   }
 
+  /**
+   * Saves the changes of a batch, the changes are discarded if the save
+   * fails so the next batches are still saved
+   * 
+   * @param session
+   * @return false if the save has failed
+   */
+  private static boolean saveBatch(Session session) {
+    try {
+      session.save();
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Failed to save a batch of removed NotificationMessage: " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      try {
+        session.refresh(false);
+      } catch (Exception re) {
+        LOG.debug(re.getMessage(), re);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Removes the partitions older than the retention with their messages,
+   * each partition is removed by a single operation. A partition which is
+   * still read by the next digest of a frequency is kept. The partitions by
+   * day of month of the previous versions are removed when they are empty.
+   * 
+   * @param notificationHome
+   * @throws Exception
+   */
+  private void removeExpiredPartitions(Node notificationHome) throws Exception {
+    int retentionDays = configuration.getRetentionDays();
+    if (retentionDays <= 0 || notificationHome.hasNode(MESSAGE_HOME_NODE) == false) {
+      return;
+    }
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    Calendar limit = Calendar.getInstance();
+    limit.add(Calendar.DAY_OF_MONTH, -retentionDays);
+    for (boolean weekly : new boolean[] { false, true }) {
+      Calendar watermark = getWatermark(weekly);
+      if (watermark != null && watermark.before(limit)) {
+        limit = watermark;
+      }
+    }
+    int count = 0;
+    NodeIterator plugins = notificationHome.getNode(MESSAGE_HOME_NODE).getNodes();
+    while (plugins.hasNext()) {
+      NodeIterator partitions = plugins.nextNode().getNodes();
+      while (partitions.hasNext()) {
+        Node partition = partitions.nextNode();
+        Calendar day = getPartitionDay(partition.getName());
+        if ((day == null && partition.hasNodes() == false) || (day != null && day.before(limit))) {
+          partition.remove();
+          ++count;
+          if (stats) {
+            NotificationContextFactory.getInstance().getStatisticsCollector().deleteEntity(NTF_MESSAGE_HOME);
+          }
+        }
+      }
+    }
+    if (count > 0) {
+      notificationHome.getSession().save();
+      parents.clear();
+      LOG.debug("Removed " + count + " expired partitions of NotificationMessage");
+    }
+  }
+
 }
@@ -16,14 +16,10 @@
  */
 package org.exoplatform.commons.notification.impl.service.template;
 
-import java.io.StringWriter;
-import java.io.Writer;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.exoplatform.commons.api.notification.NotificationContext;
 import org.exoplatform.commons.api.notification.model.MessageInfo;
@@ -32,7 +28,10 @@ import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
 import org.exoplatform.commons.api.notification.plugin.NotificationPluginUtils;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfile;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfiles;
 import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
+import org.exoplatform.commons.api.notification.service.template.DigestWriter;
 import org.exoplatform.commons.api.notification.service.template.DigestorService;
 import org.exoplatform.commons.api.notification.service.template.TemplateContext;
 import org.exoplatform.commons.notification.NotificationConfiguration;
@@ -51,7 +50,12 @@ import org.exoplatform.webui.utils.TimeConvertUtils;
 public class DigestorServiceImpl implements DigestorService {
   
   private static final Log LOG = ExoLogger.getLogger(DigestorServiceImpl.class);
-  private static final Pattern LI_PATTERN = Pattern.compile("<li([^>]+)>(.+?)</li>");
+
+  /** The maximum capacity in characters of a buffer kept for the next digests of its thread */
+  private static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+  /** The buffer of the digest messages of each thread */
+  private static final ThreadLocal<DigestWriter> WRITERS = new ThreadLocal<DigestWriter>();
 
   public DigestorServiceImpl() {
   }
@@ -74,7 +78,8 @@ public class DigestorServiceImpl implements DigestorService {
       List<String> activeProviders = pluginService.getActivePluginIds();
       NotificationContext nCtx = NotificationContextImpl.cloneInstance();
       
-      Writer writer = new StringWriter();
+      DigestWriter writer = acquireWriter();
+      int totalDigestMsg = 0;
 
       for (String providerId : activeProviders) {
         List<NotificationInfo> messages = notificationData.get(NotificationKey.key(providerId));
@@ -84,29 +89,20 @@ public class DigestorServiceImpl implements DigestorService {
         
         AbstractNotificationPlugin plugin = containerService.getPlugin(NotificationKey.key(providerId));
         nCtx.setNotificationInfos(messages);
+        int from = writer.size();
+        int reported = writer.getReportedItems();
         plugin.buildDigest(nCtx, writer);
+        // the items of the plugins which do not report them are counted
+        int counted = writer.countItems(from);
+        totalDigestMsg += (writer.getReportedItems() > reported) ? writer.getReportedItems() - reported : counted;
       }
 
-      StringBuffer sb = ((StringWriter) writer).getBuffer();
-      if (sb.length() == 0) {
+      if (writer.size() == 0) {
         return null;
       }
 
-      String digestMessageList = sb.toString();
-      int totalDigestMsg = 0;
-      Matcher matcher = LI_PATTERN.matcher(digestMessageList);
-      String li_attribute = null;
-      while (matcher.find()) {
-        totalDigestMsg += 1;
-        li_attribute = matcher.group(1);
-      }
-
       if (totalDigestMsg == 1) {
-        int beginIndex = li_attribute.indexOf("margin");
-        int endIndex = li_attribute.indexOf(";", beginIndex) + 1;
-        String replacedStr = li_attribute.substring(beginIndex, endIndex);
-        digestMessageList = digestMessageList
-            .replace(replacedStr, "margin: 0; background-color: #F9F9F9; padding: 15px 20px;");
+        writer.replaceItemStyle("margin", "margin: 0; background-color: #F9F9F9; padding: 15px 20px;");
       }
 
       DigestInfo digestInfo = new DigestInfo(configuration, userSetting);
@@ -121,7 +117,8 @@ public class DigestorServiceImpl implements DigestorService {
       String subject = TemplateUtils.processSubject(ctx);
       
       ctx.put("FOOTER_LINK", digestInfo.getFooterLink());
-      ctx.put("DIGEST_MESSAGES_LIST", digestMessageList);
+      // the buffer is written in the body without being copied
+      ctx.put("DIGEST_MESSAGES_LIST", writer);
       ctx.put("HAS_ONE_MESSAGE", (totalDigestMsg == 1));
 
       String body = TemplateUtils.processGroovy(ctx);
@@ -131,6 +128,8 @@ public class DigestorServiceImpl implements DigestorService {
     } catch (Exception e) {
       LOG.error("Can not build template of DigestorProviderImpl ", e);
       return null;
+    } finally {
+      releaseWriter();
     }
     
     LOG.debug("End build template of DigestorProviderImpl ... " + (System.currentTimeMillis() - startTime) + " ms");
@@ -143,6 +142,33 @@ public class DigestorServiceImpl implements DigestorService {
     return messageInfo;
   }
   
+  /**
+   * @return the cleared buffer of the thread
+   */
+  private static DigestWriter acquireWriter() {
+    DigestWriter writer = WRITERS.get();
+    if (writer == null) {
+      writer = new DigestWriter();
+      WRITERS.set(writer);
+    }
+    writer.reset();
+    return writer;
+  }
+
+  /**
+   * Clears the buffer of the thread, a buffer grown too much is not kept
+   */
+  private static void releaseWriter() {
+    DigestWriter writer = WRITERS.get();
+    if (writer != null) {
+      if (writer.capacity() > MAX_POOLED_CAPACITY) {
+        WRITERS.remove();
+      } else {
+        writer.reset();
+      }
+    }
+  }
+  
   private class DigestInfo {
     private String  firstName;
 
@@ -165,13 +191,13 @@ public class DigestorServiceImpl implements DigestorService {
     private boolean isWeekly;
 
     public DigestInfo(NotificationConfiguration configuration, UserSetting userSetting) {
-      firstName = NotificationPluginUtils.getFirstName(userSetting.getUserId());
-      sendTo = NotificationPluginUtils.getTo(userSetting.getUserId());
+      RecipientProfile profile = RecipientProfiles.getProfile(userSetting.getUserId());
+      firstName = profile.getFirstName();
+      sendTo = profile.getEmailFormat();
       portalName = NotificationPluginUtils.getBrandingPortalName();
-      String language = NotificationPluginUtils.getLanguage(userSetting.getUserId());
       portalHome = NotificationUtils.getPortalHome(portalName);
       footerLink = NotificationUtils.getProfileUrl(userSetting.getUserId());
-      locale = (language == null || language.length() == 0) ? Locale.ENGLISH : new Locale(language);
+      locale = TemplateUtils.getLocale(profile.getLanguage());
       
       isWeekly = (configuration.isSendWeekly() && userSetting.getWeeklyProviders().size() > 0);
       //
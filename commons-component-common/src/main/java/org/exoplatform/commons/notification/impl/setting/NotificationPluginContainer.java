@@ -31,6 +31,7 @@ import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugi
 import org.exoplatform.commons.api.notification.plugin.config.PluginConfig;
 import org.exoplatform.commons.api.notification.service.setting.PluginContainer;
 import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
+import org.exoplatform.commons.notification.cache.TemplateCaching;
 import org.exoplatform.commons.notification.template.ResourceBundleConfigDeployer;
 import org.exoplatform.commons.notification.template.TemplateUtils;
 import org.exoplatform.commons.utils.CommonsUtils;
@@ -76,6 +77,11 @@ public class NotificationPluginContainer implements PluginContainer, Startable {
     if (ServletContainerFactory.getServletContainer().addWebAppListener(deployer)) {
       deployer.initBundlePath(datas);
     }
+    //
+    TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    if (caching != null) {
+      caching.prewarm();
+    }
   }
 
   @Override
@@ -127,7 +133,8 @@ public class NotificationPluginContainer implements PluginContainer, Startable {
   private void registerPlugin(AbstractNotificationPlugin plugin) {
     try {
       String templatePath = plugin.getPluginConfigs().get(0).getTemplateConfig().getTemplatePath();
-      String template = TemplateUtils.loadGroovyTemplate(templatePath);
+      TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+      String template = (caching != null) ? caching.getTemplate(plugin.getId(), templatePath) : TemplateUtils.loadGroovyTemplate(templatePath);
       plugin.setTemplateEngine(gTemplateEngine.createTemplate(template));
     } catch (Exception e) {
       LOG.debug("Failed to register notification plugin " + plugin.getId());
@@ -138,6 +145,10 @@ public class NotificationPluginContainer implements PluginContainer, Startable {
   @Override
   public boolean remove(NotificationKey key) {
     pluginMap.remove(key);
+    TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    if (caching != null) {
+      caching.invalidate(key.getId());
+    }
     return true;
   }
 
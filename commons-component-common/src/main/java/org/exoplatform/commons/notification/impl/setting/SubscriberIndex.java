@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.setting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
+
+/**
+ * Keeps the users subscribed to each plugin and frequency as bitmaps of
+ * user ordinals.
+ *
+ * A user gets an ordinal the first time its settings are indexed, a bitmap
+ * by plugin and frequency has the bit of the ordinal of the subscribed
+ * users. The users which are not active are kept in the bitmaps but never
+ * returned. The snapshot stores the bitmaps as deltas between the set bits,
+ * deflated, with the identifier of the data it has been built from and the
+ * time when it has been written.
+ */
+public class SubscriberIndex {
+
+  private static final int                   MAGIC       = 0x4E534958;
+
+  private static final int                   VERSION     = 2;
+
+  /** The identifier of the data indexed */
+  private final String                       owner;
+
+  /** The time when the snapshot has been written, 0 if it is not read from a snapshot */
+  private long                               savedTime;
+
+  private final ReentrantReadWriteLock       lock        = new ReentrantReadWriteLock();
+
+  /** The ordinal of each user */
+  private final Map<String, Integer>         ordinals    = new HashMap<String, Integer>();
+
+  /** The user of each ordinal */
+  private final List<String>                 userIds     = new ArrayList<String>();
+
+  /** The time of the last update of each ordinal */
+  private long[]                             lastUpdates = new long[64];
+
+  /** The users having settings */
+  private final BitSet                       indexed     = new BitSet();
+
+  private final BitSet                       active      = new BitSet();
+
+  /** The subscribed users by frequency and plugin */
+  private final Map<String, BitSet>          bitmaps     = new HashMap<String, BitSet>();
+
+  /**
+   * @param owner the identifier of the data indexed, a snapshot is only read
+   *          for the same owner
+   */
+  public SubscriberIndex(String owner) {
+    this.owner = (owner == null) ? "" : owner;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * @return the time when the snapshot read has been written, 0 if the index
+   *         is not read from a snapshot
+   */
+  public long getSavedTime() {
+    return savedTime;
+  }
+
+  /**
+   * Replaces the subscriptions of a user by the ones of its settings
+   *
+   * @param setting
+   */
+  public void update(UserSetting setting) {
+    lock.writeLock().lock();
+    try {
+      int ordinal = getOrCreateOrdinal(setting.getUserId());
+      clear(ordinal);
+      indexed.set(ordinal);
+      if (setting.isActive()) {
+        active.set(ordinal);
+      }
+      set(ordinal, FREQUENCY.INSTANTLY, setting.getInstantlyProviders());
+      set(ordinal, FREQUENCY.DAILY, setting.getDailyProviders());
+      set(ordinal, FREQUENCY.WEEKLY, setting.getWeeklyProviders());
+      Calendar lastUpdateTime = setting.getLastUpdateTime();
+      lastUpdates[ordinal] = (lastUpdateTime != null) ? lastUpdateTime.getTimeInMillis() : System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes the subscriptions of a user, its ordinal is kept
+   *
+   * @param userId
+   */
+  public void remove(String userId) {
+    lock.writeLock().lock();
+    try {
+      Integer ordinal = ordinals.get(userId);
+      if (ordinal != null) {
+        clear(ordinal);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param userId
+   * @return true if the user has settings in the index
+   */
+  public boolean contains(String userId) {
+    lock.readLock().lock();
+    try {
+      Integer ordinal = ordinals.get(userId);
+      return ordinal != null && indexed.get(ordinal);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the active users subscribed to a plugin for a frequency
+   *
+   * @param pluginId
+   * @param frequency
+   * @return the user ids, in the order of their ordinal
+   */
+  public List<String> getSubscribers(String pluginId, FREQUENCY frequency) {
+    lock.readLock().lock();
+    try {
+      List<String> subscribers = new ArrayList<String>();
+      BitSet bitmap = bitmaps.get(getKey(frequency, pluginId));
+      if (bitmap == null) {
+        return subscribers;
+      }
+      BitSet users = (BitSet) bitmap.clone();
+      users.and(active);
+      for (int i = users.nextSetBit(0); i >= 0; i = users.nextSetBit(i + 1)) {
+        subscribers.add(userIds.get(i));
+      }
+      return subscribers;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the settings of the active users which have a daily, or weekly,
+   * subscription
+   *
+   * @param weekly true if the weekly subscriptions are taken
+   * @param offset
+   * @param limit 0 for all of them
+   * @return the daily and weekly providers and the last update time of the users
+   */
+  public List<UserSetting> getDigestUsers(boolean weekly, int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      List<UserSetting> settings = new ArrayList<UserSetting>();
+      BitSet users = getDigestBitmap(weekly);
+      int index = 0;
+      for (int i = users.nextSetBit(0); i >= 0; i = users.nextSetBit(i + 1)) {
+        if (index++ < offset) {
+          continue;
+        }
+        if (limit > 0 && settings.size() >= limit) {
+          break;
+        }
+        settings.add(getSetting(i));
+      }
+      return settings;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param weekly true if the weekly subscriptions are taken
+   * @return the number of active users which have a daily, or weekly, subscription
+   */
+  public int getNumberOfDigestUsers(boolean weekly) {
+    lock.readLock().lock();
+    try {
+      return getDigestBitmap(weekly).cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of users having settings
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return indexed.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the index in a file, the ordinals of the users without
+   * settings are not kept.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    lock.readLock().lock();
+    try {
+      File directory = file.getParentFile();
+      if (directory != null && directory.exists() == false && directory.mkdirs() == false) {
+        throw new IOException("Can not create the directory " + directory);
+      }
+      // the ordinals are compacted to the users having settings
+      int[] newOrdinals = new int[userIds.size()];
+      int count = 0;
+      for (int i = 0; i < newOrdinals.length; ++i) {
+        newOrdinals[i] = indexed.get(i) ? count++ : -1;
+      }
+      DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+      try {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(owner);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(count);
+        for (int i = indexed.nextSetBit(0); i >= 0; i = indexed.nextSetBit(i + 1)) {
+          out.writeUTF(userIds.get(i));
+          out.writeLong(lastUpdates[i]);
+        }
+        writeBitmap(out, active, newOrdinals);
+        out.writeInt(bitmaps.size());
+        for (Map.Entry<String, BitSet> entry : bitmaps.entrySet()) {
+          out.writeUTF(entry.getKey());
+          writeBitmap(out, entry.getValue(), newOrdinals);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads an index written by {@link #save(File)}
+   *
+   * @param file
+   * @param owner the identifier of the data indexed
+   * @return the index
+   * @throws IOException if the file is not a valid index of the owner
+   */
+  public static SubscriberIndex load(File file, String owner) throws IOException {
+    SubscriberIndex index = new SubscriberIndex(owner);
+    DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file))));
+    try {
+      if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+        throw new IOException("Invalid subscriber index " + file);
+      }
+      if (index.owner.equals(in.readUTF()) == false) {
+        throw new IOException("The subscriber index " + file + " has been built from other data");
+      }
+      index.savedTime = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        int ordinal = index.getOrCreateOrdinal(in.readUTF());
+        index.lastUpdates[ordinal] = in.readLong();
+        index.indexed.set(ordinal);
+      }
+      index.active.or(readBitmap(in));
+      int size = in.readInt();
+      for (int i = 0; i < size; ++i) {
+        index.bitmaps.put(in.readUTF(), readBitmap(in));
+      }
+    } finally {
+      in.close();
+    }
+    return index;
+  }
+
+  private int getOrCreateOrdinal(String userId) {
+    Integer ordinal = ordinals.get(userId);
+    if (ordinal == null) {
+      ordinal = userIds.size();
+      ordinals.put(userId, ordinal);
+      userIds.add(userId);
+      if (ordinal >= lastUpdates.length) {
+        long[] newLastUpdates = new long[lastUpdates.length * 2];
+        System.arraycopy(lastUpdates, 0, newLastUpdates, 0, lastUpdates.length);
+        lastUpdates = newLastUpdates;
+      }
+    }
+    return ordinal;
+  }
+
+  private void clear(int ordinal) {
+    indexed.clear(ordinal);
+    active.clear(ordinal);
+    for (BitSet bitmap : bitmaps.values()) {
+      bitmap.clear(ordinal);
+    }
+  }
+
+  private void set(int ordinal, FREQUENCY frequency, List<String> pluginIds) {
+    if (pluginIds == null) {
+      return;
+    }
+    for (String pluginId : pluginIds) {
+      if (pluginId == null || pluginId.trim().length() == 0) {
+        continue;
+      }
+      String key = getKey(frequency, pluginId.trim());
+      BitSet bitmap = bitmaps.get(key);
+      if (bitmap == null) {
+        bitmap = new BitSet();
+        bitmaps.put(key, bitmap);
+      }
+      bitmap.set(ordinal);
+    }
+  }
+
+  private BitSet getDigestBitmap(boolean weekly) {
+    BitSet users = new BitSet();
+    String daily = getKey(FREQUENCY.DAILY, "");
+    String weeklyKey = getKey(FREQUENCY.WEEKLY, "");
+    for (Map.Entry<String, BitSet> entry : bitmaps.entrySet()) {
+      if (entry.getKey().startsWith(daily) || (weekly && entry.getKey().startsWith(weeklyKey))) {
+        users.or(entry.getValue());
+      }
+    }
+    users.and(active);
+    return users;
+  }
+
+  private UserSetting getSetting(int ordinal) {
+    List<String> daily = new ArrayList<String>();
+    List<String> weekly = new ArrayList<String>();
+    String dailyKey = getKey(FREQUENCY.DAILY, "");
+    String weeklyKey = getKey(FREQUENCY.WEEKLY, "");
+    for (Map.Entry<String, BitSet> entry : bitmaps.entrySet()) {
+      if (entry.getValue().get(ordinal)) {
+        String key = entry.getKey();
+        if (key.startsWith(dailyKey)) {
+          daily.add(key.substring(dailyKey.length()));
+        } else if (key.startsWith(weeklyKey)) {
+          weekly.add(key.substring(weeklyKey.length()));
+        }
+      }
+    }
+    Calendar lastUpdateTime = Calendar.getInstance();
+    lastUpdateTime.setTimeInMillis(lastUpdates[ordinal]);
+    UserSetting setting = UserSetting.getInstance();
+    setting.setUserId(userIds.get(ordinal));
+    setting.setActive(true);
+    setting.setDailyProviders(daily);
+    setting.setWeeklyProviders(weekly);
+    setting.setLastUpdateTime(lastUpdateTime);
+    return setting;
+  }
+
+  private static String getKey(FREQUENCY frequency, String pluginId) {
+    return frequency.name() + ":" + pluginId;
+  }
+
+  /**
+   * Writes the set bits as deltas from the previous one, the bits without a
+   * new ordinal are skipped
+   */
+  private static void writeBitmap(DataOutputStream out, BitSet bitmap, int[] newOrdinals) throws IOException {
+    List<Integer> bits = new ArrayList<Integer>();
+    for (int i = bitmap.nextSetBit(0); i >= 0 && i < newOrdinals.length; i = bitmap.nextSetBit(i + 1)) {
+      if (newOrdinals[i] >= 0) {
+        bits.add(newOrdinals[i]);
+      }
+    }
+    writeVarInt(out, bits.size());
+    int previous = -1;
+    for (int bit : bits) {
+      writeVarInt(out, bit - previous);
+      previous = bit;
+    }
+  }
+
+  private static BitSet readBitmap(DataInputStream in) throws IOException {
+    BitSet bitmap = new BitSet();
+    int size = readVarInt(in);
+    int bit = -1;
+    for (int i = 0; i < size; ++i) {
+      bit += readVarInt(in);
+      bitmap.set(bit);
+    }
+    return bitmap;
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
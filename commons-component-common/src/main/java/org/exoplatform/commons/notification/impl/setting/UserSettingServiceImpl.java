@@ -16,10 +16,20 @@
  */
 package org.exoplatform.commons.notification.impl.setting;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.Node;
@@ -28,29 +38,86 @@ import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 
+import org.exoplatform.commons.api.event.EventManager;
 import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
 import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
+import org.exoplatform.commons.api.settings.SettingListener;
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.EventType;
 import org.exoplatform.commons.api.settings.data.Scope;
+import org.exoplatform.commons.api.settings.data.SettingContext;
+import org.exoplatform.commons.api.settings.data.SettingData;
+import org.exoplatform.commons.api.settings.data.SettingKey;
+import org.exoplatform.commons.api.settings.data.SettingScope;
 import org.exoplatform.commons.notification.NotificationConfiguration;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
+import org.exoplatform.commons.notification.impl.NotificationQuery;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
 import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.commons.utils.ISO8601;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
-import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.listener.Event;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.organization.User;
 import org.exoplatform.services.organization.impl.UserImpl;
+import org.picocontainer.Startable;
 
-public class UserSettingServiceImpl extends AbstractService implements UserSettingService {
+public class UserSettingServiceImpl extends AbstractService implements UserSettingService, Startable {
   private static final Log        LOG                = ExoLogger.getLogger(UserSettingServiceImpl.class);
 
   /** Setting Scope on Common Setting **/
   private static final Scope      NOTIFICATION_SCOPE = Scope.GLOBAL;
+
+  /** The setting keys of a user */
+  private static final List<String> SETTING_KEYS     = Arrays.asList(EXO_IS_ACTIVE, EXO_INSTANTLY, EXO_DAILY, EXO_WEEKLY);
+
+  /** The delay in milliseconds before the users using the default settings are written */
+  private static final long       WRITE_DELAY        = 2000;
+
+  /** The number of pending users which wakes up the writer before the delay */
+  private static final int        WRITE_BATCH        = 200;
+
+  /** The active users receiving a plugin instantly */
+  private static final NotificationQuery INSTANTLY_QUERY = new NotificationQuery("instantlyUsers",
+      "SELECT * FROM " + STG_SCOPE + " WHERE " + EXO_IS_ACTIVE + "='true' AND (" + EXO_INSTANTLY + "='{pluginId}'"
+      + " OR " + EXO_INSTANTLY + " LIKE '%,{pluginId},%' OR " + EXO_INSTANTLY + " LIKE '%,{pluginId}'"
+      + " OR " + EXO_INSTANTLY + " LIKE '{pluginId},%')");
+
+  /** The active users of the daily digest */
+  private static final NotificationQuery DAILY_QUERY     = new NotificationQuery("dailyUsers",
+      "SELECT * FROM " + STG_SCOPE + " WHERE " + EXO_IS_ACTIVE + "='true' AND (" + EXO_DAILY + "<>'')");
+
+  /** The active users of the daily or weekly digest */
+  private static final NotificationQuery WEEKLY_QUERY    = new NotificationQuery("weeklyUsers",
+      "SELECT * FROM " + STG_SCOPE + " WHERE " + EXO_IS_ACTIVE + "='true' AND (" + EXO_DAILY + "<>'' OR " + EXO_WEEKLY + "<>'')");
+
+  /** The users using the default settings */
+  private static final NotificationQuery DEFAULT_DAILY_QUERY = new NotificationQuery("defaultDailyUsers",
+      "SELECT * FROM " + MIX_DEFAULT_SETTING + " WHERE jcr:path LIKE '/" + SETTING_USER_PATH
+      + "/%' AND NOT jcr:path LIKE '/" + SETTING_USER_PATH + "/%/%'");
+
+  /** The user settings modified since a time, the snapshot of the index is not used when any */
+  private static final NotificationQuery MODIFIED_QUERY = new NotificationQuery("modifiedUserSettings",
+      "SELECT * FROM nt:base WHERE jcr:path LIKE '/" + SETTING_USER_PATH + "/%' AND " + EXO_LAST_MODIFIED_DATE
+      + " >= TIMESTAMP '{since}'");
+
+  /** The profile of the nodes of a cluster, the subscriber index is not used in a cluster */
+  private static final String     CLUSTER_PROFILE    = "cluster";
+
+  /** The snapshot of the subscriber index in the data directory */
+  private static final String     INDEX_FILE         = "settings/subscribers.idx";
+
+  /** The setting events updating the subscriber index */
+  private static final EventType[] INDEX_EVENTS      = new EventType[] { EventType.SETTING_SET, EventType.SETTING_REMOVE_KEY,
+      EventType.SETTING_REMOVE_SCOPE, EventType.SETTING_REMOVE_CONTEXT };
   
   private SettingService            settingService;
 
@@ -61,11 +128,46 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
   protected static final int MAX_LIMIT = 30;
   
   transient final ReentrantLock lock = new ReentrantLock();
+
+  /** The users using the default settings whose mixin is not written yet */
+  private final Set<String>       pendingUsers       = new LinkedHashSet<String>();
+
+  private final ReentrantLock     pendingLock        = new ReentrantLock();
+
+  private final Condition         pendingAdded       = pendingLock.newCondition();
+
+  private ExoContainer            container;
+
+  private Thread                  writer;
+
+  private volatile boolean        running;
+
+  /** The subscribers of the plugins, null until it is loaded */
+  private volatile SubscriberIndex index;
+
+  /** The users whose settings are changed while the index is loaded */
+  private final Set<String>       changedUsers       = new HashSet<String>();
+
+  private final ReentrantLock     indexLock          = new ReentrantLock();
+
+  private EventManager<SettingService, SettingData> eventManager;
+
+  private final SettingListener   indexListener      = new IndexListener();
+
+  /** True while the settings of a user are saved by the current thread, the index is refreshed once at the end */
+  private static final ThreadLocal<Boolean> SAVING   = new ThreadLocal<Boolean>();
+
+  /**
+   * The index is only updated by the changes made on this node, so it is
+   * not used when the node is part of a cluster
+   */
+  private final boolean           indexEnabled;
   
   public UserSettingServiceImpl(SettingService settingService, NotificationConfiguration configuration) {
     this.settingService = settingService;
     this.configuration = configuration;
     this.workspace = configuration.getWorkspace();
+    this.indexEnabled = ExoContainer.getProfiles().contains(CLUSTER_PROFILE) == false;
   }
 
   private Node getUserSettingHome(Session session) throws Exception {
@@ -88,12 +190,299 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
     String dailys = NotificationUtils.listToString(model.getDailyProviders());
     String weeklys = NotificationUtils.listToString(model.getWeeklyProviders());
 
-    saveUserSetting(userId, EXO_IS_ACTIVE, String.valueOf(model.isActive()));
-    saveUserSetting(userId, EXO_INSTANTLY, instantlys);
-    saveUserSetting(userId, EXO_DAILY, dailys);
-    saveUserSetting(userId, EXO_WEEKLY, weeklys);
+    SAVING.set(Boolean.TRUE);
+    try {
+      saveUserSetting(userId, EXO_IS_ACTIVE, String.valueOf(model.isActive()));
+      saveUserSetting(userId, EXO_INSTANTLY, instantlys);
+      saveUserSetting(userId, EXO_DAILY, dailys);
+      saveUserSetting(userId, EXO_WEEKLY, weeklys);
+    } finally {
+      SAVING.remove();
+    }
+
+    // the user must not be written as using the default settings after that
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      removePending(userId);
+      removeMixin(userId);
+    } finally {
+      lock.unlock();
+    }
+    indexChanged(userId);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void start() {
+    container = ExoContainerContext.getCurrentContainer();
+    running = true;
+    if (indexEnabled) {
+      eventManager = CommonsUtils.getService(EventManager.class);
+    } else {
+      LOG.info("The subscriber index is not used in a cluster, the settings are queried");
+    }
+    if (eventManager != null) {
+      for (EventType type : INDEX_EVENTS) {
+        eventManager.addEventListener(type.toString(), indexListener);
+      }
+    }
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ExoContainerContext.setCurrentContainer(container);
+        if (indexEnabled) {
+          loadIndex();
+        }
+        while (running) {
+          awaitPending();
+          writePending();
+        }
+      }
+    }, "NotificationDefaultSettingWriter");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    final ReentrantLock pendingLock = this.pendingLock;
+    pendingLock.lock();
+    try {
+      pendingAdded.signalAll();
+    } finally {
+      pendingLock.unlock();
+    }
+    if (writer != null) {
+      try {
+        writer.join(WRITE_DELAY * 5);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    writePending();
+    if (eventManager != null) {
+      for (EventType type : INDEX_EVENTS) {
+        eventManager.removeEventListener(type.toString(), indexListener);
+      }
+    }
+    saveIndex();
+  }
+
+  /**
+   * Loads the snapshot of the subscriber index, or builds it from the user
+   * settings. The snapshot is removed once loaded, it is written again when
+   * the service is stopped, so a snapshot which misses some changes is never
+   * read. A snapshot older than the last modification of the user settings,
+   * like the ones made by an other server on the same repository while this
+   * one was stopped, is not used.
+   */
+  private void loadIndex() {
+    File file = new File(configuration.getDataDirectory(), INDEX_FILE);
+    String owner = getIndexOwner();
+    SubscriberIndex loaded = null;
+    if (file.exists()) {
+      try {
+        loaded = SubscriberIndex.load(file, owner);
+      } catch (Exception e) {
+        LOG.warn("Failed to load the subscriber index " + file + ", it is rebuilt");
+        LOG.debug(e.getMessage(), e);
+      }
+      if (file.delete() == false) {
+        LOG.warn("Failed to remove the subscriber index " + file);
+      }
+      if (loaded != null && isModifiedSince(loaded.getSavedTime())) {
+        LOG.info("The user settings have been modified since the subscriber index " + file + " has been saved, it is rebuilt");
+        loaded = null;
+      }
+    }
+    if (loaded == null) {
+      loaded = buildIndex(owner);
+      if (loaded == null) {
+        return;
+      }
+    }
+    final ReentrantLock indexLock = this.indexLock;
+    indexLock.lock();
+    try {
+      for (String userId : changedUsers) {
+        refreshIndex(loaded, userId);
+      }
+      changedUsers.clear();
+      index = loaded;
+      LOG.info("Subscriber index loaded with " + loaded.size() + " users");
+    } finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * @return the identifier of the node of the user settings, a snapshot of
+   *         an other repository is not read
+   */
+  private String getIndexOwner() {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      Node userHomeNode = getUserSettingHome(getSession(sProvider, workspace));
+      return ((NodeImpl) userHomeNode).getInternalIdentifier();
+    } catch (Exception e) {
+      LOG.debug(e.getMessage(), e);
+      return null;
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  /**
+   * @param time
+   * @return true if a user setting has been modified since the time, or if
+   *         it can not be checked
+   */
+  private boolean isModifiedSince(long time) {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      Calendar since = Calendar.getInstance();
+      since.setTimeInMillis(time);
+      Session session = getSession(sProvider, workspace);
+      return MODIFIED_QUERY.execute(session, 0, 1, ISO8601.format(since)).hasNext();
+    } catch (Exception e) {
+      LOG.debug(e.getMessage(), e);
+      return true;
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  private SubscriberIndex buildIndex(String owner) {
+    long startTime = System.currentTimeMillis();
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      SubscriberIndex built = new SubscriberIndex(owner);
+      Session session = getSession(sProvider, workspace);
+      if (session.getRootNode().hasNode(SETTING_USER_PATH)) {
+        StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(STG_SCOPE);
+        strQuery.append(" WHERE ").append(EXO_INSTANTLY).append(" IS NOT NULL AND jcr:path LIKE '/")
+                .append(SETTING_USER_PATH).append("/%'");
+        QueryManager qm = session.getWorkspace().getQueryManager();
+        NodeIterator iter = qm.createQuery(strQuery.toString(), Query.SQL).execute().getNodes();
+        while (iter.hasNext()) {
+          Node node = iter.nextNode();
+          UserSetting model = UserSetting.getInstance();
+          model.setUserId(node.getParent().getName());
+          model.setActive(node.hasProperty(EXO_IS_ACTIVE) && Boolean.valueOf(node.getProperty(EXO_IS_ACTIVE).getString()));
+          model.setInstantlyProviders(getValues(node, EXO_INSTANTLY));
+          model.setDailyProviders(node.hasProperty(EXO_DAILY) ? getValues(node, EXO_DAILY) : new ArrayList<String>());
+          model.setWeeklyProviders(node.hasProperty(EXO_WEEKLY) ? getValues(node, EXO_WEEKLY) : new ArrayList<String>());
+          if (node.getParent().hasProperty(EXO_LAST_MODIFIED_DATE)) {
+            model.setLastUpdateTime(node.getParent().getProperty(EXO_LAST_MODIFIED_DATE).getDate());
+          }
+          built.update(model);
+        }
+      }
+      LOG.info("Subscriber index built with " + built.size() + " users in " + (System.currentTimeMillis() - startTime) + "ms");
+      return built;
+    } catch (Exception e) {
+      LOG.warn("Failed to build the subscriber index, the settings are queried");
+      LOG.debug(e.getMessage(), e);
+      return null;
+    } finally {
+      sProvider.close();
+    }
+  }
+
+  private void saveIndex() {
+    SubscriberIndex index = this.index;
+    if (index == null) {
+      return;
+    }
+    File file = new File(configuration.getDataDirectory(), INDEX_FILE);
+    try {
+      index.save(file);
+    } catch (Exception e) {
+      LOG.warn("Failed to save the subscriber index " + file);
+      LOG.debug(e.getMessage(), e);
+      file.delete();
+    }
+  }
+
+  /**
+   * Updates the subscriptions of a user in the index, the change is kept
+   * until the index is loaded
+   * 
+   * @param userId
+   */
+  private void indexChanged(String userId) {
+    if (indexEnabled == false) {
+      return;
+    }
+    final ReentrantLock indexLock = this.indexLock;
+    indexLock.lock();
+    try {
+      SubscriberIndex index = this.index;
+      if (index != null) {
+        refreshIndex(index, userId);
+      } else if (running) {
+        changedUsers.add(userId);
+      }
+    } finally {
+      indexLock.unlock();
+    }
+  }
+
+  private void refreshIndex(SubscriberIndex index, String userId) {
+    Map<String, Map<String, SettingValue<?>>> values = settingService.getAll(Context.USER, Collections.singletonList(userId),
+                                                                             NOTIFICATION_SCOPE, SETTING_KEYS);
+    UserSetting model = toModel(userId, values.get(userId));
+    if (model == null) {
+      index.remove(userId);
+    } else {
+      index.update(model.setLastUpdateTime(Calendar.getInstance()));
+    }
+  }
+
+  /**
+   * Keeps the index up to date with the settings changed without the service
+   */
+  private class IndexListener extends SettingListener {
+    @Override
+    public void onSet(Event<SettingService, SettingData> event) {
+      changed(event.getData().getSettingContext());
+    }
+
+    @Override
+    public void onRemoveKey(Event<SettingService, SettingData> event) {
+      changed(event.getData().getSettingContext());
+    }
+
+    @Override
+    public void onRemoveScope(Event<SettingService, SettingData> event) {
+      changed(event.getData().getSettingContext());
+    }
+
+    @Override
+    public void onRemoveContext(Event<SettingService, SettingData> event) {
+      changed(event.getData().getSettingContext());
+    }
 
-    removeMixin(userId);
+    private void changed(SettingContext settingContext) {
+      if (SAVING.get() != null) {
+        return;
+      }
+      String prefix = SETTING_USER_PATH + "/";
+      String contextPath = settingContext.getContextPath();
+      if (contextPath == null || contextPath.startsWith(prefix) == false || contextPath.length() == prefix.length()) {
+        return;
+      }
+      if (settingContext instanceof SettingScope
+          && ((SettingScope) settingContext).getScopePath().equals(contextPath + "/" + NOTIFICATION_SCOPE.name().toLowerCase()) == false) {
+        return;
+      }
+      if (settingContext instanceof SettingKey && SETTING_KEYS.contains(((SettingKey) settingContext).getKey()) == false) {
+        return;
+      }
+      indexChanged(contextPath.substring(prefix.length()));
+    }
   }
 
   /**
@@ -109,43 +498,159 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
 
   @Override
   public UserSetting get(String userId) {
-    UserSetting model = UserSetting.getInstance();
+    return getAll(Collections.singletonList(userId)).get(userId);
+  }
 
-    List<String> instantlys = getArrayListValue(userId, EXO_INSTANTLY, null);
-    if (instantlys != null) {
-      model.setUserId(userId);
-      model.setActive(isActive(userId));
-      model.setInstantlyProviders(instantlys);
-      model.setDailyProviders(getArrayListValue(userId, EXO_DAILY, Collections.<String> emptyList()));
-      model.setWeeklyProviders(getArrayListValue(userId, EXO_WEEKLY, Collections.<String> emptyList()));
-    } else {
-      model = UserSetting.getDefaultInstance().setUserId(userId);
-      addMixin(userId);
+  @Override
+  public Map<String, UserSetting> getAll(Collection<String> userIds) {
+    Map<String, Map<String, SettingValue<?>>> values = settingService.getAll(Context.USER, userIds, NOTIFICATION_SCOPE, SETTING_KEYS);
+    Map<String, UserSetting> models = new LinkedHashMap<String, UserSetting>();
+    List<String> defaultUsers = new ArrayList<String>();
+    for (String userId : userIds) {
+      if (userId == null || models.containsKey(userId)) {
+        continue;
+      }
+      UserSetting model = toModel(userId, values.get(userId));
+      if (model != null) {
+        models.put(userId, model);
+      } else {
+        models.put(userId, UserSetting.getDefaultInstance().setUserId(userId));
+        defaultUsers.add(userId);
+      }
     }
-    return model;
+    addPending(defaultUsers);
+    return models;
   }
 
-  @SuppressWarnings("unchecked")
-  private SettingValue<String> getSettingValue(String userId, String propertyName) {
-    return (SettingValue<String>) settingService.get(Context.USER.id(userId), NOTIFICATION_SCOPE, propertyName);
+  /**
+   * @param userId
+   * @param values the setting values of the user
+   * @return the settings of the user, null if the user uses the default settings
+   */
+  private UserSetting toModel(String userId, Map<String, SettingValue<?>> values) {
+    List<String> instantlys = getArrayListValue(values, EXO_INSTANTLY, null);
+    if (instantlys == null) {
+      return null;
+    }
+    UserSetting model = UserSetting.getInstance();
+    model.setUserId(userId);
+    model.setActive(isActive(values));
+    model.setInstantlyProviders(instantlys);
+    model.setDailyProviders(getArrayListValue(values, EXO_DAILY, Collections.<String> emptyList()));
+    model.setWeeklyProviders(getArrayListValue(values, EXO_WEEKLY, Collections.<String> emptyList()));
+    return model;
   }
 
-  private List<String> getArrayListValue(String userId, String propertyName, List<String> defaultValue) {
-    SettingValue<String> values = getSettingValue(userId, propertyName);
-    if (values != null) {
-      String strs = values.getValue();
+  private List<String> getArrayListValue(Map<String, SettingValue<?>> values, String propertyName, List<String> defaultValue) {
+    SettingValue<?> value = (values == null) ? null : values.get(propertyName);
+    if (value != null) {
+      String strs = String.valueOf(value.getValue());
       return Arrays.asList(strs.split(","));
     }
     return defaultValue;
   }
 
-  private boolean isActive(String userId) {
-    SettingValue<String> values = getSettingValue(userId, EXO_IS_ACTIVE);
-    if (values != null) {
-      return Boolean.valueOf(values.getValue());
+  private boolean isActive(Map<String, SettingValue<?>> values) {
+    SettingValue<?> value = values.get(EXO_IS_ACTIVE);
+    if (value != null) {
+      return Boolean.valueOf(String.valueOf(value.getValue()));
     }
     return false;
   }
+
+  /**
+   * Keeps the users using the default settings to add their mixin later, in
+   * one batch with the other ones. The mixin is added directly when the
+   * writer is not started.
+   * 
+   * @param userIds
+   */
+  private void addPending(List<String> userIds) {
+    if (userIds.isEmpty()) {
+      return;
+    }
+    if (running == false) {
+      addMixin(toUsers(userIds));
+      return;
+    }
+    final ReentrantLock pendingLock = this.pendingLock;
+    pendingLock.lock();
+    try {
+      pendingUsers.addAll(userIds);
+      if (pendingUsers.size() >= WRITE_BATCH) {
+        pendingAdded.signalAll();
+      }
+    } finally {
+      pendingLock.unlock();
+    }
+  }
+
+  private void removePending(String userId) {
+    final ReentrantLock pendingLock = this.pendingLock;
+    pendingLock.lock();
+    try {
+      pendingUsers.remove(userId);
+    } finally {
+      pendingLock.unlock();
+    }
+  }
+
+  private void awaitPending() {
+    final ReentrantLock pendingLock = this.pendingLock;
+    pendingLock.lock();
+    try {
+      if (running && pendingUsers.size() < WRITE_BATCH) {
+        pendingAdded.await(WRITE_DELAY, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    } finally {
+      pendingLock.unlock();
+    }
+  }
+
+  /**
+   * Adds the mixin of the pending users, a user whose settings are saved
+   * meanwhile is no longer pending.
+   */
+  private void writePending() {
+    final ReentrantLock lock = this.lock;
+    lock.lock();
+    try {
+      List<String> userIds;
+      final ReentrantLock pendingLock = this.pendingLock;
+      pendingLock.lock();
+      try {
+        userIds = new ArrayList<String>(pendingUsers);
+        pendingUsers.clear();
+      } finally {
+        pendingLock.unlock();
+      }
+      if (userIds.size() > 0) {
+        SessionProvider sProvider = SessionProvider.createSystemProvider();
+        try {
+          addMixin(sProvider, toUsers(userIds));
+          LOG.debug("Done addMixin default setting for " + userIds.size() + " users");
+        } finally {
+          sProvider.close();
+        }
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to add mixin for default setting of users");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private User[] toUsers(List<String> userIds) {
+    User[] users = new User[userIds.size()];
+    for (int i = 0; i < users.length; ++i) {
+      users[i] = new UserImpl(userIds.get(i));
+    }
+    return users;
+  }
   
   @Override
   public void addMixin(String userId) {
@@ -164,11 +669,11 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
 
   private void addMixin(SessionProvider sProvider, User[] users) {
     final ReentrantLock lock = this.lock;
+    lock.lock();
     try {
       Session session = getSession(sProvider, workspace);
       Node userHomeNode = getUserSettingHome(session);
       Node userNode;
-      lock.lock();
       for (int i = 0; i < users.length; ++i) {
         User user = users[i];
         if (user == null || user.getUserName() == null) {
@@ -218,37 +723,12 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
     }
   }
   
-  private StringBuilder buildQuery() {
-    StringBuilder queryBuffer = new StringBuilder();
-    queryBuffer.append(EXO_IS_ACTIVE).append("='true' AND (")
-               .append(EXO_DAILY).append("<>''");
-    if (configuration.isSendWeekly()) {
-      queryBuffer.append(" OR ").append(EXO_WEEKLY).append("<>''");
-    }
-
-    queryBuffer.append(")");
-
-    return queryBuffer;
-  }
-  
-  private StringBuilder buildQuery(String pluginId) {
-    if (pluginId == null) {
-      return buildQuery();
-    }
-    StringBuilder queryBuffer = new StringBuilder();
-    queryBuffer.append(EXO_IS_ACTIVE).append("='true' AND (")
-                //if user wants to receive this kind of notification instantly
-               .append(EXO_INSTANTLY).append("='").append(pluginId).append("'")
-               .append(" OR ").append(EXO_INSTANTLY).append(" LIKE '%,").append(pluginId).append(",%'")
-               .append(" OR ").append(EXO_INSTANTLY).append(" LIKE '%,").append(pluginId).append("'")
-               .append(" OR ").append(EXO_INSTANTLY).append(" LIKE '").append(pluginId).append(",%'")
-               .append(")");
-
-    return queryBuffer;
-  }
-  
   @Override
   public List<String> getUserSettingByPlugin(String pluginId) {
+    SubscriberIndex index = this.index;
+    if (index != null) {
+      return index.getSubscribers(pluginId, FREQUENCY.INSTANTLY);
+    }
     SessionProvider sProvider = NotificationSessionManager.getOrCreateSessionProvider();;
     List<String> userIds = new ArrayList<String>();
     try {
@@ -279,20 +759,18 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
       return null;
     }
     
-    StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(STG_SCOPE);
-    strQuery.append(" WHERE ").append(buildQuery(pluginId));
-    
-    QueryManager qm = session.getWorkspace().getQueryManager();
-    QueryImpl query = (QueryImpl) qm.createQuery(strQuery.toString(), Query.SQL);
-    if (limit > 0) {
-      query.setLimit(limit);
-      query.setOffset(offset);
+    if (pluginId != null) {
+      return INSTANTLY_QUERY.execute(session, offset, limit, pluginId);
     }
-    return query.execute().getNodes();
+    return (configuration.isSendWeekly() ? WEEKLY_QUERY : DAILY_QUERY).execute(session, offset, limit);
   }
   
   @Override
   public List<UserSetting> getDaily(int offset, int limit) {
+    SubscriberIndex index = this.index;
+    if (index != null) {
+      return index.getDigestUsers(configuration.isSendWeekly(), offset, limit);
+    }
     SessionProvider sProvider = NotificationSessionManager.getOrCreateSessionProvider();
     List<UserSetting> models = new ArrayList<UserSetting>();
     try {
@@ -342,6 +820,10 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
   
   @Override
   public long getNumberOfDaily() {
+    SubscriberIndex index = this.index;
+    if (index != null) {
+      return index.getNumberOfDigestUsers(configuration.isSendWeekly());
+    }
     SessionProvider sProvider = NotificationSessionManager.getOrCreateSessionProvider();
     try {
       NodeIterator iter = getDailyIterator(sProvider, 0, 0, null);
@@ -353,17 +835,7 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
   
   private NodeIterator getDefaultDailyIterator(SessionProvider sProvider, int offset, int limit) throws Exception {
     Session session = getSession(sProvider, workspace);
-    StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(MIX_DEFAULT_SETTING);
-    strQuery.append(" WHERE jcr:path LIKE '/").append(SETTING_USER_PATH)
-            .append("/%' AND NOT jcr:path LIKE '/").append(SETTING_USER_PATH).append("/%/%'");
-
-    QueryManager qm = session.getWorkspace().getQueryManager();
-    QueryImpl query = (QueryImpl) qm.createQuery(strQuery.toString(), Query.SQL);
-    if (limit > 0) {
-      query.setLimit(limit);
-      query.setOffset(offset);
-    }
-    return query.execute().getNodes();
+    return DEFAULT_DAILY_QUERY.execute(session, offset, limit);
   }
 
   @Override
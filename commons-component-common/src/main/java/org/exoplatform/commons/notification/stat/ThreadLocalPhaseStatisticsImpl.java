@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.stat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.exoplatform.commons.api.notification.stat.PhaseStatistics;
+
+public class ThreadLocalPhaseStatisticsImpl implements PhaseStatistics {
+
+  private final AtomicLong executionCount = new AtomicLong();
+  private final AtomicLong executionMaxTime = new AtomicLong();
+  private final AtomicLong totalExecutionTime = new AtomicLong();
+  private final AtomicLong lastExecutionTime = new AtomicLong();
+  private final AtomicLong lastUserCount = new AtomicLong();
+  private final AtomicLong lastMemoryUsed = new AtomicLong();
+  private final AtomicLong maxMemoryUsed = new AtomicLong();
+  
+  private final Lock readLock;
+  private final Lock writeLock;
+  
+  {
+    ReadWriteLock lock = new ReentrantReadWriteLock();
+    readLock = lock.readLock();
+    writeLock = lock.writeLock();
+  }
+
+  @Override
+  public long getExecutionCount() {
+    return executionCount.get();
+  }
+
+  @Override
+  public long getExecutionAvgTime() {
+    // write lock to calculate with both executionCount and totalExecutionTime of the same executions
+    writeLock.lock();
+    try {
+      long avgExecutionTime = 0;
+      if (executionCount.get() > 0) {
+        avgExecutionTime = totalExecutionTime.get() / executionCount.get();
+      }
+      return avgExecutionTime;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public long getExecutionMaxTime() {
+    return executionMaxTime.get();
+  }
+
+  @Override
+  public long getLastExecutionTime() {
+    return lastExecutionTime.get();
+  }
+
+  @Override
+  public long getLastUserCount() {
+    return lastUserCount.get();
+  }
+
+  @Override
+  public long getLastMemoryUsed() {
+    return lastMemoryUsed.get();
+  }
+
+  @Override
+  public long getMaxMemoryUsed() {
+    return maxMemoryUsed.get();
+  }
+
+  @Override
+  public void executed(long users, long time, long memory) {
+    readLock.lock();
+    try {
+      for (long old = executionMaxTime.get(); (time > old) && !executionMaxTime.compareAndSet(old, time); old = executionMaxTime.get());
+      for (long old = maxMemoryUsed.get(); (memory > old) && !maxMemoryUsed.compareAndSet(old, memory); old = maxMemoryUsed.get());
+      executionCount.getAndIncrement();
+      totalExecutionTime.addAndGet(time);
+      lastExecutionTime.set(time);
+      lastUserCount.set(users);
+      lastMemoryUsed.set(memory);
+    } finally {
+      readLock.unlock();
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return new StringBuilder()
+        .append("PhaseStatistics[")
+        .append("executionCount=").append(this.executionCount)
+        .append(",executionAvgTime=").append(this.getExecutionAvgTime())
+        .append(",executionMaxTime=").append(this.executionMaxTime)
+        .append(",lastExecutionTime=").append(this.lastExecutionTime)
+        .append(",lastUserCount=").append(this.lastUserCount)
+        .append(",lastMemoryUsed=").append(this.lastMemoryUsed)
+        .append(",maxMemoryUsed=").append(this.maxMemoryUsed)
+        .append(']')
+        .toString();
+  }
+
+}
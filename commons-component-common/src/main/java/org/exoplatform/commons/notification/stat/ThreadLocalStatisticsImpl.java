@@ -21,6 +21,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.exoplatform.commons.api.notification.stat.EntityStatistics;
+import org.exoplatform.commons.api.notification.stat.PhaseStatistics;
 import org.exoplatform.commons.api.notification.stat.PluginStatistics;
 import org.exoplatform.commons.api.notification.stat.QueryStatistics;
 import org.exoplatform.commons.api.notification.stat.QueueStatistics;
@@ -78,6 +79,10 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
    * entity statistics per query string
    */
   private final ConcurrentMap<String, QueryStatistics> queryStatistics = new ConcurrentHashMap<String, QueryStatistics>();
+  /**
+   * phase statistics per name
+   */
+  private final ConcurrentMap<String, PhaseStatistics> phaseStatistics = new ConcurrentHashMap<String, PhaseStatistics>();
   
   public ThreadLocalStatisticsImpl(PluginStatisticService pluginStatistic) {
     clear();
@@ -96,6 +101,7 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
     
     entityStatistics.clear();
     queryStatistics.clear();
+    phaseStatistics.clear();
     
     queuePutCount.set(0);
     queuePollCount.set(0);
@@ -167,6 +173,11 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
     
   }
   
+  @Override
+  public void phaseExecuted(String phase, long users, long time, long memory) {
+    getPhaseStatistics(phase).executed(users, time, memory);
+  }
+  
   @Override
   public void pollQueue(String pluginId) {
     queuePollCount.incrementAndGet();
@@ -231,6 +242,19 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
     return qs;
   }
 
+  @Override
+  public PhaseStatistics getPhaseStatistics(String phase) {
+    PhaseStatistics ps = phaseStatistics.get(phase);
+    if ( ps == null ) {
+      ps = new ThreadLocalPhaseStatisticsImpl();
+      PhaseStatistics previous;
+      if ( ( previous = phaseStatistics.putIfAbsent(phase, ps)) != null ) {
+        ps = previous;
+      }
+    }
+    return ps;
+  }
+
   @Override
   public long getEntityDeleteCount() {
     return entityDeleteCount.get();
@@ -275,6 +299,11 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
   public String[] getPluginNames() {
     return ArrayHelper.toStringArray( pluginStatistics.keySet() );
   }
+
+  @Override
+  public String[] getPhases() {
+    return ArrayHelper.toStringArray( phaseStatistics.keySet() );
+  }
   
   public long getStartTime() {
     return startTime;
@@ -29,6 +29,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletContext;
 
+import org.exoplatform.commons.notification.cache.TemplateCaching;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.ValuesParam;
@@ -103,6 +104,11 @@ public class ResourceBundleConfigDeployer implements WebAppListener {
       LOG.debug("Error when initializing resource bundle of Notification.", e);
     } finally {
       addAllResourcebundle();
+      // the messages of the previous bundles are not valid anymore
+      TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+      if (caching != null) {
+        caching.invalidateBundles(list);
+      }
     }
   }
 
@@ -18,11 +18,14 @@ package org.exoplatform.commons.notification.template;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.ResourceBundle;
 import java.util.Scanner;
 
 import org.apache.commons.lang.StringUtils;
+import org.exoplatform.commons.notification.cache.BundleMessages;
+import org.exoplatform.commons.notification.cache.TemplateCaching;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.container.configuration.ConfigurationManager;
 import org.exoplatform.services.log.ExoLogger;
@@ -73,11 +76,7 @@ public class TemplateResourceBundle {
   }
 
   public String appRes(String key) {
-    Locale locale = Locale.ENGLISH;
-    if (language != null && language.length() > 0) {
-      locale = new Locale(language);
-    }
-    return getResourceBundle(key, locale, bundlePath);
+    return getResourceBundle(key, TemplateUtils.getLocale(language), bundlePath);
   }
 
   public String appRes(String key, String... strs) {
@@ -122,25 +121,42 @@ public class TemplateResourceBundle {
       locale = Locale.ENGLISH;
     }
 
-    ResourceBundle res = null;
-    ResourceBundleService bundleService = CommonsUtils.getService(ResourceBundleService.class);
-    if (bundleService != null) {
-      res = bundleService.getResourceBundle(resourceLocale, locale);
-      // if null, try another way
-      if (res == null) {
-        //
-        res = addResourceBundle(bundleService, resourceLocale, locale);
-      }
-    }
+    String value = getMessage(key, locale, resourceLocale);
     // still null
-    if (res == null || res.containsKey(key) == false) {
+    if (value == null) {
       if (key.indexOf(".digest.") < 0) {
         LOG.warn("Can not get resource bundle by key: " + key);
       }
       return key;
     }
 
-    return res.getString(key);
+    return value;
+  }
+
+  /**
+   * @return the message, null if the key or the bundle is missing
+   */
+  private static String getMessage(String key, Locale locale, String resourceLocale) {
+    ResourceBundleService bundleService = CommonsUtils.getService(ResourceBundleService.class);
+    if (bundleService == null) {
+      return null;
+    }
+    TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    if (caching == null) {
+      ResourceBundle res = bundleService.getResourceBundle(resourceLocale, locale);
+      // if null, try another way
+      if (res == null) {
+        res = addResourceBundle(bundleService, resourceLocale, locale);
+      }
+      return (res != null && res.containsKey(key)) ? res.getString(key) : null;
+    }
+    BundleMessages messages = caching.getMessages(resourceLocale, locale);
+    // if not found, try another way
+    if (messages.isMissing() && addResourceBundle(bundleService, resourceLocale, locale) != null) {
+      caching.invalidateBundles(Collections.singleton(resourceLocale));
+      messages = caching.getMessages(resourceLocale, locale);
+    }
+    return messages.get(key);
   }
 
   static private String getContent(InputStream input) throws IOException {
@@ -22,11 +22,12 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URL;
-import java.text.MessageFormat;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringEscapeUtils;
@@ -37,8 +38,11 @@ import org.exoplatform.commons.api.notification.service.template.TemplateContext
 import org.exoplatform.commons.api.notification.template.Element;
 import org.exoplatform.commons.api.notification.template.ElementVisitor;
 import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.cache.CacheTier;
 import org.exoplatform.commons.notification.cache.ElementCacheKey;
+import org.exoplatform.commons.notification.cache.TemplateCacheKey;
 import org.exoplatform.commons.notification.cache.TemplateCaching;
+import org.exoplatform.commons.notification.cache.TemplateFragment;
 import org.exoplatform.commons.notification.impl.NotificationContextImpl;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.container.configuration.ConfigurationManager;
@@ -50,14 +54,19 @@ import org.gatein.common.io.IOTools;
 
 public class TemplateUtils {
   private static final Log LOG = ExoLogger.getLogger(TemplateUtils.class);
-  private static final String DIGEST_TEMPLATE_KEY = "Digest.{0}.{1}";
-  private static final String SIMPLE_TEMPLATE_KEY = "Simple.{0}.{1}";
   private static final Pattern SCRIPT_REMOVE_PATTERN = Pattern.compile("<(script|style)[^>]*>[^<]*</(script|style)>", Pattern.CASE_INSENSITIVE);
   private static final Pattern TAGS_REMOVE_PATTERN = Pattern.compile("<[^>]*>", Pattern.CASE_INSENSITIVE);
 
-  private static Map<String, Element> cacheTemplate = new ConcurrentHashMap<String, Element>();
+  /** The URIs of the template files, by template path */
+  private static Map<String, String> templateUris = new ConcurrentHashMap<String, String>();
+
+  /** The locales, by language */
+  private static ConcurrentMap<String, Locale> locales = new ConcurrentHashMap<String, Locale>();
   
   private static final int MAX_SUBJECT_LENGTH = 50;
+
+  /** The section of the fragments of the groovy templates */
+  private static final String GROOVY_SECTION = "groovy";
   
   /**
    * Process the Groovy template associate with Template context to generate
@@ -65,8 +74,35 @@ public class TemplateUtils {
    * @param ctx
    * @return
    */
-  public static String processGroovy(TemplateContext ctx) {
-    Element groovyElement = loadGroovyElement(ctx.getPluginId(), ctx.getLanguage());
+  public static String processGroovy(final TemplateContext ctx) {
+    final TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    if (caching != null) {
+      // the template is rendered once for all the recipients of the notification
+      TemplateFragment fragment = caching.getFragment(ctx, GROOVY_SECTION, new CacheTier.Loader<TemplateCacheKey, TemplateFragment>() {
+        @Override
+        public TemplateFragment load(TemplateCacheKey key) throws Exception {
+          List<String> recipientKeys = caching.getRecipientKeys(ctx.getPluginId());
+          TemplateContext shared = new TemplateContext(ctx.getPluginId(), ctx.getLanguage());
+          shared.putAll(ctx);
+          for (String recipientKey : recipientKeys) {
+            if (ctx.get(recipientKey) != null) {
+              shared.put(recipientKey, TemplateFragment.marker(recipientKey));
+            }
+          }
+          String content = renderGroovy(caching, shared);
+          return (content.length() == 0) ? null : TemplateFragment.parse(content, recipientKeys);
+        }
+      });
+      if (fragment != null) {
+        return fragment.render(ctx);
+      }
+    }
+    return renderGroovy(caching, ctx);
+  }
+
+  private static String renderGroovy(TemplateCaching caching, TemplateContext ctx) {
+    Element groovyElement = (caching != null) ? caching.getGroovyElement(ctx.getPluginId(), ctx.getLanguage())
+                                              : loadGroovyElement(ctx.getPluginId(), ctx.getLanguage());
     
     ElementVisitor visitor = new GroovyElementVisitor();
     String content = visitor.with(ctx).visit(groovyElement).out();
@@ -84,6 +120,13 @@ public class TemplateUtils {
     
     try {
       String groovyTemplate = element.getTemplate();
+      TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+      if (groovyTemplate == null && caching != null) {
+        // the template file is compiled once
+        String templatePath = element.getTemplateConfig().getTemplatePath();
+        caching.getGroovyTemplate(context.getPluginId(), templatePath).render(out, context);
+        return;
+      }
       if (groovyTemplate == null) {
         groovyTemplate = loadGroovyTemplate(element.getTemplateConfig().getTemplatePath());
         element.template(groovyTemplate);
@@ -108,28 +151,55 @@ public class TemplateUtils {
    */
   private static InputStream getTemplateInputStream(String templatePath) throws Exception {
     try {
-      
-      ConfigurationManager configurationManager =  CommonsUtils.getService(ConfigurationManager.class);
-      
-      String uri = templatePath;
-      if (templatePath.indexOf("war") < 0 && templatePath.indexOf("jar") < 0 && templatePath.indexOf("classpath") < 0) {
-        URL url = null;
-        if (templatePath.indexOf("/") == 0) {
-          templatePath = templatePath.substring(1);
-        }
-        uri = "war:/" + templatePath;
-        url = configurationManager.getURL(uri);
-        if (url == null) {
-          uri = "jar:/" + templatePath;
-          url = configurationManager.getURL(uri);
-        }
-      }
-      return configurationManager.getInputStream(uri);
+      return CommonsUtils.getService(ConfigurationManager.class).getInputStream(getTemplateUri(templatePath));
     } catch (Exception e) {
       throw new RuntimeException("Error to get notification template " + templatePath, e);
     }
   }
 
+  /**
+   * Gets the URL of a groovy template file
+   * 
+   * @param templatePath
+   * @return the URL, null if it is not found
+   */
+  public static URL getTemplateURL(String templatePath) {
+    try {
+      return CommonsUtils.getService(ConfigurationManager.class).getURL(getTemplateUri(templatePath));
+    } catch (Exception e) {
+      LOG.debug("Failed to get the URL of the template file: " + templatePath, e);
+      return null;
+    }
+  }
+
+  /**
+   * Resolves the URI of a template path without scheme, the URI is kept
+   * 
+   * @param templatePath
+   * @return
+   * @throws Exception
+   */
+  private static String getTemplateUri(String templatePath) throws Exception {
+    String uri = templateUris.get(templatePath);
+    if (uri != null) {
+      return uri;
+    }
+    uri = templatePath;
+    if (templatePath.indexOf("war") < 0 && templatePath.indexOf("jar") < 0 && templatePath.indexOf("classpath") < 0) {
+      ConfigurationManager configurationManager =  CommonsUtils.getService(ConfigurationManager.class);
+      String path = templatePath;
+      if (path.indexOf("/") == 0) {
+        path = path.substring(1);
+      }
+      uri = "war:/" + path;
+      if (configurationManager.getURL(uri) == null) {
+        uri = "jar:/" + path;
+      }
+    }
+    templateUris.put(templatePath, uri);
+    return uri;
+  }
+
   /**
    * Loads the Groovy template file
    * 
@@ -173,13 +243,12 @@ public class TemplateUtils {
    */
   public static String processSubject(TemplateContext ctx) {
     Element subjectElement = null;
-    String key = makeTemplateKey(SIMPLE_TEMPLATE_KEY, ctx.getPluginId(), ctx.getLanguage());
-    if (cacheTemplate.containsKey(key)) {
-      subjectElement = cacheTemplate.get(key);
+    TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    if (caching != null) {
+      subjectElement = caching.getSubject(ctx.getPluginId(), ctx.getLanguage());
     } else {
       TemplateConfig templateConfig = getTemplateConfig(ctx.getPluginId());
       subjectElement = NotificationUtils.getSubject(templateConfig, ctx.getPluginId(), ctx.getLanguage()).addNewLine(false);
-      cacheTemplate.put(key, subjectElement);
     }
     
     //The title of activity is escaped on social, then we need to unescape it to process the send email
@@ -244,30 +313,24 @@ public class TemplateUtils {
    * @return
    */
   public static String processDigest(TemplateContext ctx) {
-    DigestTemplate digest = null;
-    String key = makeTemplateKey(DIGEST_TEMPLATE_KEY, ctx.getPluginId(), ctx.getLanguage());
-    if (cacheTemplate.containsKey(key)) {
-      digest = (DigestTemplate) cacheTemplate.get(key);
+    Element digest = null;
+    TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    if (caching != null) {
+      digest = caching.getDigest(ctx.getPluginId(), ctx.getLanguage());
     } else {
       TemplateConfig templateConfig = getTemplateConfig(ctx.getPluginId());
       digest = NotificationUtils.getDigest(templateConfig, ctx.getPluginId(), ctx.getLanguage());
-      cacheTemplate.put(key, digest);
     }
     
     return digest.accept(SimpleElementVistior.instance().with(ctx)).out();
   }
   
-  private static String makeTemplateKey(String pattern, String pluginId, String language) {
-    return MessageFormat.format(pattern, pluginId, language);
-  }
-
-
   /**
    * Gets Plugin configuration for specified PluginId
    * @param pluginId
    * @return
    */
-  private static TemplateConfig getTemplateConfig(String pluginId) {
+  public static TemplateConfig getTemplateConfig(String pluginId) {
     PluginConfig pluginConfig = NotificationContextImpl.cloneInstance().getPluginSettingService().getPluginConfig(pluginId);
     
     if(pluginConfig == null) {
@@ -292,15 +355,42 @@ public class TemplateUtils {
       locale = Locale.ENGLISH;
     }
 
-    ResourceBundleService bundleService = CommonsUtils.getService(ResourceBundleService.class);
-    ResourceBundle res = bundleService.getResourceBundle(resourcePath, locale);
-    
-    if (res == null || res.containsKey(key) == false) {
+    TemplateCaching caching = CommonsUtils.getService(TemplateCaching.class);
+    String value;
+    if (caching != null) {
+      value = caching.getMessages(resourcePath, locale).get(key);
+    } else {
+      ResourceBundle res = CommonsUtils.getService(ResourceBundleService.class).getResourceBundle(resourcePath, locale);
+      value = (res != null && res.containsKey(key)) ? res.getString(key) : null;
+    }
+
+    if (value == null) {
       LOG.warn("Resource Bundle key not found. " + key + " in source path: " + resourcePath);
       return key;
     }
 
-    return res.getString(key);
+    return value;
+  }
+
+  /**
+   * Gets the locale of a language, the locales are shared
+   * 
+   * @param language the language, english when empty
+   * @return the locale
+   */
+  public static Locale getLocale(String language) {
+    if (language == null || language.length() == 0) {
+      return Locale.ENGLISH;
+    }
+    Locale locale = locales.get(language);
+    if (locale == null) {
+      locale = new Locale(language);
+      Locale previous = locales.putIfAbsent(language, locale);
+      if (previous != null) {
+        locale = previous;
+      }
+    }
+    return locale;
   }
   
   
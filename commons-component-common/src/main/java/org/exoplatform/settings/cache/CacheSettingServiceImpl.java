@@ -16,6 +16,12 @@
  */
 package org.exoplatform.settings.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
@@ -102,6 +108,44 @@ public class CacheSettingServiceImpl implements SettingService {
     return futureExoCache.get(service, new SettingKey(context, scope, key));
   }
 
+  /**
+   * Get the setting values of several contexts. The contexts whose values are
+   * all in the cache are not read, the other ones are read together in the
+   * database and put in the cache.
+   * @LevelAPI Experimental
+   */
+  @Override
+  public Map<String, Map<String, SettingValue<?>>> getAll(Context context, Collection<String> ids, Scope scope, Collection<String> keys) {
+    Map<String, Map<String, SettingValue<?>>> result = new HashMap<String, Map<String, SettingValue<?>>>();
+    List<String> missed = new ArrayList<String>();
+    for (String id : ids) {
+      Map<String, SettingValue<?>> values = new HashMap<String, SettingValue<?>>();
+      for (String key : keys) {
+        SettingValue<?> value = settingCache.get(new SettingKey(context.id(id), scope, key));
+        if (value == null) {
+          values = null;
+          break;
+        }
+        values.put(key, value);
+      }
+      if (values != null) {
+        result.put(id, values);
+      } else {
+        missed.add(id);
+      }
+    }
+    if (missed.size() > 0) {
+      Map<String, Map<String, SettingValue<?>>> loaded = service.getAll(context, missed, scope, keys);
+      for (Map.Entry<String, Map<String, SettingValue<?>>> entry : loaded.entrySet()) {
+        for (Map.Entry<String, SettingValue<?>> value : entry.getValue().entrySet()) {
+          settingCache.put(new SettingKey(context.id(entry.getKey()), scope, value.getKey()), value.getValue());
+        }
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return result;
+  }
+
   /** 
    * Remove all the value associated with the composite key(context,scope,key) in cache and also in database.
    * @param context context with which the specified value is to be associated. The context type must be USER and context.id must be not null.
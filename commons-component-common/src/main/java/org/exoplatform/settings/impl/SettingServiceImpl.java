@@ -1,5 +1,9 @@
 package org.exoplatform.settings.impl;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
@@ -80,6 +84,40 @@ public class SettingServiceImpl implements SettingService {
       }
     }.executeWith(chromatticLifeCycle);
 
+    return toSettingValue(got);
+  }
+
+  public Map<String, Map<String, SettingValue<?>>> getAll(final Context c, final Collection<String> ids, final Scope s, final Collection<String> keys) {
+    if (Context.GLOBAL.equals(c)) {
+      throw new IllegalArgumentException("The context type must be not GLOBAL");
+    }
+    return new SynchronizationTask<Map<String, Map<String, SettingValue<?>>>>() {
+      @Override
+      protected Map<String, Map<String, SettingValue<?>>> execute(SessionContext ctx) {
+        Map<String, Map<String, SettingValue<?>>> result = new HashMap<String, Map<String, SettingValue<?>>>();
+        for (String id : ids) {
+          if (id == null || result.containsKey(id)) {
+            continue;
+          }
+          ScopeEntity scope = ctx.getSession().findByPath(ScopeEntity.class, Tools.buildScopePath(c.id(id), s));
+          if (scope == null) {
+            continue;
+          }
+          Map<String, SettingValue<?>> values = new HashMap<String, SettingValue<?>>();
+          for (String key : keys) {
+            SettingValue<?> value = toSettingValue(scope.getValue(key));
+            if (value != null) {
+              values.put(key, value);
+            }
+          }
+          result.put(id, values);
+        }
+        return result;
+      }
+    }.executeWith(chromatticLifeCycle);
+  }
+
+  private static SettingValue<?> toSettingValue(Object got) {
     if (got instanceof Long) {
       return SettingValue.create((Long) got);
     } else if (got instanceof String) {
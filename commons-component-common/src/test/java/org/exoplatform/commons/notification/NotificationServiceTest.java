@@ -1,6 +1,8 @@
 package org.exoplatform.commons.notification;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +18,11 @@ import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
 import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
 import org.exoplatform.commons.api.notification.service.storage.NotificationService;
+import org.exoplatform.commons.api.settings.SettingService;
+import org.exoplatform.commons.api.settings.SettingValue;
+import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.Scope;
+import org.exoplatform.commons.notification.impl.AbstractService;
 import org.exoplatform.commons.testing.BaseCommonsTestCase;
 
 public class NotificationServiceTest extends BaseCommonsTestCase {
@@ -86,7 +93,8 @@ public class NotificationServiceTest extends BaseCommonsTestCase {
     assertEquals(1, list.size());
     
     assertTrue(list.get(0).equals(notification));
-    // after sent, user demo will auto remove from property daily
+    // after sent, user root will auto remove from property daily
+    notificationDataStorage.removeMessageAfterSent();
     NotificationInfo notification2 = getNotificationInfoByKeyIdAndParam("TestPlugin", "objectId=idofobject");
     assertNotNull(notification2);
     
@@ -105,6 +113,114 @@ public class NotificationServiceTest extends BaseCommonsTestCase {
     assertNull(notification2);
   }
 
+  public void testRemoveDailyUsersAfterSent() throws Exception {
+    configuration.setSendWeekly(false);
+    NotificationInfo notification = saveNotification("root", "demo");
+    Node node = getMessageNodeById(notification.getId());
+    node.setProperty("ntf:sendToDaily", new String[] { "root", "john", "mary" });
+    session.save();
+    for (String userId : new String[] { "root", "john" }) {
+      UserSetting userSetting = UserSetting.getInstance();
+      userSetting.setUserId(userId).addProvider("TestPlugin", FREQUENCY.DAILY);
+      assertEquals(1, notificationDataStorage.getByUser(userSetting).size());
+    }
+    // the node is not changed until the end of the digest
+    assertEquals(3, getNotificationInfoByKeyIdAndParam("TestPlugin", "objectId=idofobject").getSendToDaily().length);
+    notificationDataStorage.removeMessageAfterSent();
+    NotificationInfo notification2 = getNotificationInfoByKeyIdAndParam("TestPlugin", "objectId=idofobject");
+    assertEquals(1, notification2.getSendToDaily().length);
+    assertEquals("mary", notification2.getSendToDaily()[0]);
+  }
+
+  public void testKeepFailedUsersAfterSent() throws Exception {
+    configuration.setSendWeekly(false);
+    NotificationInfo notification = saveNotification("root", "demo");
+    Node node = getMessageNodeById(notification.getId());
+    node.setProperty("ntf:sendToDaily", new String[] { "root", "john", "mary" });
+    session.save();
+    for (String userId : new String[] { "root", "john" }) {
+      UserSetting userSetting = UserSetting.getInstance();
+      userSetting.setUserId(userId).addProvider("TestPlugin", FREQUENCY.DAILY);
+      assertEquals(1, notificationDataStorage.getByUser(userSetting).size());
+    }
+    // the digest of john has failed
+    notificationDataStorage.removeMessageAfterSent(Collections.singleton("john"));
+    NotificationInfo notification2 = getNotificationInfoByKeyIdAndParam("TestPlugin", "objectId=idofobject");
+    assertEquals(Arrays.asList("john", "mary"), Arrays.asList(notification2.getSendToDaily()));
+
+    // the message sent to john only is kept for him
+    NotificationInfo single = saveNotification("john", "");
+    UserSetting userSetting = UserSetting.getInstance();
+    userSetting.setUserId("john").addProvider("TestPlugin", FREQUENCY.DAILY);
+    assertEquals(2, notificationDataStorage.getByUser(userSetting).get(new NotificationKey("TestPlugin")).size());
+    notificationDataStorage.removeMessageAfterSent(Collections.singleton("john"));
+    assertNotNull(getMessageNodeById(single.getId()));
+    assertEquals(2, notificationDataStorage.getByUser(userSetting).get(new NotificationKey("TestPlugin")).size());
+    notificationDataStorage.removeMessageAfterSent();
+    assertNull(getMessageNodeById(single.getId()));
+  }
+
+  public void testExpiredPartitions() throws Exception {
+    NotificationInfo notification = saveNotification("root", "demo");
+    Node partition = getMessageNodeById(notification.getId()).getParent();
+    assertEquals(AbstractService.getDayPartition(Calendar.getInstance()), partition.getName());
+    // a partition older than the retention
+    Node expired = partition.getParent().addNode("d20000101", AbstractService.NTF_MESSAGE_HOME);
+    expired.addMixin(AbstractService.MIX_SUB_MESSAGE_HOME);
+    session.save();
+    
+    notificationDataStorage.removeMessageAfterSent();
+    assertFalse(session.itemExists(expired.getPath()));
+    assertTrue(session.itemExists(partition.getPath()));
+  }
+
+  public void testPreviousDayPartition() throws Exception {
+    configuration.setSendWeekly(false);
+    NotificationInfo notification = saveNotification("root", "demo");
+    Node node = getMessageNodeById(notification.getId());
+    // the message is saved the day before, after the previous digest
+    Calendar yesterday = Calendar.getInstance();
+    yesterday.add(Calendar.DAY_OF_MONTH, -1);
+    Node pluginNode = node.getParent().getParent();
+    Node partition = pluginNode.addNode(AbstractService.getDayPartition(yesterday), AbstractService.NTF_MESSAGE_HOME);
+    partition.addMixin(AbstractService.MIX_SUB_MESSAGE_HOME);
+    session.save();
+    session.move(node.getPath(), partition.getPath() + "/" + node.getName());
+    session.save();
+    // the queries of the digest are made again
+    notificationDataStorage.removeMessageAfterSent();
+    
+    UserSetting userSetting = UserSetting.getInstance();
+    userSetting.setUserId("root").addProvider("TestPlugin", FREQUENCY.DAILY);
+    List<NotificationInfo> list = notificationDataStorage.getByUser(userSetting).get(new NotificationKey("TestPlugin"));
+    assertEquals(1, list.size());
+    assertTrue(list.get(0).equals(notification));
+  }
+
+  public void testMissedDigestPartition() throws Exception {
+    configuration.setSendWeekly(false);
+    NotificationInfo notification = saveNotification("root", "demo");
+    Node node = getMessageNodeById(notification.getId());
+    // the message has not been sent as the digests of the last days failed
+    Calendar day = Calendar.getInstance();
+    day.add(Calendar.DAY_OF_MONTH, -3);
+    Node partition = node.getParent().getParent().addNode(AbstractService.getDayPartition(day), AbstractService.NTF_MESSAGE_HOME);
+    partition.addMixin(AbstractService.MIX_SUB_MESSAGE_HOME);
+    session.save();
+    session.move(node.getPath(), partition.getPath() + "/" + node.getName());
+    session.save();
+    notificationDataStorage.removeMessageAfterSent();
+    day.add(Calendar.DAY_OF_MONTH, -1);
+    getService(SettingService.class).set(Context.GLOBAL, Scope.GLOBAL, "exo:notificationDigestWatermark.daily",
+                                         SettingValue.create(AbstractService.getDayPartition(day)));
+
+    UserSetting userSetting = UserSetting.getInstance();
+    userSetting.setUserId("root").addProvider("TestPlugin", FREQUENCY.DAILY);
+    List<NotificationInfo> list = notificationDataStorage.getByUser(userSetting).get(new NotificationKey("TestPlugin"));
+    assertEquals(1, list.size());
+    assertTrue(list.get(0).equals(notification));
+  }
+
   public void testSpecialGetByUserAndRemoveMessagesSent() throws Exception {
     NotificationInfo notification = NotificationInfo.instance();
     Map<String, String> params = new HashMap<String, String>();
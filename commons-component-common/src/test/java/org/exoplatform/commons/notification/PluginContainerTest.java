@@ -25,9 +25,11 @@ import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
 import org.exoplatform.commons.api.notification.service.setting.PluginContainer;
 import org.exoplatform.commons.api.notification.service.template.TemplateContext;
+import org.exoplatform.commons.notification.cache.TemplateCaching;
 import org.exoplatform.commons.notification.impl.NotificationContextImpl;
 import org.exoplatform.commons.notification.template.TemplateUtils;
 import org.exoplatform.commons.testing.BaseCommonsTestCase;
+import org.exoplatform.groovyscript.GroovyTemplate;
 
 public class PluginContainerTest extends BaseCommonsTestCase {
   
@@ -93,4 +95,24 @@ public class PluginContainerTest extends BaseCommonsTestCase {
     // check process Groovy
     assertEquals(true, s.indexOf("Content of Activity") > 0);
   }
-}
\ No newline at end of file
+
+  public void testCompiledTemplate() throws Exception {
+    TemplateCaching caching = getService(TemplateCaching.class);
+    assertNotNull(caching);
+    caching.invalidateAll();
+    String templatePath = "classpath:/groovy/notification/template/provider1.gtmpl";
+    long misses = caching.getCompiledTemplateMisses();
+    long hits = caching.getCompiledTemplateHits();
+    GroovyTemplate template = caching.getGroovyTemplate("DigestDailyPlugin", templatePath);
+    assertNotNull(template);
+    // the template is compiled once, for all the languages
+    assertSame(template, caching.getGroovyTemplate("DigestDailyPlugin", templatePath));
+    assertEquals(misses + 1, caching.getCompiledTemplateMisses());
+    assertEquals(hits + 1, caching.getCompiledTemplateHits());
+    assertEquals(1, caching.getCompiledTemplateCount());
+    //
+    caching.invalidate("DigestDailyPlugin");
+    assertEquals(0, caching.getCompiledTemplateCount());
+    assertNotSame(template, caching.getGroovyTemplate("DigestDailyPlugin", templatePath));
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.plugin.RecipientProfile;
+import org.exoplatform.commons.api.notification.plugin.RecipientProfiles;
+
+public class RecipientProfilesTest extends TestCase {
+
+  public void testLoadOnce() throws Exception {
+    CountingProfiles profiles = new CountingProfiles();
+    profiles.load(Arrays.asList("mary", "john", "mary"));
+    assertEquals(2, profiles.getLoads());
+
+    RecipientProfile mary = profiles.get("mary");
+    assertSame(mary, profiles.get("mary"));
+    assertEquals(2, profiles.getLoads());
+    assertEquals("Mary", mary.getFirstName());
+    assertEquals("Mary Smith<mary@acme.com>", mary.getEmailFormat());
+    assertEquals("fr", mary.getLanguage());
+    assertEquals(TimeZone.getTimeZone("Europe/Paris"), mary.getTimeZone());
+
+    RecipientProfile deleted = profiles.get("deleted");
+    assertFalse(deleted.exists());
+    assertNull(deleted.getEmailFormat());
+    assertEquals("en", deleted.getLanguage());
+    assertNotNull(deleted.getTimeZone());
+    assertEquals(3, profiles.getLoads());
+  }
+
+  public void testScope() throws Exception {
+    assertNull(RecipientProfiles.current());
+    CountingProfiles outer = new CountingProfiles();
+    RecipientProfiles.open(outer);
+    try {
+      assertSame(outer, RecipientProfiles.current());
+      RecipientProfiles.getProfile("mary");
+      RecipientProfiles.getProfile("mary");
+      assertEquals(1, outer.getLoads());
+
+      CountingProfiles inner = new CountingProfiles();
+      RecipientProfiles.open(inner);
+      assertSame(inner, RecipientProfiles.current());
+      inner.close();
+      assertSame(outer, RecipientProfiles.current());
+    } finally {
+      outer.close();
+    }
+    assertNull(RecipientProfiles.current());
+    assertEquals(0, outer.size());
+  }
+
+  private static class CountingProfiles extends RecipientProfiles {
+    @Override
+    protected RecipientProfile loadProfile(String userId) {
+      if ("deleted".equals(userId)) {
+        return RecipientProfile.missing(userId);
+      }
+      String name = Character.toUpperCase(userId.charAt(0)) + userId.substring(1);
+      return new RecipientProfile(userId, name, name + " Smith", userId + "@acme.com", "fr", TimeZone.getTimeZone("Europe/Paris"));
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.util.ListResourceBundle;
+import java.util.ResourceBundle;
+
+import junit.framework.TestCase;
+
+public class BundleMessagesTest extends TestCase {
+
+  public void testFlatten() throws Exception {
+    Bundle parent = new Bundle(new Object[][] { { "subject", "Parent subject" }, { "title", "Title" } });
+    Bundle bundle = new Bundle(new Object[][] { { "subject", "Subject" }, { "count", Integer.valueOf(3) } });
+    bundle.setParent(parent);
+
+    BundleMessages messages = BundleMessages.of(bundle);
+    assertFalse(messages.isMissing());
+    assertEquals("Subject", messages.get("subject"));
+    assertEquals("Title", messages.get("title"));
+    // the values which are not strings are ignored
+    assertNull(messages.get("count"));
+    assertEquals(2, messages.size());
+  }
+
+  public void testMissing() throws Exception {
+    BundleMessages messages = BundleMessages.of(null);
+    assertTrue(messages.isMissing());
+    assertSame(BundleMessages.MISSING, messages);
+    // the missing keys do not throw a MissingResourceException
+    assertNull(messages.get("subject"));
+    assertNull(BundleMessages.of(new Bundle(new Object[0][])).get("subject"));
+  }
+
+  private static class Bundle extends ListResourceBundle {
+    private final Object[][] contents;
+
+    Bundle(Object[][] contents) {
+      this.contents = contents;
+    }
+
+    @Override
+    protected Object[][] getContents() {
+      return contents;
+    }
+
+    @Override
+    public void setParent(ResourceBundle parent) {
+      super.setParent(parent);
+    }
+  }
+}
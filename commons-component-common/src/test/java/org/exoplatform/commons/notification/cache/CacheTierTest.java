@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class CacheTierTest extends TestCase {
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private final CacheTier.Loader<TemplateCacheKey, String> loader = new CacheTier.Loader<TemplateCacheKey, String>() {
+    @Override
+    public String load(TemplateCacheKey key) throws Exception {
+      loads.incrementAndGet();
+      return key.getName().length() == 0 ? null : key.toString();
+    }
+  };
+
+  public void testGet() throws Exception {
+    CacheTier<TemplateCacheKey, String> tier = new CacheTier<TemplateCacheKey, String>("test", 10);
+    TemplateCacheKey key = new TemplateCacheKey("LikePlugin", "en", "template");
+    assertEquals("LikePlugin/en/template", tier.get(key, loader));
+    assertEquals("LikePlugin/en/template", tier.get(new TemplateCacheKey("LikePlugin", "en", "template"), loader));
+    assertEquals(1, loads.get());
+    assertEquals(1, tier.getHits());
+    assertEquals(1, tier.getMisses());
+    assertEquals(0.5, tier.getHitRatio(), 0.001);
+    // the null values are not kept
+    assertNull(tier.get(new TemplateCacheKey("LikePlugin", "en", null), loader));
+    assertNull(tier.get(new TemplateCacheKey("LikePlugin", "en", null), loader));
+    assertEquals(3, loads.get());
+    assertEquals(1, tier.getSize());
+  }
+
+  public void testEviction() throws Exception {
+    CacheTier<TemplateCacheKey, String> tier = new CacheTier<TemplateCacheKey, String>("test", 2);
+    TemplateCacheKey first = new TemplateCacheKey("LikePlugin", "en", "first");
+    TemplateCacheKey second = new TemplateCacheKey("LikePlugin", "en", "second");
+    tier.get(first, loader);
+    tier.get(second, loader);
+    // the first is used, the second is the least recently used
+    tier.get(first, loader);
+    tier.get(new TemplateCacheKey("LikePlugin", "en", "third"), loader);
+    assertEquals(2, tier.getSize());
+    assertEquals(1, tier.getEvictions());
+    assertNotNull(tier.peek(first));
+    assertNull(tier.peek(second));
+  }
+
+  public void testRemove() throws Exception {
+    CacheTier<TemplateCacheKey, String> tier = new CacheTier<TemplateCacheKey, String>("test", 10);
+    tier.get(new TemplateCacheKey("LikePlugin", "en", "template"), loader);
+    tier.get(new TemplateCacheKey("LikePlugin", "fr", "template"), loader);
+    tier.get(new TemplateCacheKey("CommentPlugin", "en", "template"), loader);
+    assertEquals(1, tier.remove(new CacheTier.Filter<TemplateCacheKey>() {
+      @Override
+      public boolean accept(TemplateCacheKey key) {
+        return key.matches("LikePlugin", "fr");
+      }
+    }));
+    assertEquals(1, tier.remove(new CacheTier.Filter<TemplateCacheKey>() {
+      @Override
+      public boolean accept(TemplateCacheKey key) {
+        return key.matches(null, "en") && key.getPluginId().equals("CommentPlugin");
+      }
+    }));
+    assertEquals(1, tier.getSize());
+    tier.clear();
+    assertEquals(0, tier.getSize());
+  }
+}
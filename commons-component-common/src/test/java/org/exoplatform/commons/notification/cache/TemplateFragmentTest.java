@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TemplateFragmentTest extends TestCase {
+
+  private final List<String> keys = Arrays.asList("FIRSTNAME", "FOOTER_LINK");
+
+  public void testRender() throws Exception {
+    String text = "<p>Hi " + TemplateFragment.marker("FIRSTNAME") + ",</p><p>John posted in the space.</p>"
+        + "<a href=\"" + TemplateFragment.marker("FOOTER_LINK") + "\">Settings</a>";
+    TemplateFragment fragment = TemplateFragment.parse(text, keys);
+    assertEquals(2, fragment.getMarkerCount());
+
+    assertEquals("<p>Hi Mary,</p><p>John posted in the space.</p><a href=\"/mary\">Settings</a>",
+                 fragment.render(values("Mary", "/mary")));
+    assertEquals("<p>Hi Root,</p><p>John posted in the space.</p><a href=\"/root\">Settings</a>",
+                 fragment.render(values("Root", "/root")));
+    // a missing value is rendered empty
+    assertEquals("<p>Hi ,</p><p>John posted in the space.</p><a href=\"\">Settings</a>",
+                 fragment.render(new HashMap<String, Object>()));
+  }
+
+  public void testUnknownMarker() throws Exception {
+    String text = "A" + TemplateFragment.marker("OTHER") + "B" + TemplateFragment.marker("FIRSTNAME") + "C";
+    TemplateFragment fragment = TemplateFragment.parse(text, keys);
+    assertEquals(1, fragment.getMarkerCount());
+    assertEquals("A" + TemplateFragment.marker("OTHER") + "BMaryC", fragment.render(values("Mary", null)));
+
+    fragment = TemplateFragment.parse("no marker", keys);
+    assertEquals(0, fragment.getMarkerCount());
+    assertEquals("no marker", fragment.render(values("Mary", null)));
+  }
+
+  public void testExpired() throws Exception {
+    TemplateFragment fragment = TemplateFragment.parse("text", keys);
+    assertFalse(fragment.isExpired(60000));
+    Thread.sleep(20);
+    assertTrue(fragment.isExpired(10));
+  }
+
+  private Map<String, Object> values(String firstName, String footerLink) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("FIRSTNAME", firstName);
+    values.put("FOOTER_LINK", footerLink);
+    return values;
+  }
+}
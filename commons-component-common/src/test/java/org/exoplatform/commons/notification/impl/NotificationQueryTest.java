@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl;
+
+import junit.framework.TestCase;
+
+public class NotificationQueryTest extends TestCase {
+
+  public void testBind() throws Exception {
+    NotificationQuery query = new NotificationQuery("test", "SELECT * FROM ntf:message WHERE ntf:sendToDaily='{userId}'"
+        + " AND ntf:from<>'{userId}' AND ntf:createdTime >= {fromTime}");
+    assertEquals("SELECT * FROM ntf:message WHERE ntf:sendToDaily='root' AND ntf:from<>'root' AND ntf:createdTime >= 10",
+                 query.bind("root", 10L));
+    // the quotes are escaped
+    assertEquals("SELECT * FROM ntf:message WHERE ntf:sendToDaily='o''neil' AND ntf:from<>'o''neil' AND ntf:createdTime >= 0",
+                 query.bind("o'neil", 0));
+  }
+
+  public void testEscape() throws Exception {
+    assertEquals("/exo:applications/notifications/o''neil", NotificationQuery.escape("/exo:applications/notifications/o'neil"));
+    assertEquals("/exo:applications/notifications", NotificationQuery.escape("/exo:applications/notifications"));
+  }
+
+  public void testBindWithoutParameter() throws Exception {
+    NotificationQuery query = new NotificationQuery("test", "SELECT * FROM stg:scope");
+    assertEquals("SELECT * FROM stg:scope", query.bind());
+  }
+
+  public void testWrongParameters() throws Exception {
+    NotificationQuery query = new NotificationQuery("test", "SELECT * FROM stg:scope WHERE exo:instantly LIKE '%,{pluginId},%'");
+    try {
+      query.bind("LikePlugin", "CommentPlugin");
+      fail("The values must match the parameters");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new NotificationQuery("test", "SELECT * FROM stg:scope WHERE exo:instantly='{pluginId'");
+      fail("The parameter must be closed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
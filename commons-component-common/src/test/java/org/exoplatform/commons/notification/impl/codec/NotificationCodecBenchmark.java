@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the gzip JSON used by the previous versions to store the messages
+ * with the {@link NotificationCodec}.
+ *
+ * Run it from the test classpath with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.exoplatform.commons.notification.impl.codec.NotificationCodecBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationCodecBenchmark {
+
+  private static final String FOOTER = "<div style=\"font-size:11px;color:#999\">You receive this email because you "
+                                         + "are subscribed to the notifications. To stop receiving them, "
+                                         + "<a href=\"http://localhost:8080/portal/intranet/notifications\">change "
+                                         + "your notification settings</a>.</div>";
+
+  @Param({ "200", "4000" })
+  private int                 bodySize;
+
+  private MessageInfo         message;
+
+  private NotificationCodec   codec;
+
+  private NotificationCodec   dictionaryCodec;
+
+  private byte[]              legacyData;
+
+  private byte[]              codecData;
+
+  private byte[]              dictionaryData;
+
+  @Setup
+  public void setUp() throws IOException {
+    StringBuilder body = new StringBuilder("<p>");
+    while (body.length() < bodySize) {
+      body.append("John Smith a commenté votre activité dans l'espace Marketing. ");
+    }
+    body.append("</p>");
+    message = new MessageInfo();
+    message.pluginId("ActivityCommentPlugin")
+           .from("no-reply@exoplatform.com")
+           .to("mary.williams@exoplatform.com")
+           .subject("John Smith a commenté votre activité")
+           .body(body.toString())
+           .footer(FOOTER)
+           .setCreatedTime(System.currentTimeMillis());
+    codec = new NotificationCodec();
+    dictionaryCodec = new NotificationCodec(FOOTER.getBytes("UTF-8"), 0, 2);
+    legacyData = legacyEncode();
+    codecData = encode();
+    dictionaryData = encodeWithDictionary();
+  }
+
+  @Benchmark
+  public byte[] legacyEncode() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    GZIPOutputStream gos = new GZIPOutputStream(os);
+    gos.write(message.toJSON().getBytes("UTF-8"));
+    gos.close();
+    return os.toByteArray();
+  }
+
+  /**
+   * The decoding of the previous versions, with its 32 bytes chunks
+   */
+  @Benchmark
+  public MessageInfo legacyDecode() throws IOException {
+    GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(legacyData), 32);
+    StringBuilder string = new StringBuilder();
+    byte[] data = new byte[32];
+    int bytesRead;
+    while ((bytesRead = gis.read(data)) != -1) {
+      string.append(new String(data, 0, bytesRead, "UTF-8"));
+    }
+    gis.close();
+    return NotificationCodec.fromJSON(string.toString());
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return codec.encode(message);
+  }
+
+  @Benchmark
+  public MessageInfo decode() throws IOException {
+    return codec.decodeMessageInfo(codecData);
+  }
+
+  @Benchmark
+  public byte[] encodeWithDictionary() throws IOException {
+    return dictionaryCodec.encode(message);
+  }
+
+  @Benchmark
+  public MessageInfo decodeWithDictionary() throws IOException {
+    return dictionaryCodec.decodeMessageInfo(dictionaryData);
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(NotificationCodecBenchmark.class.getSimpleName()).build()).run();
+  }
+}
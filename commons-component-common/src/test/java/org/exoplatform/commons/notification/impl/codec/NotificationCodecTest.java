@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+
+public class NotificationCodecTest extends TestCase {
+
+  private static final String FOOTER = "<p>You receive this email because you are subscribed to the notifications.</p>";
+
+  public void testEncodeDecodeMessageInfo() throws Exception {
+    NotificationCodec codec = new NotificationCodec();
+    MessageInfo message = makeMessage("Hello");
+    byte[] data = codec.encode(message);
+    assertMessage(message, codec.decodeMessageInfo(data));
+    //
+    MessageInfo large = makeMessage(repeat("Bonjour à tous, こんにちは ", 200));
+    byte[] compressed = codec.encode(large);
+    assertTrue(compressed.length < large.getBody().getBytes("UTF-8").length);
+    assertMessage(large, codec.decodeMessageInfo(compressed));
+  }
+
+  public void testEncodeDecodeNullFields() throws Exception {
+    NotificationCodec codec = new NotificationCodec();
+    MessageInfo message = new MessageInfo();
+    message.to("root@exoplatform.com").setCreatedTime(12L);
+    MessageInfo decoded = codec.decodeMessageInfo(codec.encode(message));
+    assertEquals(message.getPluginId(), decoded.getPluginId());
+    assertNull(decoded.getFrom());
+    assertNull(decoded.getFooter());
+    assertEquals("root@exoplatform.com", decoded.getTo());
+    assertEquals(12L, decoded.getCreatedTime());
+  }
+
+  public void testEncodeDecodeNotificationInfo() throws Exception {
+    NotificationCodec codec = new NotificationCodec();
+    NotificationInfo notification = NotificationInfo.instance()
+                                                    .key("TestPlugin")
+                                                    .setFrom("demo")
+                                                    .setOrder(3)
+                                                    .to(Arrays.asList("root", "john"))
+                                                    .with("activityId", "é123")
+                                                    .setSendToDaily(new String[] { "mary" })
+                                                    .setSendToWeekly((String[]) null);
+    NotificationInfo decoded = codec.decodeNotificationInfo(codec.encode(notification));
+    assertEquals(notification.getId(), decoded.getId());
+    assertEquals("TestPlugin", decoded.getKey().getId());
+    assertEquals("demo", decoded.getFrom());
+    assertEquals(3, decoded.getOrder());
+    assertEquals(notification.getSendToUserIds(), decoded.getSendToUserIds());
+    assertEquals("é123", decoded.getValueOwnerParameter("activityId"));
+    assertTrue(Arrays.equals(new String[] { "mary" }, decoded.getSendToDaily()));
+    assertNull(decoded.getSendToWeekly());
+  }
+
+  public void testDecodeLegacyData() throws Exception {
+    NotificationCodec codec = new NotificationCodec();
+    // the multi-bytes characters cross the boundaries of the old 32 bytes chunks
+    MessageInfo message = makeMessage(repeat("àéè日本語", 50));
+    assertMessage(message, codec.decodeMessageInfo(gzip(message.toJSON())));
+    assertMessage(message, codec.decodeMessageInfo(message.toJSON().getBytes("UTF-8")));
+  }
+
+  public void testDictionary() throws Exception {
+    NotificationCodec codec = new NotificationCodec(FOOTER.getBytes("UTF-8"), 0, 2);
+    MessageInfo message = makeMessage("Hello");
+    byte[] data = codec.encode(message);
+    assertTrue(data.length < new NotificationCodec(null, 0, 2).encode(message).length);
+    assertMessage(message, codec.decodeMessageInfo(data));
+    //
+    try {
+      new NotificationCodec().decodeMessageInfo(data);
+      fail("The data can not be read without the dictionary");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testDecodeCorruptedData() throws Exception {
+    NotificationCodec codec = new NotificationCodec(null, 0, 2);
+    byte[] data = codec.encode(makeMessage(repeat("Hello ", 100)));
+    try {
+      codec.decodeMessageInfo(Arrays.copyOf(data, data.length / 2));
+      fail("The truncated data must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      codec.decodeMessageInfo(new byte[] { 1, 2, 3, 4, 5 });
+      fail("The unknown data must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private MessageInfo makeMessage(String body) {
+    MessageInfo message = new MessageInfo();
+    message.pluginId("TestPlugin")
+           .from("no-reply@exoplatform.com")
+           .to("root@exoplatform.com")
+           .subject("Test subject")
+           .body(body)
+           .footer(FOOTER)
+           .setCreatedTime(System.currentTimeMillis());
+    return message;
+  }
+
+  private void assertMessage(MessageInfo expected, MessageInfo actual) {
+    assertEquals(expected.getPluginId(), actual.getPluginId());
+    assertEquals(expected.getFrom(), actual.getFrom());
+    assertEquals(expected.getTo(), actual.getTo());
+    assertEquals(expected.getSubject(), actual.getSubject());
+    assertEquals(expected.getBody(), actual.getBody());
+    assertEquals(expected.getFooter(), actual.getFooter());
+    assertEquals(expected.getCreatedTime(), actual.getCreatedTime());
+  }
+
+  private static String repeat(String value, int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  private static byte[] gzip(String value) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    GZIPOutputStream gos = new GZIPOutputStream(os);
+    gos.write(value.getBytes("UTF-8"));
+    gos.close();
+    return os.toByteArray();
+  }
+}
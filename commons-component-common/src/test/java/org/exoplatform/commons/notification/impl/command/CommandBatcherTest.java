@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+public class CommandBatcherTest extends TestCase {
+
+  private List<List<CommandBatcher.Entry>> batches;
+
+  private CommandBatcher.Sink              sink;
+
+  @Override
+  protected void setUp() throws Exception {
+    batches = new CopyOnWriteArrayList<List<CommandBatcher.Entry>>();
+    sink = new CommandBatcher.Sink() {
+      @Override
+      public void submit(List<CommandBatcher.Entry> batch) {
+        batches.add(batch);
+      }
+    };
+  }
+
+  public void testSplitExecution() throws Exception {
+    CommandBatcher batcher = new CommandBatcher(4, 0, sink);
+    batcher.add(newEntries(10));
+    assertEquals(3, batches.size());
+    assertEquals(4, batches.get(0).size());
+    assertEquals(4, batches.get(1).size());
+    assertEquals(2, batches.get(2).size());
+    batcher.add(new ArrayList<CommandBatcher.Entry>());
+    assertEquals(3, batches.size());
+  }
+
+  public void testWindow() throws Exception {
+    CommandBatcher batcher = new CommandBatcher(10, 100, sink);
+    batcher.add(newEntries(3));
+    batcher.add(newEntries(2));
+    // the executions wait for the end of the window
+    assertEquals(0, batches.size());
+    Thread.sleep(500);
+    assertEquals(1, batches.size());
+    assertEquals(5, batches.get(0).size());
+  }
+
+  public void testFullBatch() throws Exception {
+    CommandBatcher batcher = new CommandBatcher(4, 60000, sink);
+    batcher.add(newEntries(3));
+    batcher.add(newEntries(3));
+    // the full batch does not wait for the window
+    assertEquals(1, batches.size());
+    assertEquals(4, batches.get(0).size());
+    batcher.flush();
+    assertEquals(2, batches.size());
+    assertEquals(2, batches.get(1).size());
+  }
+
+  private List<CommandBatcher.Entry> newEntries(int count) {
+    List<CommandBatcher.Entry> entries = new ArrayList<CommandBatcher.Entry>();
+    for (int i = 0; i < count; ++i) {
+      entries.add(new CommandBatcher.Entry(null, null));
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.command;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+public class NotificationCompletionServiceTest extends TestCase {
+
+  private CountDownLatch release;
+
+  @Override
+  protected void setUp() throws Exception {
+    release = new CountDownLatch(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+  }
+
+  public void testThreadNumber() throws Exception {
+    assertEquals(3, newService("3", "block").getThreadNumber());
+    assertEquals(Runtime.getRuntime().availableProcessors(), newService("0", "block").getThreadNumber());
+  }
+
+  public void testBlock() throws Exception {
+    final NotificationCompletionService service = newService("1", "block");
+    // one task running and two waiting
+    for (int i = 0; i < 3; ++i) {
+      service.addTask(new Task(null));
+    }
+    assertFalse(service.hasCapacity());
+    final CountDownLatch added = new CountDownLatch(1);
+    new Thread() {
+      @Override
+      public void run() {
+        service.addTask(new Task(null));
+        added.countDown();
+      }
+    }.start();
+    assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+    release.countDown();
+    assertTrue(added.await(5, TimeUnit.SECONDS));
+    assertTrue(service.waitCompletionFinished(5000));
+    assertEquals(1, service.getRejectedTasks());
+    assertEquals(4, service.getCompletedTasks());
+    assertEquals(0, service.getQueueDepth());
+  }
+
+  public void testCallerRuns() throws Exception {
+    NotificationCompletionService service = newService("1", "caller-runs");
+    for (int i = 0; i < 3; ++i) {
+      service.addTask(new Task(null));
+    }
+    final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    service.addTask(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        threads.add(Thread.currentThread());
+        return true;
+      }
+    });
+    assertEquals(Thread.currentThread(), threads.get(0));
+    assertEquals(1, service.getRejectedTasks());
+    assertEquals(3, service.getQueueDepth());
+  }
+
+  public void testSpill() throws Exception {
+    NotificationCompletionService service = newService("1", "spill");
+    final List<NotificationInfo> spilled = new CopyOnWriteArrayList<NotificationInfo>();
+    service.setSpillHandler(new NotificationCompletionService.SpillHandler() {
+      @Override
+      public boolean spill(List<NotificationInfo> notifications) {
+        spilled.addAll(notifications);
+        return true;
+      }
+    });
+    for (int i = 0; i < 3; ++i) {
+      service.addTask(new Task(null));
+    }
+    NotificationInfo notification = NotificationInfo.instance().key("LikePlugin");
+    service.addTask(new Task(notification));
+    assertEquals(1, spilled.size());
+    assertSame(notification, spilled.get(0));
+    assertEquals(1, service.getSpilledTasks());
+    assertEquals(3, service.getQueueDepth());
+    release.countDown();
+    assertTrue(service.waitCompletionFinished(5000));
+    assertEquals(3, service.getCompletedTasks());
+  }
+
+  private NotificationCompletionService newService(String threads, String policy) {
+    InitParams params = new InitParams();
+    params.addParam(makeParam("thread-number", threads));
+    params.addParam(makeParam("queue-capacity", "2"));
+    params.addParam(makeParam("overflow-policy", policy));
+    return new NotificationCompletionService(params);
+  }
+
+  private ValueParam makeParam(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  /**
+   * Waits for the release of the test
+   */
+  private class Task implements Callable<Boolean>, NotificationCompletionService.Spillable {
+    private final NotificationInfo notification;
+
+    Task(NotificationInfo notification) {
+      this.notification = notification;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+      release.await();
+      return true;
+    }
+
+    @Override
+    public List<NotificationInfo> getNotifications() {
+      return notification == null ? Collections.<NotificationInfo> emptyList() : Collections.singletonList(notification);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.command;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
+import org.exoplatform.commons.notification.NotificationConfiguration;
+import org.exoplatform.commons.notification.impl.codec.NotificationCodec;
+import org.exoplatform.container.xml.InitParams;
+
+public class NotificationSpillQueueTest extends TestCase {
+
+  private File                   directory;
+
+  private File                   spillDirectory;
+
+  private NotificationSpillQueue queue;
+
+  private final NotificationCodec codec = new NotificationCodec();
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("spill", "");
+    directory.delete();
+    spillDirectory = new File(directory, "spill");
+    spillDirectory.mkdirs();
+    NotificationConfiguration configuration = new NotificationConfiguration(new InitParams());
+    configuration.setDataDirectory(directory.getAbsolutePath());
+    queue = new NotificationSpillQueue(configuration, new NotificationCompletionService(new InitParams()));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(directory);
+  }
+
+  public void testQuarantine() throws Exception {
+    DataOutputStream out = open("notifications.spill");
+    write(out, codec.encode(NotificationInfo.instance().key("LikePlugin")));
+    // can not be decoded
+    write(out, new byte[] { 1, 2, 3 });
+    write(out, codec.encode(NotificationInfo.instance().key("CommentPlugin")));
+    // a corrupted length, the rest of the file is quarantined
+    out.writeInt(-1);
+    write(out, codec.encode(NotificationInfo.instance().key("PostPlugin")));
+    out.close();
+
+    assertEquals(2, queue.replay());
+    assertFalse(new File(spillDirectory, "notifications.replay").exists());
+    assertFalse(new File(spillDirectory, "notifications.offset").exists());
+    assertTrue(new File(spillDirectory, "notifications.quarantine").length() > 4 + 3 + 4);
+    assertEquals(0, queue.replay());
+  }
+
+  public void testResumeReplay() throws Exception {
+    byte[] first = codec.encode(NotificationInfo.instance().key("LikePlugin"));
+    DataOutputStream out = open("notifications.replay");
+    write(out, first);
+    write(out, codec.encode(NotificationInfo.instance().key("CommentPlugin")));
+    out.close();
+    // the first record has been replayed by a previous pass
+    out = open("notifications.offset");
+    out.writeLong(4 + first.length);
+    out.close();
+
+    assertEquals(1, queue.replay());
+    assertFalse(new File(spillDirectory, "notifications.quarantine").exists());
+  }
+
+  private DataOutputStream open(String name) throws Exception {
+    return new DataOutputStream(new FileOutputStream(new File(spillDirectory, name)));
+  }
+
+  private void write(DataOutputStream out, byte[] data) throws Exception {
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  private void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
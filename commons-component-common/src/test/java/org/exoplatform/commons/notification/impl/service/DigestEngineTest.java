@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+public class DigestEngineTest extends TestCase {
+
+  private DigestEngine engine;
+
+  @Override
+  protected void setUp() throws Exception {
+    InitParams params = new InitParams();
+    params.addParam(makeParam("workers", "2"));
+    params.addParam(makeParam("partitionSize", "3"));
+    engine = new DigestEngine(params);
+    engine.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    engine.stop();
+  }
+
+  public void testRunPartitions() throws Exception {
+    final Set<String> doneUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    engine.begin();
+    try {
+      int users = engine.run("digest.settings", makeSource(10), new DigestEngine.Task() {
+        @Override
+        public void process(List<UserSetting> users) throws Exception {
+          int value = running.incrementAndGet();
+          if (value > maxRunning.get()) {
+            maxRunning.set(value);
+          }
+          Thread.sleep(50);
+          for (UserSetting user : users) {
+            doneUsers.add(user.getUserId());
+          }
+          running.decrementAndGet();
+        }
+      });
+      assertEquals(10, users);
+      assertTrue(engine.isRunning());
+    } finally {
+      engine.end();
+    }
+    assertEquals(10, doneUsers.size());
+    // the concurrency is bounded by the workers
+    assertTrue(maxRunning.get() <= 2);
+    assertEquals(4, engine.getPartitions().size());
+    assertEquals(10, engine.getProcessedUsers());
+    assertFalse(engine.isRunning());
+  }
+
+  public void testFailedPartition() throws Exception {
+    engine.begin();
+    try {
+      int users = engine.run("digest.settings", makeSource(6), new DigestEngine.Task() {
+        @Override
+        public void process(List<UserSetting> users) throws Exception {
+          if ("user0".equals(users.get(0).getUserId())) {
+            throw new IllegalStateException("Failed partition");
+          }
+        }
+      });
+      // the other partitions are processed
+      assertEquals(3, users);
+      assertEquals(1, engine.getFailedPartitions());
+      // the users of the failed partition are kept for the next digest
+      assertEquals(3, engine.getFailedUsers().size());
+      assertTrue(engine.getFailedUsers().contains("user0"));
+      assertFalse(engine.getFailedUsers().contains("user3"));
+    } finally {
+      engine.end();
+    }
+  }
+
+  private DigestEngine.Source makeSource(final int size) {
+    return new DigestEngine.Source() {
+      @Override
+      public List<UserSetting> load(int offset, int limit) {
+        if (offset >= size) {
+          return null;
+        }
+        List<UserSetting> users = new ArrayList<UserSetting>();
+        for (int i = offset; i < Math.min(size, offset + limit); ++i) {
+          users.add(UserSetting.getInstance().setUserId("user" + i));
+        }
+        return users;
+      }
+    };
+  }
+
+  private ValueParam makeParam(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CoalescingBufferTest extends TestCase {
+
+  public void testGroupWithinWindow() throws Exception {
+    CoalescingBuffer<String> buffer = new CoalescingBuffer<String>(100);
+    assertTrue(buffer.add("root/LikePlugin", "like1", 1000, 0).isEmpty());
+    assertTrue(buffer.add("root/LikePlugin", "like2", 1000, 500).isEmpty());
+    assertTrue(buffer.add("john/LikePlugin", "like3", 1000, 600).isEmpty());
+    assertEquals(3, buffer.size());
+    // the window starts with the first notification of the group
+    assertTrue(buffer.pollExpired(999).isEmpty());
+    List<CoalescingBuffer.Group<String>> expired = buffer.pollExpired(1000);
+    assertEquals(1, expired.size());
+    assertEquals("root/LikePlugin", expired.get(0).getKey());
+    assertEquals(2, expired.get(0).getItems().size());
+    assertEquals(1, buffer.size());
+    // a new group is created after the flush
+    buffer.add("root/LikePlugin", "like4", 1000, 1100);
+    expired = buffer.pollExpired(1600);
+    assertEquals(1, expired.size());
+    assertEquals("john/LikePlugin", expired.get(0).getKey());
+    assertEquals(1, buffer.pollAll().size());
+    assertEquals(0, buffer.size());
+  }
+
+  public void testOverflowFlush() throws Exception {
+    CoalescingBuffer<String> buffer = new CoalescingBuffer<String>(3);
+    buffer.add("root/LikePlugin", "like1", 60000, 0);
+    buffer.add("john/LikePlugin", "like2", 60000, 0);
+    buffer.add("root/LikePlugin", "like3", 60000, 0);
+    List<CoalescingBuffer.Group<String>> overflow = buffer.add("mary/LikePlugin", "like4", 60000, 0);
+    assertEquals(1, overflow.size());
+    assertEquals("root/LikePlugin", overflow.get(0).getKey());
+    assertEquals(2, overflow.get(0).getItems().size());
+    assertEquals(2, buffer.size());
+    assertEquals(1, buffer.getOverflowCount());
+  }
+}
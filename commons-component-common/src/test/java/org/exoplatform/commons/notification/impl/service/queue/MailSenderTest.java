@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.notification.mock.MockMailService;
+import org.exoplatform.commons.notification.mock.MockSmtpServer;
+import org.exoplatform.services.mail.Message;
+
+public class MailSenderTest extends TestCase {
+
+  private MockSmtpServer server;
+
+  private MockMailService mailService;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new MockSmtpServer();
+    final Properties props = new Properties();
+    props.put("mail.transport.protocol", "smtp");
+    props.put("mail.smtp.host", "localhost");
+    props.put("mail.smtp.port", String.valueOf(server.getPort()));
+    mailService = new MockMailService() {
+      @Override
+      public Session getMailSession() {
+        return Session.getInstance(props);
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+  }
+
+  public void testSendReusesConnections() throws Exception {
+    MailSender sender = new MailSender(mailService, 3, 5);
+    try {
+      boolean[] results = sender.send(makeMessages(30, -1));
+      assertEquals(30, results.length);
+      for (boolean result : results) {
+        assertTrue(result);
+      }
+      assertEquals(30, server.getMessageCount());
+      assertTrue(sender.getConnectionCount() <= 3);
+      //
+      sender.send(makeMessages(10, -1));
+      assertEquals(40, server.getMessageCount());
+      assertTrue(sender.getConnectionCount() <= 3);
+    } finally {
+      sender.shutdown();
+    }
+  }
+
+  public void testReportFailedMessage() throws Exception {
+    MailSender sender = new MailSender(mailService, 2, 4);
+    try {
+      boolean[] results = sender.send(makeMessages(8, 2));
+      for (int i = 0; i < results.length; ++i) {
+        assertEquals(i != 2, results[i]);
+      }
+      assertEquals(7, server.getMessageCount());
+    } finally {
+      sender.shutdown();
+    }
+  }
+
+  public void testSendWithoutMailSession() throws Exception {
+    MailSender sender = new MailSender(new MockMailService(), 2, 4);
+    try {
+      boolean[] results = sender.send(makeMessages(5, -1));
+      for (boolean result : results) {
+        assertTrue(result);
+      }
+      assertEquals(0, sender.getConnectionCount());
+      assertEquals(0, server.getMessageCount());
+    } finally {
+      sender.shutdown();
+    }
+  }
+
+  private List<Message> makeMessages(int size, int rejectedIndex) {
+    List<Message> messages = new ArrayList<Message>();
+    for (int i = 0; i < size; ++i) {
+      Message message = new Message();
+      message.setMimeType("text/html");
+      message.setFrom("no-reply@exoplatform.com");
+      message.setTo(i == rejectedIndex ? "reject@exoplatform.com" : "user" + i + "@exoplatform.com");
+      message.setSubject("Subject " + i);
+      message.setBody("<p>Body " + i + "</p>");
+      messages.add(message);
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+
+public class MessageLanesTest extends TestCase {
+
+  public void testGetLaneOf() throws Exception {
+    MessageLanes lanes = new MessageLanes("instant:6,digest:3,bulk:1", "digest:digest,NewsPlugin:bulk,Other:unknown", "", 0, 10);
+    assertEquals("instant", lanes.getDefaultLane());
+    assertEquals("digest", lanes.getLaneOf(makeMessage("digest", "root@exoplatform.com")));
+    assertEquals("bulk", lanes.getLaneOf(makeMessage("NewsPlugin", "root@exoplatform.com")));
+    assertEquals("instant", lanes.getLaneOf(makeMessage("Other", "root@exoplatform.com")));
+    assertEquals("instant", lanes.getLaneOf(makeMessage("LikePlugin", "root@exoplatform.com")));
+  }
+
+  public void testWeightedFairDequeue() throws Exception {
+    MessageLanes lanes = new MessageLanes("instant:3,digest:1", "digest:digest", "", 0, 10);
+    Map<String, List<MessageInfo>> candidates = new HashMap<String, List<MessageInfo>>();
+    candidates.put("instant", makeMessages("LikePlugin", 10, "exoplatform.com"));
+    candidates.put("digest", makeMessages("digest", 100, "exoplatform.com"));
+    //
+    MessageLanes.Selection selection = lanes.select(candidates, 8, 0);
+    assertEquals(8, selection.getSelected().size());
+    assertEquals(6, selection.getConsumed("instant"));
+    assertEquals(2, selection.getConsumed("digest"));
+    // the lanes are taken in turn, the first ones of each lane first
+    assertSame(candidates.get("instant").get(0), selection.getSelected().get(0));
+    assertSame(candidates.get("digest").get(0), selection.getSelected().get(3));
+    assertTrue(selection.getDeferred().isEmpty());
+  }
+
+  public void testEmptyLaneGivesItsShare() throws Exception {
+    MessageLanes lanes = new MessageLanes("instant:3,digest:1", "digest:digest", "", 0, 10);
+    Map<String, List<MessageInfo>> candidates = new HashMap<String, List<MessageInfo>>();
+    candidates.put("instant", makeMessages("LikePlugin", 2, "exoplatform.com"));
+    candidates.put("digest", makeMessages("digest", 100, "exoplatform.com"));
+    //
+    MessageLanes.Selection selection = lanes.select(candidates, 10, 0);
+    assertEquals(10, selection.getSelected().size());
+    assertEquals(2, selection.getConsumed("instant"));
+    assertEquals(8, selection.getConsumed("digest"));
+  }
+
+  public void testDomainRate() throws Exception {
+    // 60 messages per minute, so one token per second, and a burst of 2
+    MessageLanes lanes = new MessageLanes("instant:1", "", "limited.com:60", 0, 2);
+    Map<String, List<MessageInfo>> candidates = new HashMap<String, List<MessageInfo>>();
+    List<MessageInfo> messages = makeMessages("LikePlugin", 4, "limited.com");
+    messages.addAll(makeMessages("LikePlugin", 2, "exoplatform.com"));
+    candidates.put("instant", messages);
+    //
+    MessageLanes.Selection selection = lanes.select(candidates, 10, 0);
+    assertEquals(4, selection.getSelected().size());
+    assertEquals(2, selection.getDeferred().size());
+    assertEquals(6, selection.getConsumed("instant"));
+    assertEquals(2, lanes.getLane("instant").getDeferredCount());
+    // the bucket is refilled with the time
+    candidates.put("instant", makeMessages("LikePlugin", 3, "limited.com"));
+    selection = lanes.select(candidates, 10, 1000);
+    assertEquals(1, selection.getSelected().size());
+    assertEquals(2, selection.getDeferred().size());
+  }
+
+  public void testDeferredAreLimited() throws Exception {
+    MessageLanes lanes = new MessageLanes("instant:1", "", "", 60, 1);
+    Map<String, List<MessageInfo>> candidates = new HashMap<String, List<MessageInfo>>();
+    candidates.put("instant", makeMessages("LikePlugin", 20, "limited.com"));
+    //
+    MessageLanes.Selection selection = lanes.select(candidates, 5, 0);
+    assertEquals(1, selection.getSelected().size());
+    assertEquals(5, selection.getDeferred().size());
+    assertEquals(6, selection.getConsumed("instant"));
+  }
+
+  public void testGetDomain() throws Exception {
+    assertEquals("exoplatform.com", MessageLanes.getDomain("root@eXoPlatform.com"));
+    assertEquals("exoplatform.com", MessageLanes.getDomain("Root <root@exoplatform.com>"));
+    assertEquals("exoplatform.com", MessageLanes.getDomain("root@exoplatform.com,john@acme.com"));
+    assertEquals("", MessageLanes.getDomain("root"));
+  }
+
+  public void testTokenBucket() throws Exception {
+    TokenBucket bucket = new TokenBucket(120, 2, 0);
+    assertTrue(bucket.tryAcquire(0));
+    assertTrue(bucket.tryAcquire(0));
+    assertFalse(bucket.tryAcquire(0));
+    assertFalse(bucket.tryAcquire(400));
+    assertTrue(bucket.tryAcquire(500));
+    assertFalse(bucket.isFull(500));
+    assertTrue(bucket.isFull(60000));
+  }
+
+  private List<MessageInfo> makeMessages(String pluginId, int size, String domain) {
+    List<MessageInfo> messages = new ArrayList<MessageInfo>();
+    for (int i = 0; i < size; ++i) {
+      messages.add(makeMessage(pluginId, "user" + i + "@" + domain));
+    }
+    return messages;
+  }
+
+  private MessageInfo makeMessage(String pluginId, String to) {
+    MessageInfo message = new MessageInfo();
+    message.pluginId(pluginId).to(to);
+    return message;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MessageLogTest extends TestCase {
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("message-log", "");
+    directory.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  public void testAppendAndRead() throws Exception {
+    MessageLog log = new MessageLog(directory, 1024, false);
+    long first = log.append("message 1".getBytes());
+    log.append("message 2".getBytes());
+    //
+    List<MessageLog.Entry> entries = log.read(log.getConsumerOffset(), 10);
+    assertEquals(2, entries.size());
+    assertEquals(first, entries.get(0).getOffset());
+    assertEquals("message 1", new String(entries.get(0).getData()));
+    assertEquals("message 2", new String(entries.get(1).getData()));
+    //
+    entries = log.read(entries.get(0).getNextOffset(), 10);
+    assertEquals(1, entries.size());
+    assertEquals("message 2", new String(entries.get(0).getData()));
+    log.close();
+  }
+
+  public void testCommitAndReopen() throws Exception {
+    MessageLog log = new MessageLog(directory, 1024, false);
+    for (int i = 0; i < 5; ++i) {
+      log.append(("message " + i).getBytes());
+    }
+    List<MessageLog.Entry> entries = log.read(log.getConsumerOffset(), 3);
+    log.commit(entries.get(2).getNextOffset());
+    log.close();
+    //
+    log = new MessageLog(directory, 1024, false);
+    assertEquals(2, log.countPending());
+    entries = log.read(log.getConsumerOffset(), 10);
+    assertEquals("message 3", new String(entries.get(0).getData()));
+    //
+    log.append("message 5".getBytes());
+    assertEquals(3, log.countPending());
+    log.close();
+  }
+
+  public void testRollAndCompact() throws Exception {
+    MessageLog log = new MessageLog(directory, 64, false);
+    for (int i = 0; i < 10; ++i) {
+      log.append(("message " + i).getBytes());
+    }
+    assertTrue(log.getSegmentCount() > 1);
+    assertEquals(10, log.countPending());
+    //
+    List<MessageLog.Entry> entries = log.read(log.getConsumerOffset(), 10);
+    assertEquals(10, entries.size());
+    for (int i = 0; i < 10; ++i) {
+      assertEquals("message " + i, new String(entries.get(i).getData()));
+    }
+    // the pending records are counted across the segments
+    log.commit(entries.get(4).getNextOffset());
+    assertEquals(5, log.countPending());
+    log.commit(entries.get(9).getNextOffset());
+    assertTrue(log.compact() > 0);
+    assertEquals(1, log.getSegmentCount());
+    assertEquals(0, log.countPending());
+    log.close();
+  }
+
+  public void testRecoverTornRecord() throws Exception {
+    MessageLog log = new MessageLog(directory, 1024, false);
+    log.append("message 1".getBytes());
+    long offset = log.append("message 2".getBytes());
+    log.close();
+    // corrupts the payload of the last record
+    File segment = new File(directory, String.format("%020d.log", 0));
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    raf.seek(offset + 8);
+    raf.write('X');
+    raf.close();
+    //
+    log = new MessageLog(directory, 1024, false);
+    assertEquals(1, log.countPending());
+    assertEquals(offset, log.getEndOffset());
+    log.append("message 3".getBytes());
+    List<MessageLog.Entry> entries = log.read(log.getConsumerOffset(), 10);
+    assertEquals(2, entries.size());
+    assertEquals("message 3", new String(entries.get(1).getData()));
+    log.close();
+  }
+
+  public void testClear() throws Exception {
+    MessageLog log = new MessageLog(directory, 64, false);
+    for (int i = 0; i < 10; ++i) {
+      log.append(("message " + i).getBytes());
+    }
+    log.clear();
+    assertEquals(0, log.countPending());
+    assertEquals(1, log.getSegmentCount());
+    log.close();
+  }
+}
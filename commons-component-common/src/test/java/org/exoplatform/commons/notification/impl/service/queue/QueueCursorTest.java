@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import junit.framework.TestCase;
+
+public class QueueCursorTest extends TestCase {
+
+  public void testIsAfter() throws Exception {
+    QueueCursor cursor = QueueCursor.valueOf(null);
+    assertTrue(cursor.isAfter(1, "a"));
+    //
+    cursor.claim(100, "b");
+    assertFalse(cursor.isAfter(99, "z"));
+    assertFalse(cursor.isAfter(100, "a"));
+    assertFalse(cursor.isAfter(100, "b"));
+    assertTrue(cursor.isAfter(100, "c"));
+    assertTrue(cursor.isAfter(101, "a"));
+  }
+
+  public void testClaimOnlyMovesForward() throws Exception {
+    QueueCursor cursor = new QueueCursor(100, "b");
+    cursor.claim(50, "a");
+    assertEquals(100, cursor.getCreatedTime());
+    assertEquals("100:b", cursor.toString());
+  }
+
+  public void testReleaseKeepsOldestClaim() throws Exception {
+    QueueCursor cursor = new QueueCursor(0, null);
+    long first = cursor.claim(100, "a");
+    long second = cursor.claim(200, "b");
+    // the second page is done but the first one is still being sent
+    assertEquals("0:", cursor.release(second));
+    assertEquals("200:b", cursor.release(first));
+    //
+    long third = cursor.claim(300, "c");
+    assertEquals("300:c", cursor.release(third));
+  }
+
+  public void testValueOf() throws Exception {
+    QueueCursor cursor = QueueCursor.valueOf("1400000000000:abc");
+    assertEquals(1400000000000L, cursor.getCreatedTime());
+    assertEquals("1400000000000:abc", cursor.toString());
+    assertEquals("5:", QueueCursor.valueOf("5").toString());
+    assertEquals("5:", QueueCursor.valueOf("5:").toString());
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class RemovalJournalTest extends TestCase {
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("removal", ".journal");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  public void testRemoveByBatches() throws Exception {
+    RecordingRemover remover = new RecordingRemover();
+    RemovalJournal journal = new RemovalJournal(file, 3, 50, remover);
+    journal.start();
+    try {
+      journal.mark(Arrays.asList("/a/1", "/a/2", "/a/3", "/a/4", "/a/5", "/a/6", "/a/7"));
+      assertTrue(journal.awaitRemoved(5000));
+      assertEquals(7, remover.paths.size());
+      for (int size : remover.batchSizes) {
+        assertTrue(size <= 3);
+      }
+      assertFalse(journal.isPending("/a/1"));
+      assertEquals(0, file.length());
+    } finally {
+      journal.stop();
+    }
+  }
+
+  public void testCompactRemovedTombstones() throws Exception {
+    final int count = 2 * RemovalJournal.COMPACT_THRESHOLD;
+    final CountDownLatch last = new CountDownLatch(1);
+    RemovalJournal journal = new RemovalJournal(file, 100, 10, new RemovalJournal.Remover() {
+      @Override
+      public void remove(List<String> paths) throws Exception {
+        if (paths.contains("/a/" + (count - 1))) {
+          last.await();
+        }
+      }
+    });
+    journal.start();
+    try {
+      List<String> paths = new ArrayList<String>();
+      for (int i = 0; i < count; ++i) {
+        paths.add("/a/" + i);
+      }
+      journal.mark(paths);
+      long length = file.length();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (journal.getPendingCount() > 100 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(100, journal.getPendingCount());
+      // the journal has been rewritten without the removed tombstones
+      assertTrue(file.length() < length / 2);
+      assertTrue(journal.isPending("/a/" + (count - 1)));
+      last.countDown();
+      assertTrue(journal.awaitRemoved(5000));
+      assertEquals(0, file.length());
+    } finally {
+      last.countDown();
+      journal.stop();
+    }
+  }
+
+  public void testReplayAfterRestart() throws Exception {
+    RemovalJournal journal = new RemovalJournal(file, 10, 50, new RemovalJournal.Remover() {
+      @Override
+      public void remove(List<String> paths) throws Exception {
+        throw new Exception("Repository is not available");
+      }
+    });
+    journal.start();
+    journal.mark(Arrays.asList("/a/1", "/a/2"));
+    assertTrue(journal.isPending("/a/1"));
+    journal.stop();
+    // a record partially written before the crash
+    FileOutputStream os = new FileOutputStream(file, true);
+    os.write("/a/3".getBytes("UTF-8"));
+    os.close();
+    //
+    RecordingRemover remover = new RecordingRemover();
+    journal = new RemovalJournal(file, 10, 50, remover);
+    journal.start();
+    try {
+      assertTrue(journal.awaitRemoved(5000));
+      Collections.sort(remover.paths);
+      assertEquals(Arrays.asList("/a/1", "/a/2"), remover.paths);
+    } finally {
+      journal.stop();
+    }
+  }
+
+  private static class RecordingRemover implements RemovalJournal.Remover {
+    private final List<String>  paths      = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    public void remove(List<String> batch) throws Exception {
+      paths.addAll(batch);
+      batchSizes.add(batch.size());
+    }
+  }
+}
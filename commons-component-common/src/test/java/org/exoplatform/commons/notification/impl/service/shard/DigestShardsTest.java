@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+public class DigestShardsTest extends TestCase {
+
+  private static final String RUN   = "daily20141001";
+
+  private static final int    USERS = 200;
+
+  private InMemoryLeaseStore  store;
+
+  private List<DigestShards>  nodes;
+
+  @Override
+  protected void setUp() throws Exception {
+    store = new InMemoryLeaseStore();
+    nodes = new ArrayList<DigestShards>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (DigestShards node : nodes) {
+      node.stop();
+    }
+  }
+
+  public void testShardsProcessedOnce() throws Exception {
+    final ConcurrentMap<String, AtomicInteger> sent = new ConcurrentHashMap<String, AtomicInteger>();
+    final List<Exception> failures = new ArrayList<Exception>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 3; ++i) {
+      final DigestShards node = newNode("node" + i, 1000);
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            assertTrue(node.execute(RUN, new Digest(sent, 20)));
+          } catch (Exception e) {
+            failures.add(e);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, failures.size());
+    // each user receives one digest
+    assertEquals(USERS, sent.size());
+    for (AtomicInteger count : sent.values()) {
+      assertEquals(1, count.get());
+    }
+    int completed = 0;
+    for (DigestShards node : nodes) {
+      completed += node.getCompletedShards();
+      // the work is shared
+      assertTrue(node.getCompletedShards() > 0);
+    }
+    assertEquals(8, completed);
+    assertTrue(nodes.get(0).isDone(RUN));
+  }
+
+  public void testTakeOverExpiredLease() throws Exception {
+    // a stopped node holding a shard
+    long now = System.currentTimeMillis();
+    assertTrue(store.acquire(RUN, 3, "stopped", now, now + 300));
+    DigestShards node = newNode("node", 300);
+    ConcurrentMap<String, AtomicInteger> sent = new ConcurrentHashMap<String, AtomicInteger>();
+    assertTrue(node.execute(RUN, new Digest(sent, 0)));
+    assertEquals(USERS, sent.size());
+    assertEquals(8, node.getCompletedShards());
+    assertEquals("node", store.get(RUN, 3).getOwner());
+  }
+
+  public void testLostLease() throws Exception {
+    final DigestShards node = newNode("node", 3000);
+    final AtomicInteger lost = new AtomicInteger(-1);
+    final List<Boolean> accepted = new ArrayList<Boolean>();
+    assertTrue(node.execute(RUN, new DigestShards.Work() {
+      @Override
+      public void process(DigestShards.Filter filter) throws Exception {
+        if (lost.get() < 0) {
+          int shard = node.getHeldShards().get(0);
+          lost.set(shard);
+          // another node takes the lease, as if it had expired
+          long now = System.currentTimeMillis();
+          assertTrue(store.acquire(RUN, shard, "other", now + 120000, now + 200));
+          node.renew();
+          for (int i = 0; i < USERS; ++i) {
+            if (DigestShards.getShard("user" + i, 8) == shard) {
+              accepted.add(filter.accept("user" + i));
+            }
+          }
+        }
+      }
+    }));
+    assertEquals(1, node.getLostShards());
+    assertFalse(accepted.isEmpty());
+    assertFalse(accepted.contains(Boolean.TRUE));
+    // the shard is taken back after the expiry of the lease of the other node
+    assertEquals(8, node.getCompletedShards());
+    assertEquals("node", store.get(RUN, lost.get()).getOwner());
+  }
+
+  private DigestShards newNode(String nodeId, int leaseDuration) {
+    InitParams params = new InitParams();
+    params.addParam(makeParam("nodeId", nodeId));
+    params.addParam(makeParam("shardCount", "8"));
+    params.addParam(makeParam("claimSize", "1"));
+    params.addParam(makeParam("leaseDuration", String.valueOf(leaseDuration)));
+    params.addParam(makeParam("waitTime", "10000"));
+    DigestShards node = new DigestShards(params, store);
+    node.start();
+    nodes.add(node);
+    return node;
+  }
+
+  private ValueParam makeParam(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  /**
+   * Sends the digest to the users accepted by the filter
+   */
+  private static class Digest implements DigestShards.Work {
+    private final ConcurrentMap<String, AtomicInteger> sent;
+
+    private final long                       delay;
+
+    Digest(ConcurrentMap<String, AtomicInteger> sent, long delay) {
+      this.sent = sent;
+      this.delay = delay;
+    }
+
+    @Override
+    public void process(DigestShards.Filter filter) throws Exception {
+      for (int i = 0; i < USERS; ++i) {
+        String userId = "user" + i;
+        if (filter.accept(userId)) {
+          AtomicInteger count = new AtomicInteger();
+          AtomicInteger previous = sent.putIfAbsent(userId, count);
+          (previous == null ? count : previous).incrementAndGet();
+        }
+      }
+      Thread.sleep(delay);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
+
+public class DigestInboxTest extends TestCase {
+
+  private File        directory;
+
+  private DigestInbox inbox;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("inbox", "");
+    directory.delete();
+    inbox = new DigestInbox(directory);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(directory);
+  }
+
+  public void testReadInbox() throws Exception {
+    inbox.append("daily", "20141001", "message1".getBytes(), Arrays.asList("root", "john"), false);
+    inbox.append("daily", "20141001", "message2".getBytes(), Collections.<String>emptyList(), true);
+    inbox.append("daily", "20141002", "message3".getBytes(), Arrays.asList("root"), false);
+    inbox.append("weekly", "2014w40", "message4".getBytes(), Arrays.asList("root"), false);
+    assertEquals(Arrays.asList("message1", "message2", "message3"), toStrings(inbox.read("daily", "root")));
+    assertEquals(Arrays.asList("message1", "message2"), toStrings(inbox.read("daily", "john")));
+    assertEquals(Arrays.asList("message2"), toStrings(inbox.read("daily", "mary")));
+    assertEquals(Arrays.asList("message4"), toStrings(inbox.read("weekly", "root")));
+    assertEquals(0, inbox.read("weekly", "john").size());
+  }
+
+  public void testTruncate() throws Exception {
+    inbox.append("daily", "20141001", "message1".getBytes(), Arrays.asList("root"), false);
+    inbox.append("daily", "20141002", "message2".getBytes(), Arrays.asList("root", "john"), false);
+    inbox.append("weekly", "2014w40", "message3".getBytes(), Arrays.asList("root"), false);
+    assertEquals(2, inbox.read("daily", "root").size());
+    // appended after the read of root
+    inbox.append("daily", "20141002", "message4".getBytes(), Arrays.asList("root"), false);
+    inbox.truncate("daily", "20141002", 0, Collections.<String>emptySet());
+    // the bucket of the previous day is read and removed
+    assertEquals(1, inbox.getBucketCount("daily"));
+    assertEquals(Arrays.asList("message4"), toStrings(inbox.read("daily", "root")));
+    // john has not been read
+    assertEquals(Arrays.asList("message2"), toStrings(inbox.read("daily", "john")));
+    // the other frequency is not changed
+    assertEquals(Arrays.asList("message3"), toStrings(inbox.read("weekly", "root")));
+    inbox.truncate("daily", "20141002", 0, Collections.<String>emptySet());
+    assertEquals(0, inbox.read("daily", "root").size());
+    assertEquals(0, inbox.read("daily", "john").size());
+  }
+
+  public void testTruncateUnread() throws Exception {
+    inbox.append("daily", "20141001", "message1".getBytes(), Arrays.asList("root", "john"), false);
+    inbox.append("daily", "20141002", "message2".getBytes(), Arrays.asList("root"), false);
+    assertEquals(2, inbox.read("daily", "root").size());
+    inbox.truncate("daily", "20141002", 0, Collections.<String>emptySet());
+    // the previous day is kept until john reads it
+    assertEquals(2, inbox.getBucketCount("daily"));
+    assertEquals(Arrays.asList("message1"), toStrings(inbox.read("daily", "john")));
+    inbox.truncate("daily", "20141002", 0, Collections.<String>emptySet());
+    assertEquals(1, inbox.getBucketCount("daily"));
+
+    // an unread bucket is removed once it expires
+    inbox.append("daily", "20141002", "message3".getBytes(), Arrays.asList("john"), false);
+    inbox.truncate("daily", "20141003", 0, Collections.<String>emptySet());
+    assertEquals(1, inbox.getBucketCount("daily"));
+    inbox.truncate("daily", "20141003", System.currentTimeMillis() + 1000, Collections.<String>emptySet());
+    assertEquals(0, inbox.getBucketCount("daily"));
+  }
+
+  public void testTruncateKeptUsers() throws Exception {
+    inbox.append("daily", "20141002", "message1".getBytes(), Arrays.asList("root", "john"), false);
+    inbox.append("daily", "20141002", "message2".getBytes(), Collections.<String>emptyList(), true);
+    assertEquals(2, inbox.read("daily", "root").size());
+    assertEquals(2, inbox.read("daily", "john").size());
+    inbox.truncate("daily", "20141002", 0, Collections.singleton("john"));
+    // the digest of john has failed, its messages are kept
+    assertEquals(0, inbox.read("daily", "root").size());
+    assertEquals(Arrays.asList("message1", "message2"), toStrings(inbox.read("daily", "john")));
+    inbox.truncate("daily", "20141002", 0, Collections.<String>emptySet());
+    assertEquals(0, inbox.read("daily", "john").size());
+  }
+
+  public void testAppendMessages() throws Exception {
+    List<DigestInbox.Message> messages = new ArrayList<DigestInbox.Message>();
+    messages.add(new DigestInbox.Message("message1".getBytes(), Arrays.asList("root", "john"), false));
+    messages.add(new DigestInbox.Message("message2".getBytes(), Collections.<String>emptyList(), true));
+    messages.add(new DigestInbox.Message("message3".getBytes(), Arrays.asList("root"), false));
+    inbox.append("daily", "20141001", messages);
+    assertEquals(Arrays.asList("message1", "message2", "message3"), toStrings(inbox.read("daily", "root")));
+    assertEquals(Arrays.asList("message1", "message2"), toStrings(inbox.read("daily", "john")));
+  }
+
+  public void testTruncateConsumed() throws Exception {
+    inbox.append("daily", "20141002", "message1".getBytes(), Arrays.asList("root"), false);
+    inbox.append("daily", "20141002", "other2".getBytes(), Arrays.asList("root"), false);
+    inbox.append("daily", "20141002", "message3".getBytes(), Arrays.asList("root"), false);
+    final List<String> read = new ArrayList<String>();
+    inbox.read("daily", "root", new DigestInbox.Reader() {
+      @Override
+      public boolean read(byte[] message) {
+        read.add(new String(message));
+        return read.get(read.size() - 1).startsWith("message");
+      }
+    });
+    assertEquals(3, read.size());
+    inbox.truncate("daily", "20141002", 0, Collections.<String>emptySet());
+    // the message not consumed is kept
+    assertEquals(Arrays.asList("other2"), toStrings(inbox.read("daily", "root")));
+  }
+
+  public void testWeekPeriod() throws Exception {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setFirstDayOfWeek(Calendar.MONDAY);
+    calendar.setMinimalDaysInFirstWeek(4);
+    // Monday, December 29th 2014 is in the first week of 2015
+    calendar.set(2014, Calendar.DECEMBER, 29);
+    assertEquals("2015w01", DigestInboxStorageImpl.getPeriod(FREQUENCY.WEEKLY, calendar));
+    // Friday, January 1st 2016 is in the last week of 2015
+    calendar.set(2016, Calendar.JANUARY, 1);
+    assertEquals("2015w53", DigestInboxStorageImpl.getPeriod(FREQUENCY.WEEKLY, calendar));
+    calendar.set(2015, Calendar.JUNE, 15);
+    assertEquals("2015w25", DigestInboxStorageImpl.getPeriod(FREQUENCY.WEEKLY, calendar));
+    assertEquals("20150615", DigestInboxStorageImpl.getPeriod(FREQUENCY.DAILY, calendar));
+  }
+
+  private List<String> toStrings(List<byte[]> messages) {
+    List<String> values = new ArrayList<String>();
+    for (byte[] message : messages) {
+      values.add(new String(message));
+    }
+    return values;
+  }
+
+  private void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
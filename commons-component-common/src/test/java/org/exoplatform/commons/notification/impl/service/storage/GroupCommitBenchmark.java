@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the save of the messages under a global lock, as done by the
+ * previous versions of {@link NotificationDataStorageImpl}, with the
+ * striped group commits, for 1, 4 and 16 producer threads.
+ *
+ * The session save is simulated by a writer with a fixed cost per save and
+ * a small cost per message.
+ *
+ * Run it from the test classpath with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.exoplatform.commons.notification.impl.service.storage.GroupCommitBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupCommitBenchmark {
+
+  /** The simulated cost in microseconds of a session save */
+  private static final long             SAVE_COST    = 2000;
+
+  /** The simulated cost in microseconds of the node of a message */
+  private static final long             MESSAGE_COST = 20;
+
+  private static final int              STRIPES      = 16;
+
+  private static final String[]         PLUGINS      = { "LikePlugin", "CommentPlugin", "PostPlugin", "MentionPlugin" };
+
+  private final ReentrantLock           lock         = new ReentrantLock();
+
+  private GroupCommit.Writer<String>    writer;
+
+  private GroupCommit<String>[]         commits;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() {
+    writer = new GroupCommit.Writer<String>() {
+      @Override
+      public void write(List<String> items) throws Exception {
+        TimeUnit.MICROSECONDS.sleep(SAVE_COST + MESSAGE_COST * items.size());
+      }
+    };
+    commits = new GroupCommit[STRIPES];
+    for (int i = 0; i < commits.length; ++i) {
+      commits[i] = new GroupCommit<String>(writer, 5, 50);
+    }
+  }
+
+  @Benchmark
+  public void globalLock() throws Exception {
+    String plugin = nextPlugin();
+    lock.lock();
+    try {
+      writer.write(Collections.singletonList(plugin));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Benchmark
+  public void groupCommit() throws Exception {
+    String plugin = nextPlugin();
+    commits[(plugin.hashCode() & Integer.MAX_VALUE) % commits.length].commit(plugin);
+  }
+
+  private String nextPlugin() {
+    return PLUGINS[(int) (Thread.currentThread().getId() % PLUGINS.length)];
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int threads : new int[] { 1, 4, 16 }) {
+      new Runner(new OptionsBuilder().include(GroupCommitBenchmark.class.getSimpleName()).threads(threads).build()).run();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class GroupCommitTest extends TestCase {
+
+  public void testConcurrentCommits() throws Exception {
+    final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+    final GroupCommit<Integer> commit = new GroupCommit<Integer>(new GroupCommit.Writer<Integer>() {
+      @Override
+      public void write(List<Integer> items) throws Exception {
+        Thread.sleep(10);
+        written.addAll(items);
+      }
+    }, 20, 5);
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(20);
+    for (int i = 0; i < 20; ++i) {
+      final int item = i;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            commit.commit(item);
+            // the item is written when the commit returns
+            if (written.contains(item) == false) {
+              failures.incrementAndGet();
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, failures.get());
+    assertEquals(20, written.size());
+    assertEquals(20, commit.getItemCount());
+    // the items are written in batches of 5 at most
+    assertTrue(commit.getBatchCount() >= 4 && commit.getBatchCount() < 20);
+  }
+
+  public void testFailure() throws Exception {
+    GroupCommit<Integer> commit = new GroupCommit<Integer>(new GroupCommit.Writer<Integer>() {
+      @Override
+      public void write(List<Integer> items) throws Exception {
+        if (items.contains(1)) {
+          throw new IllegalStateException("Failed batch");
+        }
+      }
+    }, 0, 5);
+    commit.commit(0);
+    try {
+      commit.commit(1);
+      fail("The failure of the batch must be given to the caller");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // the next batches are written
+    commit.commit(2);
+    assertEquals(2, commit.getBatchCount());
+  }
+
+  public void testCommitItems() throws Exception {
+    final List<Integer> written = new ArrayList<Integer>();
+    GroupCommit<Integer> commit = new GroupCommit<Integer>(new GroupCommit.Writer<Integer>() {
+      @Override
+      public void write(List<Integer> items) throws Exception {
+        written.addAll(items);
+      }
+    }, 0, 3);
+    commit.commit(Arrays.asList(0, 1, 2, 3, 4, 5, 6));
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), written);
+    // the batches are full but the last one
+    assertEquals(3, commit.getBatchCount());
+    commit.commit(Collections.<Integer> emptyList());
+    assertEquals(3, commit.getBatchCount());
+  }
+
+  public void testCommitItemsFailure() throws Exception {
+    final List<Integer> written = new ArrayList<Integer>();
+    GroupCommit<Integer> commit = new GroupCommit<Integer>(new GroupCommit.Writer<Integer>() {
+      @Override
+      public void write(List<Integer> items) throws Exception {
+        if (items.contains(4)) {
+          throw new IllegalStateException("Failed batch");
+        }
+        written.addAll(items);
+      }
+    }, 0, 3);
+    // only the items of the failed batch are given back
+    assertEquals(Arrays.asList(3, 4, 5), commit.commit(Arrays.asList(0, 1, 2, 3, 4, 5, 6)));
+    assertEquals(Arrays.asList(0, 1, 2, 6), written);
+    assertEquals(Collections.<Integer> emptyList(), commit.commit(Arrays.asList(7, 8)));
+  }
+}
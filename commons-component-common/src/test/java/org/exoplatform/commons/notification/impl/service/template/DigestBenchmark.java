@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.template;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.exoplatform.commons.api.notification.service.template.DigestWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the build of the digest messages list done by the previous
+ * versions of {@link DigestorServiceImpl}, a StringWriter counted with a
+ * regular expression and copied in Strings, with the reused
+ * {@link DigestWriter} written in the body.
+ *
+ * The allocation per digest is given by the "gc.alloc.rate.norm" result of
+ * the GC profiler. Run it from the test classpath with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.exoplatform.commons.notification.impl.service.template.DigestBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+
+  private static final Pattern LI_PATTERN = Pattern.compile("<li([^>]+)>(.+?)</li>");
+
+  private static final String  ITEM       = "<li style=\"margin: 0 0 13px 0; list-style-position: outside;\">"
+                                              + "<a href=\"http://localhost:8080/portal/intranet/activity?id=%s\">John Smith</a>"
+                                              + " has commented on your activity: the notifications of the week</li>";
+
+  private static final String  HEADER     = "<html><body><p>Hi John,</p><ul style=\"padding-left: 0; color: #2F5E92;\">";
+
+  private static final String  FOOTER     = "</ul><p>Click here to change the notification settings.</p></body></html>";
+
+  /** The number of items of the digest */
+  @Param({ "1", "50", "1000" })
+  private int                  items;
+
+  private String[]             messages;
+
+  private final DigestWriter   writer     = new DigestWriter();
+
+  @Setup
+  public void setUp() {
+    messages = new String[items];
+    for (int i = 0; i < items; ++i) {
+      messages[i] = String.format(ITEM, i);
+    }
+  }
+
+  @Benchmark
+  public String regex() throws Exception {
+    Writer list = new StringWriter();
+    for (String message : messages) {
+      list.write(message);
+    }
+    String digestMessageList = ((StringWriter) list).getBuffer().toString();
+    int total = 0;
+    String attributes = null;
+    Matcher matcher = LI_PATTERN.matcher(digestMessageList);
+    while (matcher.find()) {
+      ++total;
+      attributes = matcher.group(1);
+    }
+    if (total == 1) {
+      int beginIndex = attributes.indexOf("margin");
+      int endIndex = attributes.indexOf(";", beginIndex) + 1;
+      digestMessageList = digestMessageList.replace(attributes.substring(beginIndex, endIndex), "margin: 0; padding: 15px 20px;");
+    }
+    StringWriter body = new StringWriter();
+    body.write(HEADER);
+    body.write(digestMessageList);
+    body.write(FOOTER);
+    return body.toString();
+  }
+
+  @Benchmark
+  public String streaming() throws Exception {
+    writer.reset();
+    for (String message : messages) {
+      writer.write(message);
+    }
+    if (writer.countItems(0) == 1) {
+      writer.replaceItemStyle("margin", "margin: 0; padding: 15px 20px;");
+    }
+    StringWriter body = new StringWriter();
+    body.write(HEADER);
+    writer.writeTo(body);
+    body.write(FOOTER);
+    return body.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(DigestBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.template;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.service.template.DigestWriter;
+
+public class DigestWriterTest extends TestCase {
+
+  private static final String ITEM = "<li style=\"margin: 0 0 13px 0; list-style-position: outside;\">%s</li>";
+
+  public void testCountItems() throws Exception {
+    DigestWriter writer = new DigestWriter(16);
+    writer.write(String.format(ITEM, "John likes your activity"));
+    writer.write("<link rel=\"stylesheet\"><li>no attribute</li>");
+    int from = writer.size();
+    writer.write(String.format(ITEM, "Mary commented your activity"));
+    writer.write(String.format(ITEM, "Root mentioned you"));
+    assertEquals(3, writer.countItems(0));
+    assertEquals(2, writer.countItems(from));
+    // the buffer has grown
+    assertTrue(writer.capacity() > 16);
+  }
+
+  public void testReplaceItemStyle() throws Exception {
+    DigestWriter writer = new DigestWriter();
+    writer.write(String.format(ITEM, "John likes your activity"));
+    assertEquals(1, writer.countItems(0));
+    assertTrue(writer.replaceItemStyle("margin", "margin: 0; padding: 15px 20px;"));
+    assertEquals("<li style=\"margin: 0; padding: 15px 20px; list-style-position: outside;\">John likes your activity</li>",
+                 writer.toString());
+    // the style is only searched in the attributes of the item
+    writer.reset();
+    writer.write("<li class=\"item\">margin: 0;</li>");
+    assertEquals(1, writer.countItems(0));
+    assertFalse(writer.replaceItemStyle("margin", "margin: 0;"));
+  }
+
+  public void testWriteTo() throws Exception {
+    DigestWriter writer = new DigestWriter();
+    writer.write("digest");
+    writer.addItems(2);
+    StringWriter out = new StringWriter();
+    writer.writeTo(out);
+    assertEquals("digest", out.toString());
+    assertEquals(2, writer.getReportedItems());
+    writer.reset();
+    assertEquals(0, writer.size());
+    assertEquals(0, writer.getReportedItems());
+  }
+}
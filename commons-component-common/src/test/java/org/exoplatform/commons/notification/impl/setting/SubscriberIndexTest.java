@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.setting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
+
+public class SubscriberIndexTest extends TestCase {
+
+  public void testSubscribers() throws Exception {
+    SubscriberIndex index = makeIndex();
+    assertEquals(Arrays.asList("root", "john"), index.getSubscribers("LikePlugin", FREQUENCY.INSTANTLY));
+    assertEquals(Arrays.asList("john"), index.getSubscribers("CommentPlugin", FREQUENCY.DAILY));
+    // mary is not active
+    assertEquals(0, index.getSubscribers("PostPlugin", FREQUENCY.INSTANTLY).size());
+    assertEquals(0, index.getSubscribers("Unknown", FREQUENCY.INSTANTLY).size());
+    // the subscriptions are replaced by an update
+    index.update(makeSetting("root", true, "PostPlugin", "", "LikePlugin"));
+    assertEquals(Arrays.asList("john"), index.getSubscribers("LikePlugin", FREQUENCY.INSTANTLY));
+    assertEquals(Arrays.asList("root"), index.getSubscribers("PostPlugin", FREQUENCY.INSTANTLY));
+    index.remove("john");
+    assertFalse(index.contains("john"));
+    assertEquals(0, index.getSubscribers("LikePlugin", FREQUENCY.INSTANTLY).size());
+    assertEquals(2, index.size());
+  }
+
+  public void testDigestUsers() throws Exception {
+    SubscriberIndex index = makeIndex();
+    assertEquals(1, index.getNumberOfDigestUsers(false));
+    assertEquals(2, index.getNumberOfDigestUsers(true));
+    List<UserSetting> users = index.getDigestUsers(true, 0, 0);
+    assertEquals("root", users.get(0).getUserId());
+    assertEquals(Arrays.asList("LikePlugin"), users.get(0).getWeeklyProviders());
+    assertEquals("john", users.get(1).getUserId());
+    assertTrue(users.get(1).isInDaily("CommentPlugin"));
+    assertEquals(1000, users.get(1).getLastUpdateTime().getTimeInMillis());
+    // paging
+    users = index.getDigestUsers(true, 1, 1);
+    assertEquals(1, users.size());
+    assertEquals("john", users.get(0).getUserId());
+  }
+
+  public void testSnapshot() throws Exception {
+    SubscriberIndex index = makeIndex();
+    index.remove("root");
+    File file = File.createTempFile("subscribers", ".idx");
+    try {
+      long before = System.currentTimeMillis();
+      index.save(file);
+      SubscriberIndex loaded = SubscriberIndex.load(file, "repository");
+      assertEquals(0, index.getSavedTime());
+      assertTrue(loaded.getSavedTime() >= before && loaded.getSavedTime() <= System.currentTimeMillis());
+      assertEquals(2, loaded.size());
+      assertFalse(loaded.contains("root"));
+      assertEquals(Arrays.asList("john"), loaded.getSubscribers("LikePlugin", FREQUENCY.INSTANTLY));
+      assertEquals(1, loaded.getNumberOfDigestUsers(true));
+      assertEquals(1000, loaded.getDigestUsers(true, 0, 0).get(0).getLastUpdateTime().getTimeInMillis());
+      // mary is still not active
+      loaded.update(makeSetting("demo", true, "PostPlugin", "", ""));
+      assertEquals(Arrays.asList("demo"), loaded.getSubscribers("PostPlugin", FREQUENCY.INSTANTLY));
+      // the snapshot of other data is not read
+      try {
+        SubscriberIndex.load(file, "other");
+        fail("The snapshot of an other repository must not be loaded");
+      } catch (IOException e) {
+        // expected
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private SubscriberIndex makeIndex() {
+    SubscriberIndex index = new SubscriberIndex("repository");
+    index.update(makeSetting("root", true, "LikePlugin", "", "LikePlugin"));
+    index.update(makeSetting("john", true, "LikePlugin", "CommentPlugin", ""));
+    index.update(makeSetting("mary", false, "PostPlugin", "CommentPlugin", ""));
+    return index;
+  }
+
+  private UserSetting makeSetting(String userId, boolean active, String instantly, String daily, String weekly) {
+    UserSetting setting = UserSetting.getInstance();
+    setting.setUserId(userId);
+    setting.setActive(active);
+    setting.setInstantlyProviders(Arrays.asList(instantly.split(",")));
+    setting.setDailyProviders(Arrays.asList(daily.split(",")));
+    setting.setWeeklyProviders(Arrays.asList(weekly.split(",")));
+    setting.getLastUpdateTime().setTimeInMillis(1000);
+    return setting;
+  }
+}
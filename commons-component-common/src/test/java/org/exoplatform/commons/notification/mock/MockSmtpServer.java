@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.mock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal SMTP server accepting the messages on a local port, the
+ * recipients containing "reject" are refused.
+ */
+public class MockSmtpServer implements Runnable {
+  private final ServerSocket  serverSocket;
+
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  private final AtomicInteger messageCount    = new AtomicInteger();
+
+  private volatile boolean    running         = true;
+
+  public MockSmtpServer() throws IOException {
+    this.serverSocket = new ServerSocket(0);
+    Thread thread = new Thread(this, "MockSmtpServer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  public int getMessageCount() {
+    return messageCount.get();
+  }
+
+  public void stop() throws IOException {
+    running = false;
+    serverSocket.close();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        final Socket socket = serverSocket.accept();
+        connectionCount.incrementAndGet();
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            handle(socket);
+          }
+        });
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void handle(Socket socket) {
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+      PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+      reply(writer, "220 localhost ESMTP");
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String command = line.toUpperCase();
+        if (command.startsWith("RCPT") && command.contains("REJECT")) {
+          reply(writer, "550 Mailbox unavailable");
+        } else if (command.startsWith("DATA")) {
+          reply(writer, "354 End data with <CR><LF>.<CR><LF>");
+          while ((line = reader.readLine()) != null && line.equals(".") == false) {
+            // reads the content
+          }
+          messageCount.incrementAndGet();
+          reply(writer, "250 OK");
+        } else if (command.startsWith("QUIT")) {
+          reply(writer, "221 Bye");
+          break;
+        } else {
+          reply(writer, "250 OK");
+        }
+      }
+      socket.close();
+    } catch (IOException e) {
+      // the client closed the connection
+    }
+  }
+
+  private static void reply(PrintWriter writer, String line) {
+    writer.print(line + "\r\n");
+    writer.flush();
+  }
+}
@@ -16,6 +16,9 @@
  */
 package org.exoplatform.settings.impl;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
@@ -90,6 +93,22 @@ public class SettingServiceImplTest extends BaseCommonsTestCase {
     assertEquals("b", settingService.get(Context.GLOBAL, Scope.SPACE.id("name"), "a").getValue());
   }
 
+  public void testGetAll() {
+    settingService.set(Context.USER.id("foo"), Scope.SPACE.id("all"), "a", SettingValue.create("b"));
+    settingService.set(Context.USER.id("foo"), Scope.SPACE.id("all"), "c", SettingValue.create(true));
+    settingService.set(Context.USER.id("bar"), Scope.SPACE.id("all"), "a", SettingValue.create("d"));
+    Map<String, Map<String, SettingValue<?>>> values = settingService.getAll(Context.USER,
+                                                                             Arrays.asList("foo", "bar", "none"),
+                                                                             Scope.SPACE.id("all"),
+                                                                             Arrays.asList("a", "c"));
+    assertEquals(2, values.size());
+    assertEquals("b", values.get("foo").get("a").getValue());
+    assertEquals(true, values.get("foo").get("c").getValue());
+    assertEquals("d", values.get("bar").get("a").getValue());
+    assertNull(values.get("bar").get("c"));
+    assertNull(values.get("none"));
+  }
+
   public void testRemoveSimple() {
     settingService.set(Context.USER.id("foo"), Scope.SPACE, "a", SettingValue.create("b"));
     assertEquals("b", settingService.get(Context.USER.id("foo"), Scope.SPACE, "a").getValue());
@@ -1,8 +1,10 @@
 package org.exoplatform.settings.impl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -74,6 +76,20 @@ public class UserSettingServiceTest extends BaseCommonsTestCase {
     assertEquals(2, list.size());
   }
 
+  public void testGetUsersSettings() throws Exception {
+    userSettingService.save(createUserSetting("root", Arrays.asList("1,2"), Arrays.asList("3,4"), Arrays.asList("5,6")));
+    userSettingService.save(createUserSetting("john", Arrays.asList("4,5"), Arrays.asList("2,8"), Arrays.asList("6,7")));
+    //
+    Map<String, UserSetting> settings = userSettingService.getAll(Arrays.asList("root", "john", "mary"));
+    assertEquals(Arrays.asList("root", "john", "mary"), new ArrayList<String>(settings.keySet()));
+    assertTrue(settings.get("root").isInInstantly("1"));
+    assertTrue(settings.get("john").isInDaily("8"));
+    assertTrue(settings.get("john").isActive());
+    // mary uses the default settings
+    assertEquals("mary", settings.get("mary").getUserId());
+    assertEquals(UserSetting.getDefaultInstance().getDailyProviders(), settings.get("mary").getDailyProviders());
+  }
+
   private void runUpgrade() throws Exception {
     // run upgrade by run daily
     getService(NotificationService.class).processDigest();